@@ -25,6 +25,8 @@ import wyil.interpreter.ConcreteSemantics.RValue;
 import wyil.lang.WyilFile;
 import wyil.lang.WyilFile.QualifiedName;
 import wyil.lang.WyilFile.Type;
+import wyil.util.ProofCache;
+import wyil.util.SymbolManifest;
 import static wyil.lang.WyilFile.Name;
 import wyil.interpreter.Interpreter;
 
@@ -37,9 +39,13 @@ import wybs.util.AbstractBuildRule;
 import wybs.util.AbstractCompilationUnit.Identifier;
 import wybs.util.AbstractCompilationUnit.Tuple;
 import wybs.util.AbstractCompilationUnit.Value;
+import wyc.cmd.Daemon;
 import wyc.cmd.QuickCheck;
+import wyc.lang.CompileState;
 import wyc.lang.WhileyFile;
 import wyc.task.CompileTask;
+import wyc.util.ProfilingMeter;
+import wyil.check.VerificationCheck;
 
 public class Activator implements Module.Activator {
 
@@ -48,6 +54,11 @@ public class Activator implements Module.Activator {
 	public static Trie TARGET_CONFIG_OPTION = Trie.fromString("build/whiley/target");
 	public static Trie VERIFY_CONFIG_OPTION = Trie.fromString("build/whiley/verify");
 	public static Trie COUNTEREXAMPLE_CONFIG_OPTION = Trie.fromString("build/whiley/counterexamples");
+	public static Trie PARALLEL_CONFIG_OPTION = Trie.fromString("build/whiley/parallel");
+	public static Trie MANIFEST_CONFIG_OPTION = Trie.fromString("build/whiley/manifest");
+	public static Trie PROFILE_CONFIG_OPTION = Trie.fromString("build/whiley/profile");
+	public static Trie PROOF_LIMIT_CONFIG_OPTION = Trie.fromString("build/whiley/proof-limit");
+	public static Trie FAIL_FAST_CONFIG_OPTION = Trie.fromString("build/whiley/fail-fast");
 	private static Value.UTF8 SOURCE_DEFAULT = new Value.UTF8("src".getBytes());
 	private static Value.UTF8 TARGET_DEFAULT = new Value.UTF8("bin".getBytes());
 
@@ -64,7 +75,12 @@ public class Activator implements Module.Activator {
 					Configuration.UNBOUND_STRING(SOURCE_CONFIG_OPTION, "Specify location for whiley source files", SOURCE_DEFAULT),
 					Configuration.UNBOUND_STRING(TARGET_CONFIG_OPTION, "Specify location for generated wyil files", TARGET_DEFAULT),
 					Configuration.UNBOUND_BOOLEAN(VERIFY_CONFIG_OPTION, "Enable verification of whiley files", new Value.Bool(false)),
-					Configuration.UNBOUND_BOOLEAN(COUNTEREXAMPLE_CONFIG_OPTION, "Enable counterexample generation during verification", new Value.Bool(false)));
+					Configuration.UNBOUND_BOOLEAN(COUNTEREXAMPLE_CONFIG_OPTION, "Enable counterexample generation during verification", new Value.Bool(false)),
+					Configuration.UNBOUND_BOOLEAN(PARALLEL_CONFIG_OPTION, "Enable concurrent name resolution, flow typing, compiler checks and verification", new Value.Bool(false)),
+					Configuration.UNBOUND_BOOLEAN(MANIFEST_CONFIG_OPTION, "Enable generation of symbol manifests for generated wyil files", new Value.Bool(false)),
+					Configuration.UNBOUND_BOOLEAN(PROFILE_CONFIG_OPTION, "Enable generation of a profile for each build", new Value.Bool(false)),
+					Configuration.BOUND_INTEGER(PROOF_LIMIT_CONFIG_OPTION, "Specify maximum size of proofs attempted during verification", new Value.Int(VerificationCheck.DEFAULT_PROOF_LIMIT), 0),
+					Configuration.UNBOUND_BOOLEAN(FAIL_FAST_CONFIG_OPTION, "Stop verification at the first verification condition which cannot be proved", new Value.Bool(true)));
 		}
 
 		@Override
@@ -80,20 +96,35 @@ public class Activator implements Module.Activator {
 			boolean verification = configuration.get(Value.Bool.class, VERIFY_CONFIG_OPTION).unwrap();
 			// Determine whether to try and find counterexamples or not
 			boolean counterexamples = configuration.get(Value.Bool.class, COUNTEREXAMPLE_CONFIG_OPTION).unwrap();
+			// Determine whether to run name resolution, flow typing, compiler checks and verification concurrently or not
+			boolean parallel = configuration.get(Value.Bool.class, PARALLEL_CONFIG_OPTION).unwrap();
+			// Determine whether to generate a symbol manifest or not
+			boolean manifest = configuration.get(Value.Bool.class, MANIFEST_CONFIG_OPTION).unwrap();
+			// Determine whether to profile builds or not
+			boolean profile = configuration.get(Value.Bool.class, PROFILE_CONFIG_OPTION).unwrap();
+			// Determine maximum size of proofs attempted during verification
+			int proofLimit = configuration.get(Value.Int.class, PROOF_LIMIT_CONFIG_OPTION).unwrap().intValue();
+			// Determine whether to stop at the first verification condition which cannot be proved or not
+			boolean failFast = configuration.get(Value.Bool.class, FAIL_FAST_CONFIG_OPTION).unwrap();
 			// Construct the source root
 			Path.Root sourceRoot = project.getRoot().createRelativeRoot(source);
 			// Construct the binary root
 			Path.Root binaryRoot = project.getRoot().createRelativeRoot(target);
 			// Initialise the target file being built
 			Path.Entry<WyilFile> binary = initialiseBinaryTarget(binaryRoot,pkg);
+			// Initialise the symbol manifest (if applicable)
+			Path.Entry<SymbolManifest> symbols = manifest ? initialiseEntry(binaryRoot, pkg, SymbolManifest.ContentType) : null;
+			// Initialise the profile (if applicable)
+			Path.Entry<ProfilingMeter> profiler = profile ? initialiseEntry(project.getRoot(), pkg, ProfilingMeter.ContentType) : null;
 			// Add build rule to project.
 			project.getRules().add(new AbstractBuildRule<WhileyFile, WyilFile>(sourceRoot, includes, null) {
 				@Override
 				protected void apply(List<Path.Entry<WhileyFile>> matches, Collection<Build.Task> tasks)
 						throws IOException {
 					// Construct a new build task
-					CompileTask task = new CompileTask(project, sourceRoot, binary, matches)
-							.setVerification(verification).setCounterExamples(counterexamples);
+					CompileTask task = new CompileTask(project, sourceRoot, binaryRoot, binary, matches)
+							.setVerification(verification).setCounterExamples(counterexamples).setParallel(parallel)
+								.setProofLimit(proofLimit).setFailFast(failFast).setManifest(symbols).setProfile(profiler);
 					// Submit the task for execution
 					tasks.add(task);
 				}
@@ -150,6 +181,14 @@ public class Activator implements Module.Activator {
 //			return stack;
 		}
 
+		private <T> Path.Entry<T> initialiseEntry(Path.Root root, Path.ID id, Content.Type<T> type) throws IOException {
+			if (root.exists(id, type)) {
+				return root.get(id, type);
+			} else {
+				return root.create(id, type);
+			}
+		}
+
 		private Path.Entry<WyilFile> initialiseBinaryTarget(Path.Root binroot, Path.ID id) throws IOException {
 			if(binroot.exists(id, WyilFile.ContentType)) {
 				// Yes, it does so reuse it.
@@ -175,9 +214,14 @@ public class Activator implements Module.Activator {
 		context.register(Build.Platform.class, WHILEY_PLATFORM);
 		// List of commands to register
 		context.register(Command.Descriptor.class, QuickCheck.DESCRIPTOR);
+		context.register(Command.Descriptor.class, Daemon.DESCRIPTOR);
 		// List of content types
 		context.register(Content.Type.class, WhileyFile.ContentType);
 		context.register(Content.Type.class, WyilFile.ContentType);
+		context.register(Content.Type.class, CompileState.ContentType);
+		context.register(Content.Type.class, ProofCache.ContentType);
+		context.register(Content.Type.class, SymbolManifest.ContentType);
+		context.register(Content.Type.class, ProfilingMeter.ContentType);
 		// Done
 		return new Module() {
 			// what goes here?
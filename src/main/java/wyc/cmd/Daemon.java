@@ -0,0 +1,406 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.cmd;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import wybs.lang.Build;
+import wycc.cfg.ConfigFile;
+import wycc.cfg.Configuration;
+import wycc.cfg.Configuration.Schema;
+import wycc.lang.Command;
+import wycc.lang.Package;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+
+/**
+ * <p>
+ * A long running compile server which builds the project on request. The
+ * benefit of this over invoking the build command directly is that everything
+ * which is independent of the sources being compiled remains resident between
+ * builds. This includes the WyIL schema, the loaded classes (and the code
+ * generated for them by the JIT), and any dependency packages loaded during
+ * name resolution. Furthermore, since the compile task is incremental, only
+ * those sources which have changed since the previous build are recompiled.
+ * </p>
+ * <p>
+ * Clients connect to the server on the loopback interface. Since other users
+ * of the machine can also connect, clients must first authenticate by sending
+ * the token which the server writes (readable only by its owner) into
+ * <code>~/.whiley/daemon-<i>port</i>.token</code> on startup. This is a single
+ * line of text, which is followed by the request (also a single line of text).
+ * Two requests are supported:
+ * </p>
+ * <ul>
+ * <li><b>build</b>. Refresh the project from disk and build it. The
+ * dependencies of the project are resolved again if its configuration (i.e.
+ * <code>wy.toml</code>) has changed since they were last resolved. The response
+ * contains any error messages produced by the build (in the same format as for
+ * the build command), followed by a final line which is either
+ * <code>success</code> or <code>failure</code>.</li>
+ * <li><b>stop</b>. Shutdown the server. The response is the single line
+ * <code>stopped</code>.</li>
+ * </ul>
+ * <p>
+ * For example, <code>(cat ~/.whiley/daemon-4040.token; echo build) | nc
+ * localhost 4040</code> builds the project using a server running on the
+ * default port. Requests are processed one at a time, in the order they are
+ * received. A client which does not send its request promptly is disconnected,
+ * such that it cannot block other clients.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Daemon implements Command {
+	public static final int DEFAULT_PORT = 4040;
+
+	/**
+	 * The time (in milliseconds) which a client has to send each line of its
+	 * request.
+	 */
+	public static final int CLIENT_TIMEOUT = 10000;
+
+	public static final Command.Descriptor DESCRIPTOR = new Command.Descriptor() {
+		@Override
+		public String getName() {
+			return "daemon";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Run a compile server which builds the project on request";
+		}
+
+		@Override
+		public List<Option.Descriptor> getOptionDescriptors() {
+			return Arrays.asList(
+					Command.OPTION_NONNEGATIVE_INTEGER("port", "Specify port on which to listen for requests",
+							DEFAULT_PORT));
+		}
+
+		@Override
+		public Schema getConfigurationSchema() {
+			return Configuration.fromArray();
+		}
+
+		@Override
+		public List<Descriptor> getCommands() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Command initialise(Command.Environment environment) {
+			return new Daemon(environment);
+		}
+
+	};
+
+	private final Command.Environment environment;
+
+	/**
+	 * The contents of the configuration (i.e. <code>wy.toml</code>) of each
+	 * project when its dependencies were last resolved. This allows resolution to
+	 * be skipped when nothing has changed.
+	 */
+	private final Map<Build.Project, byte[]> configurations = new IdentityHashMap<>();
+
+	public Daemon(Command.Environment environment) {
+		this.environment = environment;
+	}
+
+	@Override
+	public Descriptor getDescriptor() {
+		return DESCRIPTOR;
+	}
+
+	@Override
+	public void initialise() {
+
+	}
+
+	@Override
+	public void finalise() {
+
+	}
+
+	@Override
+	public boolean execute(Command.Project project, Template template) throws Exception {
+		Command.Options options = template.getOptions();
+		int port = DEFAULT_PORT;
+		//
+		if (options.has("port")) {
+			port = options.get("port", Integer.class);
+		}
+		// Determine projects to build
+		List<Build.Project> projects;
+		if (project == null) {
+			projects = environment.getProjects();
+		} else {
+			projects = Collections.singletonList(project);
+		}
+		// NOTE: only bind to the loopback interface, since builds should not be
+		// accessible from elsewhere.
+		try (ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+			File tokenFile = getTokenFile(server.getLocalPort());
+			String token = createToken(tokenFile);
+			try {
+				environment.getLogger().logTimedMessage("Listening on " + server.getLocalSocketAddress(), 0, 0);
+				boolean running = true;
+				while (running) {
+					try (Socket client = server.accept()) {
+						client.setSoTimeout(CLIENT_TIMEOUT);
+						running = serve(projects, token, client);
+					} catch (SocketTimeoutException e) {
+						environment.getLogger().logTimedMessage("Client timed out", 0, 0);
+					} catch (IOException e) {
+						// A misbehaving client should not bring down the server
+						environment.getLogger().logTimedMessage("Client failed: " + e.getMessage(), 0, 0);
+					}
+				}
+			} finally {
+				tokenFile.delete();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine the file into which the token for a server on a given port is
+	 * written.
+	 *
+	 * @param port
+	 * @return
+	 */
+	public static File getTokenFile(int port) {
+		File dir = new File(System.getProperty("user.home"), ".whiley");
+		return new File(dir, "daemon-" + port + ".token");
+	}
+
+	/**
+	 * Generate a fresh token which clients must send to authenticate, and write it
+	 * into a given file which only the current user can read.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static String createToken(File file) throws IOException {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b & 0xFF));
+		}
+		file.getParentFile().mkdirs();
+		file.delete();
+		// NOTE: the file is restricted before the token is written into it
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(file.toPath(),
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(file.toPath());
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		Files.write(file.toPath(), (token + "\n").getBytes(StandardCharsets.UTF_8));
+		return token.toString();
+	}
+
+	/**
+	 * Serve a single request from a given client, provided it authenticates with
+	 * the given token.
+	 *
+	 * @param projects
+	 * @param token
+	 * @param client
+	 * @return false if the server should stop.
+	 * @throws IOException
+	 */
+	private boolean serve(List<Build.Project> projects, String token, Socket client) throws IOException {
+		BufferedReader input = new BufferedReader(
+				new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+		PrintStream output = new PrintStream(client.getOutputStream(), false, "UTF-8");
+		String credentials = input.readLine();
+		// NOTE: compare in constant time to avoid leaking the token
+		if (credentials == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+				credentials.trim().getBytes(StandardCharsets.UTF_8))) {
+			output.println("unauthorised");
+			output.flush();
+			return true;
+		}
+		String request = input.readLine();
+		boolean running = true;
+		if ("build".equals(request)) {
+			boolean OK = build(projects, output);
+			output.println(OK ? "success" : "failure");
+		} else if ("stop".equals(request)) {
+			output.println("stopped");
+			running = false;
+		} else {
+			output.println("unknown request: " + request);
+		}
+		output.flush();
+		return running;
+	}
+
+	/**
+	 * Build each of the given projects in turn, writing any error messages to the
+	 * given output. Since a failed build should not bring down the server, any
+	 * exceptions arising are reported to the client as well.
+	 *
+	 * @param projects
+	 * @param output
+	 * @return
+	 */
+	private boolean build(List<Build.Project> projects, PrintStream output) {
+		boolean OK = true;
+		for (Build.Project project : projects) {
+			try {
+				long start = System.currentTimeMillis();
+				// Pick up any changes made since the last build
+				resolve(project);
+				project.refresh();
+				// Actually force the project to build!
+				OK &= project.build(environment.getExecutor(), environment.getMeter()).get();
+				// Flush any created resources (e.g. wyil files)
+				project.getRoot().flush();
+				project.getRoot().refresh();
+				// Look for error messages
+				for (Build.Task task : project.getTasks()) {
+					wycc.commands.Build.printSyntacticMarkers(output, task.getSources(), task.getTarget());
+				}
+				environment.getLogger().logTimedMessage("Build completed", System.currentTimeMillis() - start, 0);
+			} catch (Exception e) {
+				output.println("internal failure: " + e.getMessage());
+				OK = false;
+			}
+		}
+		return OK;
+	}
+
+	/**
+	 * Resolve the dependencies of a given project again, if its configuration has
+	 * changed since they were last resolved. This ensures changes to the
+	 * dependencies made since the last build are picked up. Any package whose
+	 * location is unchanged is retained as is (rather than replaced with a fresh
+	 * root for the same location). This is important since the symbol tables of
+	 * dependencies loaded during name resolution are cached against their roots,
+	 * and would otherwise be loaded again on every build.
+	 *
+	 * @param project
+	 * @throws IOException
+	 */
+	private void resolve(Build.Project project) throws IOException {
+		Path.Entry<ConfigFile> entry = project.getRoot().get(Trie.fromString("wy"), ConfigFile.ContentType);
+		if (entry == null) {
+			return;
+		}
+		byte[] bytes;
+		try (InputStream input = entry.inputStream()) {
+			bytes = readAll(input);
+		}
+		if (Arrays.equals(bytes, configurations.get(project))) {
+			// Nothing has changed since the last build
+			return;
+		}
+		// NOTE: read from the bytes, since the entry may hold a stale copy
+		Configuration configuration = ConfigFile.ContentType.read(entry, new ByteArrayInputStream(bytes))
+				.toConfiguration(Package.SCHEMA, false);
+		List<Path.Root> roots = environment.getPackageResolver().resolve(configuration);
+		List<Build.Package> packages = project.getPackages();
+		Map<String, Build.Package> existing = new HashMap<>();
+		for (Build.Package p : packages) {
+			existing.put(p.getRoot().toString(), p);
+		}
+		packages.clear();
+		for (Path.Root root : roots) {
+			Build.Package p = existing.get(root.toString());
+			if (p == null) {
+				Configuration config = readConfiguration(root);
+				p = new Build.Package() {
+					@Override
+					public Configuration getConfiguration() {
+						return config;
+					}
+
+					@Override
+					public Path.Root getRoot() {
+						return root;
+					}
+				};
+			}
+			packages.add(p);
+		}
+		// NOTE: only recorded once resolution succeeds, such that a failed
+		// resolution is attempted again on the next build.
+		configurations.put(project, bytes);
+	}
+
+	/**
+	 * Read everything from a given input stream until the End-Of-File (EOF) is
+	 * reached.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = input.read(buffer)) != -1) {
+			output.write(buffer, 0, n);
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Read the package configuration (i.e. <code>wy.toml</code>) from a given
+	 * root, returning <code>null</code> if none exists.
+	 *
+	 * @param root
+	 * @return
+	 * @throws IOException
+	 */
+	private static Configuration readConfiguration(Path.Root root) throws IOException {
+		Path.Entry<ConfigFile> entry = root.get(Trie.fromString("wy"), ConfigFile.ContentType);
+		return entry == null ? null : entry.read().toConfiguration(Package.SCHEMA, false);
+	}
+}
@@ -49,6 +49,7 @@ import wyil.lang.WyilFile.Attr.StackFrame;
 import wyil.lang.WyilFile.Attr.SyntaxError;
 import wyil.lang.WyilFile.Type;
 import wyil.lang.WyilFile.Type.Callable;
+import wyil.util.TypeInterner;
 
 /**
  * <p>
@@ -211,9 +212,15 @@ public class QuickCheck implements Command {
 	/**
 	 * Cache of previously computed values. This is useful for reducing memory
 	 * requirements. Furthermore, it is necessary to ensure that aliasing bugs are
-	 * identified.
+	 * identified. Types are keyed on their canonical representatives, such that
+	 * equivalent types share the same domain and lookups take constant time.
 	 */
-	private final HashMap<Type, Domain.Big<RValue>> cache;
+	private final IdentityHashMap<Type, Domain.Big<RValue>> cache;
+
+	/**
+	 * Determines the canonical representatives of types used as keys in the cache.
+	 */
+	private final TypeInterner types;
 
 	/**
 	 * Provides the output chanel for information about the quick check process.
@@ -224,7 +231,8 @@ public class QuickCheck implements Command {
 		this.environment = environment;
 		this.sysout = new PrintStream(sysout);
 		this.syserr = new PrintStream(syserr);
-		this.cache = new HashMap<>();
+		this.cache = new IdentityHashMap<>();
+		this.types = new TypeInterner();
 		// Default logger just reports up to project logger
 		this.logger = new StructuredLogger<LogEntry>() {
 
@@ -673,7 +681,8 @@ public class QuickCheck implements Command {
 	 * @return
 	 */
 	private Domain.Big<RValue> constructGenerator(Type type, ExtendedContext context) {
-		Domain.Big<RValue> result = cache.get(type);
+		Type key = types.intern(type);
+		Domain.Big<RValue> result = cache.get(key);
 		if (result == null) {
 			switch (type.getOpcode()) {
 			case TYPE_null:
@@ -719,7 +728,7 @@ public class QuickCheck implements Command {
 			}
 			// Store the computed result in the cache. This is important to reduce memory
 			// footprints. In some cases, this reduction can be quite significant.
-			cache.put(type,result);
+			cache.put(key,result);
 		}
 		return result;
 	}
@@ -13,49 +13,94 @@
 // limitations under the License.
 package wyc.io;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 import wyc.lang.WhileyFile;
 import wyfs.lang.Path;
 
 /**
+ * <p>
  * Split a source file into a list of tokens. These tokens can then be fed into
  * the parser in order to generate an Abstract Syntax Tree (AST).
+ * </p>
+ * <p>
+ * The lexer operates directly over the decoded characters of the source file,
+ * which is always decoded as UTF-8 (regardless of the platform's default
+ * character set), and records tokens in a struct-of-arrays form (see <code>TokenStream</code>).
+ * That is, for each token only its kind and position are recorded, whilst its
+ * text remains in the source buffer until it is actually required. Since the
+ * majority of tokens (e.g. whitespace and operators) are only ever examined
+ * for their kind, this avoids creating a large number of short-lived objects
+ * for every file compiled.
+ * </p>
  *
  * @author David J. Pearce
  *
  */
 public class WhileyFileLexer {
 	private final Path.Entry<WhileyFile> entry;
-	private StringBuilder input;
+	private final char[] input;
+	private final int length;
 	private int pos;
+	// Token table being constructed
+	private byte[] kinds;
+	private int[] starts;
+	private int[] offsets;
+	private int[] lengths;
+	private HashMap<Integer, String> texts;
+	private int count;
 
 	public WhileyFileLexer(Path.Entry<WhileyFile> entry) throws IOException {
 		this.entry = entry;
-		Reader reader = new InputStreamReader(entry.inputStream());
-		BufferedReader in = new BufferedReader(reader);
-		try {
-			StringBuilder text = new StringBuilder();
-			int len = 0;
-			char[] buf = new char[1024];
-			while ((len = in.read(buf)) != -1) {
-				text.append(buf, 0, len);
+		try (InputStream in = entry.inputStream()) {
+			// NOTE: characters are decoded directly into the array which is scanned,
+			// rather than being read into bytes or a string first. Since UTF-8 never
+			// uses fewer bytes than characters, the number of bytes available is a
+			// good initial size.
+			Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+			char[] chars = new char[Math.max(in.available(), 1024)];
+			int n = 0, r;
+			while ((r = reader.read(chars, n, chars.length - n)) != -1) {
+				n += r;
+				if (n == chars.length) {
+					chars = Arrays.copyOf(chars, n * 2);
+				}
 			}
-			input = text;
-		} finally {
-			in.close();
+			this.input = chars;
+			this.length = n;
 		}
 	}
 
 	public WhileyFileLexer(String input) {
 		this.entry = null;
-		this.input = new StringBuilder(input);
+		this.input = input.toCharArray();
+		this.length = this.input.length;
+	}
+
+	private WhileyFileLexer(char[] input, int length) {
+		this.entry = null;
+		this.input = input;
+		this.length = length;
+	}
+
+	/**
+	 * Get the characters being scanned by this lexer.
+	 *
+	 * @return
+	 */
+	public CharBuffer getInput() {
+		return CharBuffer.wrap(input, 0, length).asReadOnlyBuffer();
 	}
 
 	/**
@@ -64,31 +109,146 @@ public class WhileyFileLexer {
 	 *
 	 * @return
 	 */
-	public List<Token> scan() {
-		ArrayList<Token> tokens = new ArrayList<>();
+	public TokenStream scan() {
+		allocate(16 + (length / 4));
 		pos = 0;
+		while (pos < length) {
+			scanToken();
+		}
+		return new TokenStream(input, length, kinds, starts, offsets, lengths, texts, count);
+	}
 
-		while (pos < input.length()) {
-			char c = input.charAt(pos);
-
-			if (isDigit(c)) {
-				tokens.add(scanNumericLiteral());
-			} else if (c == '"') {
-				tokens.add(scanStringLiteral());
-			} else if (c == '\'') {
-				tokens.add(scanCharacterLiteral());
-			} else if (isOperatorStart(c)) {
-				tokens.add(scanOperator());
-			} else if (isLetter(c) || c == '_') {
-				tokens.add(scanIdentifier());
-			} else if (Character.isWhitespace(c)) {
-				scanWhiteSpace(tokens);
-			} else {
-				tokens.add(new Token(Token.Kind.Unknown, "" + c, pos++));
+	/**
+	 * <p>
+	 * Update a given token stream to reflect an edit of its source text, where
+	 * some number of characters at a given offset are replaced by some inserted
+	 * text. Rather than scanning the edited text in its entirety, only a window
+	 * of tokens around the edit is scanned again. Scanning begins from the last
+	 * token before the edit which cannot have been affected by it (i.e. whose
+	 * lookahead did not reach the edit) and stops as soon as it reaches the start
+	 * of a token in the unchanged remainder of the text. Since the lexer carries
+	 * no state between tokens, the remaining tokens are then the same as before,
+	 * except for their positions.
+	 * </p>
+	 * <p>
+	 * The returned object identifies the window of tokens which was scanned
+	 * again. This allows a client (e.g. the parser) to determine which parts of
+	 * the file are affected by the edit.
+	 * </p>
+	 *
+	 * @param tokens
+	 *            The token stream before the edit.
+	 * @param offset
+	 *            Position in the original text where the edit occurs.
+	 * @param removed
+	 *            Number of characters removed from the original text at that
+	 *            position.
+	 * @param inserted
+	 *            Text inserted at that position.
+	 * @return
+	 */
+	public static Rescan rescan(TokenStream tokens, int offset, int removed, String inserted) {
+		if (offset < 0 || removed < 0 || offset + removed > tokens.length) {
+			throw new IllegalArgumentException("invalid edit");
+		}
+		int delta = inserted.length() - removed;
+		// Construct the edited text
+		char[] input = new char[tokens.length + delta];
+		System.arraycopy(tokens.input, 0, input, 0, offset);
+		inserted.getChars(0, inserted.length(), input, offset);
+		System.arraycopy(tokens.input, offset + removed, input, offset + inserted.length(),
+				tokens.length - offset - removed);
+		WhileyFileLexer lexer = new WhileyFileLexer(input, input.length);
+		// Determine the first token which could be affected by the edit. Since the
+		// lexer looks at most two characters beyond the end of a token, this is the
+		// first token which ends within two characters of the edit.
+		int n = tokens.size;
+		int start = 0;
+		while (start < n && (tokens.offsets[start] + tokens.lengths[start] + 2) <= offset) {
+			start = start + 1;
+		}
+		// Step back one further token, and over any token whose text was not taken
+		// from the input, as scanning for it did not begin at its position.
+		start = Math.max(0, start - 1);
+		while (start > 0 && tokens.isOverride(start)) {
+			start = start - 1;
+		}
+		// Copy over tokens before the window
+		lexer.allocate(n + 16);
+		System.arraycopy(tokens.kinds, 0, lexer.kinds, 0, start);
+		System.arraycopy(tokens.starts, 0, lexer.starts, 0, start);
+		System.arraycopy(tokens.offsets, 0, lexer.offsets, 0, start);
+		System.arraycopy(tokens.lengths, 0, lexer.lengths, 0, start);
+		lexer.count = start;
+		if (tokens.texts != null) {
+			for (Map.Entry<Integer, String> e : tokens.texts.entrySet()) {
+				if (e.getKey() < start) {
+					lexer.addText(e.getKey(), e.getValue());
+				}
+			}
+		}
+		// Scan the window until the start of an unchanged token is reached. Observe
+		// that, when the window begins with the first token, scanning must begin at
+		// the start of the text since that token may not have been taken from the
+		// input.
+		int end = offset + inserted.length();
+		int k = start;
+		lexer.pos = start > 0 ? tokens.offsets[start] : 0;
+		while (lexer.pos < lexer.length) {
+			if (lexer.pos >= end) {
+				while (k < n && (tokens.offsets[k] + delta) < lexer.pos) {
+					k = k + 1;
+				}
+				if (k < n && (tokens.offsets[k] + delta) == lexer.pos && !tokens.isOverride(k)) {
+					break;
+				}
 			}
+			lexer.scanToken();
 		}
+		if (lexer.pos >= lexer.length) {
+			// Window extends to the end of the text
+			k = n;
+		}
+		int window = lexer.count;
+		// Copy over tokens after the window, adjusting their positions.
+		for (int i = k; i < n; ++i) {
+			lexer.add(TokenStream.KINDS[tokens.kinds[i]], tokens.starts[i] + delta, tokens.offsets[i] + delta,
+					tokens.lengths[i]);
+		}
+		if (tokens.texts != null) {
+			for (Map.Entry<Integer, String> e : tokens.texts.entrySet()) {
+				if (e.getKey() >= k) {
+					lexer.addText(e.getKey() - k + window, e.getValue());
+				}
+			}
+		}
+		TokenStream result = new TokenStream(input, input.length, lexer.kinds, lexer.starts, lexer.offsets,
+				lexer.lengths, lexer.texts, lexer.count);
+		return new Rescan(result, start, k, window);
+	}
 
-		return tokens;
+	/**
+	 * Scan the next token (or tokens, in the case of whitespace) from the current
+	 * position.
+	 */
+	private void scanToken() {
+		char c = input[pos];
+
+		if (isDigit(c)) {
+			scanNumericLiteral();
+		} else if (c == '"') {
+			scanStringLiteral();
+		} else if (c == '\'') {
+			scanCharacterLiteral();
+		} else if (isOperatorStart(c)) {
+			scanOperator();
+		} else if (isLetter(c) || c == '_') {
+			scanIdentifier();
+		} else if (Character.isWhitespace(c)) {
+			scanWhiteSpace();
+		} else {
+			add(Token.Kind.Unknown, pos, pos++, 1);
+		}
 	}
 
 	/**
@@ -98,54 +258,44 @@ public class WhileyFileLexer {
 	 *
 	 * @return
 	 */
-	public Token scanNumericLiteral() {
-		int start = pos;
+	private void scanNumericLiteral() {
 		int next = pos + 1;
 		// Decide whether it's an integer, binary or hexadecimal literal
-		if (next < input.length() && input.charAt(pos) == '0' && input.charAt(next) == 'x') {
+		if (next < length && input[pos] == '0' && input[next] == 'x') {
 			// Hexadecimal literal
-			return scanHexLiteral();
-		} else if (next < input.length() && input.charAt(pos) == '0' && input.charAt(next) == 'b') {
+			scanHexLiteral();
+		} else if (next < length && input[pos] == '0' && input[next] == 'b') {
 			// Binary literal
-			return scanBinaryLiteral();
+			scanBinaryLiteral();
 		} else {
-			return scanIntegerLiteral();
+			scanIntegerLiteral();
 		}
 	}
 
-	public Token scanIntegerLiteral() {
+	private void scanIntegerLiteral() {
 		int start = pos;
-		while (pos < input.length() && (input.charAt(pos) == '_' || isDigit(input.charAt(pos)))) {
+		while (pos < length && (input[pos] == '_' || isDigit(input[pos]))) {
 			pos = pos + 1;
 		}
-		// Extract literal characters
-		String literal = input.substring(start, pos);
-		// Done
-		return new Token(Token.Kind.IntegerLiteral, literal, start);
+		add(Token.Kind.IntegerLiteral, start, start, pos - start);
 	}
 
-	public Token scanHexLiteral() {
+	private void scanHexLiteral() {
 		int start = pos;
 		pos = pos + 2; // skip "0x"
-		while (pos < input.length() && (input.charAt(pos) == '_' || isLetterOrDigit(input.charAt(pos)))) {
+		while (pos < length && (input[pos] == '_' || isLetterOrDigit(input[pos]))) {
 			pos = pos + 1;
 		}
-		// Extract literal characters
-		String literal = input.substring(start, pos);
-		// Done
-		return new Token(Token.Kind.HexLiteral, literal, start);
+		add(Token.Kind.HexLiteral, start, start, pos - start);
 	}
 
-	public Token scanBinaryLiteral() {
+	private void scanBinaryLiteral() {
 		int start = pos;
 		pos = pos + 2; // skip "0b"
-		while (pos < input.length() && (input.charAt(pos) == '_' || isDigit(input.charAt(pos)))) {
+		while (pos < length && (input[pos] == '_' || isDigit(input[pos]))) {
 			pos = pos + 1;
 		}
-		// Extract literal characters
-		String literal = input.substring(start, pos);
-		// Done
-		return new Token(Token.Kind.BinaryLiteral, literal, start);
+		add(Token.Kind.BinaryLiteral, start, start, pos - start);
 	}
 
 	/**
@@ -156,14 +306,14 @@ public class WhileyFileLexer {
 	 *
 	 * @return
 	 */
-	public Token scanCharacterLiteral() {
+	private void scanCharacterLiteral() {
 		boolean failed = false;
 		int start = pos;
 		pos++;
-		char c = input.charAt(pos++);
+		char c = charAt(pos++);
 		if (c == '\\') {
 			// escape code
-			switch (input.charAt(pos++)) {
+			switch (charAt(pos++)) {
 			case 'b':
 				c = '\b';
 				break;
@@ -192,27 +342,28 @@ public class WhileyFileLexer {
 				failed=true;
 			}
 		}
-		if (input.charAt(pos) != '\'') {
-			return new Token(Token.Kind.Unknown, "" + c, pos);
+		if (charAt(pos) != '\'') {
+			add(Token.Kind.Unknown, pos, "" + c);
+			return;
 		}
 		pos = pos + 1;
 		if(failed) {
-			return new Token(Token.Kind.Unknown, input.substring(start, pos), start);
+			add(Token.Kind.Unknown, start, start, pos - start);
 		} else {
-			return new Token(Token.Kind.CharLiteral, input.substring(start, pos),
-					start);
+			add(Token.Kind.CharLiteral, start, start, pos - start);
 		}
 	}
 
-	public Token scanStringLiteral() {
+	private void scanStringLiteral() {
 		int start = pos;
 		boolean escaped = false;
 		pos++;
-		while (pos < input.length()) {
-			char c = input.charAt(pos);
+		while (pos < length) {
+			char c = input[pos];
 			if (c == '"' && !escaped) {
-				String v = input.substring(start, ++pos);
-				return new Token(Token.Kind.StringLiteral, v, start);
+				++pos;
+				add(Token.Kind.StringLiteral, start, start, pos - start);
+				return;
 			} else if(c == '\\' && !escaped) {
 				escaped = true;
 			} else {
@@ -220,7 +371,7 @@ public class WhileyFileLexer {
 			}
 			pos = pos + 1;
 		}
-		return new Token(Token.Kind.Unknown, input.substring(start, pos), pos - 1);
+		add(Token.Kind.Unknown, pos - 1, start, pos - start);
 	}
 
 	public static final char UC_FORALL = '\u2200';
@@ -265,202 +416,231 @@ public class WhileyFileLexer {
 		return false;
 	}
 
-	public Token scanOperator() {
-		char c = input.charAt(pos);
+	private void scanOperator() {
+		char c = input[pos];
 
 		switch (c) {
 		case '.':
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '.') {
+			if ((pos + 1) < length && input[pos + 1] == '.') {
 				pos = pos + 2;
-				if (pos < input.length() && input.charAt(pos) == '.') {
-					return new Token(Token.Kind.DotDotDot, "..", pos++);
+				if (pos < length && input[pos] == '.') {
+					add(Token.Kind.DotDotDot, pos, pos - 2, 2);
+					pos++;
 				} else {
-					return new Token(Token.Kind.DotDot, "..", pos);
+					add(Token.Kind.DotDot, pos, pos - 2, 2);
 				}
 			} else {
-				return new Token(Token.Kind.Dot, ".", pos++);
+				add(Token.Kind.Dot, pos, pos++, 1);
 			}
+			return;
 		case ',':
-			return new Token(Token.Kind.Comma, ",", pos++);
+			add(Token.Kind.Comma, pos, pos++, 1);
+			return;
 		case ';':
-			return new Token(Token.Kind.SemiColon, ";", pos++);
+			add(Token.Kind.SemiColon, pos, pos++, 1);
+			return;
 		case ':':
-			if (pos + 1 < input.length() && input.charAt(pos + 1) == ':') {
+			if (pos + 1 < length && input[pos + 1] == ':') {
+				add(Token.Kind.ColonColon, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.ColonColon, "::", pos - 2);
 			} else {
-				return new Token(Token.Kind.Colon, ":", pos++);
+				add(Token.Kind.Colon, pos, pos++, 1);
 			}
+			return;
 		case '|':
-			if (pos + 1 < input.length() && input.charAt(pos + 1) == '|') {
+			if (pos + 1 < length && input[pos + 1] == '|') {
+				add(Token.Kind.LogicalOr, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.LogicalOr, "||", pos - 2);
 			} else {
-				return new Token(Token.Kind.VerticalBar, "|", pos++);
+				add(Token.Kind.VerticalBar, pos, pos++, 1);
 			}
+			return;
 		case '(':
-			return new Token(Token.Kind.LeftBrace, "(", pos++);
+			add(Token.Kind.LeftBrace, pos, pos++, 1);
+			return;
 		case ')':
-			return new Token(Token.Kind.RightBrace, ")", pos++);
+			add(Token.Kind.RightBrace, pos, pos++, 1);
+			return;
 		case '[':
-			return new Token(Token.Kind.LeftSquare, "[", pos++);
+			add(Token.Kind.LeftSquare, pos, pos++, 1);
+			return;
 		case ']':
-			return new Token(Token.Kind.RightSquare, "]", pos++);
+			add(Token.Kind.RightSquare, pos, pos++, 1);
+			return;
 		case '{':
-			return new Token(Token.Kind.LeftCurly, "{", pos++);
+			add(Token.Kind.LeftCurly, pos, pos++, 1);
+			return;
 		case '}':
-			return new Token(Token.Kind.RightCurly, "}", pos++);
+			add(Token.Kind.RightCurly, pos, pos++, 1);
+			return;
 		case '+':
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '+') {
+			if ((pos + 1) < length && input[pos + 1] == '+') {
 				pos = pos + 2;
-				return new Token(Token.Kind.PlusPlus, "++", pos);
+				add(Token.Kind.PlusPlus, pos, pos - 2, 2);
 			} else {
-				return new Token(Token.Kind.Plus, "+", pos++);
+				add(Token.Kind.Plus, pos, pos++, 1);
 			}
+			return;
 		case '-':
-			if (pos + 1 < input.length() && input.charAt(pos + 1) == '>') {
+			if (pos + 1 < length && input[pos + 1] == '>') {
+				add(Token.Kind.MinusGreater, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.MinusGreater, "->", pos - 2);
 			} else {
-				return new Token(Token.Kind.Minus, "-", pos++);
+				add(Token.Kind.Minus, pos, pos++, 1);
 			}
+			return;
 		case '*':
-			return new Token(Token.Kind.Star, "*", pos++);
+			add(Token.Kind.Star, pos, pos++, 1);
+			return;
 		case '&':
-			if (pos + 1 < input.length() && input.charAt(pos + 1) == '&') {
+			if (pos + 1 < length && input[pos + 1] == '&') {
+				add(Token.Kind.LogicalAnd, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.LogicalAnd, "&&", pos - 2);
 			} else {
-				return new Token(Token.Kind.Ampersand, "&", pos++);
+				add(Token.Kind.Ampersand, pos, pos++, 1);
 			}
+			return;
 		case '/':
-			if((pos+1) < input.length() && input.charAt(pos+1) == '/') {
-				return scanLineComment();
-			} else if((pos+1) < input.length() && input.charAt(pos+1) == '*') {
-				return scanBlockComment();
+			if((pos+1) < length && input[pos+1] == '/') {
+				scanLineComment();
+			} else if((pos+1) < length && input[pos+1] == '*') {
+				scanBlockComment();
 			} else {
-				return new Token(Token.Kind.RightSlash, "/", pos++);
+				add(Token.Kind.RightSlash, pos, pos++, 1);
 			}
+			return;
 		case '%':
-			return new Token(Token.Kind.Percent, "%", pos++);
+			add(Token.Kind.Percent, pos, pos++, 1);
+			return;
 		case '^':
-			return new Token(Token.Kind.Caret, "^", pos++);
+			add(Token.Kind.Caret, pos, pos++, 1);
+			return;
 		case '~':
-			return new Token(Token.Kind.Tilde, "~", pos++);
+			add(Token.Kind.Tilde, pos, pos++, 1);
+			return;
 		case '?':
-			return new Token(Token.Kind.QuestionMark, "?", pos++);
+			add(Token.Kind.QuestionMark, pos, pos++, 1);
+			return;
 		case '!':
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
+			if ((pos + 1) < length && input[pos + 1] == '=') {
+				add(Token.Kind.NotEquals, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.NotEquals, "!=", pos - 2);
 			} else {
-				return new Token(Token.Kind.Shreak, "!", pos++);
+				add(Token.Kind.Shreak, pos, pos++, 1);
 			}
+			return;
 		case '=':
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
-				pos += 2;
-				if (pos < input.length() && input.charAt(pos) == '>') {
-					pos++;
-					return new Token(Token.Kind.LogicalImplication, "==>", pos - 3);
+			if ((pos + 1) < length && input[pos + 1] == '=') {
+				if ((pos + 2) < length && input[pos + 2] == '>') {
+					add(Token.Kind.LogicalImplication, pos, pos, 3);
+					pos += 3;
 				} else {
-					return new Token(Token.Kind.EqualsEquals, "==", pos - 2);
+					add(Token.Kind.EqualsEquals, pos, pos, 2);
+					pos += 2;
 				}
-			} else if ((pos + 1) < input.length() && input.charAt(pos + 1) == '>') {
+			} else if ((pos + 1) < length && input[pos + 1] == '>') {
+				add(Token.Kind.EqualsGreater, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.EqualsGreater, "=>", pos - 2);
 			} else {
-				return new Token(Token.Kind.Equals, "=", pos++);
+				add(Token.Kind.Equals, pos, pos++, 1);
 			}
+			return;
 		case '<':
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
-				pos += 2;
-				if ((pos+1) < input.length() && input.charAt(pos) == '=' && input.charAt(pos+1) == '>') {
-					pos += 2;
-					return new Token(Token.Kind.LogicalIff, "<==>", pos - 4);
+			if ((pos + 1) < length && input[pos + 1] == '=') {
+				if ((pos + 3) < length && input[pos + 2] == '=' && input[pos + 3] == '>') {
+					add(Token.Kind.LogicalIff, pos, pos, 4);
+					pos += 4;
 				} else {
-					return new Token(Token.Kind.LessEquals, "<=", pos - 2);
+					add(Token.Kind.LessEquals, pos, pos, 2);
+					pos += 2;
 				}
-			} else if ((pos + 1) < input.length() && input.charAt(pos + 1) == '<') {
+			} else if ((pos + 1) < length && input[pos + 1] == '<') {
+				add(Token.Kind.LeftAngleLeftAngle, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.LeftAngleLeftAngle, "<<", pos - 2);
 			} else{
-				return new Token(Token.Kind.LeftAngle, "<", pos++);
+				add(Token.Kind.LeftAngle, pos, pos++, 1);
 			}
+			return;
 		case '>':
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
+			if ((pos + 1) < length && input[pos + 1] == '=') {
+				add(Token.Kind.GreaterEquals, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.GreaterEquals, ">=", pos - 2);
-			} else if ((pos + 1) < input.length() && input.charAt(pos + 1) == '>') {
+			} else if ((pos + 1) < length && input[pos + 1] == '>') {
+				add(Token.Kind.RightAngleRightAngle, pos, pos, 2);
 				pos += 2;
-				return new Token(Token.Kind.RightAngleRightAngle, ">>", pos - 2);
 			} else {
-				return new Token(Token.Kind.RightAngle, ">", pos++);
+				add(Token.Kind.RightAngle, pos, pos++, 1);
 			}
+			return;
 		// =================================================================
 		//
 		// =================================================================
 		case UC_LESSEQUALS:
-			return new Token(Token.Kind.LessEquals, "" + c, pos++);
+			add(Token.Kind.LessEquals, pos, pos++, 1);
+			return;
 		case UC_GREATEREQUALS:
-			return new Token(Token.Kind.GreaterEquals, "" + c, pos++);
+			add(Token.Kind.GreaterEquals, pos, pos++, 1);
+			return;
 		case UC_SETUNION:
-			return new Token(Token.Kind.SetUnion, "" + c, pos++);
+			add(Token.Kind.SetUnion, pos, pos++, 1);
+			return;
 		case UC_SETINTERSECTION:
-			return new Token(Token.Kind.SetIntersection, "" + c, pos++);
+			add(Token.Kind.SetIntersection, pos, pos++, 1);
+			return;
 		case UC_ELEMENTOF:
-			return new Token(Token.Kind.ElementOf, "" + c, pos++);
+			add(Token.Kind.ElementOf, pos, pos++, 1);
+			return;
 		case UC_SUBSET:
-			return new Token(Token.Kind.Subset, "" + c, pos++);
+			add(Token.Kind.Subset, pos, pos++, 1);
+			return;
 		case UC_SUBSETEQ:
-			return new Token(Token.Kind.SubsetEquals, "" + c, pos++);
+			add(Token.Kind.SubsetEquals, pos, pos++, 1);
+			return;
 		case UC_SUPSET:
-			return new Token(Token.Kind.Superset, "" + c, pos++);
+			add(Token.Kind.Superset, pos, pos++, 1);
+			return;
 		case UC_SUPSETEQ:
-			return new Token(Token.Kind.SupersetEquals, "" + c, pos++);
+			add(Token.Kind.SupersetEquals, pos, pos++, 1);
+			return;
 		case UC_EMPTYSET:
-			return new Token(Token.Kind.EmptySet, "" + c, pos++);
+			add(Token.Kind.EmptySet, pos, pos++, 1);
+			return;
 		case UC_LOGICALOR:
-			return new Token(Token.Kind.LogicalOr, "" + c, pos++);
+			add(Token.Kind.LogicalOr, pos, pos++, 1);
+			return;
 		case UC_LOGICALAND:
-			return new Token(Token.Kind.LogicalAnd, "" + c, pos++);
+			add(Token.Kind.LogicalAnd, pos, pos++, 1);
+			return;
 		}
-		return new Token(Token.Kind.Unknown, "" + c, pos++);
+		add(Token.Kind.Unknown, pos, pos++, 1);
 	}
 
-	public Token scanIdentifier() {
+	private void scanIdentifier() {
 		int start = pos;
-		while (pos < input.length()
-				&& (input.charAt(pos) == '_' || isLetterOrDigit(input
-						.charAt(pos)))) {
+		while (pos < length && (input[pos] == '_' || isLetterOrDigit(input[pos]))) {
 			pos++;
 		}
-		String text = input.substring(start, pos);
-
 		// now, check for keywords
-		Token.Kind kind = keywords.get(text);
+		Token.Kind kind = keyword(input, start, pos - start);
 		if (kind == null) {
 			// not a keyword, so just a regular identifier.
 			kind = Token.Kind.Identifier;
 		}
-		return new Token(kind, text, start);
+		add(kind, start, start, pos - start);
 	}
 
-	public void scanWhiteSpace(List<Token> tokens) {
-		while (pos < input.length()
-				&& Character.isWhitespace(input.charAt(pos))) {
-			if (input.charAt(pos) == ' ' || input.charAt(pos) == '\t') {
-				tokens.add(scanIndent());
-			} else if (input.charAt(pos) == '\n') {
-				tokens.add(new Token(Token.Kind.NewLine, input.substring(pos,
-						pos + 1), pos));
+	private void scanWhiteSpace() {
+		while (pos < length && Character.isWhitespace(input[pos])) {
+			if (input[pos] == ' ' || input[pos] == '\t') {
+				scanIndent();
+			} else if (input[pos] == '\n') {
+				add(Token.Kind.NewLine, pos, pos, 1);
 				pos = pos + 1;
-			} else if (input.charAt(pos) == '\r' && (pos + 1) < input.length()
-					&& input.charAt(pos + 1) == '\n') {
-				tokens.add(new Token(Token.Kind.NewLine, input.substring(pos,
-						pos + 2), pos));
+			} else if (input[pos] == '\r' && (pos + 1) < length && input[pos + 1] == '\n') {
+				add(Token.Kind.NewLine, pos, pos, 2);
 				pos = pos + 2;
 			} else {
-				tokens.add(new Token(Token.Kind.Unknown, "" + input.charAt(pos), pos++));
+				add(Token.Kind.Unknown, pos, pos++, 1);
 			}
 		}
 	}
@@ -471,45 +651,106 @@ public class WhileyFileLexer {
 	 *
 	 * @return
 	 */
-	public Token scanIndent() {
+	private void scanIndent() {
 		int start = pos;
-		while (pos < input.length()
-				&& (input.charAt(pos) == ' ' || input.charAt(pos) == '\t')) {
+		while (pos < length && (input[pos] == ' ' || input[pos] == '\t')) {
 			pos++;
 		}
-		return new Token(Token.Kind.Indent, input.substring(start, pos), start);
+		add(Token.Kind.Indent, start, start, pos - start);
 	}
 
-	public Token scanLineComment() {
+	private void scanLineComment() {
 		int start = pos;
-		while (pos < input.length() && input.charAt(pos) != '\n') {
+		while (pos < length && input[pos] != '\n') {
 			pos++;
 		}
-		return new Token(Token.Kind.LineComment, input.substring(start, pos),
-				start);
+		add(Token.Kind.LineComment, start, start, pos - start);
 	}
 
-	public Token scanBlockComment() {
+	private void scanBlockComment() {
 		int start = pos;
-		while((pos+1) < input.length() && (input.charAt(pos) != '*' || input.charAt(pos+1) != '/')) {
+		while((pos+1) < length && (input[pos] != '*' || input[pos+1] != '/')) {
 			pos++;
 		}
 		pos++;
 		pos++;
-		return new Token(Token.Kind.BlockComment,input.substring(start,pos),start);
+		// An unterminated comment runs off the end of the input
+		charAt(pos - 1);
+		add(Token.Kind.BlockComment, start, start, pos - start);
 	}
 
 	/**
-	 * Skip over any whitespace at the current index position in the input
-	 * string.
+	 * Initialise an empty token table with a given capacity.
 	 *
-	 * @param tokens
+	 * @param capacity
 	 */
-	public void skipWhitespace(List<Token> tokens) {
-		while (pos < input.length()
-				&& (input.charAt(pos) == '\n' || input.charAt(pos) == '\t')) {
-			pos++;
+	private void allocate(int capacity) {
+		kinds = new byte[capacity];
+		starts = new int[capacity];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		texts = null;
+		count = 0;
+	}
+
+	/**
+	 * Append a token whose text is given by a slice of the input.
+	 *
+	 * @param kind
+	 *            Kind of the token
+	 * @param start
+	 *            Reported start of the token
+	 * @param offset
+	 *            Start of the token's text in the input
+	 * @param len
+	 *            Length of the token's text in the input
+	 */
+	private void add(Token.Kind kind, int start, int offset, int len) {
+		if (count == kinds.length) {
+			int capacity = count + (count >> 1) + 1;
+			kinds = Arrays.copyOf(kinds, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		kinds[count] = (byte) kind.ordinal();
+		starts[count] = start;
+		offsets[count] = offset;
+		lengths[count] = len;
+		count = count + 1;
+	}
+
+	/**
+	 * Append a token whose text does not correspond to a slice of the input. This
+	 * arises only for malformed character literals.
+	 *
+	 * @param kind
+	 * @param start
+	 * @param text
+	 */
+	private void add(Token.Kind kind, int start, String text) {
+		addText(count, text);
+		add(kind, start, start, text.length());
+	}
+
+	private void addText(int index, String text) {
+		if (texts == null) {
+			texts = new HashMap<>();
+		}
+		texts.put(index, text);
+	}
+
+	/**
+	 * Read a character from the input, failing if this goes beyond its end.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private char charAt(int index) {
+		if (index >= length) {
+			throw new StringIndexOutOfBoundsException(index);
 		}
+		return input[index];
 	}
 
 	/**
@@ -608,6 +849,221 @@ public class WhileyFileLexer {
 		}
 	};
 
+	/**
+	 * The keywords grouped by length, such that identifiers can be checked against
+	 * them without first extracting their text.
+	 */
+	private static final String[][] keywordsByLength;
+
+	static {
+		int max = 0;
+		for (String k : keywords.keySet()) {
+			max = Math.max(max, k.length());
+		}
+		ArrayList<ArrayList<String>> groups = new ArrayList<>();
+		for (int i = 0; i <= max; ++i) {
+			groups.add(new ArrayList<>());
+		}
+		for (String k : keywords.keySet()) {
+			groups.get(k.length()).add(k);
+		}
+		keywordsByLength = new String[max + 1][];
+		for (int i = 0; i <= max; ++i) {
+			keywordsByLength[i] = groups.get(i).toArray(new String[0]);
+		}
+	}
+
+	/**
+	 * Determine the keyword (if any) matching a given slice of the input.
+	 *
+	 * @param input
+	 * @param start
+	 * @param len
+	 * @return The matching keyword kind, or null if there is none.
+	 */
+	private static Token.Kind keyword(char[] input, int start, int len) {
+		if (len < keywordsByLength.length) {
+			outer: for (String k : keywordsByLength[len]) {
+				for (int i = 0; i != len; ++i) {
+					if (k.charAt(i) != input[start + i]) {
+						continue outer;
+					}
+				}
+				return keywords.get(k);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * <p>
+	 * The list of tokens produced by the lexer. Rather than storing a token object
+	 * for each token, this stores the kind, start position and text extent of
+	 * each token in parallel arrays which refer back into the source buffer. Thus,
+	 * <code>kind(i)</code>, <code>start(i)</code> and <code>end(i)</code> can be
+	 * used to examine a token without creating any objects. A token object is
+	 * created by <code>get(i)</code> on demand, and its text only at that point.
+	 * </p>
+	 * <p>
+	 * Observe that the reported start of a token does not always coincide with the
+	 * start of its text (e.g. for <code>++</code>), hence both are recorded.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class TokenStream extends AbstractList<Token> implements RandomAccess {
+		private static final Token.Kind[] KINDS = Token.Kind.values();
+
+		private final char[] input;
+		private final int length;
+		private final byte[] kinds;
+		private final int[] starts;
+		private final int[] offsets;
+		private final int[] lengths;
+		private final Map<Integer, String> texts;
+		private final int size;
+
+		private TokenStream(char[] input, int length, byte[] kinds, int[] starts, int[] offsets, int[] lengths,
+				Map<Integer, String> texts, int size) {
+			this.input = input;
+			this.length = length;
+			this.kinds = kinds;
+			this.starts = starts;
+			this.offsets = offsets;
+			this.lengths = lengths;
+			this.texts = texts;
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Token get(int index) {
+			return new Token(kind(index), text(index), start(index));
+		}
+
+		/**
+		 * Get the kind of the token at a given index.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public Token.Kind kind(int index) {
+			checkIndex(index);
+			return KINDS[kinds[index]];
+		}
+
+		/**
+		 * Get the start position of the token at a given index.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public int start(int index) {
+			checkIndex(index);
+			return starts[index];
+		}
+
+		/**
+		 * Get the end position of the token at a given index (inclusive).
+		 *
+		 * @param index
+		 * @return
+		 */
+		public int end(int index) {
+			checkIndex(index);
+			return starts[index] + lengths[index] - 1;
+		}
+
+		/**
+		 * Get the text of the token at a given index. This creates a new string on
+		 * each call and, hence, should be avoided where the kind alone suffices.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public String text(int index) {
+			checkIndex(index);
+			if (texts != null) {
+				String text = texts.get(index);
+				if (text != null) {
+					return text;
+				}
+			}
+			return new String(input, offsets[index], lengths[index]);
+		}
+
+		/**
+		 * Get the source text from which these tokens were produced.
+		 *
+		 * @return
+		 */
+		public CharBuffer getInput() {
+			return CharBuffer.wrap(input, 0, length).asReadOnlyBuffer();
+		}
+
+		/**
+		 * Check whether the text of a given token was not taken from the input.
+		 *
+		 * @param index
+		 * @return
+		 */
+		private boolean isOverride(int index) {
+			return texts != null && texts.containsKey(index);
+		}
+
+		private void checkIndex(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+		}
+	}
+
+	/**
+	 * The result of rescanning a token stream after an edit (see
+	 * <code>rescan()</code>). This identifies the window of tokens which were
+	 * scanned again, such that tokens <code>[start,oldEnd)</code> of the original
+	 * stream correspond to tokens <code>[start,newEnd)</code> of the updated
+	 * stream. Tokens before the window are unchanged, whilst those after it are
+	 * unchanged except for their positions.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Rescan {
+		private final TokenStream tokens;
+		private final int start;
+		private final int oldEnd;
+		private final int newEnd;
+
+		private Rescan(TokenStream tokens, int start, int oldEnd, int newEnd) {
+			this.tokens = tokens;
+			this.start = start;
+			this.oldEnd = oldEnd;
+			this.newEnd = newEnd;
+		}
+
+		public TokenStream getTokens() {
+			return tokens;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getOldEnd() {
+			return oldEnd;
+		}
+
+		public int getNewEnd() {
+			return newEnd;
+		}
+	}
+
 	/**
 	 * The base class for all tokens.
 	 *
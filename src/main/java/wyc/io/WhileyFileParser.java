@@ -97,6 +97,8 @@ import static wyc.io.WhileyFileLexer.Token.Kind.While;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -138,9 +140,40 @@ import wyil.lang.WyilFile.Type;
  */
 public class WhileyFileParser {
 	private final WyilFile parent;
-	private final WhileyFile source;
-	private ArrayList<Token> tokens;
+	private WhileyFile source;
+	private WhileyFileLexer.TokenStream tokens;
 	private int index;
+	/**
+	 * The furthest token index examined so far.
+	 */
+	private int horizon;
+	/**
+	 * The boundaries of the top-level declarations in the unit constructed by the
+	 * most recent call to <code>read()</code>, or <code>null</code> if it could
+	 * not be parsed in full.
+	 */
+	private Boundaries boundaries;
+	/**
+	 * Source positions allocated so far, indexed by their value. Since spans
+	 * frequently begin or end at the same position (e.g. an expression and its
+	 * first operand), each position is allocated at most once and shared between
+	 * all spans which use it.
+	 */
+	private Value.Int[] positions = new Value.Int[0];
+	/**
+	 * An empty tuple shared between all items which require one.
+	 */
+	private Tuple<?> empty;
+	/**
+	 * The unit constructed by the most recent call to <code>read()</code>.
+	 */
+	private Decl.Unit unit;
+	/**
+	 * Specify whether the outcomes of ambiguous productions are memoised (see
+	 * <code>EnclosingScope.recall()</code>). This is enabled by default, and
+	 * should only be disabled for testing.
+	 */
+	private boolean memoising = true;
 
 	public WhileyFileParser(WyilFile target, WhileyFile source) {
 		if(target == null) {
@@ -150,7 +183,12 @@ public class WhileyFileParser {
 		}
 		this.parent = target;
 		this.source = source;
-		this.tokens = new ArrayList<>(source.getTokens());
+		this.tokens = source.getTokens();
+	}
+
+	public WhileyFileParser setMemoise(boolean flag) {
+		this.memoising = flag;
+		return this;
 	}
 
 	/**
@@ -163,39 +201,253 @@ public class WhileyFileParser {
 	public boolean read(Build.Meter meter) {
 		boolean status = true;
 		ArrayList<Decl> declarations = new ArrayList<>();
+		Boundaries bounds = new Boundaries();
 		Name name = new Name(new Identifier(source.getEntry().id().last()));
+		this.index = 0;
+		this.boundaries = null;
 		try {
 			name = parseModuleName(source.getEntry());
 			skipWhiteSpace();
-			while (index < tokens.size()) {
-				// Parse next logical declaration
-				declarations.add(parseDeclaration(meter));
-				skipWhiteSpace();
-			}
+			parseDeclarations(meter, declarations, bounds, null, 0, 0);
+			this.boundaries = bounds;
 		} catch (ParseError e) {
-			// Allocate an unknown declaration to represent this parse error.
-			Decl d = parent.allocate(new Decl.Unknown());
-			// Add to declarations for enclosing unit
-			declarations.add(d);
-			// Give the unknown declaration a span corresponding to exact point of error.
-			parent.allocate(new Attribute.Span(d,e.getStart(),e.getEnd()));
-			// Generate a syntax error which identifies the parse error
-			ErrorMessages.syntaxError(d, e.getErrorCode(),e.context);
+			declarations.add(parseError(e));
 			// Signal that we have failed
 			status = false;
 		}
 		// Finally, construct the new file.
-		Tuple<Decl> decls = new Tuple<>(declarations);
-		Decl.Unit module = new Decl.Unit(name, decls);
-		//
-		Decl.Unit nunit = parent.allocate(module);
+		Decl.Unit nunit = parent.allocate(new Decl.Unit(name, new Tuple<>(declarations)));
 		Decl.Unit ounit = parent.getModule().putUnit(nunit);
 		if (ounit != null) {
 			parent.replace(ounit, nunit);
 		}
+		this.unit = nunit;
 		return status;
 	}
 
+	/**
+	 * <p>
+	 * Update the unit constructed by the most recent call to <code>read()</code>
+	 * to reflect an edit of the source file, where some number of characters at a
+	 * given offset are replaced by some inserted text. Rather than lexing and
+	 * parsing the file again in its entirety, only the tokens around the edit are
+	 * scanned again and only those top-level declarations affected by it are
+	 * parsed again. A declaration is affected if any token examined whilst
+	 * parsing it (including any lookahead) was changed. Parsing continues from
+	 * the first affected declaration until the start of an unaffected declaration
+	 * is reached, and the declarations parsed replace those affected in the unit
+	 * itself. The remaining declarations are retained as is, except that their
+	 * source locations are adjusted to account for the edit.
+	 * </p>
+	 * <p>
+	 * The resulting unit is the same as would be obtained by parsing the edited
+	 * file with <code>read()</code>, except that markers are removed only for
+	 * those declarations which are replaced. Where this is not possible (e.g.
+	 * because the previous parse failed) the file is simply parsed again in full.
+	 * The edited source file can be obtained from <code>getSource()</code>.
+	 * </p>
+	 *
+	 * @param meter
+	 * @param offset
+	 *            Position in the source file where the edit occurs.
+	 * @param removed
+	 *            Number of characters removed from the source file at that
+	 *            position.
+	 * @param inserted
+	 *            Text inserted at that position.
+	 * @return
+	 */
+	public boolean reparse(Build.Meter meter, int offset, int removed, String inserted) {
+		WhileyFileLexer.Rescan rescan = WhileyFileLexer.rescan(tokens, offset, removed, inserted);
+		this.source = new WhileyFile(source.getEntry(), rescan.getTokens());
+		this.tokens = rescan.getTokens();
+		Boundaries old = boundaries;
+		if (unit == null || old == null || !old.isValidFor(unit)) {
+			return read(meter);
+		}
+		Tuple<Decl> odecls = unit.getDeclarations();
+		// Identify the first declaration affected by the edit. Observe that its
+		// start cannot be affected, since the preceding declaration examines the
+		// first token of the next declaration.
+		int first = 0;
+		while (first < old.size && old.horizons[first] < rescan.getStart()) {
+			first = first + 1;
+		}
+		if (first == 0 || first == old.size) {
+			// The module name may be affected, or there are no declarations
+			return read(meter);
+		}
+		meter.step("reparse");
+		// Retain all declarations before this
+		ArrayList<Decl> declarations = new ArrayList<>();
+		Boundaries bounds = new Boundaries();
+		for (int i = 0; i < first; ++i) {
+			declarations.add(odecls.get(i));
+			bounds.add(old, i, 0);
+		}
+		boolean status = true;
+		int last = old.size;
+		this.boundaries = null;
+		this.index = old.starts[first];
+		try {
+			int shift = rescan.getNewEnd() - rescan.getOldEnd();
+			int next = parseDeclarations(meter, declarations, bounds, old, rescan.getNewEnd(), shift);
+			if (next >= 0) {
+				// Retain all declarations from this point, adjusting their source
+				// locations.
+				last = next;
+				for (int i = last; i < old.size; ++i) {
+					declarations.add(odecls.get(i));
+					bounds.add(old, i, shift);
+					shiftSpans(old.lows[i], old.highs[i], inserted.length() - removed);
+				}
+			}
+			this.boundaries = bounds;
+		} catch (ParseError e) {
+			declarations.add(parseError(e));
+			// Signal that we have failed
+			status = false;
+		}
+		// Remove markers for the declarations being replaced, and then update the
+		// unit in place.
+		removeMarkers(odecls, first, last);
+		unit.setOperand(1, parent.allocate(new Tuple<>(declarations)));
+		return status;
+	}
+
+	/**
+	 * Parse top-level declarations from the current position until the end of
+	 * the token stream is reached or, when previous boundaries are given, the
+	 * start of a previously parsed declaration in the unchanged remainder of the
+	 * token stream. The boundaries of each declaration parsed are recorded as
+	 * well.
+	 *
+	 * @param meter
+	 * @param declarations
+	 *            Declarations parsed so far.
+	 * @param bounds
+	 *            Boundaries of the declarations parsed so far.
+	 * @param old
+	 *            Boundaries of previously parsed declarations (or
+	 *            <code>null</code>).
+	 * @param from
+	 *            Token index from which the token stream is unchanged.
+	 * @param shift
+	 *            Difference between the index of an unchanged token and its
+	 *            previous index.
+	 * @return The index of the previous declaration at which parsing stopped, or
+	 *         <code>-1</code> if the end of the token stream was reached.
+	 */
+	private int parseDeclarations(Build.Meter meter, List<Decl> declarations, Boundaries bounds, Boundaries old,
+			int from, int shift) {
+		while (index < tokens.size()) {
+			if (old != null && index >= from) {
+				int i = Arrays.binarySearch(old.starts, 0, old.size, index - shift);
+				if (i >= 0) {
+					return i;
+				}
+			}
+			int start = index;
+			int low = parent.size();
+			horizon = index;
+			// Parse next logical declaration
+			declarations.add(parseDeclaration(meter));
+			skipWhiteSpace();
+			bounds.add(start, horizon, low, parent.size());
+		}
+		return -1;
+	}
+
+	/**
+	 * Adjust the source locations allocated within a given range of the heap by a
+	 * given amount.
+	 *
+	 * @param low
+	 *            First heap index to adjust.
+	 * @param high
+	 *            Heap index after last to adjust.
+	 * @param delta
+	 */
+	private void shiftSpans(int low, int high, int delta) {
+		for (int i = low; delta != 0 && i < high; ++i) {
+			SyntacticItem item = parent.getSyntacticItem(i);
+			if (item instanceof Attribute.Span) {
+				Attribute.Span span = (Attribute.Span) item;
+				int start = span.getStart().get().intValue();
+				int end = span.getEnd().get().intValue();
+				span.setOperand(1, position(start + delta));
+				span.setOperand(2, position(end + delta));
+			}
+		}
+	}
+
+	/**
+	 * Remove all markers for items within a given range of declarations.
+	 *
+	 * @param declarations
+	 * @param start
+	 *            Index of first declaration.
+	 * @param end
+	 *            Index after last declaration.
+	 */
+	private void removeMarkers(Tuple<Decl> declarations, int start, int end) {
+		BitSet matches = new BitSet();
+		for (int i = start; i < end; ++i) {
+			WyilFile.findReachable(declarations.get(i), matches);
+		}
+		Decl.Module module = parent.getModule();
+		Tuple<SyntacticItem.Marker> markers = module.getAttributes();
+		ArrayList<SyntacticItem> items = new ArrayList<>();
+		for (int i = 0; i != markers.size(); ++i) {
+			SyntacticItem marker = markers.get(i);
+			for (int j = 0; j != marker.size(); ++j) {
+				if (matches.get(marker.get(j).getIndex())) {
+					items.add(marker);
+					break;
+				}
+			}
+		}
+		if (!items.isEmpty()) {
+			module.setAttributes(markers.removeAll(items));
+		}
+	}
+
+	/**
+	 * Construct an unknown declaration to represent a given parse error.
+	 *
+	 * @param e
+	 * @return
+	 */
+	private Decl parseError(ParseError e) {
+		// Allocate an unknown declaration to represent this parse error.
+		Decl d = parent.allocate(new Decl.Unknown());
+		// Give the unknown declaration a span corresponding to exact point of error.
+		parent.allocate(new Attribute.Span(d, position(e.getStart()), position(e.getEnd())));
+		// Generate a syntax error which identifies the parse error
+		ErrorMessages.syntaxError(d, e.getErrorCode(),e.context);
+		return d;
+	}
+
+	/**
+	 * Get the source file being parsed. This reflects any edits applied by
+	 * <code>reparse()</code>.
+	 *
+	 * @return
+	 */
+	public WhileyFile getSource() {
+		return source;
+	}
+
+	/**
+	 * Get the unit constructed by the most recent call to <code>read()</code>, or
+	 * <code>null</code> if nothing has been read yet.
+	 *
+	 * @return
+	 */
+	public Decl.Unit getUnit() {
+		return unit;
+	}
+
 	private Name parseModuleName(Path.Entry<WhileyFile> entry) {
 		ArrayList<Identifier> components = new ArrayList<>();
 		if (tryAndMatch(true, Package) != null) {
@@ -217,7 +469,7 @@ public class WhileyFileParser {
 	private Decl parseDeclaration(Build.Meter meter) {
 		meter.step("declaration");
 		int start = index;
-		Token lookahead = tokens.get(index);
+		Token lookahead = tokenAt(index);
 		if (lookahead.kind == Import) {
 			return parseImportDeclaration(meter);
 		} else {
@@ -230,7 +482,7 @@ public class WhileyFileParser {
 		Tuple<Modifier> modifiers = parseModifiers(Public, Private, Native, Export, Final);
 		checkNotEof();
 		//
-		Token lookahead = tokens.get(index);
+		Token lookahead = tokenAt(index);
 		if (lookahead.text.equals("type")) {
 			return parseTypeDeclaration(meter,modifiers);
 		} else if (lookahead.kind == Function) {
@@ -539,7 +791,7 @@ public class WhileyFileParser {
 
 	public Tuple<Decl.Variable> parseOptionalParameters(EnclosingScope scope) {
 		int next = skipWhiteSpace(index);
-		if (next < tokens.size() && tokens.get(next).kind == LeftBrace) {
+		if (next < tokens.size() && kindAt(next) == LeftBrace) {
 			return parseParameters(scope,RightBrace);
 		} else {
 			return new Tuple<>(parseOptionalParameter(scope));
@@ -695,7 +947,7 @@ public class WhileyFileParser {
 
 	private Tuple<Template.Variable> parseOptionalTemplate(EnclosingScope scope) {
 		skipWhiteSpace();
-		if (index < tokens.size() && tokens.get(index).kind == LeftAngle) {
+		if (index < tokens.size() && kindAt(index) == LeftAngle) {
 			return parseTemplate(scope);
 		} else {
 			return new Tuple<>();
@@ -798,7 +1050,7 @@ public class WhileyFileParser {
 	private Indent getIndent() {
 		skipEmptyLines();
 		if (index < tokens.size()) {
-			Token token = tokens.get(index);
+			Token token = tokenAt(index);
 			if (token.kind == Indent) {
 				return new Indent(token.text, token.start);
 			}
@@ -826,7 +1078,7 @@ public class WhileyFileParser {
 		scope.step("statement");
 		//
 		checkNotEof();
-		Token lookahead = tokens.get(index);
+		Token lookahead = tokenAt(index);
 
 		// First, attempt to parse the easy statement forms.
 
@@ -910,7 +1162,7 @@ public class WhileyFileParser {
 			return parseInitialiserStatement(scope, r > 1);
 		}
 		// Must be an assignment or invocation
-		Expr e = parseExpression(scope, false);
+		Expr e = parseSpeculativeExpression(scope, false);
 		//
 		if (e instanceof Expr.Invoke || e instanceof Expr.IndirectInvoke) {
 			// Must be an invocation since these are neither valid
@@ -1045,7 +1297,7 @@ public class WhileyFileParser {
 		// means expressions must start on the same line as a return. Otherwise,
 		// a potentially cryptic error message will be given.
 		Stmt.Return stmt;
-		if (next < tokens.size() && tokens.get(next).kind != NewLine) {
+		if (next < tokens.size() && kindAt(next) != NewLine) {
 			Tuple<Expr> returns = parseExpressions(scope, false);
 			switch(returns.size()) {
 			case 0:
@@ -1722,7 +1974,7 @@ public class WhileyFileParser {
 		checkNotEof();
 		start = index;
 		// First, attempt to disambiguate the easy forms:
-		Token lookahead = tokens.get(index);
+		Token lookahead = tokenAt(index);
 		switch (lookahead.kind) {
 		case Identifier:
 			Identifier name = parseIdentifier();
@@ -1834,10 +2086,34 @@ public class WhileyFileParser {
 	 * @return
 	 */
 	private Expr parseExpression(EnclosingScope scope, boolean terminated) {
+		Memo memo = scope.recall(terminated ? TERMINATED_EXPRESSION : EXPRESSION, index);
+		if (memo != null) {
+			scope.step("memo");
+			index = memo.end;
+			return (Expr) memo.result;
+		}
 		scope.step("expression");
 		return parseLogicalExpression(scope, terminated);
 	}
 
+	/**
+	 * Parse an expression which may subsequently be discarded by backtracking. In
+	 * such case, the same expression is likely to be parsed again from the same
+	 * point. Therefore, the outcome is memoised to prevent this from happening.
+	 * Without this, parsing nested expressions (e.g. <code>[[[[x]]]]</code>) can
+	 * take exponential time.
+	 *
+	 * @param scope
+	 * @param terminated
+	 * @return
+	 */
+	private Expr parseSpeculativeExpression(EnclosingScope scope, boolean terminated) {
+		int start = index;
+		Expr expr = parseExpression(scope, terminated);
+		scope.memoise(terminated ? TERMINATED_EXPRESSION : EXPRESSION, start, expr, index);
+		return expr;
+	}
+
 	/**
 	 * Parse a logical expression of the form:
 	 *
@@ -2529,7 +2805,7 @@ public class WhileyFileParser {
 		checkNotEof();
 
 		int start = index;
-		Token token = tokens.get(index);
+		Token token = tokenAt(index);
 
 		switch (token.kind) {
 		case LeftBrace:
@@ -2671,7 +2947,7 @@ public class WhileyFileParser {
 
 	public Tuple<? extends SyntacticItem> parseOptionalTemplateArguments(EnclosingScope scope, boolean terminated) {
 		skipWhiteSpace();
-		if(index < tokens.size() && tokens.get(index).kind == LeftAngle) {
+		if(index < tokens.size() && kindAt(index) == LeftAngle) {
 			return parseTemplateArguments(scope,terminated);
 		} else {
 			return new Tuple<>();
@@ -2847,7 +3123,7 @@ public class WhileyFileParser {
 			index = start;
 			return parseArrayInitialiserExpression(scope, terminated);
 		} else {
-			Expr expr = parseExpression(scope, true);
+			Expr expr = parseSpeculativeExpression(scope, true);
 			// Finally, disambiguate
 			if (tryAndMatch(true, SemiColon) != null) {
 				// this is an array generator
@@ -3537,7 +3813,31 @@ public class WhileyFileParser {
 		}
 	}
 
+	/**
+	 * Skip over a type, returning true if one was successfully skipped. Since this
+	 * is used to disambiguate types from expressions (e.g. casts from bracketed
+	 * expressions), the same type may be skipped repeatedly from the same point.
+	 * Therefore, the outcome is memoised. Without this, skipping nested types
+	 * (e.g. for <code>((((f(x)))))</code>) takes quadratic time.
+	 *
+	 * @param scope
+	 * @return
+	 */
 	public boolean skipType(EnclosingScope scope) {
+		int start = index;
+		Memo memo = scope.recall(SKIP_TYPE, start);
+		if (memo != null) {
+			scope.step("memo");
+			index = memo.end;
+			return (Boolean) memo.result;
+		}
+		scope.step("skip");
+		boolean result = skipUnionOrIntersectionType(scope);
+		scope.memoise(SKIP_TYPE, start, result, index);
+		return result;
+	}
+
+	private boolean skipUnionOrIntersectionType(EnclosingScope scope) {
 		if (skipTypeArray(scope)) {
 			while (tryAndMatch(false, Ampersand, VerticalBar) != null) {
 				if (!skipTypeArray(scope)) {
@@ -3563,7 +3863,7 @@ public class WhileyFileParser {
 
 	public boolean skipTypeTerm(EnclosingScope scope) {
 		skipWhiteSpace();
-		Token token = tokens.get(index);
+		Token token = tokenAt(index);
 		switch (token.kind) {
 		case Null:
 		case Bool:
@@ -3824,7 +4124,7 @@ public class WhileyFileParser {
 	private Type parseBaseType(EnclosingScope scope) {
 		checkNotEof();
 		int start = index;
-		Token token = tokens.get(index);
+		Token token = tokenAt(index);
 		Type t;
 
 		switch (token.kind) {
@@ -4125,7 +4425,7 @@ public class WhileyFileParser {
 
 	public Type parseOptionalParameterTypes(EnclosingScope scope) {
 		int next = skipWhiteSpace(index);
-		if (next < tokens.size() && tokens.get(next).kind == LeftBrace) {
+		if (next < tokens.size() && kindAt(next) == LeftBrace) {
 			return parseParameterTypes(scope);
 		} else {
 			return parseType(scope);
@@ -4184,7 +4484,7 @@ public class WhileyFileParser {
 	 */
 	private Token match(Token.Kind kind) {
 		checkNotEof();
-		Token token = tokens.get(index++);
+		Token token = tokenAt(index++);
 		if (token.kind != kind) {
 			syntaxError(WyilFile.EXPECTING_TOKEN, token, new Value.UTF8(kind.toString()));
 		}
@@ -4204,7 +4504,7 @@ public class WhileyFileParser {
 		Token[] result = new Token[kinds.length];
 		for (int i = 0; i != result.length; ++i) {
 			checkNotEof();
-			Token token = tokens.get(index++);
+			Token token = tokenAt(index++);
 			if (token.kind == kinds[i]) {
 				result[i] = token;
 			} else {
@@ -4226,12 +4526,10 @@ public class WhileyFileParser {
 	 */
 	private Token eventuallyMatch(Token.Kind kind) {
 		checkNotEof();
-		Token token = tokens.get(index);
-		if (token.kind != kind) {
+		if (kindAt(index) != kind) {
 			return null;
 		} else {
-			index = index + 1;
-			return token;
+			return tokenAt(index++);
 		}
 	}
 
@@ -4294,11 +4592,11 @@ public class WhileyFileParser {
 		int next = terminated ? skipWhiteSpace(index) : skipLineSpace(index);
 
 		if (next < tokens.size()) {
-			Token t = tokens.get(next);
+			Token.Kind kind = kindAt(next);
 			for (int i = 0; i != kinds.length; ++i) {
-				if (t.kind == kinds[i]) {
+				if (kind == kinds[i]) {
 					index = next + 1;
-					return t;
+					return tokenAt(next);
 				}
 			}
 		}
@@ -4325,7 +4623,7 @@ public class WhileyFileParser {
 		int next = index;
 		for (Token.Kind k : kinds) {
 			next = terminated ? skipWhiteSpace(next) : skipLineSpace(next);
-			if (next >= tokens.size() || tokens.get(next++).kind != k) {
+			if (next >= tokens.size() || kindAt(next++) != k) {
 				return false;
 			}
 		}
@@ -4340,7 +4638,7 @@ public class WhileyFileParser {
 	 */
 	private boolean isAtEOL() {
 		int next = skipLineSpace(index);
-		return next >= tokens.size() || tokens.get(next).kind == NewLine;
+		return next >= tokens.size() || kindAt(next) == NewLine;
 	}
 
 	/**
@@ -4354,12 +4652,9 @@ public class WhileyFileParser {
 	 */
 	private Token tryAndMatchOnLine(Token.Kind kind) {
 		int next = skipLineSpace(index);
-		if (next < tokens.size()) {
-			Token t = tokens.get(next);
-			if (t.kind == kind) {
-				index = next + 1;
-				return t;
-			}
+		if (next < tokens.size() && kindAt(next) == kind) {
+			index = next + 1;
+			return tokenAt(next);
 		}
 		return null;
 	}
@@ -4377,8 +4672,8 @@ public class WhileyFileParser {
 		// newline.
 		if (index >= tokens.size()) {
 			return; // EOF
-		} else if (tokens.get(index).kind != NewLine) {
-			syntaxError(WyilFile.UNEXPECTED_EOF, tokens.get(index));
+		} else if (kindAt(index) != NewLine) {
+			syntaxError(WyilFile.UNEXPECTED_EOF, tokenAt(index));
 		} else {
 			index = index + 1;
 		}
@@ -4391,7 +4686,7 @@ public class WhileyFileParser {
 	private void checkNotEof() {
 		skipWhiteSpace();
 		if (index >= tokens.size()) {
-			syntaxError(WyilFile.UNEXPECTED_EOF, tokens.get(index - 1));
+			syntaxError(WyilFile.UNEXPECTED_EOF, tokenAt(index - 1));
 		}
 	}
 
@@ -4407,7 +4702,7 @@ public class WhileyFileParser {
 	 * returning the first index passed any whitespace encountered.
 	 */
 	private int skipWhiteSpace(int index) {
-		while (index < tokens.size() && isWhiteSpace(tokens.get(index))) {
+		while (index < tokens.size() && isWhiteSpace(kindAt(index))) {
 			index++;
 		}
 		return index;
@@ -4419,7 +4714,7 @@ public class WhileyFileParser {
 	 * first index passed any whitespace encountered.
 	 */
 	private int skipLineSpace(int index) {
-		while (index < tokens.size() && isLineSpace(tokens.get(index))) {
+		while (index < tokens.size() && isLineSpace(kindAt(index))) {
 			index++;
 		}
 		return index;
@@ -4433,7 +4728,7 @@ public class WhileyFileParser {
 		int tmp = index;
 		do {
 			tmp = skipLineSpace(tmp);
-			if (tmp < tokens.size() && tokens.get(tmp).kind != Token.Kind.NewLine) {
+			if (tmp < tokens.size() && kindAt(tmp) != Token.Kind.NewLine) {
 				return; // done
 			} else if (tmp >= tokens.size()) {
 				index = tmp;
@@ -4453,7 +4748,11 @@ public class WhileyFileParser {
 	 * @return
 	 */
 	private boolean isWhiteSpace(Token token) {
-		return token.kind == Token.Kind.NewLine || isLineSpace(token);
+		return isWhiteSpace(token.kind);
+	}
+
+	private boolean isWhiteSpace(Token.Kind kind) {
+		return kind == Token.Kind.NewLine || isLineSpace(kind);
 	}
 
 	/**
@@ -4463,8 +4762,38 @@ public class WhileyFileParser {
 	 * @return
 	 */
 	private boolean isLineSpace(Token token) {
-		return token.kind == Token.Kind.Indent || token.kind == Token.Kind.LineComment
-				|| token.kind == Token.Kind.BlockComment;
+		return isLineSpace(token.kind);
+	}
+
+	private boolean isLineSpace(Token.Kind kind) {
+		return kind == Token.Kind.Indent || kind == Token.Kind.LineComment || kind == Token.Kind.BlockComment;
+	}
+
+	/**
+	 * Get the kind of the token at a given index, noting that it has been
+	 * examined.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private Token.Kind kindAt(int index) {
+		if (index > horizon) {
+			horizon = index;
+		}
+		return tokens.kind(index);
+	}
+
+	/**
+	 * Get the token at a given index, noting that it has been examined.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private Token tokenAt(int index) {
+		if (index > horizon) {
+			horizon = index;
+		}
+		return tokens.get(index);
 	}
 
 	/**
@@ -4682,16 +5011,51 @@ public class WhileyFileParser {
 	}
 
 	private <T extends SyntacticItem> T annotateSourceLocation(T item, int start, int end) {
+		// Share an empty tuple between all items, rather than allocating one for
+		// each.
+		for (int i = 0; i != item.size(); ++i) {
+			SyntacticItem operand = item.get(i);
+			if (operand instanceof Tuple && operand.size() == 0 && operand.getHeap() == null) {
+				item.setOperand(i, empty());
+			}
+		}
 		// Allocate item to enclosing WhileyFile. This is necessary so that the
 		// annotations can then be correctly allocated as well.
 		item = parent.allocate(item);
-		// Determine the first and last token representing this span.
-		Token first = tokens.get(start);
-		Token last = tokens.get(end);
-		parent.allocate(new Attribute.Span(item,first.start,last.end()));
+		// Determine the first and last token representing this span. Observe the
+		// span must be allocated immediately after the item, as a span is located
+		// by searching the heap for the first item which refers to it.
+		parent.allocate(new Attribute.Span(item, position(tokens.start(start)), position(tokens.end(end))));
 		return item;
 	}
 
+	/**
+	 * Get the (shared) item representing a given source position.
+	 *
+	 * @param position
+	 * @return
+	 */
+	private Value.Int position(int position) {
+		if (position < 0) {
+			return new Value.Int(position);
+		} else if (position >= positions.length) {
+			positions = Arrays.copyOf(positions, Math.max(position + 1, positions.length * 2));
+		}
+		Value.Int p = positions[position];
+		if (p == null) {
+			p = parent.allocate(new Value.Int(position));
+			positions[position] = p;
+		}
+		return p;
+	}
+
+	private Tuple<?> empty() {
+		if (empty == null) {
+			empty = parent.allocate(new Tuple<>());
+		}
+		return empty;
+	}
+
 	/**
 	 * Represents a given amount of indentation. Specifically, a count of tabs
 	 * and spaces. Observe that the order in which tabs / spaces occurred is not
@@ -4761,6 +5125,98 @@ public class WhileyFileParser {
 	 */
 	private static final Indent ROOT_INDENT = new Indent("", 0);
 
+	/**
+	 * Identifies the productions whose outcomes are memoised (see
+	 * <code>EnclosingScope.recall()</code>).
+	 */
+	private static final int SKIP_TYPE = 0;
+	private static final int EXPRESSION = 1;
+	private static final int TERMINATED_EXPRESSION = 2;
+
+	/**
+	 * The memoised outcome of parsing a given production from a given token index.
+	 * That is, the result produced and the index immediately following it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Memo {
+		private final Object result;
+		private final int end;
+
+		public Memo(Object result, int end) {
+			this.result = result;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Records, for each top-level declaration of a unit, the token index where it
+	 * starts, the furthest token index examined whilst parsing it (i.e. its
+	 * horizon) and the range of heap indices allocated for it. A declaration must
+	 * be parsed again after an edit if any token up to its horizon was changed.
+	 * Otherwise, only the source locations within its heap range may need to be
+	 * adjusted.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Boundaries {
+		private int[] starts = new int[16];
+		private int[] horizons = new int[16];
+		private int[] lows = new int[16];
+		private int[] highs = new int[16];
+		private int size;
+
+		public void add(int start, int horizon, int low, int high) {
+			if (size == starts.length) {
+				int capacity = size * 2;
+				starts = Arrays.copyOf(starts, capacity);
+				horizons = Arrays.copyOf(horizons, capacity);
+				lows = Arrays.copyOf(lows, capacity);
+				highs = Arrays.copyOf(highs, capacity);
+			}
+			starts[size] = start;
+			horizons[size] = horizon;
+			lows[size] = low;
+			highs[size] = high;
+			size = size + 1;
+		}
+
+		/**
+		 * Add the boundaries of a given declaration from some other boundaries,
+		 * whose tokens have been shifted by a given amount.
+		 *
+		 * @param other
+		 * @param i
+		 * @param shift
+		 */
+		public void add(Boundaries other, int i, int shift) {
+			add(other.starts[i] + shift, other.horizons[i] + shift, other.lows[i], other.highs[i]);
+		}
+
+		/**
+		 * Check these boundaries still describe a given unit. This can fail if the
+		 * unit was modified since, or its heap was compacted.
+		 *
+		 * @param unit
+		 * @return
+		 */
+		public boolean isValidFor(Decl.Unit unit) {
+			Tuple<Decl> declarations = unit.getDeclarations();
+			if (declarations.size() != size) {
+				return false;
+			}
+			for (int i = 0; i != size; ++i) {
+				int index = declarations.get(i).getIndex();
+				if (index < lows[i] || index >= highs[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
 	/**
 	 * The enclosing scope provides contextual information about the enclosing
 	 * scope for the given statement or expression being parsed.
@@ -4801,6 +5257,14 @@ public class WhileyFileParser {
 		 */
 		private final boolean inLoop;
 
+		/**
+		 * The memoised outcomes of productions parsed in this scope, keyed by
+		 * production and token index. Since these outcomes can depend upon the
+		 * variables declared in this scope, they are discarded whenever a
+		 * declaration is made.
+		 */
+		private final HashMap<Long, Memo> memo = new HashMap<>();
+
 		public EnclosingScope(Build.Meter meter) {
 			this.meter = meter;
 			this.indent = ROOT_INDENT;
@@ -4889,6 +5353,37 @@ public class WhileyFileParser {
 			meter.step(tag);
 		}
 
+		/**
+		 * Get the memoised outcome of parsing a given production from a given
+		 * token index in this scope, or null if there is none.
+		 *
+		 * @param production
+		 * @param index
+		 * @return
+		 */
+		public Memo recall(int production, int index) {
+			if (!memoising || memo.isEmpty()) {
+				return null;
+			} else {
+				return memo.get(((long) production << 32) | index);
+			}
+		}
+
+		/**
+		 * Memoise the outcome of parsing a given production from a given token
+		 * index in this scope.
+		 *
+		 * @param production
+		 * @param start
+		 * @param result
+		 * @param end
+		 */
+		public void memoise(int production, int start, Object result, int end) {
+			if (memoising) {
+				memo.put(((long) production << 32) | start, new Memo(result, end));
+			}
+		}
+
 		/**
 		 * Declare a new variable in this scope.
 		 *
@@ -4904,6 +5399,7 @@ public class WhileyFileParser {
 				syntaxError(WyilFile.DUPLICATE_DECLARATION, id);
 			}
 			this.environment.put(id, decl);
+			memo.clear();
 		}
 
 		/**
@@ -4914,6 +5410,7 @@ public class WhileyFileParser {
 		 */
 		public void declareFieldAlias(Identifier alias) {
 			fieldAliases.add(alias);
+			memo.clear();
 		}
 
 		/**
@@ -4927,6 +5424,7 @@ public class WhileyFileParser {
 				syntaxError(WyilFile.DUPLICATE_DECLARATION, name);
 			} else {
 				typeVariables.add(name);
+				memo.clear();
 			}
 		}
 
@@ -0,0 +1,183 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.lang;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyil.util.SyntacticDigest;
+
+/**
+ * Records the information needed to recompile a WyilFile incrementally. That
+ * is, for each source file which contributed to the WyilFile, the name of the
+ * compilation unit it produced, a digest of its text, a digest of the unit it
+ * produced and a digest of the interface exposed by that unit. Using this, a
+ * subsequent build can determine which sources have actually changed and, of
+ * those, which have changed in a way that affects other units. Since source
+ * locations are not part of a unit, an edit which changes only the layout of a
+ * source (e.g. its whitespace or comments) leaves the digest of its unit
+ * unchanged.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CompileState {
+
+	// =========================================================================
+	// Content Type
+	// =========================================================================
+
+	public static final Content.Type<CompileState> ContentType = new Content.Type<CompileState>() {
+
+		@Override
+		public CompileState read(Path.Entry<CompileState> e, InputStream input) throws IOException {
+			CompileState state = new CompileState();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length == 5) {
+					state.put(fields[0], new Record(fields[1], fields[2], fields[3], fields[4]));
+				}
+			}
+			return state;
+		}
+
+		@Override
+		public void write(OutputStream output, CompileState state) throws IOException {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			for (Map.Entry<String, Record> e : state.records.entrySet()) {
+				Record r = e.getValue();
+				writer.println(e.getKey() + "\t" + r.getUnit() + "\t" + r.getSourceDigest() + "\t"
+						+ r.getUnitDigest() + "\t" + r.getInterfaceDigest());
+			}
+			writer.flush();
+		}
+
+		@Override
+		public String toString() {
+			return "Content-Type: wystate";
+		}
+
+		@Override
+		public String getSuffix() {
+			return "wystate";
+		}
+	};
+
+	// =========================================================================
+	// State
+	// =========================================================================
+
+	private final HashMap<String, Record> records = new HashMap<>();
+
+	public CompileState() {
+
+	}
+
+	/**
+	 * Get the record for a given source file, or <code>null</code> if no such
+	 * record exists.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public Record get(String source) {
+		return records.get(source);
+	}
+
+	public void put(String source, Record record) {
+		records.put(source, record);
+	}
+
+	public Collection<Record> getRecords() {
+		return records.values();
+	}
+
+	public boolean isEmpty() {
+		return records.isEmpty();
+	}
+
+	/**
+	 * Compute the digest for a given source file. This is based on the raw text of
+	 * the file, rather than its tokens, such that an unchanged file can be
+	 * identified without lexing it.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public static String digest(WhileyFile source) {
+		SyntacticDigest d = new SyntacticDigest();
+		d.add(source.getText());
+		return d.toHexString();
+	}
+
+	/**
+	 * Identifies the information recorded for a given source file.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Record {
+		private final String unit;
+		private final String sourceDigest;
+		private final String unitDigest;
+		private final String interfaceDigest;
+
+		public Record(String unit, String sourceDigest, String unitDigest, String interfaceDigest) {
+			this.unit = unit;
+			this.sourceDigest = sourceDigest;
+			this.unitDigest = unitDigest;
+			this.interfaceDigest = interfaceDigest;
+		}
+
+		/**
+		 * Get the name of the unit produced from the source file.
+		 *
+		 * @return
+		 */
+		public String getUnit() {
+			return unit;
+		}
+
+		public String getSourceDigest() {
+			return sourceDigest;
+		}
+
+		/**
+		 * Get the digest of the unit produced from the source file, as it was
+		 * immediately after parsing. This is empty if not known.
+		 *
+		 * @return
+		 */
+		public String getUnitDigest() {
+			return unitDigest;
+		}
+
+		public String getInterfaceDigest() {
+			return interfaceDigest;
+		}
+	}
+}
@@ -16,8 +16,7 @@ package wyc.lang;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Collections;
-import java.util.List;
+import java.nio.CharBuffer;
 
 import wyc.io.WhileyFileLexer;
 import wyfs.lang.Content;
@@ -32,10 +31,9 @@ public class WhileyFile {
 	public static final Content.Type<WhileyFile> ContentType = new Content.Type<WhileyFile>() {
 
 		/**
-		 * This method simply parses a whiley file into an abstract syntax tree. It
-		 * makes little effort to check whether or not the file is syntactically
-		 * correct. In particular, it does not determine the correct type of all
-		 * declarations, expressions, etc.
+		 * This method simply reads the text of a whiley file. Lexing is deferred
+		 * until its tokens are first required and, in particular, it makes no
+		 * effort to check whether or not the file is syntactically correct.
 		 *
 		 * @param file
 		 * @return
@@ -65,15 +63,37 @@ public class WhileyFile {
 
 	private final Path.Entry<WhileyFile> entry;
 
-	private final List<WhileyFileLexer.Token> tokens;
+	/**
+	 * The lexer for this file, which holds its source text. Lexing is deferred
+	 * until the tokens are first requested, since an unchanged file may not need
+	 * to be parsed at all. This also means lexing happens on whichever thread
+	 * first needs the tokens, rather than on the thread performing I/O. This is
+	 * <code>null</code> for a file constructed from existing tokens.
+	 */
+	private final WhileyFileLexer lexer;
+
+	private WhileyFileLexer.TokenStream tokens;
 
 	public WhileyFile(Path.Entry<WhileyFile> entry) throws IOException {
 		this.entry = entry;
-		this.tokens = new WhileyFileLexer(entry).scan();
+		this.lexer = new WhileyFileLexer(entry);
 	}
 
-	public WhileyFile(List<WhileyFileLexer.Token> tokens) {
+	public WhileyFile(WhileyFileLexer lexer) {
 		this.entry = null;
+		this.lexer = lexer;
+	}
+
+	/**
+	 * Construct a file from tokens which have already been produced, such as when
+	 * a file is rescanned after an edit.
+	 *
+	 * @param entry
+	 * @param tokens
+	 */
+	public WhileyFile(Path.Entry<WhileyFile> entry, WhileyFileLexer.TokenStream tokens) {
+		this.entry = entry;
+		this.lexer = null;
 		this.tokens = tokens;
 	}
 
@@ -81,7 +101,36 @@ public class WhileyFile {
 		return entry;
 	}
 
-	public List<WhileyFileLexer.Token> getTokens() {
-		return Collections.unmodifiableList(tokens);
+	/**
+	 * Get the source text of this file. This does not require the file to have
+	 * been lexed.
+	 *
+	 * @return
+	 */
+	public CharBuffer getText() {
+		return lexer != null ? lexer.getInput() : tokens.getInput();
+	}
+
+	/**
+	 * Get the tokens of this file, lexing it first if this has not already been
+	 * done.
+	 *
+	 * @return
+	 */
+	public synchronized WhileyFileLexer.TokenStream getTokens() {
+		if (tokens == null) {
+			tokens = lexer.scan();
+		}
+		return tokens;
+	}
+
+	/**
+	 * Check whether the tokens of this file have been produced. For example, this
+	 * allows a build to confirm that an unchanged file was never lexed.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isLexed() {
+		return tokens != null;
 	}
 }
@@ -14,20 +14,38 @@
 package wyc.task;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import wyal.lang.WyalFile;
 import wybs.lang.*;
 import wybs.lang.Build.Meter;
 import wybs.util.AbstractBuildTask;
+import wybs.util.AbstractCompilationUnit.Attribute;
 import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Ref;
 import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.AbstractCompilationUnit.Value;
 import wyc.io.WhileyFileParser;
+import wyc.lang.CompileState;
 import wyc.lang.WhileyFile;
+import wyc.util.ErrorMessages;
+import wyc.util.ProfilingMeter;
 import wycc.util.Logger;
 import wyfs.lang.Path;
 import wyil.check.*;
@@ -36,6 +54,10 @@ import wyil.lang.WyilFile;
 import wyil.lang.WyilFile.Decl;
 import wyil.transform.MoveAnalysis;
 import wyil.transform.NameResolution;
+import wyil.util.IncrementalSubtypingEnvironment;
+import wyil.util.IncrementalSubtypingEnvironment.SubtypeCache;
+import wyil.util.SymbolManifest;
+import wyil.util.SyntacticDigest;
 
 /**
  * Responsible for managing the process of turning source files into binary code
@@ -91,6 +113,11 @@ public final class CompileTask extends AbstractBuildTask<WhileyFile, WyilFile> {
 	 * Specify whether counterexample generation is enabled or not
 	 */
 	private boolean counterexamples;
+	/**
+	 * Specify whether flow typing, the compiler checks and verification are run
+	 * concurrently or not.
+	 */
+	private boolean parallel;
 	/**
 	 * Optional stage
 	 */
@@ -99,16 +126,81 @@ public final class CompileTask extends AbstractBuildTask<WhileyFile, WyilFile> {
 	 * The source root to find Whiley files. This is far from ideal.
 	 */
 	private final Path.Root sourceRoot;
+	/**
+	 * The root in which the target is located, along with the identifier of the
+	 * target within it. Information recorded about each build of the target is
+	 * located alongside it.
+	 */
+	private final Path.Root targetRoot;
+	private final Path.ID targetID;
+	/**
+	 * Records information about the previous build of the target, which is used to
+	 * support incremental compilation. This is located alongside the target (in the
+	 * target root) when the task is initialised.
+	 */
+	private Path.Entry<CompileState> state;
+	/**
+	 * Optional symbol manifest generated for the target. This allows other
+	 * projects depending on the target to perform name resolution without reading
+	 * it.
+	 */
+	private Path.Entry<SymbolManifest> manifest;
+	/**
+	 * Optional profile generated for each build of the target. This records the
+	 * time and memory spent in each phase of the build, and on each declaration.
+	 */
+	private Path.Entry<ProfilingMeter> profile;
 
 	public CompileTask(Build.Project project, Path.Root sourceRoot, Path.Entry<WyilFile> target,
 			Collection<Path.Entry<WhileyFile>> sources) throws IOException {
+		this(project, sourceRoot, project.getRoot(), target, sources);
+	}
+
+	/**
+	 * Construct a task for a given target, where any information recorded about
+	 * each build of the target (e.g. proofs) is located in the given target root.
+	 *
+	 * @param project
+	 * @param sourceRoot
+	 * @param targetRoot
+	 * @param target
+	 * @param sources
+	 * @throws IOException
+	 */
+	public CompileTask(Build.Project project, Path.Root sourceRoot, Path.Root targetRoot, Path.Entry<WyilFile> target,
+			Collection<Path.Entry<WhileyFile>> sources) throws IOException {
 		super(project, target, sources);
 		// FIXME: shouldn't need source root
 		this.sourceRoot = sourceRoot;
+		this.targetRoot = targetRoot;
+		this.targetID = locate(targetRoot, target);
 		// Extract the logger for debug information
 		this.logger = project.getEnvironment().getLogger();
 		//
-		this.verifier = new VerificationCheck(Build.NULL_METER,project,target);
+		this.verifier = new VerificationCheck(Build.NULL_METER, project, targetRoot, targetID, target);
+	}
+
+	/**
+	 * Determine the identifier of a given entry within a given root. Since the
+	 * identifier of an entry is relative to the outermost root containing it, this
+	 * is the shortest suffix of that identifier which locates the entry within the
+	 * given root.
+	 *
+	 * @param root
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private static Path.ID locate(Path.Root root, Path.Entry<?> entry) throws IOException {
+		Path.ID id = entry.id();
+		for (int i = id.size() - 1; i >= 0; --i) {
+			Path.ID suffix = id.subpath(i, id.size());
+			Path.Entry<?> e = root.get(suffix, entry.contentType());
+			if (e != null && e.id().equals(id)) {
+				return suffix;
+			}
+		}
+		throw new IllegalArgumentException("target not located in root: " + id);
 	}
 
 	public CompileTask setVerification(boolean flag) {
@@ -116,16 +208,48 @@ public final class CompileTask extends AbstractBuildTask<WhileyFile, WyilFile> {
 		return this;
 	}
 
+	public CompileTask setProofLimit(int limit) {
+		this.verifier.setProofLimit(limit);
+		return this;
+	}
+
+	public CompileTask setFailFast(boolean flag) {
+		this.verifier.setFailFast(flag);
+		return this;
+	}
+
 	public CompileTask setCounterExamples(boolean flag) {
 		this.counterexamples = flag;
 		return this;
 	}
 
+	public CompileTask setParallel(boolean flag) {
+		this.parallel = flag;
+		this.verifier.setParallel(flag);
+		return this;
+	}
+
+	public CompileTask setManifest(Path.Entry<SymbolManifest> manifest) {
+		this.manifest = manifest;
+		return this;
+	}
+
+	public CompileTask setProfile(Path.Entry<ProfilingMeter> profile) {
+		this.profile = profile;
+		return this;
+	}
+
 	@Override
 	public Function<Meter,Boolean> initialise() throws IOException {
 		// Extract target and source files for compilation. This is the component which
 		// requires I/O.
 		WyilFile wyil = target.read();
+		state = targetRoot.get(targetID, CompileState.ContentType);
+		if (state == null) {
+			state = targetRoot.create(targetID, CompileState.ContentType);
+			state.write(new CompileState());
+		}
+		CompileState previous = state.read();
 		WhileyFile[] whileys = new WhileyFile[sources.size()];
 		for (int i = 0; i != whileys.length; ++i) {
 			whileys[i] = sources.get(i).read();
@@ -133,13 +257,15 @@ public final class CompileTask extends AbstractBuildTask<WhileyFile, WyilFile> {
 		// Construct the lambda for subsequent execution. This will eventually make its
 		// way into some kind of execution pool, possibly for concurrent execution with
 		// other tasks.
-		return (Meter meter) -> execute(meter, wyil, whileys);
+		return (Meter meter) -> execute(meter, wyil, previous, whileys);
 	}
 
 	/**
 	 * The business end of a compilation task. The intention is that this
 	 * computation can proceed without performing any blocking I/O. This means it
-	 * can be used in e.g. a forkjoin task safely.
+	 * can be used in e.g. a forkjoin task safely. Results are written only to the
+	 * (in-memory) contents of their entries, and it is the responsibility of
+	 * whoever runs the build to flush these afterwards.
 	 *
 	 * @param meter --- Records profiling information
 	 * @param target  --- The WyilFile being written.
@@ -147,28 +273,62 @@ public final class CompileTask extends AbstractBuildTask<WhileyFile, WyilFile> {
 	 * @return
 	 */
 	public boolean execute(Meter meter, WyilFile target, WhileyFile... sources) {
+		return execute(meter, target, new CompileState(), sources);
+	}
+
+	/**
+	 * <p>
+	 * The business end of a compilation task. Where possible, this reuses units
+	 * from the target which were compiled during a previous build. Specifically,
+	 * only those sources which have changed since the previous build, along with
+	 * those which depend on the interface of a changed source, are parsed, resolved
+	 * and checked again. All other units are retained as is. When no information is
+	 * available about the previous build (or it failed), everything is compiled
+	 * from scratch.
+	 * </p>
+	 * <p>
+	 * No blocking I/O is performed here. The target, the recorded state and
+	 * the optional manifest and profile are written to the contents of their
+	 * entries, and are flushed afterwards along with the rest of the project (e.g.
+	 * by <code>Path.Root.flush()</code>). The recorded state is written only when
+	 * this task was initialised.
+	 * </p>
+	 *
+	 * @param meter    --- Records profiling information
+	 * @param target   --- The WyilFile being written.
+	 * @param previous --- Information recorded by the previous build of the target.
+	 * @param sources  --- The WhileyFiles being compiled.
+	 * @return
+	 */
+	public boolean execute(Meter meter, WyilFile target, CompileState previous, WhileyFile... sources) {
+		ProfilingMeter profiler = null;
 		try {
-			meter = meter.fork("WhileyCompiler");
-			// FIXME: this is something of a hack to handle the fact that this is not an
-			// incremental compiler! Basically, we always start from scratch no matter what.
-			WyilFile.Decl.Module module = (WyilFile.Decl.Module) target.getRootItem();
-			target.setRootItem(new WyilFile.Decl.Module(module.getName(), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+			if (profile != null) {
+				profiler = new ProfilingMeter("WhileyCompiler", meter.fork("WhileyCompiler"));
+				meter = profiler;
+			} else {
+				meter = meter.fork("WhileyCompiler");
+			}
+			// Invalidate the recorded state until this build completes. This prevents a
+			// partially compiled target from being reused.
+			if (state != null) {
+				state.write(new CompileState());
+			}
 			//
-			boolean r = true;
+			CompileState current = new CompileState();
+			ArrayList<Decl.Unit> units = new ArrayList<>();
 			// Parse source files into target
 			Meter parserMeter = meter.fork(WhileyFileParser.class.getSimpleName());
-			for (int i = 0; i != sources.length; ++i) {
-				// NOTE: this is somehow where we work out the initial deltas for incremental
-				// compilation.
-				WhileyFile source = sources[i];
-				WhileyFileParser wyp = new WhileyFileParser(target, source);
-				//
-				r &= wyp.read(parserMeter);
+			boolean r;
+			if (isReusable(target, previous)) {
+				r = recompile(parserMeter, target, previous, current, units, sources);
+			} else {
+				r = rebuild(parserMeter, target, current, units, sources);
 			}
 			parserMeter.done();
 			// Perform name resolution.
 			try {
-				r = r && new NameResolution(meter, project, target).apply();
+				r = r && new NameResolution(meter, project, target).setParallel(parallel).apply(units);
 			} catch(IOException e) {
 				// FIXME: this is clearly broken.
 				throw new RuntimeException(e);
@@ -176,24 +336,31 @@ public final class CompileTask extends AbstractBuildTask<WhileyFile, WyilFile> {
 			// ========================================================================
 			// Recursive Type Check
 			// ========================================================================
-			new RecursiveTypeCheck(meter).check(target);
+			new RecursiveTypeCheck(meter).check(target, units);
 			// ========================================================================
 			// Flow Type Checking
 			// ========================================================================
-			// Instantiate type checker
-			FlowTypeCheck checker = new FlowTypeCheck(meter);
-			r = r && checker.check(target);
+			// Instantiate type checker. NOTE: outcomes of subtype queries are remembered
+			// for the duration of this build only, since they refer to the types of this
+			// target.
+			SubtypeCache subtypes = new SubtypeCache(IncrementalSubtypingEnvironment.SUBTYPE_CACHE_SIZE);
+			FlowTypeCheck checker = new FlowTypeCheck(meter, subtypes).setParallel(parallel);
+			r = r && checker.check(target, units);
 			// ========================================================================
 			// Compiler Checks
 			// ========================================================================
-			Compiler.Check[] stages = instantiateChecks(meter);
-			for (int i = 0; i != stages.length; ++i) {
-				r = r && stages[i].check(target);
+			if (parallel) {
+				r = r && check(meter, target, units);
+			} else {
+				Compiler.Check[] stages = instantiateChecks(meter);
+				for (int i = 0; i != stages.length; ++i) {
+					r = r && stages[i].check(target, units);
+				}
 			}
 			if(r && verification) {
 				// NOTE: cannot generate verification conditions if WyilFile is in a bad state
 				// (e.g. has unresolved links).
-				WyalFile obligations = verifier.initialise(target);
+				WyalFile obligations = verifier.setMeter(meter).initialise(target);
 				r = verifier.check(obligations,counterexamples);
 			}
 			// Transforms
@@ -206,10 +373,28 @@ public final class CompileTask extends AbstractBuildTask<WhileyFile, WyilFile> {
 			}
 			// Collect garbage
 			//target.gc();
+			// Record state for the next build. The target is written back as well, since
+			// the two must remain consistent.
+			this.target.write(target);
+			if (state != null) {
+				state.write(current);
+			}
+			if (manifest != null) {
+				// NOTE: should the manifest end up being flushed before the target, it will
+				// appear out-of-date with respect to it. In which case, name resolution
+				// simply falls back to reading the target.
+				manifest.write(SymbolManifest.of(target));
+			}
 			//
 			meter.done();
+			if (profiler != null) {
+				profile.write(profiler);
+			}
 			// Done
 			return r;
+		} catch (IOException e) {
+			// FIXME: this is clearly broken.
+			throw new RuntimeException(e);
 		} catch (SyntacticException e) {
 			// FIXME: This conversion from WyilFile entry to WhileyFile entry seems like a
 			// hack. WOuld be nicer if there was a different way.
@@ -227,14 +412,563 @@ public final class CompileTask extends AbstractBuildTask<WhileyFile, WyilFile> {
 		}
 	}
 
+	/**
+	 * Determine whether or not the units in the target can be reused from the
+	 * previous build. This requires that the previous build completed without
+	 * errors, and that every unit it recorded is still present in the target.
+	 *
+	 * @param target
+	 * @param previous
+	 * @return
+	 */
+	private boolean isReusable(WyilFile target, CompileState previous) {
+		Decl.Module module = target.getModule();
+		if (previous.isEmpty() || module.getUnits().size() == 0 || module.getAttributes().size() > 0) {
+			// Nothing to reuse, or previous build failed
+			return false;
+		}
+		HashSet<String> names = new HashSet<>();
+		for (CompileState.Record record : previous.getRecords()) {
+			if (getUnit(module, record.getUnit()) == null || !names.add(record.getUnit())) {
+				// Either a unit has gone missing, or two sources produced the same unit.
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compile all sources from scratch into an empty module.
+	 *
+	 * @param meter
+	 * @param target
+	 * @param current
+	 * @param units
+	 * @param sources
+	 * @return
+	 */
+	private boolean rebuild(Meter meter, WyilFile target, CompileState current, List<Decl.Unit> units,
+			WhileyFile... sources) {
+		WyilFile.Decl.Module module = target.getModule();
+		target.setRootItem(new WyilFile.Decl.Module(module.getName(), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		//
+		boolean r = parse(meter, target, Arrays.asList(sources), current);
+		// Every unit needs to be compiled
+		units.clear();
+		for (Decl.Unit unit : target.getModule().getUnits()) {
+			units.add(unit);
+		}
+		return r;
+	}
+
+	/**
+	 * Compile only those sources which have changed since the previous build, along
+	 * with any sources which (transitively) depend upon the interface of a changed
+	 * source. Units for other sources are retained from the previous build. Where
+	 * only the bodies of a unit have changed, any references to it from retained
+	 * units are relinked to the new declarations. Where only the layout of a source
+	 * has changed (e.g. its whitespace or comments), its unit is retained and only
+	 * its source locations are updated.
+	 *
+	 * @param meter
+	 * @param target
+	 * @param previous
+	 * @param current
+	 * @param units    --- Populated with the units which need to be compiled.
+	 * @param sources
+	 * @return
+	 */
+	private boolean recompile(Meter meter, WyilFile target, CompileState previous, CompileState current,
+			List<Decl.Unit> units, WhileyFile... sources) {
+		Decl.Module module = target.getModule();
+		Map<String, Set<String>> dependents = determineDependents(module);
+		// Determine which sources have changed since the previous build
+		String[] digests = new String[sources.length];
+		boolean[] stale = new boolean[sources.length];
+		HashSet<String> retained = new HashSet<>();
+		for (int i = 0; i != sources.length; ++i) {
+			CompileState.Record record = previous.get(getKey(sources[i]));
+			digests[i] = CompileState.digest(sources[i]);
+			stale[i] = record == null || !record.getSourceDigest().equals(digests[i]);
+			if (record != null) {
+				retained.add(record.getUnit());
+			}
+		}
+		// Determine units whose sources no longer exist. Anything depending on these
+		// must be recompiled.
+		HashSet<String> affected = new HashSet<>();
+		ArrayList<Decl.Unit> removed = new ArrayList<>();
+		for (Decl.Unit unit : module.getUnits()) {
+			String name = unit.getName().toString();
+			if (!retained.contains(name)) {
+				removed.add(unit);
+				addDependents(name, dependents, affected);
+			}
+		}
+		// Parse changed sources, and determine which have changed their interface.
+		IdentityHashMap<Decl, Decl> relinks = new IdentityHashMap<>();
+		Decl.Unit[] ounits = new Decl.Unit[sources.length];
+		ArrayList<WhileyFile> batch = new ArrayList<>();
+		for (int i = 0; i != sources.length; ++i) {
+			CompileState.Record record = previous.get(getKey(sources[i]));
+			if (record != null) {
+				ounits[i] = getUnit(module, record.getUnit());
+			}
+			if (stale[i]) {
+				batch.add(sources[i]);
+			}
+		}
+		// Each changed source is first parsed into its own heap. Where only its layout
+		// has changed, the source locations of the old unit are updated and it is
+		// retained as is. Otherwise, the new unit is merged into the target.
+		boolean r = true;
+		Map<SyntacticItem, Attribute.Span> spans = null;
+		for (ScratchFile scratch : scratch(meter, target, batch)) {
+			int i = Arrays.asList(sources).indexOf(scratch.source);
+			CompileState.Record record = previous.get(getKey(sources[i]));
+			if (scratch.status && ounits[i] != null && scratch.record.getUnitDigest().equals(record.getUnitDigest())) {
+				spans = spans == null ? determineSpans(target, 0) : spans;
+				if (relocate(target, spans, ounits[i], scratch)) {
+					current.put(getKey(sources[i]), scratch.record);
+					stale[i] = false;
+					continue;
+				}
+			}
+			scratch.mergeInto(target);
+			current.put(getKey(sources[i]), scratch.record);
+			r &= scratch.status;
+		}
+		for (int i = 0; i != sources.length; ++i) {
+			if (stale[i]) {
+				CompileState.Record record = previous.get(getKey(sources[i]));
+				CompileState.Record nrecord = current.get(getKey(sources[i]));
+				if (record == null ? retained.contains(nrecord.getUnit())
+						: !record.getUnit().equals(nrecord.getUnit())) {
+					// A unit has moved between sources, which is not something we can easily
+					// recover from. Therefore, fall back to compiling everything.
+					return rebuild(meter, target, current, units, sources);
+				} else if (ounits[i] != null
+						&& !relink(ounits[i], getUnit(module, nrecord.getUnit()), record, nrecord, relinks)) {
+					addDependents(nrecord.getUnit(), dependents, affected);
+				}
+			}
+		}
+		// Parse unchanged sources which depend upon a changed interface.
+		batch.clear();
+		for (int i = 0; i != sources.length; ++i) {
+			CompileState.Record record = previous.get(getKey(sources[i]));
+			if (!stale[i] && affected.contains(record.getUnit())) {
+				batch.add(sources[i]);
+			} else if (!stale[i] && current.get(getKey(sources[i])) == null) {
+				current.put(getKey(sources[i]), record);
+			}
+		}
+		r &= parse(meter, target, batch, current);
+		for (int i = 0; i != sources.length; ++i) {
+			CompileState.Record record = previous.get(getKey(sources[i]));
+			if (!stale[i] && affected.contains(record.getUnit())) {
+				CompileState.Record nrecord = current.get(getKey(sources[i]));
+				relink(ounits[i], getUnit(module, nrecord.getUnit()), record, nrecord, relinks);
+			}
+		}
+		// Remove any units whose sources no longer exist
+		for (Decl.Unit unit : removed) {
+			module.removeUnit(unit);
+		}
+		// Redirect references from retained units
+		target.replaceAll(relinks);
+		// Determine units which need to be compiled
+		for (int i = 0; i != sources.length; ++i) {
+			if (stale[i] || affected.contains(current.get(getKey(sources[i])).getUnit())) {
+				units.add(getUnit(module, current.get(getKey(sources[i])).getUnit()));
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Parse a given set of source files into the target, recording their state for
+	 * the next build. When running concurrently and there is more than one source
+	 * file, each is parsed concurrently into its own scratch heap. These are then
+	 * merged into the target in the order given. Thus, the final target is
+	 * equivalent to that obtained by parsing each source file directly into the
+	 * target one after the other (which is what happens otherwise).
+	 *
+	 * @param meter
+	 * @param target
+	 * @param sources
+	 * @param current
+	 * @return
+	 */
+	private boolean parse(Meter meter, WyilFile target, List<WhileyFile> sources, CompileState current) {
+		boolean r = true;
+		if (!parallel || sources.size() == 1) {
+			// Nothing to be gained from a scratch heap
+			for (WhileyFile source : sources) {
+				WhileyFileParser wyp = new WhileyFileParser(target, source);
+				r &= wyp.read(meter);
+				current.put(getKey(source), record(source, wyp.getUnit()));
+			}
+		} else {
+			// Merge each heap in turn into the target
+			for (ScratchFile scratch : scratch(meter, target, sources)) {
+				scratch.mergeInto(target);
+				current.put(getKey(scratch.source), scratch.record);
+				r &= scratch.status;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Parse each of a given set of source files into its own scratch heap. When
+	 * running concurrently, the source files are parsed concurrently and, since
+	 * sources are lexed on demand, this also lexes them concurrently.
+	 *
+	 * @param meter
+	 * @param target
+	 * @param sources
+	 * @return
+	 */
+	private List<ScratchFile> scratch(Meter meter, WyilFile target, List<WhileyFile> sources) {
+		Name name = target.getModule().getName();
+		Stream<WhileyFile> stream = parallel ? sources.parallelStream() : sources.stream();
+		return stream.map(source -> new ScratchFile(meter.fork(getKey(source)), name, source))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Determine the span of each item in a given heap from a given index onwards.
+	 * As for error reporting, an item's span is the first span in the heap which
+	 * refers to it.
+	 *
+	 * @param heap
+	 * @param start
+	 * @return
+	 */
+	private static Map<SyntacticItem, Attribute.Span> determineSpans(WyilFile heap, int start) {
+		IdentityHashMap<SyntacticItem, Attribute.Span> spans = new IdentityHashMap<>();
+		for (int i = start; i < heap.size(); ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			if (item instanceof Attribute.Span) {
+				Attribute.Span span = (Attribute.Span) item;
+				spans.putIfAbsent(span.getItem(), span);
+			}
+		}
+		return spans;
+	}
+
+	/**
+	 * Count the items reachable from a given unit which have a span. Observe that
+	 * the parser may allocate items which are not reachable (e.g. when
+	 * backtracking), and these are not counted.
+	 *
+	 * @param unit
+	 * @param spans
+	 * @return
+	 */
+	private static int countSpans(Decl.Unit unit, Map<SyntacticItem, Attribute.Span> spans) {
+		IdentityHashMap<SyntacticItem, Boolean> visited = new IdentityHashMap<>();
+		ArrayDeque<SyntacticItem> worklist = new ArrayDeque<>();
+		worklist.push(unit);
+		int count = 0;
+		while (!worklist.isEmpty()) {
+			SyntacticItem item = worklist.pop();
+			if (visited.put(item, Boolean.TRUE) == null) {
+				count += spans.containsKey(item) ? 1 : 0;
+				for (int i = 0; !(item instanceof Ref) && i != item.size(); ++i) {
+					if (item.get(i) != null) {
+						worklist.push(item.get(i));
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Update the source locations of an old unit to match those of an identical
+	 * unit parsed again from an edited source. This happens when the edit changed
+	 * only the layout of the source (e.g. whitespace or comments), and means the
+	 * old unit (which has already been compiled) can be retained. Since the old
+	 * unit may have been modified by compilation (e.g. by filling in types), the
+	 * two units are traversed in lockstep only so long as their items match. This
+	 * fails unless every item with a span in the new unit is matched, and nothing
+	 * is updated in that case.
+	 *
+	 * @param target
+	 * @param spans   The span of each item in the target.
+	 * @param ounit   The old unit, which is located in the target.
+	 * @param scratch The new unit, which is located in its own heap.
+	 * @return
+	 */
+	private static boolean relocate(WyilFile target, Map<SyntacticItem, Attribute.Span> spans, Decl.Unit ounit,
+			ScratchFile scratch) {
+		Map<SyntacticItem, Attribute.Span> nspans = determineSpans(scratch.heap, scratch.start);
+		IdentityHashMap<Attribute.Span, Attribute.Span> updates = new IdentityHashMap<>();
+		IdentityHashMap<SyntacticItem, Boolean> visited = new IdentityHashMap<>();
+		ArrayDeque<SyntacticItem> worklist = new ArrayDeque<>();
+		worklist.push(ounit);
+		worklist.push(scratch.unit);
+		int matched = 0;
+		while (!worklist.isEmpty()) {
+			SyntacticItem nitem = worklist.pop();
+			SyntacticItem oitem = worklist.pop();
+			if (visited.put(nitem, Boolean.TRUE) != null || nitem.getClass() != oitem.getClass()
+					|| nitem.size() > oitem.size()) {
+				// NOTE: opcodes are not compared, since these may be refined by compilation
+				// (e.g. to distinguish moves from copies).
+				continue;
+			}
+			Attribute.Span nspan = nspans.get(nitem);
+			if (nspan != null) {
+				Attribute.Span ospan = spans.get(oitem);
+				if (ospan == null) {
+					return false;
+				}
+				updates.put(ospan, nspan);
+				matched = matched + 1;
+			}
+			if (!(nitem instanceof Ref)) {
+				// NOTE: references are not followed, since they may point outside the unit
+				for (int i = 0; i != nitem.size(); ++i) {
+					if (nitem.get(i) != null && oitem.get(i) != null) {
+						worklist.push(oitem.get(i));
+						worklist.push(nitem.get(i));
+					}
+				}
+			}
+		}
+		if (matched != countSpans(scratch.unit, nspans)) {
+			return false;
+		}
+		HashMap<BigInteger, Value.Int> positions = new HashMap<>();
+		for (Map.Entry<Attribute.Span, Attribute.Span> e : updates.entrySet()) {
+			Attribute.Span ospan = e.getKey();
+			Attribute.Span nspan = e.getValue();
+			ospan.setOperand(1, positions.computeIfAbsent(nspan.getStart().get(), v -> target.allocate(new Value.Int(v))));
+			ospan.setOperand(2, positions.computeIfAbsent(nspan.getEnd().get(), v -> target.allocate(new Value.Int(v))));
+		}
+		return true;
+	}
+
+	/**
+	 * Run the compiler checks concurrently, with a separate task for each check and
+	 * unit. Since a check only reads the target, the only interference between
+	 * tasks arises from the syntax errors they report. Therefore, each task buffers
+	 * its own errors and these are added to the target afterwards in order of check
+	 * and then unit. As for sequential execution, no errors are added for checks
+	 * following the first which fails. Thus, the final target is identical to that
+	 * obtained by running each check one after the other.
+	 *
+	 * @param meter
+	 * @param target
+	 * @param units
+	 * @return
+	 */
+	private boolean check(Meter meter, WyilFile target, List<Decl.Unit> units) {
+		List<CheckResult> results = IntStream.range(0, CHECKS.size() * units.size()).parallel().mapToObj(i -> {
+			// NOTE: each task requires its own instance, since checks are stateful
+			Compiler.Check stage = CHECKS.get(i / units.size()).apply(meter);
+			Iterable<Decl.Unit> unit = Collections.singletonList(units.get(i % units.size()));
+			ErrorMessages.MarkerBuffer markers = new ErrorMessages.MarkerBuffer();
+			boolean status = ErrorMessages.buffer(markers, () -> stage.check(target, unit));
+			return new CheckResult(status, markers);
+		}).collect(Collectors.toList());
+		// Merge results in a deterministic order
+		boolean r = true;
+		for (int i = 0; i < results.size() && r; i += units.size()) {
+			for (int j = i; j != i + units.size(); ++j) {
+				CheckResult result = results.get(j);
+				result.markers.flush();
+				r &= result.status;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Represents the outcome of running a given check over a given unit.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class CheckResult {
+		private final boolean status;
+		private final ErrorMessages.MarkerBuffer markers;
+
+		public CheckResult(boolean status, ErrorMessages.MarkerBuffer markers) {
+			this.status = status;
+			this.markers = markers;
+		}
+	}
+
+	/**
+	 * Construct the record of a given source file and the unit it produced.
+	 *
+	 * @param source
+	 * @param unit
+	 * @return
+	 */
+	private static CompileState.Record record(WhileyFile source, Decl.Unit unit) {
+		return new CompileState.Record(unit.getName().toString(), CompileState.digest(source),
+				new SyntacticDigest().add(unit).toHexString(), SyntacticDigest.interfaceOf(unit));
+	}
+
+	/**
+	 * Represents the result of parsing a source file into its own scratch heap,
+	 * independently from the target. Any syntax errors reported by the parser are
+	 * buffered, rather than being added to the scratch module, such that they can
+	 * be carried across into the target.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class ScratchFile {
+		private final WhileyFile source;
+		private final WyilFile heap;
+		private final int start;
+		private final Decl.Unit unit;
+		private final boolean status;
+		private final ErrorMessages.MarkerBuffer markers = new ErrorMessages.MarkerBuffer();
+		private final CompileState.Record record;
+
+		public ScratchFile(Meter meter, Name module, WhileyFile source) {
+			this.source = source;
+			this.heap = new WyilFile((Path.Entry<WyilFile>) null);
+			this.heap.setRootItem(new WyilFile.Decl.Module(module, new Tuple<>(), new Tuple<>(), new Tuple<>()));
+			this.start = heap.size();
+			WhileyFileParser wyp = new WhileyFileParser(heap, source);
+			this.status = ErrorMessages.buffer(markers, () -> wyp.read(meter));
+			this.unit = wyp.getUnit();
+			this.record = record(source, unit);
+			meter.done();
+		}
+
+		/**
+		 * Merge the unit parsed from the source file, along with any syntax errors,
+		 * into a given target.
+		 *
+		 * @param target
+		 */
+		public void mergeInto(WyilFile target) {
+			target.merge(heap, start, markers.getMarkers());
+		}
+	}
+
+	/**
+	 * Attempt to map the declarations of an old unit onto the corresponding
+	 * declarations of its replacement. This is only possible when the interface of
+	 * the unit is unchanged, in which case the declarations correspond exactly.
+	 *
+	 * @param ounit
+	 * @param nunit
+	 * @param orecord
+	 * @param nrecord
+	 * @param relinks
+	 * @return
+	 */
+	private boolean relink(Decl.Unit ounit, Decl.Unit nunit, CompileState.Record orecord,
+			CompileState.Record nrecord, Map<Decl, Decl> relinks) {
+		if (!orecord.getInterfaceDigest().equals(nrecord.getInterfaceDigest())) {
+			return false;
+		}
+		Tuple<Decl> odecls = ounit.getDeclarations();
+		Tuple<Decl> ndecls = nunit.getDeclarations();
+		for (int i = 0; i != odecls.size(); ++i) {
+			relinks.put(odecls.get(i), ndecls.get(i));
+		}
+		return true;
+	}
+	/**
+	 * Determine, for each unit in a given module, the set of units in that module
+	 * which refer to it.
+	 *
+	 * @param module
+	 * @return
+	 */
+	private static Map<String, Set<String>> determineDependents(Decl.Module module) {
+		// Identify the unit enclosing each top-level declaration
+		IdentityHashMap<SyntacticItem, Decl.Unit> owners = new IdentityHashMap<>();
+		for (Decl.Unit unit : module.getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				owners.put(decl, unit);
+			}
+		}
+		HashMap<String, Set<String>> dependents = new HashMap<>();
+		for (Decl.Unit unit : module.getUnits()) {
+			String name = unit.getName().toString();
+			// Traverse everything reachable from this unit, stopping at declarations
+			// owned by other units.
+			IdentityHashMap<SyntacticItem, Boolean> visited = new IdentityHashMap<>();
+			ArrayDeque<SyntacticItem> worklist = new ArrayDeque<>();
+			worklist.push(unit);
+			while (!worklist.isEmpty()) {
+				SyntacticItem item = worklist.pop();
+				Decl.Unit owner = owners.get(item);
+				if (visited.put(item, Boolean.TRUE) != null) {
+					continue;
+				} else if (owner != null && owner != unit) {
+					dependents.computeIfAbsent(owner.getName().toString(), k -> new HashSet<>()).add(name);
+					continue;
+				}
+				for (int i = 0; i != item.size(); ++i) {
+					SyntacticItem child = item.get(i);
+					if (child != null) {
+						worklist.push(child);
+					}
+				}
+			}
+		}
+		return dependents;
+	}
+
+	/**
+	 * Add all units which (transitively) depend upon a given unit.
+	 *
+	 * @param name
+	 * @param dependents
+	 * @param affected
+	 */
+	private static void addDependents(String name, Map<String, Set<String>> dependents, Set<String> affected) {
+		for (String dependent : dependents.getOrDefault(name, Collections.emptySet())) {
+			if (affected.add(dependent)) {
+				addDependents(dependent, dependents, affected);
+			}
+		}
+	}
+
+	private static Decl.Unit getUnit(Decl.Module module, String name) {
+		for (Decl.Unit unit : module.getUnits()) {
+			if (unit.getName().toString().equals(name)) {
+				return unit;
+			}
+		}
+		return null;
+	}
+
+	private static String getKey(WhileyFile source) {
+		return source.getEntry().id().toString();
+	}
+
+	/**
+	 * The compiler checks, in the order they are run. Each is given as a factory,
+	 * since checks are stateful and, hence, a fresh instance is needed for each
+	 * run.
+	 */
+	private static final List<Function<Build.Meter, Compiler.Check>> CHECKS = Arrays.asList(
+			DefiniteAssignmentCheck::new,
+			DefiniteUnassignmentCheck::new,
+			FunctionalCheck::new,
+			SignatureCheck::new,
+			StaticVariableCheck::new);
+
 	private static Compiler.Check[] instantiateChecks(Build.Meter m) {
-		return new Compiler.Check[] {
-				new DefiniteAssignmentCheck(m),
-				new DefiniteUnassignmentCheck(m),
-				new FunctionalCheck(m),
-				new SignatureCheck(m),
-				new StaticVariableCheck(m)
-		};
+		Compiler.Check[] checks = new Compiler.Check[CHECKS.size()];
+		for (int i = 0; i != checks.length; ++i) {
+			checks[i] = CHECKS.get(i).apply(m);
+		}
+		return checks;
 	}
 
 	private static Compiler.Transform[] instantiateTransforms(Build.Meter meter) {
@@ -14,6 +14,7 @@
 package wyc.util;
 
 import java.util.*;
+import java.util.function.Supplier;
 
 import wybs.lang.SyntacticItem;
 import wybs.util.AbstractCompilationUnit.Identifier;
@@ -442,6 +443,12 @@ public class ErrorMessages {
 	 * @param context
 	 */
 	public static void syntaxError(SyntacticItem e, int code, SyntacticItem... context) {
+		MarkerBuffer buffer = buffers.get();
+		if (buffer != null) {
+			// Defer allocation until the buffer is flushed
+			buffer.markers.add(new WyilFile.Attr.SyntaxError(code, e, new Tuple<>(context)));
+			return;
+		}
 		WyilFile wf = (WyilFile) e.getHeap();
 		// Allocate syntax error in the heap));
 		SyntacticItem.Marker m = wf.allocate(new WyilFile.Attr.SyntaxError(code, e, new Tuple<>(context)));
@@ -449,6 +456,71 @@ public class ErrorMessages {
 		wf.getModule().addAttribute(m);
 	}
 
+	// =============================================================================
+	// Marker Buffers
+	// =============================================================================
+
+	private static final ThreadLocal<MarkerBuffer> buffers = new ThreadLocal<>();
+
+	/**
+	 * Run a given task such that any syntax errors it reports are recorded in a
+	 * given buffer, rather than being allocated directly into the heap of the
+	 * offending item. This allows a task to run concurrently with others over the
+	 * same heap, since reporting an error no longer modifies that heap. The
+	 * buffered errors are subsequently allocated by flushing the buffer.
+	 *
+	 * @param buffer
+	 * @param task
+	 * @return
+	 */
+	public static <T> T buffer(MarkerBuffer buffer, Supplier<T> task) {
+		MarkerBuffer previous = buffers.get();
+		buffers.set(buffer);
+		try {
+			return task.get();
+		} finally {
+			buffers.set(previous);
+		}
+	}
+
+	/**
+	 * Records a sequence of syntax errors which have been reported but not yet
+	 * allocated into the heap of their offending items.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class MarkerBuffer {
+		private final ArrayList<WyilFile.Attr.SyntaxError> markers = new ArrayList<>();
+
+		public boolean isEmpty() {
+			return markers.isEmpty();
+		}
+
+		/**
+		 * Get the buffered syntax errors in the order they were reported. These have
+		 * not been allocated, although the items they refer to have.
+		 *
+		 * @return
+		 */
+		public List<WyilFile.Attr.SyntaxError> getMarkers() {
+			return Collections.unmodifiableList(markers);
+		}
+
+		/**
+		 * Allocate every buffered syntax error in the order it was reported, and record
+		 * it against the enclosing module. This must not be called concurrently with
+		 * anything else which accesses the heaps concerned.
+		 */
+		public void flush() {
+			for (WyilFile.Attr.SyntaxError marker : markers) {
+				WyilFile wf = (WyilFile) marker.getTarget().getHeap();
+				wf.getModule().addAttribute(wf.allocate(marker));
+			}
+			markers.clear();
+		}
+	}
+
 	// =============================================================================
 	// Helpers
 	// =============================================================================
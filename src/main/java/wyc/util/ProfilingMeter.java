@@ -0,0 +1,467 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import wybs.lang.Build;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * A meter which records profiling information for each phase of a build. For
+ * each fork this records the wall time, CPU time and number of bytes allocated
+ * between the fork and its completion, along with the number of steps of each
+ * kind taken. Since phases fork further meters for each declaration they
+ * process, this allows the expensive declarations of a given phase to be
+ * identified. All calls are forwarded to a delegate meter, such that profiling
+ * can be enabled without affecting any other meter in use.
+ * </p>
+ * <p>
+ * The recorded information is written as JSON, where each phase is an object
+ * with the fields <code>name</code>, <code>calls</code>, <code>wall</code>,
+ * <code>cpu</code> (all in nanoseconds), <code>alloc</code> (in bytes),
+ * <code>steps</code> and <code>children</code>. Forks of the same meter with the
+ * same name (e.g. from repeatedly checking the same declaration) are summed
+ * together, with <code>calls</code> giving the number of forks. CPU time and
+ * allocation are measured for the thread which created the fork. Measurements
+ * which are unavailable (e.g. for a fork completed on a different thread, or
+ * never completed at all) are omitted from these sums. A profile which is read
+ * back is a snapshot, where each phase is a single (completed) meter.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ProfilingMeter implements Build.Meter {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	// =========================================================================
+	// Content Type
+	// =========================================================================
+
+	public static final Content.Type<ProfilingMeter> ContentType = new Content.Type<ProfilingMeter>() {
+
+		@Override
+		public ProfilingMeter read(Path.Entry<ProfilingMeter> e, InputStream input) throws IOException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+			StringBuilder text = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				text.append(line).append('\n');
+			}
+			return readSummary(new Parser(text.toString()).parse());
+		}
+
+		@Override
+		public void write(OutputStream output, ProfilingMeter meter) throws IOException {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			ArrayList<ProfilingMeter> roots = new ArrayList<>();
+			roots.add(meter);
+			writeSummary(writer, meter.name, roots, "");
+			writer.println();
+			writer.flush();
+		}
+
+		@Override
+		public String toString() {
+			return "Content-Type: wyprofile";
+		}
+
+		@Override
+		public String getSuffix() {
+			return "wyprofile";
+		}
+	};
+
+	// =========================================================================
+	// State
+	// =========================================================================
+
+	private final String name;
+	private final Build.Meter delegate;
+	private final long thread;
+	private final long startWall;
+	private final long startCpu;
+	private final long startAlloc;
+	private final int calls;
+	private volatile long wall = -1;
+	private volatile long cpu = -1;
+	private volatile long alloc = -1;
+	/**
+	 * The number of steps of each kind taken. NOTE: steps may be taken
+	 * concurrently, for example when declarations are checked in parallel.
+	 */
+	private final Map<String, Integer> steps = new ConcurrentHashMap<>();
+	private final List<ProfilingMeter> children = new ArrayList<>();
+
+	public ProfilingMeter(String name, Build.Meter delegate) {
+		this.name = name;
+		this.delegate = delegate;
+		this.calls = 1;
+		this.thread = Thread.currentThread().getId();
+		this.startCpu = cpuTime();
+		this.startAlloc = allocatedBytes();
+		this.startWall = System.nanoTime();
+	}
+
+	/**
+	 * Construct a completed meter from a summary which was previously written.
+	 *
+	 * @param name
+	 * @param calls
+	 * @param wall
+	 * @param cpu
+	 * @param alloc
+	 */
+	private ProfilingMeter(String name, int calls, long wall, long cpu, long alloc) {
+		this.name = name;
+		this.delegate = Build.NULL_METER;
+		this.calls = calls;
+		this.thread = -1;
+		this.startCpu = -1;
+		this.startAlloc = -1;
+		this.startWall = -1;
+		this.wall = wall;
+		this.cpu = cpu;
+		this.alloc = alloc;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the number of steps of each kind taken by this meter (but not its
+	 * children).
+	 *
+	 * @return
+	 */
+	public Map<String, Integer> getSteps() {
+		return Collections.unmodifiableMap(new TreeMap<>(steps));
+	}
+
+	public List<ProfilingMeter> getChildren() {
+		synchronized (children) {
+			return new ArrayList<>(children);
+		}
+	}
+
+	@Override
+	public Build.Meter fork(String name) {
+		ProfilingMeter child = new ProfilingMeter(name, delegate.fork(name));
+		// NOTE: meters may be forked concurrently
+		synchronized (children) {
+			children.add(child);
+		}
+		return child;
+	}
+
+	@Override
+	public void step(String tag) {
+		steps.merge(tag, 1, Integer::sum);
+		delegate.step(tag);
+	}
+
+	@Override
+	public void done() {
+		if (wall < 0) {
+			wall = System.nanoTime() - startWall;
+			if (Thread.currentThread().getId() == thread) {
+				long c = cpuTime();
+				long a = allocatedBytes();
+				cpu = (c < 0 || startCpu < 0) ? -1 : c - startCpu;
+				alloc = (a < 0 || startAlloc < 0) ? -1 : a - startAlloc;
+			}
+			delegate.done();
+		}
+	}
+
+	/**
+	 * Write the summary of a given set of meters with the same name as a JSON
+	 * object. Their children are then summarised in the same way, grouped by name.
+	 *
+	 * @param writer
+	 * @param name
+	 * @param meters
+	 * @param indent
+	 */
+	private static void writeSummary(PrintWriter writer, String name, List<ProfilingMeter> meters, String indent) {
+		long wall = 0, cpu = 0, alloc = 0;
+		int calls = 0;
+		TreeMap<String, Integer> steps = new TreeMap<>();
+		LinkedHashMap<String, List<ProfilingMeter>> children = new LinkedHashMap<>();
+		for (ProfilingMeter m : meters) {
+			calls += m.calls;
+			wall = sum(wall, m.wall);
+			cpu = sum(cpu, m.cpu);
+			alloc = sum(alloc, m.alloc);
+			for (Map.Entry<String, Integer> e : m.steps.entrySet()) {
+				steps.merge(e.getKey(), e.getValue(), Integer::sum);
+			}
+			synchronized (m.children) {
+				for (ProfilingMeter child : m.children) {
+					children.computeIfAbsent(child.name, n -> new ArrayList<>()).add(child);
+				}
+			}
+		}
+		writer.print(indent + "{\"name\": " + quote(name) + ", \"calls\": " + calls + ", \"wall\": " + wall
+				+ ", \"cpu\": " + cpu + ", \"alloc\": " + alloc + ", \"steps\": {");
+		String sep = "";
+		for (Map.Entry<String, Integer> e : steps.entrySet()) {
+			writer.print(sep + quote(e.getKey()) + ": " + e.getValue());
+			sep = ", ";
+		}
+		writer.print("}, \"children\": [");
+		sep = "";
+		for (Map.Entry<String, List<ProfilingMeter>> e : children.entrySet()) {
+			writer.println(sep);
+			writeSummary(writer, e.getKey(), e.getValue(), indent + "  ");
+			sep = ",";
+		}
+		writer.print("]}");
+	}
+
+	/**
+	 * Construct a completed meter from the JSON object summarising it, as written
+	 * by <code>writeSummary()</code>.
+	 *
+	 * @param summary
+	 * @return
+	 * @throws IOException
+	 */
+	private static ProfilingMeter readSummary(Object summary) throws IOException {
+		if (!(summary instanceof Map)) {
+			throw new IOException("invalid profile: expected object");
+		}
+		Map<?, ?> fields = (Map<?, ?>) summary;
+		ProfilingMeter meter = new ProfilingMeter(field(fields, "name", String.class),
+				field(fields, "calls", Long.class).intValue(), field(fields, "wall", Long.class),
+				field(fields, "cpu", Long.class), field(fields, "alloc", Long.class));
+		Map<?, ?> steps = field(fields, "steps", Map.class);
+		List<?> children = field(fields, "children", List.class);
+		for (Map.Entry<?, ?> e : steps.entrySet()) {
+			if (!(e.getValue() instanceof Long)) {
+				throw new IOException("invalid profile: expected step count");
+			}
+			meter.steps.put((String) e.getKey(), ((Long) e.getValue()).intValue());
+		}
+		for (Object child : children) {
+			meter.children.add(readSummary(child));
+		}
+		return meter;
+	}
+
+	private static <T> T field(Map<?, ?> fields, String name, Class<T> kind) throws IOException {
+		Object value = fields.get(name);
+		if (!kind.isInstance(value)) {
+			throw new IOException("invalid profile: missing or invalid field \"" + name + "\"");
+		}
+		return kind.cast(value);
+	}
+
+	/**
+	 * Add a measurement to a running total, unless it is unavailable (i.e.
+	 * negative).
+	 *
+	 * @param total
+	 * @param measurement
+	 * @return
+	 */
+	private static long sum(long total, long measurement) {
+		return measurement < 0 ? total : total + measurement;
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i != s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static long cpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A minimal parser for the subset of JSON written for profiles, namely
+	 * objects, arrays, strings and integers. Objects are parsed into maps (which
+	 * preserve the order of fields), arrays into lists and integers into longs.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Parser {
+		private final String text;
+		private int index;
+
+		public Parser(String text) {
+			this.text = text;
+		}
+
+		public Object parse() throws IOException {
+			Object value = parseValue();
+			skipWhiteSpace();
+			if (index != text.length()) {
+				throw error("unexpected trailing characters");
+			}
+			return value;
+		}
+
+		private Object parseValue() throws IOException {
+			skipWhiteSpace();
+			if (index == text.length()) {
+				throw error("unexpected end of input");
+			}
+			char c = text.charAt(index);
+			if (c == '{') {
+				return parseObject();
+			} else if (c == '[') {
+				return parseArray();
+			} else if (c == '"') {
+				return parseString();
+			} else {
+				return parseInteger();
+			}
+		}
+
+		private Map<String, Object> parseObject() throws IOException {
+			LinkedHashMap<String, Object> fields = new LinkedHashMap<>();
+			match('{');
+			skipWhiteSpace();
+			if (!tryMatch('}')) {
+				do {
+					skipWhiteSpace();
+					String name = parseString();
+					skipWhiteSpace();
+					match(':');
+					fields.put(name, parseValue());
+					skipWhiteSpace();
+				} while (tryMatch(','));
+				match('}');
+			}
+			return fields;
+		}
+
+		private List<Object> parseArray() throws IOException {
+			ArrayList<Object> items = new ArrayList<>();
+			match('[');
+			skipWhiteSpace();
+			if (!tryMatch(']')) {
+				do {
+					items.add(parseValue());
+					skipWhiteSpace();
+				} while (tryMatch(','));
+				match(']');
+			}
+			return items;
+		}
+
+		private String parseString() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			match('"');
+			while (index < text.length() && text.charAt(index) != '"') {
+				char c = text.charAt(index++);
+				if (c != '\\') {
+					sb.append(c);
+				} else if (index < text.length() && text.charAt(index) == 'u' && index + 5 <= text.length()) {
+					try {
+						sb.append((char) Integer.parseInt(text.substring(index + 1, index + 5), 16));
+					} catch (NumberFormatException e) {
+						throw error("invalid escape");
+					}
+					index += 5;
+				} else if (index < text.length()) {
+					sb.append(text.charAt(index++));
+				}
+			}
+			match('"');
+			return sb.toString();
+		}
+
+		private Long parseInteger() throws IOException {
+			int start = index;
+			if (index < text.length() && text.charAt(index) == '-') {
+				index++;
+			}
+			while (index < text.length() && Character.isDigit(text.charAt(index))) {
+				index++;
+			}
+			try {
+				return Long.parseLong(text.substring(start, index));
+			} catch (NumberFormatException e) {
+				throw error("expected integer");
+			}
+		}
+
+		private void skipWhiteSpace() {
+			while (index < text.length() && Character.isWhitespace(text.charAt(index))) {
+				index++;
+			}
+		}
+
+		private boolean tryMatch(char c) {
+			if (index < text.length() && text.charAt(index) == c) {
+				index++;
+				return true;
+			}
+			return false;
+		}
+
+		private void match(char c) throws IOException {
+			if (!tryMatch(c)) {
+				throw error("expected '" + c + "'");
+			}
+		}
+
+		private IOException error(String message) {
+			return new IOException("invalid profile: " + message + " at offset " + index);
+		}
+	}
+}
@@ -36,8 +36,10 @@ import wybs.util.AbstractCompilationUnit.Tuple;
 import wybs.util.SequentialBuildProject;
 import wyc.io.WhileyFileLexer;
 import wyc.io.WhileyFileParser;
+import wyc.lang.CompileState;
 import wyc.lang.WhileyFile;
 import wyc.task.CompileTask;
+import wycc.cfg.ConfigFile;
 import wycc.WyMain;
 import wycc.util.Logger;
 import wycc.util.Pair;
@@ -49,6 +51,8 @@ import wyfs.util.Trie;
 import wyil.interpreter.ConcreteSemantics.RValue;
 import wyil.interpreter.Interpreter;
 import wyil.lang.WyilFile;
+import wyil.util.ProofCache;
+import wyil.util.SymbolManifest;
 import wyil.lang.WyilFile.*;
 
 /**
@@ -133,6 +137,16 @@ public class TestUtils {
 				e.associate(WyilFile.ContentType, null);
 			} else if (suffix.equals("wyal")) {
 				e.associate(WyalFile.ContentType, null);
+			} else if (suffix.equals("wystate")) {
+				e.associate(CompileState.ContentType, null);
+			} else if (suffix.equals("wyproof")) {
+				e.associate(ProofCache.ContentType, null);
+			} else if (suffix.equals("wysym")) {
+				e.associate(SymbolManifest.ContentType, null);
+			} else if (suffix.equals("wyprofile")) {
+				e.associate(ProfilingMeter.ContentType, null);
+			} else if (suffix.equals("toml")) {
+				e.associate(ConfigFile.ContentType, null);
 			}
 		}
 
@@ -155,9 +169,8 @@ public class TestUtils {
 	 * @return
 	 */
 	public static Type fromString(String from) {
-		List<WhileyFileLexer.Token> tokens = new WhileyFileLexer(from).scan();
 		WyilFile wf = new WyilFile((Path.Entry<WyilFile>)null);
-		WhileyFileParser parser = new WhileyFileParser(wf, new WhileyFile(tokens));
+		WhileyFileParser parser = new WhileyFileParser(wf, new WhileyFile(new WhileyFileLexer(from)));
 		WhileyFileParser.EnclosingScope scope = parser.new EnclosingScope(Build.NULL_METER);
 		return parser.parseType(scope);
 	}
@@ -59,11 +59,15 @@ public class DefiniteAssignmentCheck
 
 	@Override
 	public boolean check(WyilFile wf) {
-		//
-		visitModule(wf, null);
-		//
+		return check(wf, wf.getModule().getUnits());
+	}
+
+	@Override
+	public boolean check(WyilFile wf, Iterable<Decl.Unit> units) {
+		for (Decl.Unit unit : units) {
+			visitUnit(unit, null);
+		}
 		meter.done();
-		//
 		return status;
 	}
 
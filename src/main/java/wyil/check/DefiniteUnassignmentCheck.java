@@ -85,10 +85,15 @@ public class DefiniteUnassignmentCheck
 
 	@Override
 	public boolean check(WyilFile wf) {
-		// Only proceed if no errors in earlier stages
-		visitModule(wf, null);
+		return check(wf, wf.getModule().getUnits());
+	}
+
+	@Override
+	public boolean check(WyilFile wf, Iterable<Decl.Unit> units) {
+		for (Decl.Unit unit : units) {
+			visitUnit(unit, null);
+		}
 		meter.done();
-		//
 		return status;
 	}
 
@@ -20,6 +20,8 @@ import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import wyal.util.NameResolver.ResolutionError;
 import wybs.lang.*;
@@ -170,11 +172,42 @@ import wyil.lang.WyilFile.Type;
  *
  */
 public class FlowTypeCheck implements Compiler.Check {
-	private final Build.Meter meter;
+	private Build.Meter meter;
 	private boolean status = true;
+	/**
+	 * Specify whether declarations are checked concurrently or not
+	 */
+	private boolean parallel;
+	/**
+	 * Remembers the outcomes of subtype queries across all declarations checked,
+	 * since the same queries are typically made repeatedly. This may be shared
+	 * with other checkers used in the same build.
+	 */
+	private final IncrementalSubtypingEnvironment.SubtypeCache subtypes;
+	/**
+	 * Determines where the results of checking (e.g. the types of expressions) are
+	 * written and, hence, where they are read back from.
+	 */
+	private final FlowTypeUtils.SideTable results;
 
 	public FlowTypeCheck(Build.Meter meter) {
+		this(meter, new IncrementalSubtypingEnvironment.SubtypeCache(IncrementalSubtypingEnvironment.SUBTYPE_CACHE_SIZE));
+	}
+
+	public FlowTypeCheck(Build.Meter meter, IncrementalSubtypingEnvironment.SubtypeCache subtypes) {
+		this(meter, subtypes, FlowTypeUtils.SideTable.DIRECT);
+	}
+
+	private FlowTypeCheck(Build.Meter meter, IncrementalSubtypingEnvironment.SubtypeCache subtypes,
+			FlowTypeUtils.SideTable results) {
 		this.meter = meter.fork(FlowTypeCheck.class.getSimpleName());
+		this.subtypes = subtypes;
+		this.results = results;
+	}
+
+	public FlowTypeCheck setParallel(boolean flag) {
+		this.parallel = flag;
+		return this;
 	}
 
 	// =========================================================================
@@ -183,13 +216,79 @@ public class FlowTypeCheck implements Compiler.Check {
 
 	@Override
 	public boolean check(WyilFile wf) {
-		for (Decl decl : wf.getModule().getUnits()) {
-			checkDeclaration(decl);
+		return check(wf, wf.getModule().getUnits());
+	}
+
+	@Override
+	public boolean check(WyilFile wf, Iterable<Decl.Unit> units) {
+		if (parallel) {
+			checkConcurrently(wf, units);
+		} else {
+			for (Decl decl : units) {
+				checkDeclaration(decl);
+			}
 		}
 		meter.done();
 		return status;
 	}
 
+	/**
+	 * Check every declaration in the given units concurrently. Each declaration is
+	 * checked by its own instance so that typing state, status and profiling
+	 * information are confined to a single thread. Since the heap is shared, each
+	 * instance records its results in its own side table, and buffers its syntax
+	 * errors, rather than writing them into the heap. Once all declarations are
+	 * checked, the results for each declaration are committed in order on the
+	 * calling thread.
+	 *
+	 * @param wf
+	 * @param units
+	 */
+	private void checkConcurrently(WyilFile wf, Iterable<Decl.Unit> units) {
+		ArrayList<Decl.Unit> enclosing = new ArrayList<>();
+		ArrayList<Decl> decls = new ArrayList<>();
+		for (Decl.Unit unit : units) {
+			for (Decl decl : unit.getDeclarations()) {
+				enclosing.add(unit);
+				decls.add(decl);
+			}
+		}
+		List<Result> outcomes = IntStream.range(0, decls.size()).parallel().mapToObj(i -> {
+			FlowTypeCheck checker = new FlowTypeCheck(meter, subtypes, new FlowTypeUtils.SideTable());
+			ErrorMessages.MarkerBuffer markers = new ErrorMessages.MarkerBuffer();
+			ErrorMessages.buffer(markers, () -> {
+				checker.checkDeclaration(enclosing.get(i), decls.get(i));
+				return null;
+			});
+			checker.meter.done();
+			return new Result(checker.status, checker.results, markers);
+		}).collect(Collectors.toList());
+		// Commit results in a deterministic order
+		for (Result result : outcomes) {
+			result.results.commit(wf);
+			result.markers.flush();
+			status &= result.status;
+		}
+	}
+
+	/**
+	 * Represents the outcome of checking a given declaration concurrently.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Result {
+		private final boolean status;
+		private final FlowTypeUtils.SideTable results;
+		private final ErrorMessages.MarkerBuffer markers;
+
+		public Result(boolean status, FlowTypeUtils.SideTable results, ErrorMessages.MarkerBuffer markers) {
+			this.status = status;
+			this.results = results;
+			this.markers = markers;
+		}
+	}
+
 	// =========================================================================
 	// Declarations
 	// =========================================================================
@@ -224,6 +323,28 @@ public class FlowTypeCheck implements Compiler.Check {
 
 	public void checkUnit(Decl.Unit unit) {
 		for (Decl decl : unit.getDeclarations()) {
+			checkDeclaration(unit, decl);
+		}
+	}
+
+	/**
+	 * Check a given declaration within a given unit. Named declarations are
+	 * metered separately, such that the cost of checking each can be determined.
+	 *
+	 * @param unit
+	 * @param decl
+	 */
+	private void checkDeclaration(Decl.Unit unit, Decl decl) {
+		if (decl instanceof Decl.Named) {
+			Build.Meter enclosing = meter;
+			meter = enclosing.fork(unit.getName() + "::" + ((Decl.Named<?>) decl).getName());
+			try {
+				checkDeclaration(decl);
+			} finally {
+				meter.done();
+				meter = enclosing;
+			}
+		} else {
 			checkDeclaration(decl);
 		}
 	}
@@ -236,7 +357,7 @@ public class FlowTypeCheck implements Compiler.Check {
 	 * @throws IOException
 	 */
 	public void checkTypeDeclaration(Decl.Type decl) {
-		Environment environment = new Environment();
+		Environment environment = new Environment(subtypes);
 		// Check type is contractive
 		checkContractive(decl, environment);
 		// Check the type invariant
@@ -250,7 +371,7 @@ public class FlowTypeCheck implements Compiler.Check {
 	 * @throws IOException
 	 */
 	public void checkStaticVariableDeclaration(Decl.StaticVariable decl) {
-		Environment environment = new Environment();
+		Environment environment = new Environment(subtypes);
 		// Check initialiser matches declared type
 		checkExpression(decl.getInitialiser(), decl.getType(), true, environment);
 	}
@@ -263,7 +384,7 @@ public class FlowTypeCheck implements Compiler.Check {
 	 */
 	public void checkFunctionOrMethodDeclaration(Decl.FunctionOrMethod decl) {
 		// Construct initial environment
-		Environment environment = new Environment();
+		Environment environment = new Environment(subtypes);
 		// Check any preconditions (i.e. requires clauses) provided.
 		checkConditions(decl.getRequires(), true, environment);
 		// Check any postconditions (i.e. ensures clauses) provided.
@@ -303,7 +424,7 @@ public class FlowTypeCheck implements Compiler.Check {
 
 	public void checkPropertyDeclaration(Decl.Property d) {
 		// Construct initial environment
-		Environment environment = new Environment();
+		Environment environment = new Environment(subtypes);
 		// Check invariant (i.e. requires clauses) provided.
 		checkConditions(d.getInvariant(), true, environment);
 	}
@@ -467,7 +588,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		checkBlock(stmt.getBody(), environment, scope);
 		// Determine and update modified variables
 		Tuple<Decl.Variable> modified = FlowTypeUtils.determineModifiedVariables(stmt.getBody());
-		stmt.setModified(stmt.getHeap().allocate(modified));
+		results.write(stmt, modified, stmt::setModified);
 		// Return environment unchanged
 		return environment;
 	}
@@ -524,7 +645,7 @@ public class FlowTypeCheck implements Compiler.Check {
 			// Apply type refinement (if applicable)
 			if (actual != null) {
 				// ignore upstream errors
-				Pair<Decl.Variable, Type> extraction = FlowTypeUtils.extractTypeTest(lvals.get(i), actual);
+				Pair<Decl.Variable, Type> extraction = FlowTypeUtils.extractTypeTest(lvals.get(i), actual, results);
 				if (extraction != null) {
 					Decl.Variable decl = extraction.getFirst();
 					// Refine the declared type
@@ -605,7 +726,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		checkConditions(stmt.getInvariant(), true, environment);
 		// Determine and update modified variables
 		Tuple<Decl.Variable> modified = FlowTypeUtils.determineModifiedVariables(stmt.getBody());
-		stmt.setModified(stmt.getHeap().allocate(modified));
+		results.write(stmt, modified, stmt::setModified);
 		// Type condition assuming its false to represent the terminated loop.
 		// This is important if the condition contains a type test, as we'll
 		// know that doesn't hold here.
@@ -690,7 +811,8 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Type check the operand for the return statement (if applicable)
 		if (stmt.hasReturn() && type instanceof Type.Void) {
 			// This doesn't make sense!!
-			syntaxError(stmt.getReturn(), SUBTYPE_ERROR, Type.Void, getNaturalType(stmt.getReturn(), environment));
+			syntaxError(stmt.getReturn(), SUBTYPE_ERROR, Type.Void,
+					getNaturalType(stmt.getReturn(), environment, results));
 		} else if (stmt.hasReturn()) {
 			// Type check the operands for the return statement (if any)
 			checkExpression(stmt.getReturn(), type, true, environment);
@@ -841,7 +963,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		checkBlock(stmt.getBody(), trueEnvironment, scope);
 		// Determine and update modified variables
 		Tuple<Decl.Variable> modified = FlowTypeUtils.determineModifiedVariables(stmt.getBody());
-		stmt.setModified(stmt.getHeap().allocate(modified));
+		results.write(stmt, modified, stmt::setModified);
 		// Return false environment to represent flow after loop.
 		return falseEnvironment;
 	}
@@ -1114,7 +1236,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Sanity check operands for this type test
 		checkIsSubtype(lhsT, rhsT, environment, rhsT);
 		// Extract variable being tested
-		Pair<Decl.Variable, Type> extraction = FlowTypeUtils.extractTypeTest(lhs, expr.getTestType());
+		Pair<Decl.Variable, Type> extraction = FlowTypeUtils.extractTypeTest(lhs, expr.getTestType(), results);
 		if (extraction != null) {
 			Decl.Variable var = extraction.getFirst();
 			Type refinementT = extraction.getSecond();
@@ -1191,7 +1313,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Sanity check type. This can be non-sensical in the case of an upsteam type
 		// error
 		if (type != null) {
-			lval.setType(lval.getHeap().allocate(type));
+			results.setType(lval, type);
 		}
 		return type;
 	}
@@ -1207,9 +1329,9 @@ public class FlowTypeCheck implements Compiler.Check {
 	public Type checkStaticVariableLVal(Expr.StaticVariableAccess lval, Environment environment) {
 		Decl.Link<Decl.StaticVariable> l = lval.getLink();
 		// Check whether this access was successfully resolved or not.
-		if (l.isResolved()) {
+		if (results.isResolved(l)) {
 			// Yes, it was resolved so proceed as normal
-			return l.getTarget().getType();
+			return results.getTarget(l).getType();
 		} else {
 			// No, it wasn't resolved so proceed with dummy
 			return null;
@@ -1328,7 +1450,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		boolean ok = typing.finalise();
 		// Sanity check what is left
 		if (ok) {
-			return expression.getType();
+			return results.getType(expression);
 		} else {
 			status = false;
 			return null;
@@ -1504,7 +1626,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Split out incoming array types
 		Typing nTyping = typing.project(row -> forkOnArray(row, var, environment));
 		// Sanity check for errors
-		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment));
+		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment, results));
 		// >>> Propagate forwards into children
 		return pushExpressions(operands, (r, i) -> getArrayElement(r.get(var)), nTyping, environment);
 	}
@@ -1515,7 +1637,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Split out incoming array types
 		Typing nTyping = typing.project(row -> forkOnArray(row, var, environment));
 		// Sanity check for errors
-		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment));
+		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment, results));
 		// >>> Propagate forwards into children
 		nTyping = pushExpression(expr.getFirstOperand(), r -> getArrayElement(r.get(var)), nTyping, environment);
 		return pushExpression(expr.getSecondOperand(), nTyping.push(Type.Int), environment);
@@ -1587,16 +1709,16 @@ public class FlowTypeCheck implements Compiler.Check {
 
 	private Typing pushCast(int var, Expr.Cast expr, Typing typing, Environment environment) {
 		// Filter target type
-		Typing nTyping = typing.map(row -> filterOnSubtype(row, var, expr.getType(), environment));
+		Typing nTyping = typing.map(row -> filterOnSubtype(row, var, results.getType(expr), environment));
 		// Sanity check typing
-		checkForError(expr, typing, nTyping, var, expr.getType());
+		checkForError(expr, typing, nTyping, var, results.getType(expr));
 		// <<< Propagate backwards from children
 		nTyping = pullExpression(expr.getOperand(), true, nTyping, environment);
 		int src = nTyping.top();
 		// Check cast makes sense
-		Typing nnTyping = nTyping.filter(r -> isSensibleCast(expr.getType(), r.get(src), environment));
+		Typing nnTyping = nTyping.filter(r -> isSensibleCast(results.getType(expr), r.get(src), environment));
 		// Report errors
-		checkForError(expr.getOperand(), nTyping, nnTyping, expr.getType(), src);
+		checkForError(expr.getOperand(), nTyping, nnTyping, results.getType(expr), src);
 		// Done
 		return nnTyping;
 	}
@@ -1757,10 +1879,10 @@ public class FlowTypeCheck implements Compiler.Check {
 		Tuple<Expr> arguments = expr.getOperands();
 		final int n = arguments.size();
 		// Select candidates with matching numbers of arguments
-		List<Decl.Callable> candidates = select(link.getCandidates(), c -> c.getParameters().size() == n);
+		List<Decl.Callable> candidates = select(results.getCandidates(link), c -> c.getParameters().size() == n);
 		// Check this invocation is resolvable
-		if (!link.isPartiallyResolved() || candidates.size() == 0) {
-			syntaxError(link.getName(), AMBIGUOUS_CALLABLE, link.getCandidates());
+		if (!results.isPartiallyResolved(link) || candidates.size() == 0) {
+			syntaxError(link.getName(), AMBIGUOUS_CALLABLE, results.getCandidates(link));
 			return typing.invalidate();
 		}
 		// Allocate space for the signature variables. This is used to identify each row
@@ -1786,7 +1908,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		List<Decl.Callable> candidates = filterLambdaCandidates(expr);
 		// Sanity check for errors
 		if (candidates.size() == 0) {
-			syntaxError(link.getName(), AMBIGUOUS_CALLABLE, link.getCandidates());
+			syntaxError(link.getName(), AMBIGUOUS_CALLABLE, results.getCandidates(link));
 			return typing.invalidate();
 		}
 		// Allocate a finaliser for this expression
@@ -1796,7 +1918,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Filter target type
 		nTyping = nTyping.project(row -> fork(candidates, c -> filterOnSubtype(row, var, c.getType(), environment)));
 		// Sanity check for errors
-		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment));
+		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment, results));
 		// Done
 		return nTyping;
 	}
@@ -1820,7 +1942,7 @@ public class FlowTypeCheck implements Compiler.Check {
 			// Filter out problematic cases
 			Typing nnTyping = nTyping.map(row -> filterOnSubtype(row, var, type, environment));
 			// Report errors
-			checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment));
+			checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment, results));
 			checkForError(expr, nTyping, nnTyping, var, type);
 			//
 			return nnTyping;
@@ -1833,7 +1955,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Split out incoming array types
 		Typing nTyping = typing.project(row -> forkOnReference(row, var, environment));
 		// Report errors
-		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment));
+		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment, results));
 		// >>> Propagate forwards into children
 		return pushExpression(expr.getOperand(), r -> getReferenceElement(r.get(var)), nTyping, environment);
 	}
@@ -1863,7 +1985,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Split out incoming record types
 		Typing nTyping = typing.project(row -> forkOnRecord(row, var, fields, environment));
 		// Sanity check for errors
-		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment));
+		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment, results));
 		// >>> Propagate forwards into children
 		return pushExpressions(operands, (r, i) -> getRecordFieldWithDefault(r.get(var), fields.get(i), Type.Any),
 				nTyping, environment);
@@ -1875,7 +1997,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Extract variable link
 		Decl.Link<Decl.StaticVariable> l = expr.getLink();
 		// Extract type if applicable
-		Type type = l.isResolved() ? l.getTarget().getType() : null;
+		Type type = results.isResolved(l) ? results.getTarget(l).getType() : null;
 		// Terminate this typing
 		Typing nTyping = typing.map(row -> filterOnSubtype(row, var, type, environment));
 		// Sanity check for errors
@@ -1892,7 +2014,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Split out incoming record types
 		Typing nTyping = typing.project(row -> forkOnTuple(row, var, n, environment));
 		// Sanity check for errors
-		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment));
+		checkForError(expr, typing, nTyping, var, getNaturalType(expr, environment, results));
 		// >>> Propagate forwards into children
 		return pushExpressions(operands, (r, i) -> getTupleElement(r.get(var), i), nTyping, environment);
 	}
@@ -2101,11 +2223,11 @@ public class FlowTypeCheck implements Compiler.Check {
 		typing = pullExpression(expr.getOperand(), true, typing, environment);
 		int src = typing.top();
 		// Check cast makes sense
-		Typing nTyping = typing.filter(r -> isSensibleCast(expr.getType(), r.get(src), environment));
+		Typing nTyping = typing.filter(r -> isSensibleCast(results.getType(expr), r.get(src), environment));
 		// Report errors
-		checkForError(expr.getOperand(), typing, nTyping, expr.getType(), src);
+		checkForError(expr.getOperand(), typing, nTyping, results.getType(expr), src);
 		// <<< Propagate backwards into parent
-		return nTyping.map(row -> row.add(expr.getType()));
+		return nTyping.map(row -> row.add(results.getType(expr)));
 	}
 
 	private Typing pullConditionExpression(Expr expr, Typing typing, Environment environment) {
@@ -2215,10 +2337,10 @@ public class FlowTypeCheck implements Compiler.Check {
 		Tuple<Expr> arguments = expr.getOperands();
 		final int n = arguments.size();
 		// Select candidates with matching numbers of arguments
-		List<Decl.Callable> candidates = select(link.getCandidates(), c -> c.getParameters().size() == n);
+		List<Decl.Callable> candidates = select(results.getCandidates(link), c -> c.getParameters().size() == n);
 		// Check this invocation is resolvable
-		if (!link.isPartiallyResolved() || candidates.size() == 0) {
-			syntaxError(link.getName(), AMBIGUOUS_CALLABLE, link.getCandidates());
+		if (!results.isPartiallyResolved(link) || candidates.size() == 0) {
+			syntaxError(link.getName(), AMBIGUOUS_CALLABLE, results.getCandidates(link));
 			return typing.invalidate();
 		}
 		// Allocate space for the signature variables. This is used to identify each row
@@ -2265,7 +2387,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		List<Decl.Callable> candidates = filterLambdaCandidates(expr);
 		// Sanity check for errors
 		if (candidates.size() == 0) {
-			syntaxError(link.getName(), AMBIGUOUS_CALLABLE, link.getCandidates());
+			syntaxError(link.getName(), AMBIGUOUS_CALLABLE, results.getCandidates(link));
 			return typing.invalidate();
 		}
 		// Allocate a finaliser for this expression
@@ -2346,7 +2468,7 @@ public class FlowTypeCheck implements Compiler.Check {
 		// Extract variable link
 		Decl.Link<Decl.StaticVariable> l = expr.getLink();
 		// Extract type if applicable
-		Type type = l.isResolved() ? l.getTarget().getType() : null;
+		Type type = results.isResolved(l) ? results.getTarget(l).getType() : null;
 		// Allocate a finaliser for this expression
 		typing.register(typeStandardExpression(expr, typing.top() + 1));
 		// Terminate this typing
@@ -2387,21 +2509,21 @@ public class FlowTypeCheck implements Compiler.Check {
 	 * @param expr
 	 * @return
 	 */
-	private static List<Decl.Callable> filterLambdaCandidates(Expr.LambdaAccess expr) {
+	private List<Decl.Callable> filterLambdaCandidates(Expr.LambdaAccess expr) {
 		Decl.Link<Decl.Callable> link = expr.getLink();
 		Type types = expr.getParameterTypes();
 		// There is a problem here in that we cannot distinguish
 		// between the case where no parameters were supplied and when
 		// exactly zero arguments were supplied.
 		if (types.shape() > 0) {
-			return select(link.getCandidates(), d -> d.getType().getParameter().equals(types));
-		} else if (link.isResolved()) {
+			return select(results.getCandidates(link), d -> d.getType().getParameter().equals(types));
+		} else if (results.isResolved(link)) {
 			// Link already resolved (e.g. because was only one candidate).
-			return link.getCandidates();
-		} else if (link.isPartiallyResolved()) {
+			return results.getCandidates(link);
+		} else if (results.isPartiallyResolved(link)) {
 			// Harder case. No signature given by user, so must fork constraints at this
 			// point for each sensible candidate.
-			return link.getCandidates();
+			return results.getCandidates(link);
 		} else {
 			return Collections.emptyList();
 		}
@@ -2409,7 +2531,7 @@ public class FlowTypeCheck implements Compiler.Check {
 
 	private Tuple<Type> constructExpectedMethod(int var, Tuple<Expr> operands, Typing typing, Environment environment) {
 		// Determine natural type of arguments
-		Tuple<Type> params = operands.map(e -> getNaturalType(e, environment));
+		Tuple<Type> params = operands.map(e -> getNaturalType(e, environment, results));
 		// Construct expected parameter
 		Type param = Type.Tuple.create(params);
 		// Extract expected returns
@@ -2420,7 +2542,7 @@ public class FlowTypeCheck implements Compiler.Check {
 
 	private Type constructExpectedMethod(Type ret, Tuple<Expr> operands, Typing typing, Environment environment) {
 		// Determine natural type of arguments
-		Tuple<Type> params = operands.map(e -> getNaturalType(e, environment));
+		Tuple<Type> params = operands.map(e -> getNaturalType(e, environment, results));
 		// Construct expected parameter
 		Type param = Type.Tuple.create(params);
 		// Done
@@ -3194,15 +3316,14 @@ public class FlowTypeCheck implements Compiler.Check {
 	 * @param var
 	 * @return
 	 */
-	private static Predicate<Typing.Row[]> typeStandardExpression(Expr e, int var) {
-		SyntacticHeap heap = e.getHeap();
+	private Predicate<Typing.Row[]> typeStandardExpression(Expr e, int var) {
 		return rows -> {
 			if (rows.length != 1 || var < 0) {
 				// invalid typing
 				return false;
 			} else {
 				Type type = rows[0].get(var);
-				e.setType(heap.allocate(type));
+				results.setType(e, type);
 				return true;
 			}
 		};
@@ -3216,10 +3337,10 @@ public class FlowTypeCheck implements Compiler.Check {
 				return false;
 			} else if (rows.length == 1) {
 				Type.Callable signature = (Type.Callable) rows[0].get(sig);
-				link.resolve(link.lookup(signature));
+				results.resolve(link, results.lookup(link, signature));
 				return true;
 			} else if (rows.length > 1) {
-				syntaxError(link.getName(), AMBIGUOUS_CALLABLE, link.getCandidates());
+				syntaxError(link.getName(), AMBIGUOUS_CALLABLE, results.getCandidates(link));
 			}
 			return false;
 		};
@@ -3233,10 +3354,10 @@ public class FlowTypeCheck implements Compiler.Check {
 				return false;
 			} else if (rows.length == 1) {
 				Type.Callable signature = (Type.Callable) rows[0].get(sig);
-				link.resolve(link.lookup(signature));
+				results.resolve(link, results.lookup(link, signature));
 				return true;
 			} else if (rows.length > 1) {
-				syntaxError(link.getName(), AMBIGUOUS_CALLABLE, link.getCandidates());
+				syntaxError(link.getName(), AMBIGUOUS_CALLABLE, results.getCandidates(link));
 			}
 			return false;
 		};
@@ -3284,7 +3405,7 @@ public class FlowTypeCheck implements Compiler.Check {
 	 * @return
 	 */
 	private boolean isPure(Expr e) {
-		FlowTypeUtils.PurityVisitor visitor = new FlowTypeUtils.PurityVisitor(meter);
+		FlowTypeUtils.PurityVisitor visitor = new FlowTypeUtils.PurityVisitor(meter, results);
 		visitor.visitExpression(e);
 		return visitor.pure;
 	}
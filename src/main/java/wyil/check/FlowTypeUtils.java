@@ -37,6 +37,7 @@ import org.apache.tools.ant.types.Environment;
 
 import wybs.util.AbstractCompilationUnit.Tuple;
 import wybs.util.AbstractCompilationUnit.Value;
+import wybs.util.AbstractSyntacticHeap;
 import wycc.util.ArrayUtils;
 import wyil.lang.WyilFile;
 import wyil.lang.WyilFile.Decl;
@@ -72,7 +73,7 @@ public class FlowTypeUtils {
 		} else if (left == BOTTOM) {
 			return right;
 		} else {
-			Environment result = new Environment();
+			Environment result = new Environment(left.getSubtypeCache());
 			Set<Decl.Variable> leftRefinements = left.getRefinedVariables();
 			Set<Decl.Variable> rightRefinements = right.getRefinedVariables();
 			for (Decl.Variable var : leftRefinements) {
@@ -107,16 +108,17 @@ public class FlowTypeUtils {
 	 *
 	 * @param expr
 	 * @param type
+	 * @param results The side table from which the types of expressions are read.
 	 * @return A pair on successful extraction, or null if possible extraction.
 	 */
-	public static Pair<Decl.Variable, Type> extractTypeTest(Expr expr, Type type) {
+	public static Pair<Decl.Variable, Type> extractTypeTest(Expr expr, Type type, SideTable results) {
 		if (expr instanceof Expr.VariableAccess) {
 			Expr.VariableAccess var = (Expr.VariableAccess) expr;
 			return new Pair<>(var.getVariableDeclaration(), type);
 		} else if (expr instanceof Expr.RecordAccess) {
 			Expr.RecordAccess ra = (Expr.RecordAccess) expr;
 			Expr ra_operand = ra.getOperand();
-			Type.Record ra_operandT = ra_operand.getType().as(Type.Record.class);
+			Type.Record ra_operandT = results.getType(ra_operand).as(Type.Record.class);
 			if (ra_operandT != null) {
 				Tuple<Type.Field> ra_fields = ra_operandT.getFields();
 				Type.Field[] fields = new Type.Field[ra_fields.size()];
@@ -130,7 +132,7 @@ public class FlowTypeUtils {
 					}
 				}
 				Type.Record recT = new Type.Record(ra_operandT.isOpen(), new Tuple<>(fields));
-				return extractTypeTest(ra.getOperand(), recT);
+				return extractTypeTest(ra.getOperand(), recT, results);
 			}
 		}
 		// no extraction is possible
@@ -237,9 +239,11 @@ public class FlowTypeUtils {
 
 	public static class PurityVisitor extends AbstractVisitor {
 		public boolean pure = true;
+		private final SideTable results;
 
-		public PurityVisitor(Build.Meter meter) {
+		public PurityVisitor(Build.Meter meter, SideTable results) {
 			super(meter);
+			this.results = results;
 		}
 
 		@Override
@@ -280,7 +284,7 @@ public class FlowTypeUtils {
 		@Override
 		public void visitInvoke(Expr.Invoke expr) {
 			Decl.Link<Decl.Callable> l = expr.getLink();
-			if (l.getTarget() instanceof Decl.Method) {
+			if (results.getTarget(l) instanceof Decl.Method) {
 				// This expression is definitely not pure
 				pure = false;
 			}
@@ -288,7 +292,7 @@ public class FlowTypeUtils {
 
 		@Override
 		public void visitIndirectInvoke(Expr.IndirectInvoke expr) {
-			Type.Callable sourceType = expr.getSource().getType().as(Type.Callable.class);
+			Type.Callable sourceType = results.getType(expr.getSource()).as(Type.Callable.class);
 			if (sourceType instanceof Type.Method) {
 				pure = false;
 			}
@@ -309,9 +313,11 @@ public class FlowTypeUtils {
 	 *
 	 * @param expression
 	 * @param environment
+	 * @param results     The side table from which the resolution of links is
+	 *                    read.
 	 * @return
 	 */
-	public static Type getNaturalType(Expr expression, Environment environment) {
+	public static Type getNaturalType(Expr expression, Environment environment, SideTable results) {
 		switch (expression.getOpcode()) {
 		case EXPR_constant:
 			return typeOf(((Expr.Constant) expression).getValue());
@@ -320,15 +326,15 @@ public class FlowTypeUtils {
 		case EXPR_staticvariable: {
 			Decl.Link<Decl.StaticVariable> l = ((Expr.StaticVariableAccess) expression).getLink();
 			// Extract type if applicable
-			return l.isResolved() ? l.getTarget().getType() : null;
+			return results.isResolved(l) ? results.getTarget(l).getType() : null;
 		}
 		case EXPR_cast: {
 			Expr.Cast c = (Expr.Cast) expression;
-			return c.getType();
+			return results.getType(c);
 		}
 		case EXPR_invoke: {
 			Expr.Invoke l = (Expr.Invoke) expression;
-			List<Decl.Callable> types = l.getLink().getCandidates();
+			List<Decl.Callable> types = results.getCandidates(l.getLink());
 			Type[] ts = new Type[types.size()];
 			for (int i = 0; i != ts.length; ++i) {
 				ts[i] = types.get(i).getType().getReturn();
@@ -337,7 +343,7 @@ public class FlowTypeUtils {
 		}
 		case EXPR_indirectinvoke: {
 			Expr.IndirectInvoke r = (Expr.IndirectInvoke) expression;
-			Type.Callable src = getNaturalType(r.getSource(), environment).as(Type.Callable.class);
+			Type.Callable src = getNaturalType(r.getSource(), environment, results).as(Type.Callable.class);
 			return (src == null) ? Type.Any : src.getReturn();
 		}
 		case EXPR_logicalnot:
@@ -370,13 +376,13 @@ public class FlowTypeUtils {
 		case EXPR_bitwiseshr:
 			return Type.Byte;
 		case EXPR_tupleinitialiser: {
-			Type[] types = getNaturalTypes(((Expr.TupleInitialiser) expression).getOperands(), environment);
+			Type[] types = getNaturalTypes(((Expr.TupleInitialiser) expression).getOperands(), environment, results);
 			return Type.Tuple.create(types);
 		}
 		case EXPR_recordinitialiser: {
 			Expr.RecordInitialiser r = (Expr.RecordInitialiser) expression;
 			Tuple<Identifier> fields = r.getFields();
-			Type[] types = getNaturalTypes(r.getOperands(), environment);
+			Type[] types = getNaturalTypes(r.getOperands(), environment, results);
 			Type.Field[] fs = new Type.Field[types.length];
 			for (int i = 0; i != fields.size(); ++i) {
 				fs[i] = new Type.Field(fields.get(i), types[i]);
@@ -386,7 +392,7 @@ public class FlowTypeUtils {
 		case EXPR_recordaccess:
 		case EXPR_recordborrow: {
 			Expr.RecordAccess r = (Expr.RecordAccess) expression;
-			Type.Record src = getNaturalType(r.getOperand(), environment).as(Type.Record.class);
+			Type.Record src = getNaturalType(r.getOperand(), environment, results).as(Type.Record.class);
 			if (src != null && src.getField(r.getField()) != null) {
 				return src.getField(r.getField());
 			} else {
@@ -397,29 +403,29 @@ public class FlowTypeUtils {
 			return Type.Int;
 		case EXPR_arrayinitialiser: {
 			Expr.ArrayInitialiser r = (Expr.ArrayInitialiser) expression;
-			Type[] types = getNaturalTypes(r.getOperands(), environment);
+			Type[] types = getNaturalTypes(r.getOperands(), environment, results);
 			return new Type.Array(Type.Union.create(types));
 		}
 		case EXPR_arraygenerator: {
 			Expr.ArrayGenerator r = (Expr.ArrayGenerator) expression;
-			return new Type.Array(getNaturalType(r.getFirstOperand(), environment));
+			return new Type.Array(getNaturalType(r.getFirstOperand(), environment, results));
 		}
 		case EXPR_arrayaccess:
 		case EXPR_arrayborrow: {
 			Expr.ArrayAccess r = (Expr.ArrayAccess) expression;
-			Type.Array src = getNaturalType(r.getFirstOperand(), environment).as(Type.Array.class);
+			Type.Array src = getNaturalType(r.getFirstOperand(), environment, results).as(Type.Array.class);
 			return (src == null) ? Type.Any : src.getElement();
 		}
 		case EXPR_arrayrange:
 			return Type.IntArray;
 		case EXPR_dereference: {
 			Expr.Dereference r = (Expr.Dereference) expression;
-			Type.Reference src = getNaturalType(r.getOperand(), environment).as(Type.Reference.class);
+			Type.Reference src = getNaturalType(r.getOperand(), environment, results).as(Type.Reference.class);
 			return (src == null) ? Type.Any : src.getElement();
 		}
 		case EXPR_fielddereference: {
 			Expr.FieldDereference r = (Expr.FieldDereference) expression;
-			Type.Reference src = getNaturalType(r.getOperand(), environment).as(Type.Reference.class);
+			Type.Reference src = getNaturalType(r.getOperand(), environment, results).as(Type.Reference.class);
 			if (src != null) {
 				Type.Record rec = src.getElement().as(Type.Record.class);
 				if (rec != null && rec.getField(r.getField()) != null) {
@@ -430,11 +436,11 @@ public class FlowTypeUtils {
 		}
 		case EXPR_new: {
 			Expr.New r = (Expr.New) expression;
-			return new Type.Reference(getNaturalType(r.getOperand(), environment));
+			return new Type.Reference(getNaturalType(r.getOperand(), environment, results));
 		}
 		case EXPR_lambdaaccess: {
 			Expr.LambdaAccess l = (Expr.LambdaAccess) expression;
-			List<Decl.Callable> types = l.getLink().getCandidates();
+			List<Decl.Callable> types = results.getCandidates(l.getLink());
 			Type[] ts = new Type[types.size()];
 			for (int i = 0; i != ts.length; ++i) {
 				ts[i] = types.get(i).getType();
@@ -443,7 +449,7 @@ public class FlowTypeUtils {
 		}
 		case DECL_lambda: {
 			Decl.Lambda l = (Decl.Lambda) expression;
-			Type ret = getNaturalType(l.getBody(), environment);
+			Type ret = getNaturalType(l.getBody(), environment, results);
 			Tuple<Type> params = l.getParameters().map(v -> v.getType());
 			// Not much more we can do here
 			return new Type.Function(Type.Tuple.create(params), ret);
@@ -454,10 +460,10 @@ public class FlowTypeUtils {
 		}
 	}
 
-	private static Type[] getNaturalTypes(Tuple<Expr> expressions, Environment environment) {
+	private static Type[] getNaturalTypes(Tuple<Expr> expressions, Environment environment, SideTable results) {
 		Type[] types = new Type[expressions.size()];
 		for (int i = 0; i != types.length; ++i) {
-			types[i] = getNaturalType(expressions.get(i), environment);
+			types[i] = getNaturalType(expressions.get(i), environment, results);
 		}
 		return types;
 	}
@@ -765,6 +771,270 @@ public class FlowTypeUtils {
 		return uTypes;
 	}
 
+	// ===============================================================================================================
+	// SideTable
+	// ===============================================================================================================
+
+	/**
+	 * <p>
+	 * Records the results determined by flow typing a declaration, namely the
+	 * types of expressions, the resolution of links and the variables modified by
+	 * loops. When checking sequentially, results are written directly into the
+	 * heap. However, when declarations are checked concurrently, the heap is
+	 * shared and so results cannot be written into it (not even into items of the
+	 * declaration being checked). Instead, they are recorded in a side table
+	 * belonging to the checker and later written into the heap, in the order they
+	 * were determined, by the thread committing the results.
+	 * </p>
+	 * <p>
+	 * Results which have been determined but not yet written are read back from
+	 * the side table. Hence, the checker must always read results through it,
+	 * rather than from the heap directly.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class SideTable {
+		/**
+		 * A side table which writes results directly into the heap.
+		 */
+		public static final SideTable DIRECT = new SideTable(null, null, null);
+
+		private final IdentityHashMap<Expr, Type> types;
+		/**
+		 * The unallocated items within the types recorded for expressions. These
+		 * stand for the items they will be allocated to.
+		 */
+		private final Set<SyntacticItem> copies = Collections.newSetFromMap(new IdentityHashMap<>());
+		private final IdentityHashMap<Decl.Link<?>, List<?>> links;
+		private final ArrayList<Runnable> writes;
+		/**
+		 * The heap into which results are being committed (if applicable).
+		 */
+		private AbstractSyntacticHeap heap;
+		/**
+		 * Maps the unallocated items of results already committed, which the checker
+		 * may have read back, onto their allocated equivalents.
+		 */
+		private IdentityHashMap<SyntacticItem, SyntacticItem> allocated;
+
+		/**
+		 * Construct an empty side table which records results, rather than writing
+		 * them into the heap.
+		 */
+		public SideTable() {
+			this(new IdentityHashMap<>(), new IdentityHashMap<>(), new ArrayList<>());
+		}
+
+		private SideTable(IdentityHashMap<Expr, Type> types, IdentityHashMap<Decl.Link<?>, List<?>> links,
+				ArrayList<Runnable> writes) {
+			this.types = types;
+			this.links = links;
+			this.writes = writes;
+		}
+
+		/**
+		 * Determine the type of a given expression. Observe that the types of
+		 * invocations and lambda accesses are determined by the resolution of their
+		 * links, rather than being written directly.
+		 *
+		 * @param expr
+		 * @return
+		 */
+		public Type getType(Expr expr) {
+			if (types == null) {
+				return expr.getType();
+			} else if (types.containsKey(expr)) {
+				return types.get(expr);
+			} else if (expr instanceof Expr.Invoke && links.containsKey(((Expr.Invoke) expr).getLink())) {
+				Decl.Binding<Type.Callable, Decl.Callable> binding = ((Expr.Invoke) expr).getBinding();
+				Decl.Callable target = getTarget(binding.getLink());
+				// NOTE: this is remembered, as the concrete type of a binding would be
+				Type type = WyilFile.substitute(target.getType(), target.getTemplate(), binding.getArguments())
+						.getReturn();
+				types.put(expr, type);
+				return type;
+			} else if (expr instanceof Expr.LambdaAccess && links.containsKey(((Expr.LambdaAccess) expr).getLink())) {
+				return getTarget(((Expr.LambdaAccess) expr).getLink()).getType();
+			} else {
+				return expr.getType();
+			}
+		}
+
+		public void setType(Expr expr, Type type) {
+			if (types == null) {
+				expr.setType(expr.getHeap().allocate(type));
+			} else {
+				// NOTE: allocating a type copies it. Hence, the type read back must be a copy
+				// which is distinct from that given, but which is later allocated as the
+				// type of this expression.
+				IdentityHashMap<SyntacticItem, SyntacticItem> map = new IdentityHashMap<>();
+				Type copy = copy(type, map);
+				copies.addAll(map.values());
+				types.put(expr, copy);
+				writes.add(() -> expr.setType(allocate(copy, true)));
+			}
+		}
+
+		public boolean isResolved(Decl.Link<?> link) {
+			List<?> targets = links == null ? null : links.get(link);
+			return targets == null ? link.isResolved() : targets.size() == 1;
+		}
+
+		public boolean isPartiallyResolved(Decl.Link<?> link) {
+			List<?> targets = links == null ? null : links.get(link);
+			return targets == null ? link.isPartiallyResolved() : targets.size() >= 1;
+		}
+
+		public <T extends Decl.Named<?>> T getTarget(Decl.Link<T> link) {
+			if (isResolved(link)) {
+				return getCandidates(link).get(0);
+			} else {
+				throw new IllegalArgumentException("link unresolved");
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		public <T extends Decl.Named<?>> List<T> getCandidates(Decl.Link<T> link) {
+			List<?> targets = links == null ? null : links.get(link);
+			return targets == null ? link.getCandidates() : (List<T>) targets;
+		}
+
+		/**
+		 * Determine the candidate of a given link with a given type.
+		 *
+		 * @param link
+		 * @param type
+		 * @return
+		 */
+		public <T extends Decl.Named<?>> T lookup(Decl.Link<T> link, Type type) {
+			for (T candidate : getCandidates(link)) {
+				if (candidate.getType().equals(type)) {
+					return candidate;
+				}
+			}
+			throw new IllegalArgumentException("unable to find candidate declaration");
+		}
+
+		public <T extends Decl.Named<?>> void resolve(Decl.Link<T> link, T target) {
+			if (links == null) {
+				link.resolve(target);
+			} else {
+				links.put(link, Collections.singletonList(target));
+				writes.add(() -> link.resolve(target));
+			}
+		}
+
+		/**
+		 * Write some result into a given item which is never read back by the checker
+		 * (e.g. the variables modified by a loop). The result is allocated into the
+		 * heap of the given item as it is written.
+		 *
+		 * @param item   The item being written.
+		 * @param result The result to be allocated and written.
+		 * @param setter Writes the allocated result into the item.
+		 */
+		public <T extends SyntacticItem> void write(SyntacticItem item, T result, Consumer<T> setter) {
+			if (writes == null) {
+				setter.accept(item.getHeap().allocate(result));
+			} else {
+				writes.add(() -> setter.accept(allocate(result, false)));
+			}
+		}
+
+		/**
+		 * Allocate a given result into the heap being committed into. As for
+		 * <code>SyntacticHeap.allocate()</code>, unallocated items are copied by each
+		 * allocation, except for those read back by the checker which must be
+		 * allocated to the same item as before.
+		 *
+		 * @param result
+		 * @param visible Indicates whether the checker could have read back this
+		 *                result.
+		 * @return
+		 */
+		@SuppressWarnings("unchecked")
+		private <T extends SyntacticItem> T allocate(T result, boolean visible) {
+			Allocator allocator = new Allocator(heap, allocated);
+			result = (T) allocator.allocate(result);
+			if (visible) {
+				allocated.putAll(allocator.getMap());
+			}
+			return result;
+		}
+
+		/**
+		 * Copy the unallocated items within a given item, preserving any sharing
+		 * between them. Items which are already copies (i.e. because they were read
+		 * back from this table) are not copied again.
+		 *
+		 * @param item
+		 * @param map
+		 * @return
+		 */
+		@SuppressWarnings("unchecked")
+		private <T extends SyntacticItem> T copy(T item, IdentityHashMap<SyntacticItem, SyntacticItem> map) {
+			SyntacticItem result = map.get(item);
+			if (item.getHeap() != null || copies.contains(item)) {
+				return item;
+			} else if (result == null) {
+				// NOTE: operands are set after cloning, as for allocation
+				result = item.clone(new SyntacticItem[item.size()]);
+				map.put(item, result);
+				for (int i = 0; i != item.size(); ++i) {
+					SyntacticItem operand = item.get(i);
+					result.setOperand(i, operand == null ? null : copy(operand, map));
+				}
+			}
+			return (T) result;
+		}
+
+		/**
+		 * Write all recorded results into a given heap, in the order they were
+		 * determined. This must be called on the thread which owns the heap, once no
+		 * checker is reading from it. Results are allocated using a single allocator
+		 * so that an unallocated item used in several results is allocated only once
+		 * (as it would be if the checker had allocated it when first written).
+		 *
+		 * @param heap
+		 */
+		public void commit(AbstractSyntacticHeap heap) {
+			this.heap = heap;
+			this.allocated = new IdentityHashMap<>();
+			try {
+				for (Runnable write : writes) {
+					write.run();
+				}
+			} finally {
+				this.heap = null;
+				this.allocated = null;
+			}
+			writes.clear();
+			types.clear();
+			copies.clear();
+			links.clear();
+		}
+
+		/**
+		 * An allocator which allocates some items to those given, rather than
+		 * copying them.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		private static class Allocator extends AbstractSyntacticHeap.Allocator {
+			public Allocator(AbstractSyntacticHeap heap, Map<SyntacticItem, SyntacticItem> allocated) {
+				super(heap);
+				map.putAll(allocated);
+			}
+
+			public Map<SyntacticItem, SyntacticItem> getMap() {
+				return map;
+			}
+		}
+	}
+
 	// ===============================================================================================================
 	// Environment
 	// ===============================================================================================================
@@ -791,11 +1061,22 @@ public class FlowTypeUtils {
 			this.refinements = new HashMap<>();
 		}
 
+		public Environment(SubtypeCache results) {
+			super(new HashMap<>(), results);
+			this.refinements = new HashMap<>();
+		}
+
 		public Environment(Map<Decl.Variable, Type> refinements, Map<String, String[]> withins) {
 			super(withins);
 			this.refinements = new HashMap<>(refinements);
 		}
 
+		public Environment(Map<Decl.Variable, Type> refinements, Map<String, String[]> withins,
+				SubtypeCache results) {
+			super(withins, results);
+			this.refinements = new HashMap<>(refinements);
+		}
+
 		public Type getType(Decl.Variable var) {
 			Type refined = refinements.get(var);
 			if (refined == null) {
@@ -806,11 +1087,13 @@ public class FlowTypeUtils {
 		}
 
 		public Environment refineType(Decl.Variable var, Type refinement) {
-			if (getType(var).equals(refinement)) {
+			// NOTE: types which are not equivalent have different canonical
+			// representatives, hence this avoids traversing them repeatedly.
+			if (isEquivalent(getType(var), refinement)) {
 				// No refinement necessary
 				return this;
 			} else {
-				Environment r = new Environment(this.refinements, this.withins);
+				Environment r = new Environment(this.refinements, this.withins, this.results);
 				r.refinements.put(var, refinement);
 				return r;
 			}
@@ -822,7 +1105,7 @@ public class FlowTypeUtils {
 
 		@Override
 		public Environment declareWithin(String inner, String... outers) {
-			Environment nenv = new Environment(this.refinements, this.withins);
+			Environment nenv = new Environment(this.refinements, this.withins, this.results);
 			nenv.withins.put(inner, outers);
 			return nenv;
 		}
@@ -1089,6 +1372,10 @@ public class FlowTypeUtils {
 						for(int i=0;i!=o1_types.length;++i) {
 							Type t1 = o1_types[i];
 							Type t2 = o2_types[i];
+							if (t1 == t2) {
+								// Identical types are trivially subtypes of each other
+								continue;
+							}
 							boolean left = env.isSatisfiableSubtype(t1, t2);
 							boolean right = env.isSatisfiableSubtype(t2, t1);
 							//
@@ -82,7 +82,14 @@ public class FunctionalCheck extends AbstractConsumer<FunctionalCheck.Context> i
 
 	@Override
 	public boolean check(WyilFile file) {
-		visitModule(file, null);
+		return check(file, file.getModule().getUnits());
+	}
+
+	@Override
+	public boolean check(WyilFile wf, Iterable<Decl.Unit> units) {
+		for (Decl.Unit unit : units) {
+			visitUnit(unit, null);
+		}
 		meter.done();
 		return status;
 	}
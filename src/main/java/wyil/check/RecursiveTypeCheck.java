@@ -66,7 +66,14 @@ public class RecursiveTypeCheck extends AbstractVisitor implements Compiler.Chec
 
 	@Override
 	public boolean check(WyilFile wf) {
-		visitModule(wf);
+		return check(wf, wf.getModule().getUnits());
+	}
+
+	@Override
+	public boolean check(WyilFile wf, Iterable<Decl.Unit> units) {
+		for (Decl.Unit unit : units) {
+			visitUnit(unit);
+		}
 		meter.done();
 		return status;
 	}
@@ -59,7 +59,15 @@ public class SignatureCheck extends AbstractConsumer<SignatureCheck.Context> imp
 
 	@Override
 	public boolean check(WyilFile file) {
-		visitModule(file, new Context());
+		return check(file, file.getModule().getUnits());
+	}
+
+	@Override
+	public boolean check(WyilFile file, Iterable<Decl.Unit> units) {
+		Context context = new Context();
+		for (Decl.Unit unit : units) {
+			visitUnit(unit, context);
+		}
 		meter.done();
 		return status;
 	}
@@ -68,7 +68,14 @@ public class StaticVariableCheck extends AbstractConsumer<Set<QualifiedName>> im
 
 	@Override
 	public boolean check(WyilFile wf) {
-		visitModule(wf, null);
+		return check(wf, wf.getModule().getUnits());
+	}
+
+	@Override
+	public boolean check(WyilFile wf, Iterable<Decl.Unit> units) {
+		for (Decl.Unit unit : units) {
+			visitUnit(unit, null);
+		}
 		meter.done();
 		return status;
 	}
@@ -14,7 +14,16 @@
 package wyil.check;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
 
 import wyal.lang.WyalFile;
 import wyal.util.Interpreter;
@@ -26,27 +35,65 @@ import wybs.lang.Build;
 import wybs.lang.CompilationUnit.Name;
 import wybs.lang.SyntacticException;
 import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
 import wybs.util.AbstractCompilationUnit.Value;
 import wyc.lang.WhileyFile;
 import wyc.util.ErrorMessages;
+import wyc.util.ProfilingMeter;
 import wyfs.lang.Path;
 import wyil.lang.WyilFile;
 import wyil.lang.WyilFile.Attr.CounterExample;
 import wyil.transform.VerificationConditionGenerator;
+import wyil.util.ProofCache;
 import wytp.provers.AutomatedTheoremProver;
 import wytp.types.extractors.TypeInvariantExtractor;
 import wytp.types.TypeSystem;
 
 public class VerificationCheck {
-	private final Build.Meter meter;
+	/**
+	 * The maximum size of a proof attempted by the theorem prover, unless
+	 * otherwise specified.
+	 */
+	public static final int DEFAULT_PROOF_LIMIT = 5000;
+
+	private Build.Meter meter;
 	private final Build.Project project;
 	private final Path.Entry<WyalFile> wyalTarget;
 	private final Path.Entry<WyilFile> target;
 	private final TypeSystem typeSystem;
+	/**
+	 * Records which assertions were proved by the previous build. This is located
+	 * in the root of the target, and is written (but not flushed) on each check.
+	 */
+	private final Path.Entry<ProofCache> cache;
+	/**
+	 * Specify whether assertions are proved concurrently or not
+	 */
+	private boolean parallel;
+	/**
+	 * Specify whether to stop at the first assertion which cannot be proved, or
+	 * to report every such assertion.
+	 */
+	private boolean failFast = true;
+	/**
+	 * The maximum size of a proof attempted by the theorem prover.
+	 */
+	private int proofLimit = DEFAULT_PROOF_LIMIT;
 
 	//private final Path.Root sourceRoot;
 
-	public VerificationCheck(Build.Meter meter, Build.Project project, Path.Entry<WyilFile> target) throws IOException {
+	/**
+	 * Construct a check for a given target.
+	 *
+	 * @param meter
+	 * @param project
+	 * @param root    The root of the target, where the proof cache is stored.
+	 * @param id      The identifier of the target within its root.
+	 * @param target
+	 * @throws IOException
+	 */
+	public VerificationCheck(Build.Meter meter, Build.Project project, Path.Root root, Path.ID id,
+			Path.Entry<WyilFile> target) throws IOException {
 		this.meter = meter.fork(VerificationCheck.class.getSimpleName());
 		this.project = project;
 		//
@@ -58,10 +105,61 @@ public class VerificationCheck {
 			wyalTarget = tmp;
 		}
 		//
+		Path.Entry<ProofCache> proofs = root.get(id, ProofCache.ContentType);
+		if (proofs == null) {
+			proofs = root.create(id, ProofCache.ContentType);
+			proofs.write(new ProofCache());
+		}
+		this.cache = proofs;
+		//
 		this.target = target;
 		this.typeSystem = new wytp.types.TypeSystem(project);
 	}
 
+	public VerificationCheck setParallel(boolean flag) {
+		this.parallel = flag;
+		return this;
+	}
+
+	/**
+	 * Specify whether to stop at the first assertion which cannot be proved or,
+	 * otherwise, to report every assertion which cannot be proved. In either case,
+	 * the failures reported are the same regardless of whether assertions are
+	 * proved concurrently or not.
+	 *
+	 * @param flag
+	 * @return
+	 */
+	public VerificationCheck setFailFast(boolean flag) {
+		this.failFast = flag;
+		return this;
+	}
+
+	/**
+	 * Specify the maximum size of a proof attempted by the theorem prover. Since
+	 * this forms part of the prover's configuration, changing it means no
+	 * assertion proved by a previous build is reused.
+	 *
+	 * @param limit
+	 * @return
+	 */
+	public VerificationCheck setProofLimit(int limit) {
+		this.proofLimit = limit;
+		return this;
+	}
+
+	/**
+	 * Specify the meter for the next verification of the target. Since this check
+	 * is reused across builds, this allows each build to be profiled separately.
+	 *
+	 * @param meter
+	 * @return
+	 */
+	public VerificationCheck setMeter(Build.Meter meter) {
+		this.meter = meter.fork(VerificationCheck.class.getSimpleName());
+		return this;
+	}
+
 	public WyalFile initialise(WyilFile target) {
 		try {
 			WyalFile contents = new VerificationConditionGenerator(meter,new WyalFile(wyalTarget)).translate(target);
@@ -78,6 +176,19 @@ public class VerificationCheck {
 		}
 	}
 
+	/**
+	 * Attempt to prove every assertion in a given WyalFile. Assertions proved by a
+	 * previous build (as determined by the proof cache) are not proved again. By
+	 * default, this stops at the first assertion which cannot be proved.
+	 * Otherwise, every assertion which cannot be proved is reported (in the order
+	 * they appear) with the error code determined by its own message. In parallel
+	 * mode, assertions are proved concurrently but the same failures are
+	 * reported.
+	 *
+	 * @param target
+	 * @param counterexamples
+	 * @return
+	 */
 	public boolean check(WyalFile target, boolean counterexamples) {
 		// FIXME: this is really a bit of a kludge right now. The basic issue is that,
 		// in the near future, the VerificationConditionGenerator will operate directly
@@ -85,36 +196,343 @@ public class VerificationCheck {
 		// work on the WyilFile directly as well and, hence, this will become more like
 		// a compilation stage (as per others above).
 		try {
-			// Now try to verfify it
-			AutomatedTheoremProver prover = new AutomatedTheoremProver(typeSystem);
-			// Run the checker!
-			prover.check(target);
-			//
-			return true;
-		} catch(SyntacticException e) {
+			ProofCache previous = cache.read();
+			ProofCache current = new ProofCache();
+			String prover = getProverConfiguration();
+			List<WyalFile.Declaration.Assert> assertions = target.getSyntacticItems(WyalFile.Declaration.Assert.class);
+			List<WyalFile.Declaration.Named> declarations = target.getSyntacticItems(WyalFile.Declaration.Named.class);
+			Map<AbstractCompilationUnit.Name, List<WyalFile.Declaration.Named>> index = ProofCache.index(declarations);
+			List<Failure> failures;
+			if (parallel) {
+				failures = proveConcurrently(target, assertions, declarations, index, prover, previous, current,
+						counterexamples);
+			} else {
+				failures = proveSequentially(target, assertions, declarations, index, prover, previous, current,
+						counterexamples);
+			}
+			// Report failures in a deterministic order
+			for (Failure failure : failures) {
+				ErrorMessages.syntaxError(failure.context, failure.code, failure.counterexamples);
+			}
+			// Write back proof cache. NOTE: this is flushed afterwards along with the
+			// rest of the project, since no blocking I/O should be performed here.
+			cache.write(current);
 			//
-			SyntacticItem item = e.getElement();
-			String message = e.getMessage();
-			// FIXME: translate from WyilFile to WhileyFile. This is a temporary hack
-			if(item instanceof WyalFile.Declaration.Assert) {
-				// Extract failed assertion
-				WyalFile.Declaration.Assert assertion = (WyalFile.Declaration.Assert) item;
-				//
-				int code = codeFromMessage(e.getMessage());
-				CounterExample[] cegs;
-				if (counterexamples) {
-					cegs = findCounterexamples(assertion);
-				} else {
-					cegs = new CounterExample[0];
+			return failures.isEmpty();
+		} catch (IOException e) {
+			// Something wierd happened
+			throw new RuntimeException(e);
+		} finally {
+			meter.done();
+		}
+	}
+
+	/**
+	 * Determine the name of the WyIL declaration enclosing the context of each
+	 * assertion, such that proofs can be attributed to declarations when
+	 * profiling. This is done in a single pass over each WyilFile involved since
+	 * locating the ancestor of each context individually is expensive.
+	 *
+	 * @param assertions
+	 * @return
+	 */
+	private static Map<SyntacticItem, String> enclosingDeclarations(List<WyalFile.Declaration.Assert> assertions) {
+		IdentityHashMap<SyntacticItem, String> enclosing = new IdentityHashMap<>();
+		Set<WyilFile> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (WyalFile.Declaration.Assert assertion : assertions) {
+			SyntacticItem context = assertion.getContext();
+			if (context != null && context.getHeap() instanceof WyilFile && visited.add((WyilFile) context.getHeap())) {
+				WyilFile wf = (WyilFile) context.getHeap();
+				for (WyilFile.Decl.Unit unit : wf.getModule().getUnits()) {
+					for (WyilFile.Decl decl : unit.getDeclarations()) {
+						if (decl instanceof WyilFile.Decl.Named) {
+							String name = unit.getName() + "::" + ((WyilFile.Decl.Named<?>) decl).getName();
+							ArrayDeque<SyntacticItem> worklist = new ArrayDeque<>();
+							worklist.add(decl);
+							while (!worklist.isEmpty()) {
+								SyntacticItem item = worklist.removeFirst();
+								if (enclosing.putIfAbsent(item, name) == null
+										&& item.getOpcode() != AbstractCompilationUnit.ITEM_ref) {
+									for (int i = 0; i != item.size(); ++i) {
+										if (item.get(i) != null) {
+											worklist.add(item.get(i));
+										}
+									}
+								}
+							}
+						}
+					}
 				}
-				ErrorMessages.syntaxError(assertion.getContext(), code, cegs);
-				return false;
+			}
+		}
+		return enclosing;
+	}
+
+	/**
+	 * Attempt to prove every assertion not proved by a previous build. These are
+	 * proved together by a single theorem prover, which stops at the first
+	 * assertion which cannot be proved. When no assertion was proved by a previous
+	 * build, this works on the WyalFile directly. Otherwise, the remaining
+	 * assertions are isolated in a fresh WyalFile along with the named
+	 * declarations they refer to. Unless failing fast, this is then repeated for
+	 * the assertions after the one which could not be proved.
+	 *
+	 * @param target
+	 * @param assertions
+	 * @param declarations
+	 * @param index
+	 * @param prover
+	 * @param previous
+	 * @param current
+	 * @param counterexamples
+	 * @return
+	 */
+	private List<Failure> proveSequentially(WyalFile target, List<WyalFile.Declaration.Assert> assertions,
+			List<WyalFile.Declaration.Named> declarations,
+			Map<AbstractCompilationUnit.Name, List<WyalFile.Declaration.Named>> index, String prover,
+			ProofCache previous, ProofCache current, boolean counterexamples) {
+		List<WyalFile.Declaration.Assert> pending = new ArrayList<>();
+		List<List<WyalFile.Declaration.Named>> dependencies = new ArrayList<>();
+		List<String> keys = new ArrayList<>();
+		for (WyalFile.Declaration.Assert assertion : assertions) {
+			List<WyalFile.Declaration.Named> deps = ProofCache.dependenciesOf(assertion, index);
+			String key = deps == null ? null : ProofCache.keyOf(prover, assertion, deps);
+			if (key != null && previous.contains(key)) {
+				// Proved by a previous build
+				meter.step("cached");
+				current.add(key);
 			} else {
+				meter.step("proof");
+				pending.add(assertion);
+				dependencies.add(deps == null ? declarations : deps);
+				keys.add(key);
+			}
+		}
+		List<Failure> failures = new ArrayList<>();
+		int start = 0;
+		while (start != pending.size()) {
+			int failed = prove(target, assertions, pending.subList(start, pending.size()),
+					dependencies.subList(start, dependencies.size()), keys.subList(start, keys.size()), current,
+					counterexamples, failures);
+			if (failed < 0 || failFast) {
+				break;
+			}
+			start = start + failed + 1;
+		}
+		return failures;
+	}
+
+	/**
+	 * Attempt to prove a given list of assertions together, stopping at the first
+	 * which cannot be proved. The keys of those proved are recorded in the current
+	 * proof cache, whilst the failure (if any) is recorded in the given list.
+	 *
+	 * @param target
+	 * @param assertions
+	 *            Every assertion in the target.
+	 * @param pending
+	 *            The assertions to prove.
+	 * @param dependencies
+	 *            The named declarations each pending assertion refers to.
+	 * @param keys
+	 *            The key of each pending assertion (or <code>null</code>).
+	 * @param current
+	 * @param counterexamples
+	 * @param failures
+	 * @return The index of the pending assertion which could not be proved, or -1
+	 *         if all were proved.
+	 */
+	private int prove(WyalFile target, List<WyalFile.Declaration.Assert> assertions,
+			List<WyalFile.Declaration.Assert> pending, List<List<WyalFile.Declaration.Named>> dependencies,
+			List<String> keys, ProofCache current, boolean counterexamples, List<Failure> failures) {
+		WyalFile obligation = target;
+		if (pending.size() != assertions.size()) {
+			obligation = new WyalFile(target.getEntry());
+			Set<SyntacticItem> allocated = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (List<WyalFile.Declaration.Named> deps : dependencies) {
+				allocate(obligation, deps, allocated);
+			}
+			List<WyalFile.Declaration.Assert> copies = new ArrayList<>();
+			for (WyalFile.Declaration.Assert assertion : pending) {
+				copies.add(obligation.allocate(assertion));
+			}
+			pending = copies;
+		}
+		try {
+			createProver(typeSystem).check(obligation);
+			for (String key : keys) {
+				if (key != null) {
+					current.add(key);
+				}
+			}
+			return -1;
+		} catch (SyntacticException e) {
+			// NOTE: assertions are proved in the order they appear, hence those before
+			// the failing assertion were proved. Those after it were not attempted but,
+			// since every assertion proved by a previous build has already been
+			// recorded, no keys are lost.
+			int failed = 0;
+			while (failed != pending.size() && pending.get(failed) != e.getElement()) {
+				failed = failed + 1;
+			}
+			if (failed == pending.size()) {
 				// FIXME: enjoy debugging this when the time comes :)
-				throw new SyntacticException(message,null,item,e);
+				throw new SyntacticException(e.getMessage(), null, e.getElement(), e);
 			}
-		} finally {
-			meter.done();
+			for (String key : keys.subList(0, failed)) {
+				if (key != null) {
+					current.add(key);
+				}
+			}
+			failures.add(failure(pending.get(failed), e, counterexamples));
+			return failed;
+		}
+	}
+
+	/**
+	 * Attempt to prove every assertion not proved by a previous build
+	 * concurrently. Since every assertion is attempted, only the first which
+	 * cannot be proved is reported when failing fast. The type systems used are
+	 * pooled for the duration of this check, since they are not thread safe.
+	 *
+	 * @param target
+	 * @param assertions
+	 * @param declarations
+	 * @param index
+	 * @param prover
+	 * @param previous
+	 * @param current
+	 * @param counterexamples
+	 * @return
+	 */
+	private List<Failure> proveConcurrently(WyalFile target, List<WyalFile.Declaration.Assert> assertions,
+			List<WyalFile.Declaration.Named> declarations,
+			Map<AbstractCompilationUnit.Name, List<WyalFile.Declaration.Named>> index, String prover,
+			ProofCache previous, ProofCache current, boolean counterexamples) {
+		// NOTE: proofs are only attributed to declarations when profiling, since
+		// determining the enclosing declarations is expensive.
+		Map<SyntacticItem, String> enclosing = meter instanceof ProfilingMeter ? enclosingDeclarations(assertions)
+				: Collections.emptyMap();
+		ConcurrentLinkedQueue<TypeSystem> types = new ConcurrentLinkedQueue<>();
+		List<Failure> failures = assertions.parallelStream().map(assertion -> {
+			Build.Meter m = meter.fork(enclosing.getOrDefault(assertion.getContext(), "assertion"));
+			try {
+				List<WyalFile.Declaration.Named> deps = ProofCache.dependenciesOf(assertion, index);
+				String key = deps == null ? null : ProofCache.keyOf(prover, assertion, deps);
+				if (key != null && previous.contains(key)) {
+					// Proved by a previous build
+					m.step("cached");
+					current.add(key);
+					return null;
+				}
+				m.step("proof");
+				TypeSystem ts = types.poll();
+				if (ts == null) {
+					ts = new TypeSystem(project);
+				}
+				Failure failure = prove(target, deps == null ? declarations : deps, assertion, ts, counterexamples);
+				types.offer(ts);
+				if (key != null && failure == null) {
+					current.add(key);
+				}
+				return failure;
+			} finally {
+				m.done();
+			}
+		}).filter(Objects::nonNull).collect(Collectors.toList());
+		return failFast && failures.size() > 1 ? failures.subList(0, 1) : failures;
+	}
+
+	/**
+	 * Attempt to prove a single assertion from a given WyalFile. Since the prover
+	 * works on an entire WyalFile, the assertion is isolated in a fresh WyalFile
+	 * along with the named declarations it refers to. This also ensures concurrent
+	 * proofs don't share anything other than the (unmodified) original WyalFile.
+	 *
+	 * @param target
+	 * @param dependencies
+	 * @param assertion
+	 * @param types
+	 * @param counterexamples
+	 * @return The failure found, or <code>null</code> if the assertion holds.
+	 */
+	private Failure prove(WyalFile target, List<WyalFile.Declaration.Named> dependencies,
+			WyalFile.Declaration.Assert assertion, TypeSystem types, boolean counterexamples) {
+		WyalFile obligation = new WyalFile(target.getEntry());
+		allocate(obligation, dependencies, Collections.newSetFromMap(new IdentityHashMap<>()));
+		assertion = obligation.allocate(assertion);
+		try {
+			createProver(types).check(obligation);
+			return null;
+		} catch (SyntacticException e) {
+			if (e.getElement() != assertion) {
+				// FIXME: enjoy debugging this when the time comes :)
+				throw new SyntacticException(e.getMessage(), null, e.getElement(), e);
+			}
+			return failure(assertion, e, counterexamples);
+		}
+	}
+
+	private AutomatedTheoremProver createProver(TypeSystem types) {
+		AutomatedTheoremProver prover = new AutomatedTheoremProver(types);
+		prover.setProofLimit(proofLimit);
+		return prover;
+	}
+
+	/**
+	 * Describe the configuration of the theorem prover, such that assertions
+	 * proved under a different configuration are proved again.
+	 *
+	 * @return
+	 */
+	private String getProverConfiguration() {
+		return AutomatedTheoremProver.class.getName() + ";limit=" + proofLimit;
+	}
+
+	/**
+	 * Allocate a given set of named declarations into an obligation, skipping any
+	 * which have already been allocated.
+	 *
+	 * @param obligation
+	 * @param declarations
+	 * @param allocated
+	 */
+	private static void allocate(WyalFile obligation, List<WyalFile.Declaration.Named> declarations,
+			Set<SyntacticItem> allocated) {
+		for (WyalFile.Declaration.Named declaration : declarations) {
+			if (allocated.add(declaration)) {
+				obligation.allocate(declaration);
+			}
+		}
+	}
+
+	private Failure failure(WyalFile.Declaration.Assert assertion, SyntacticException e, boolean counterexamples) {
+		// FIXME: translate from WyilFile to WhileyFile. This is a temporary hack
+		int code = codeFromMessage(e.getMessage());
+		CounterExample[] cegs;
+		if (counterexamples) {
+			cegs = findCounterexamples(assertion);
+		} else {
+			cegs = new CounterExample[0];
+		}
+		return new Failure(assertion.getContext(), code, cegs);
+	}
+
+	/**
+	 * Records an assertion which could not be proved.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Failure {
+		private final SyntacticItem context;
+		private final int code;
+		private final CounterExample[] counterexamples;
+
+		public Failure(SyntacticItem context, int code, CounterExample[] counterexamples) {
+			this.context = context;
+			this.code = code;
+			this.counterexamples = counterexamples;
 		}
 	}
 
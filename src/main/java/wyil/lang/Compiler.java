@@ -19,6 +19,19 @@ public interface Compiler {
 
 	public interface Check {
 		public boolean check(WyilFile file);
+
+		/**
+		 * Check only the given units within a WyilFile. This is used for incremental
+		 * compilation, where only those units affected by a change need to be checked
+		 * again. By default, every unit is checked.
+		 *
+		 * @param file
+		 * @param units
+		 * @return
+		 */
+		public default boolean check(WyilFile file, Iterable<WyilFile.Decl.Unit> units) {
+			return check(file);
+		}
 	}
 
 	public interface Transform {
@@ -23,7 +23,9 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 
@@ -417,9 +419,136 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 	}
 
 	/**
+	 * Replace all references to the given items with their corresponding
+	 * replacements. This is equivalent to calling <code>replace()</code> for each
+	 * pair in turn, except that it requires only a single pass over the heap. In
+	 * contrast with <code>replace()</code>, markers for the replaced items are not
+	 * removed.
+	 *
+	 * @param replacements
+	 */
+	public void replaceAll(Map<? extends SyntacticItem, ? extends SyntacticItem> replacements) {
+		BitSet reachable = findReachable(getRootItem(), new BitSet());
+		for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+			SyntacticItem item = syntacticItems.get(i);
+			for (int j = 0; j != item.size(); ++j) {
+				SyntacticItem replacement = replacements.get(item.get(j));
+				if (replacement != null) {
+					item.setOperand(j, replacement);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Merge items from a scratch WyilFile into this heap. Specifically, all items
+	 * in the scratch heap from a given starting index are copied across in order.
+	 * The scratch heap is expected to have been constructed from an initially empty
+	 * module (which must precede the starting index), such as when parsing a source
+	 * file. The units of the scratch module are then added to this module
+	 * (replacing any with the same name), and the given markers are added as well.
+	 * The latter are expected to have been buffered rather than added to the
+	 * scratch module (e.g. using <code>ErrorMessages.buffer()</code>), hence they
+	 * are not allocated but their operands are.
+	 * </p>
+	 * <p>
+	 * The result of parsing a source file into a scratch heap and then merging it
+	 * into this heap is equivalent to parsing that source file directly into this
+	 * heap. In particular, the units and markers of this module are the same, and
+	 * the items of each unit are allocated in the same relative order (thus, the
+	 * same span is found for each item). This allows multiple source files to be parsed concurrently without
+	 * affecting the final WyilFile produced.
+	 * </p>
+	 *
+	 * @param scratch
+	 * @param start
+	 * @param markers
+	 */
+	public void merge(WyilFile scratch, int start, List<? extends SyntacticItem.Marker> markers) {
+		IdentityHashMap<SyntacticItem, SyntacticItem> map = new IdentityHashMap<>();
+		Tuple<Decl.Unit> units = scratch.getModule().getUnits();
+		// Allocate unlinked copies of every item in the same order. The tuple of units
+		// is skipped, since the units are added to this module instead.
+		for (int i = start; i < scratch.size(); ++i) {
+			SyntacticItem item = scratch.getSyntacticItem(i);
+			if (item != units) {
+				SyntacticItem nItem = item.clone(new SyntacticItem[item.size()]);
+				syntacticItems.add(nItem);
+				nItem.allocate(this, syntacticItems.size() - 1);
+				map.put(item, nItem);
+			}
+		}
+		// Link operands up
+		for (Map.Entry<SyntacticItem, SyntacticItem> e : map.entrySet()) {
+			SyntacticItem item = e.getKey();
+			SyntacticItem nItem = e.getValue();
+			for (int j = 0; j != item.size(); ++j) {
+				SyntacticItem operand = item.get(j);
+				if (operand != null) {
+					SyntacticItem nOperand = map.get(operand);
+					if (nOperand == null) {
+						throw new IllegalArgumentException("invalid operand in scratch heap");
+					}
+					nItem.setOperand(j, nOperand);
+				}
+			}
+		}
+		// Add units to this module (replacing any which already exist)
+		Decl.Module module = getModule();
+		for (Decl.Unit item : units) {
+			Decl.Unit unit = (Decl.Unit) map.get(item);
+			Decl.Unit old = module.putUnit(unit);
+			if (old != null) {
+				replace(old, unit);
+			}
+		}
+		// Finally, add markers to this module
+		for (SyntacticItem.Marker marker : markers) {
+			module.addAttribute((SyntacticItem.Marker) allocateMerged(marker, map));
+		}
+	}
+
+	/**
+	 * Allocate a copy of an unallocated item whose operands (or their operands,
+	 * etc) have been merged from a scratch heap.
+	 *
+	 * @param item
+	 * @param map
+	 *            Maps items in the scratch heap to their copies in this heap.
+	 * @return
+	 */
+	private SyntacticItem allocateMerged(SyntacticItem item, Map<SyntacticItem, SyntacticItem> map) {
+		SyntacticItem nItem = map.get(item);
+		if (nItem == null) {
+			if (item.getHeap() != null) {
+				throw new IllegalArgumentException("invalid operand in scratch heap");
+			}
+			SyntacticItem[] operands = new SyntacticItem[item.size()];
+			for (int i = 0; i != operands.length; ++i) {
+				SyntacticItem operand = item.get(i);
+				operands[i] = operand == null ? null : allocateMerged(operand, map);
+			}
+			nItem = allocate(item.clone(operands));
+			map.put(item, nItem);
+		}
+		return nItem;
+	}
+
+	/**
+	 * <p>
 	 * A qualified name represents a <i>fully-qualified</i> name within a
 	 * compilation unit. That is, a full-qualified unit identifier and corresponding
 	 * name.
+	 * </p>
+	 * <p>
+	 * Qualified names are used extensively as keys (e.g. in symbol tables and the
+	 * interpreter), where structurally comparing the underlying syntactic items is
+	 * costly. Therefore, they are compared by the canonical string forms of their
+	 * unit and name instead (see <code>keyOf()</code>). Since many qualified names
+	 * are constructed but never used as keys, these are determined only when first
+	 * required, along with the hash code.
+	 * </p>
 	 *
 	 * @author David J. Pearce
 	 *
@@ -427,6 +556,14 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 	public static class QualifiedName {
 		private final Name unit;
 		private final Identifier name;
+		/**
+		 * The canonical forms of the unit and name, or <code>null</code> if not yet
+		 * determined. Since these are interned, the canonical forms of equal
+		 * qualified names are the same instances.
+		 */
+		private String unitKey;
+		private String nameKey;
+		private int hash;
 
 		public QualifiedName(Tuple<Identifier> path, Identifier name) {
 			this(path.toArray(Identifier.class), name);
@@ -443,16 +580,25 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 
 		@Override
 		public boolean equals(Object o) {
-			if (o instanceof QualifiedName) {
+			if (o == this) {
+				return true;
+			} else if (o instanceof QualifiedName) {
 				QualifiedName n = (QualifiedName) o;
-				return unit.equals(n.unit) && name.equals(n.name);
+				// NOTE: canonical forms are interned, hence compared by reference
+				return hashCode() == n.hashCode() && getNameKey() == n.getNameKey()
+						&& getUnitKey() == n.getUnitKey();
 			}
 			return false;
 		}
 
 		@Override
 		public int hashCode() {
-			return unit.hashCode() ^ name.hashCode();
+			int h = hash;
+			if (h == 0) {
+				h = getUnitKey().hashCode() * 31 + getNameKey().hashCode();
+				hash = h;
+			}
+			return h;
 		}
 
 		public Name getUnit() {
@@ -463,6 +609,36 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 			return name;
 		}
 
+		/**
+		 * Get the canonical form of the unit of this qualified name. This is the
+		 * same instance for all qualified names in the same unit.
+		 *
+		 * @return
+		 */
+		public String getUnitKey() {
+			String key = unitKey;
+			if (key == null) {
+				key = keyOf(unit).intern();
+				unitKey = key;
+			}
+			return key;
+		}
+
+		/**
+		 * Get the canonical form of the name of this qualified name. This is the
+		 * same instance for all qualified names with the same name.
+		 *
+		 * @return
+		 */
+		public String getNameKey() {
+			String key = nameKey;
+			if (key == null) {
+				key = keyOf(name).intern();
+				nameKey = key;
+			}
+			return key;
+		}
+
 		/**
 		 * Provide a simple conversion from a qualified name to a generic name
 		 *
@@ -474,7 +650,40 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 
 		@Override
 		public String toString() {
-			return unit + "::" + name;
+			return getUnitKey() + "::" + getNameKey();
+		}
+
+		/**
+		 * Get the canonical form of a given identifier, such that the canonical forms
+		 * of any two equal identifiers are equal.
+		 *
+		 * @param id
+		 * @return
+		 */
+		public static String keyOf(Identifier id) {
+			return id.get();
+		}
+
+		/**
+		 * Get the canonical form of a given name, such that the canonical forms of
+		 * any two equal names are equal.
+		 *
+		 * @param name
+		 * @return
+		 */
+		public static String keyOf(Name name) {
+			Identifier[] path = name.getAll();
+			if (path.length == 1) {
+				return keyOf(path[0]);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i != path.length; ++i) {
+				if (i != 0) {
+					sb.append("::");
+				}
+				sb.append(path[i].get());
+			}
+			return sb.toString();
 		}
 	}
 
@@ -565,6 +774,24 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 				return null;
 			}
 
+			/**
+			 * Remove a given unit from this module. This has no effect if the unit is not
+			 * contained in this module.
+			 *
+			 * @param unit
+			 * @return
+			 */
+			public boolean removeUnit(Decl.Unit unit) {
+				Tuple<Decl.Unit> units = getUnits();
+				for (int i = 0; i != units.size(); ++i) {
+					if (units.get(i) == unit) {
+						setOperand(1, getHeap().allocate(units.removeAll(Arrays.asList(unit))));
+						return true;
+					}
+				}
+				return false;
+			}
+
 			public Decl.Unit putExtern(Decl.Unit unit) {
 				Tuple<Decl.Unit> externs = getExterns();
 				// Check whether replacing unit or adding new
@@ -617,6 +844,15 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 
 			public Unit(Name name, Tuple<Decl> declarations) {
 				super(DECL_unit, name, declarations);
+				// Record this unit against the declarations it encloses. NOTE: operands may
+				// not be known yet (e.g. when cloning).
+				for (int i = 0; declarations != null && i != declarations.size(); ++i) {
+					Decl decl = declarations.get(i);
+					if (decl instanceof Named) {
+						((Named<?>) decl).enclosing = this;
+						((Named<?>) decl).position = i;
+					}
+				}
 			}
 
 			public Name getName() {
@@ -783,6 +1019,16 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 		 */
 		public static abstract class Named<T extends WyilFile.Type> extends AbstractSyntacticItem implements Decl {
 
+			/**
+			 * Caches the qualified name of this declaration. This is determined from the
+			 * unit enclosing this declaration, along with the position of this
+			 * declaration within it, which are recorded when the unit is constructed.
+			 * This avoids traversing the heap to determine the enclosing unit.
+			 */
+			private QualifiedName qualifiedName;
+			private Unit enclosing;
+			private int position;
+
 			public Named(int opcode, Tuple<Modifier> modifiers, Identifier name, SyntacticItem... rest) {
 				super(opcode, ArrayUtils.append(new SyntacticItem[] { modifiers, name }, rest));
 			}
@@ -797,9 +1043,45 @@ public class WyilFile extends AbstractCompilationUnit<WyilFile> {
 			}
 
 			public QualifiedName getQualifiedName() {
-				// FIXME: this is completely broken.
-				Unit module = getAncestor(Decl.Unit.class);
-				return new QualifiedName(module.getName(), getName());
+				Unit unit = this.enclosing;
+				// NOTE: the declarations of the enclosing unit could have been updated since
+				// it was recorded (e.g. during incremental compilation).
+				if (!isEnclosedBy(unit, position)) {
+					// FIXME: this is completely broken.
+					unit = getAncestor(Decl.Unit.class);
+					Tuple<Decl> declarations = unit.getDeclarations();
+					int i = 0;
+					while (declarations.get(i) != this) {
+						i = i + 1;
+					}
+					this.enclosing = unit;
+					this.position = i;
+				}
+				QualifiedName qualifiedName = this.qualifiedName;
+				// NOTE: the name, or the name of the enclosing unit, could have been updated
+				// since this was cached
+				if (qualifiedName == null || qualifiedName.getName() != getName()
+						|| qualifiedName.getUnit() != unit.getName()) {
+					qualifiedName = new QualifiedName(unit.getName(), getName());
+					this.qualifiedName = qualifiedName;
+				}
+				return qualifiedName;
+			}
+
+			/**
+			 * Check whether a given unit (still) directly encloses this declaration at
+			 * a given position.
+			 *
+			 * @param unit
+			 * @param position
+			 * @return
+			 */
+			private boolean isEnclosedBy(Unit unit, int position) {
+				if (unit != null && unit.getHeap() == getHeap()) {
+					Tuple<Decl> declarations = unit.getDeclarations();
+					return position < declarations.size() && declarations.get(position) == this;
+				}
+				return false;
 			}
 
 			public Tuple<Template.Variable> getTemplate() {
@@ -33,10 +33,15 @@ import static wyil.lang.WyilFile.*;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
 
 import wyil.util.AbstractConsumer;
+import wyil.util.SymbolManifest;
 
 /**
  * <p>
@@ -73,6 +78,14 @@ import wyil.util.AbstractConsumer;
  *
  */
 public class NameResolution {
+	/**
+	 * Snapshots of the symbols provided by each external package, indexed by the
+	 * root of that package. These are shared between all builds which depend on
+	 * the same packages, and are checked against the contents of the package (see
+	 * <code>Snapshot.isCurrent()</code>) before each is used.
+	 */
+	private static final Map<Path.Root, SymbolTable.Snapshot> SNAPSHOTS = new WeakHashMap<>();
+
 	private final Build.Meter meter;
 	private final WyilFile target;
 	/**
@@ -84,37 +97,72 @@ public class NameResolution {
 
 	private final Build.Project project;
 
+	/**
+	 * The importer used for all imports by this name resolver. This is shared
+	 * between rounds of patching (and across units) such that any external item
+	 * is imported at most once, and then shared by everything which refers to
+	 * it. This is created on demand, since most builds import nothing.
+	 */
+	private Importer importer;
+
 	private boolean status = true;
 
+	/**
+	 * Specify whether units are resolved concurrently or not
+	 */
+	private boolean parallel;
+
 	public NameResolution(Build.Meter meter, Build.Project project, WyilFile target) throws IOException {
 		this.meter = meter.fork(NameResolution.class.getSimpleName());
 		this.project = project;
 		this.target = target;
-		this.symbolTable = new SymbolTable(target,getExternals());
+		this.symbolTable = new SymbolTable(target, getDependencies());
 		this.resolver = new Resolver(meter);
 	}
 
+	public NameResolution setParallel(boolean flag) {
+		this.parallel = flag;
+		return this;
+	}
+
 	/**
 	 * Apply this name resolver to a given WyilFile.
 	 *
 	 * @param wf
 	 */
 	public boolean apply() {
-		// FIXME: need to make this incremental
-		checkImports(meter,target);
-		// Create initial set of patches.
-		List<Patch> patches = resolver.apply(target);
+		return apply(target.getModule().getUnits());
+	}
+
+	/**
+	 * Apply this name resolver to only the given units of the target WyilFile. This
+	 * is used for incremental compilation, where units which have not changed can
+	 * retain their existing resolutions.
+	 *
+	 * @param units
+	 * @return
+	 */
+	public boolean apply(Iterable<Decl.Unit> units) {
+		List<Patch> patches;
+		if (parallel) {
+			patches = resolveConcurrently(units);
+		} else {
+			checkImports(meter, units);
+			// Create initial set of patches.
+			patches = resolver.apply(units);
+		}
 		// Keep iterating until all patches are resolved
 		while (patches.size() > 0) {
-			// Create importer
-			Importer importer = new Importer(meter, target, true);
+			if (importer == null) {
+				importer = new Importer(meter, target, true);
+			}
 			// Now continue importing until patches all resolved.
 			for (int i = 0; i != patches.size(); ++i) {
 				// Import and link the given patch
 				patches.get(i).apply(importer);
 			}
 			// Switch over to the next set of patches
-			patches = importer.getPatches();
+			patches = importer.takePatches();
 		}
 		// Consolidate any imported declarations as externals.
 		symbolTable.consolidate(meter);
@@ -125,34 +173,98 @@ public class NameResolution {
 	}
 
 	/**
-	 * Read in all external packages so they can be used for name resolution. This
-	 * amounts to loading in every WyilFile contained within an external package
-	 * dependency.
+	 * Check the imports of, and create the initial patches for, each of the given
+	 * units concurrently. This is safe since doing so only reads the target and
+	 * the symbol table, provided that syntax errors are buffered rather than
+	 * allocated into the target. The buffered errors are then committed, and the
+	 * patches returned, in the order of their units. Applying the patches is not
+	 * done concurrently, since this imports and links declarations by allocating
+	 * into the target. Furthermore, applying them in order ensures imported
+	 * declarations are laid out in the target exactly as they would be otherwise.
+	 *
+	 * @param units
+	 * @return
 	 */
-	private List<WyilFile> getExternals() throws IOException {
-		ArrayList<WyilFile> externals = new ArrayList<>();
+	private List<Patch> resolveConcurrently(Iterable<Decl.Unit> units) {
+		ArrayList<Decl.Unit> list = new ArrayList<>();
+		units.forEach(list::add);
+		List<Resolution> results = list.parallelStream().map(unit -> {
+			Build.Meter m = meter.fork(Resolver.class.getSimpleName());
+			ErrorMessages.MarkerBuffer markers = new ErrorMessages.MarkerBuffer();
+			List<Patch> patches = ErrorMessages.buffer(markers, () -> {
+				List<Decl.Unit> singleton = Collections.singletonList(unit);
+				checkImports(m, singleton);
+				return new Resolver(m).apply(singleton);
+			});
+			m.done();
+			return new Resolution(patches, markers);
+		}).collect(Collectors.toList());
+		// Commit results in a deterministic order
+		ArrayList<Patch> patches = new ArrayList<>();
+		for (Resolution result : results) {
+			result.markers.flush();
+			patches.addAll(result.patches);
+		}
+		return patches;
+	}
+
+	/**
+	 * Represents the outcome of resolving a given unit concurrently.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Resolution {
+		private final List<Patch> patches;
+		private final ErrorMessages.MarkerBuffer markers;
+
+		public Resolution(List<Patch> patches, ErrorMessages.MarkerBuffer markers) {
+			this.patches = patches;
+			this.markers = markers;
+		}
+	}
+
+	/**
+	 * Get a snapshot of the symbols provided by each external package, so they can
+	 * be used for name resolution. A snapshot is constructed from every WyilFile
+	 * contained within the package, along with any symbol manifests. Note that
+	 * these are only digested here, not decoded. Rather, the snapshot reads them on
+	 * demand as symbols they provide are looked up. Snapshots are shared between
+	 * all name resolvers, and are reconstructed only when the contents of a
+	 * package change.
+	 */
+	private List<SymbolTable.Snapshot> getDependencies() throws IOException {
+		ArrayList<SymbolTable.Snapshot> dependencies = new ArrayList<>();
 		List<Build.Package> pkgs = project.getPackages();
 		// Consider each package in turn and identify all contained WyilFiles
 		for (int i = 0; i != pkgs.size(); ++i) {
 			Build.Package p = pkgs.get(i);
 			// FIXME: This is kind broken me thinks. Potentially, we should be able to
 			// figure out what modules are supplied via the configuration.
-			List<Path.Entry<WyilFile>> entries = p.getRoot().get(Content.filter("**/*", WyilFile.ContentType));
-			for (int j = 0; j != entries.size(); ++j) {
-				externals.add(entries.get(j).read());
+			List<Path.Entry<WyilFile>> externals = p.getRoot().get(Content.filter("**/*", WyilFile.ContentType));
+			List<Path.Entry<SymbolManifest>> manifests = p.getRoot()
+					.get(Content.filter("**/*", SymbolManifest.ContentType));
+			synchronized (SNAPSHOTS) {
+				SymbolTable.Snapshot snapshot = SNAPSHOTS.get(p.getRoot());
+				if (snapshot == null || !snapshot.isCurrent(externals, manifests)) {
+					meter.step("snapshot");
+					snapshot = new SymbolTable.Snapshot(externals, manifests);
+					SNAPSHOTS.put(p.getRoot(), snapshot);
+				}
+				dependencies.add(snapshot);
 			}
 		}
-		return externals;
+		return dependencies;
 	}
 
 	/**
 	 * Sanity check that import statements make sense. Specifically. that: (1) the
 	 * module being imported from exists; (2) any names being imported exist.
 	 *
-	 * @param target
+	 * @param units
 	 */
-	private void checkImports(Build.Meter meter, WyilFile target) {
-		for(Decl.Unit unit : target.getModule().getUnits()) {
+	private void checkImports(Build.Meter meter, Iterable<Decl.Unit> units) {
+		for(Decl.Unit unit : units) {
 			for(Decl d : unit.getDeclarations()) {
 				meter.step("check");
 				if(d instanceof Decl.Import) {
@@ -209,8 +321,10 @@ public class NameResolution {
 			super(meter);
 		}
 
-		public List<Patch> apply(WyilFile module) {
-			super.visitModule(module, null);
+		public List<Patch> apply(Iterable<Decl.Unit> units) {
+			for (Decl.Unit unit : units) {
+				visitUnit(unit, null);
+			}
 			return patches;
 		}
 
@@ -456,14 +570,14 @@ public class NameResolution {
 			if (!symbolTable.isAvailable(name)) {
 				// FIXME: want to optimise so don't bring in the whole type unless we are doing
 				// link-time analysis or generating a single binary.
-				ArrayList<Decl.Named> imported = new ArrayList<>();
-				for (Decl.Named d : symbolTable.getRegisteredDeclarations(name)) {
+				ArrayList<Decl.Named<?>> imported = new ArrayList<>();
+				for (Decl.Named<?> d : symbolTable.getRegisteredDeclarations(name)) {
 					// Sanity check import
-					imported.add((Decl.Named) importer.allocate(d));
+					imported.add((Decl.Named<?>) importer.allocate(d));
 				}
 				symbolTable.addAvailable(name, imported);
 			} else {
-				for (Decl.Named d : symbolTable.getRegisteredDeclarations(name)) {
+				for (Decl.Named<?> d : symbolTable.getRegisteredDeclarations(name)) {
 					// Sanity check local declarations
 					if(isPublic && !isPublic(d)) {
 						syntaxError(target,EXPOSING_HIDDEN_DECLARATION);
@@ -481,7 +595,7 @@ public class NameResolution {
 			switch (target.getOpcode()) {
 			case EXPR_staticvariable: {
 				Expr.StaticVariableAccess e = (Expr.StaticVariableAccess) target;
-				Decl.StaticVariable d = select(name, Decl.StaticVariable.class);
+				Decl.StaticVariable d = select(name, SymbolTable.STATIC, Decl.StaticVariable.class);
 				if(d != null) {
 					e.getLink().resolve(d);
 				}
@@ -489,7 +603,7 @@ public class NameResolution {
 			}
 			case EXPR_invoke: {
 				Expr.Invoke e = (Expr.Invoke) target;
-				Decl.Callable[] resolved = selectAll(name, Decl.Callable.class);
+				Decl.Callable[] resolved = selectAll(name, e.getOperands().size(), Decl.Callable.class);
 				if(resolved != null) {
 					e.getLink().resolve(resolved);
 				}
@@ -497,7 +611,7 @@ public class NameResolution {
 			}
 			case EXPR_lambdaaccess: {
 				Expr.LambdaAccess e = (Expr.LambdaAccess) target;
-				Decl.Callable[] resolved = selectAll(name, Decl.Callable.class);
+				Decl.Callable[] resolved = selectAll(name, SymbolTable.ANY_ARITY, Decl.Callable.class);
 				if(resolved != null) {
 					e.getLink().resolve(filterParameters(e.getParameterTypes().size(), resolved));
 				}
@@ -506,7 +620,7 @@ public class NameResolution {
 			default:
 			case TYPE_nominal: {
 				Type.Nominal e = (Type.Nominal) target;
-				Decl.Type d = select(name, Decl.Type.class);
+				Decl.Type d = select(name, SymbolTable.TYPE, Decl.Type.class);
 				if(d != null && e.getParameters().size() != d.getTemplate().size()) {
 					if(e.getParameters().size() > d.getTemplate().size()) {
 						syntaxError(e.getLink().getName(), TOOMANY_TEMPLATE_PARAMETERS);
@@ -531,23 +645,20 @@ public class NameResolution {
 		 *
 		 * @param name
 		 *            Fully qualified name
+		 * @param kinds
+		 *            Declaration kinds we are resolving (see SymbolTable).
 		 * @param kind
-		 *            Declaration kind we are resolving.
+		 *            Declaration class we are resolving.
 		 * @return
 		 */
-		private <T extends Decl> T select(QualifiedName name, Class<T> kind) {
-			List<Decl.Named> declarations = symbolTable.getAvailableDeclarations(name);
-			Identifier id = name.getName();
-			for (int i = 0; i != declarations.size(); ++i) {
-				Decl.Named d = declarations.get(i);
-				//
-				if (kind.isInstance(d)) {
-					// Found direct instance
-					return (T) d;
-				}
+		private <T extends Decl> T select(QualifiedName name, int kinds, Class<T> kind) {
+			List<Decl.Named<?>> declarations = symbolTable.getAvailableDeclarations(name, kinds, SymbolTable.ANY_ARITY);
+			if (declarations.isEmpty()) {
+				syntaxError(name.getName(), RESOLUTION_ERROR);
+				return null;
+			} else {
+				return (T) declarations.get(0);
 			}
-			syntaxError(id, RESOLUTION_ERROR);
-			return null;
 		}
 
 		/**
@@ -555,39 +666,32 @@ public class NameResolution {
 		 * <code>std::ascii::to_string</code>) to all matching declarations. This
 		 * consists of a qualified unit and a name.
 		 *
+		 * Only callables with a given number of parameters are considered plausible
+		 * matches. However, if there are none, then all callables are returned such
+		 * that any subsequent error can report them.
+		 *
 		 * @param name
 		 *            Fully qualified name
+		 * @param arity
+		 *            Number of parameters required, or
+		 *            <code>SymbolTable.ANY_ARITY</code>.
 		 * @param kind
-		 *            Declaration kind we are resolving.
+		 *            Declaration class we are resolving.
 		 * @return
 		 */
-		private <T extends Decl> T[] selectAll(QualifiedName name, Class<T> kind) {
-			List<Decl.Named> declarations = symbolTable.getAvailableDeclarations(name);
-			Identifier id = name.getName();
-			// Determine how many matches
-			int count = 0;
-			for (int i = 0; i != declarations.size(); ++i) {
-				Decl.Named d = declarations.get(i);
-				if (kind.isInstance(d)) {
-					count++;
-				}
-			}
-			// Create the array
-			@SuppressWarnings("unchecked")
-			T[] matches = (T[]) Array.newInstance(kind, count);
-			// Populate the array
-			for (int i = 0, j = 0; i != declarations.size(); ++i) {
-				Decl.Named d = declarations.get(i);
-				if (kind.isInstance(d)) {
-					matches[j++] = (T) d;
-				}
+		private <T extends Decl.Callable> T[] selectAll(QualifiedName name, int arity, Class<T> kind) {
+			List<Decl.Named<?>> declarations = symbolTable.getAvailableDeclarations(name, SymbolTable.CALLABLE, arity);
+			if (declarations.isEmpty() && arity != SymbolTable.ANY_ARITY) {
+				declarations = symbolTable.getAvailableDeclarations(name, SymbolTable.CALLABLE, SymbolTable.ANY_ARITY);
 			}
 			// Check for resolution error
-			if (matches.length == 0) {
-				syntaxError(id, RESOLUTION_ERROR);
+			if (declarations.isEmpty()) {
+				syntaxError(name.getName(), RESOLUTION_ERROR);
 				return null;
 			} else {
-				return matches;
+				@SuppressWarnings("unchecked")
+				T[] matches = (T[]) Array.newInstance(kind, declarations.size());
+				return declarations.toArray(matches);
 			}
 		}
 
@@ -620,7 +724,10 @@ public class NameResolution {
 	/**
 	 * Responsible for importing an item from one syntactic heap into another. This
 	 * relies on all items externally referenced by the imported item having been
-	 * already resolved.
+	 * already resolved. Every item imported is remembered (by identity), such that
+	 * importing it again simply returns the existing copy. The number of items
+	 * imported, and the number shared rather than imported again, are recorded as
+	 * steps of the meter.
 	 *
 	 * @author David J. Pearce
 	 *
@@ -632,9 +739,10 @@ public class NameResolution {
 		 */
 		private final boolean stubsOnly;
 		/**
-		 * List of patches generated during imports by this importer.
+		 * List of patches generated during imports by this importer, since they were
+		 * last taken.
 		 */
-		private final ArrayList<Patch> patches = new ArrayList<>();
+		private ArrayList<Patch> patches = new ArrayList<>();
 
 		private final SyntacticItem REF_UNKNOWN;
 
@@ -647,7 +755,14 @@ public class NameResolution {
 
 		@Override
 		public SyntacticItem allocate(SyntacticItem item) {
-			meter.step("import");
+			SyntacticItem imported = map.get(item);
+			if (imported != null) {
+				// Already imported, hence share existing copy
+				meter.step("import (shared)");
+				return imported;
+			} else if (item.getHeap() != heap) {
+				meter.step("import");
+			}
 			switch (item.getOpcode()) {
 			case ITEM_ref:
 				Ref<?> ref = (Ref<?>) item;
@@ -690,8 +805,15 @@ public class NameResolution {
 
 		}
 
-		public List<Patch> getPatches() {
-			return patches;
+		/**
+		 * Get the patches generated by this importer since they were last taken.
+		 *
+		 * @return
+		 */
+		public List<Patch> takePatches() {
+			List<Patch> r = patches;
+			patches = new ArrayList<>();
+			return r;
 		}
 
 		/**
@@ -27,7 +27,12 @@ package wyil.transform;
 import static wyil.lang.WyilFile.Modifier;
 import static wyil.lang.WyilFile.Name;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -35,12 +40,14 @@ import java.util.List;
 import java.util.Map;
 
 import wybs.lang.Build;
-import wybs.util.AbstractCompilationUnit.Identifier;
 import wybs.util.AbstractCompilationUnit.Tuple;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
 import wyil.lang.WyilFile;
 import wyil.lang.WyilFile.Decl;
 import wyil.lang.WyilFile.Decl.Named;
 import wyil.lang.WyilFile.QualifiedName;
+import wyil.util.SymbolManifest;
 
 /**
  * Represents the cumulative knowledge of all symbols used in resolving names
@@ -51,6 +58,21 @@ import wyil.lang.WyilFile.QualifiedName;
  *
  */
 public class SymbolTable {
+	/**
+	 * Kinds of declaration, as used for selecting from overloaded declarations.
+	 * These can be combined to select declarations of several kinds at once.
+	 */
+	public static final int FUNCTION = 1;
+	public static final int METHOD = 2;
+	public static final int PROPERTY = 4;
+	public static final int TYPE = 8;
+	public static final int STATIC = 16;
+	public static final int CALLABLE = FUNCTION | METHOD | PROPERTY;
+	/**
+	 * Used to select overloaded declarations regardless of arity.
+	 */
+	public static final int ANY_ARITY = -1;
+
 	/**
 	 * The enclosing WyilFile this symbol table is operating on.
 	 */
@@ -58,40 +80,56 @@ public class SymbolTable {
 
 	/**
 	 * Cached information about symbols available in the given WyilFile and external
-	 * dependencies.
+	 * dependencies. This is indexed by the canonical form of each unit's name (see
+	 * <code>QualifiedName.keyOf()</code>).
 	 */
-	private final HashMap<Name, Group> symbolTable = new HashMap<>();
+	private final HashMap<String, Group> symbolTable = new HashMap<>();
 
 	/**
 	 * The consolidation list identifies those which need to be consolidated
 	 */
 	private final HashSet<ExternalGroup> consolidations = new HashSet<>();
 
+	/**
+	 * Snapshots of the dependencies against which names are resolved, in order of
+	 * precedence. These are shared with other symbol tables resolving against the
+	 * same dependencies.
+	 */
+	private final List<Snapshot> dependencies;
+
 	/**
 	 * Construct a symbol table containing meta-data on a given target file and its
 	 * dependencies.
 	 *
 	 * @param target
 	 * @param deps
+	 * @param manifests
+	 * @throws IOException
+	 */
+	public SymbolTable(WyilFile target, List<Path.Entry<WyilFile>> deps, List<Path.Entry<SymbolManifest>> manifests)
+			throws IOException {
+		this(target, Collections.singletonList(new Snapshot(deps, manifests)));
+	}
+
+	/**
+	 * Construct a symbol table containing meta-data on a given target file, which
+	 * resolves external symbols against some snapshots of its dependencies.
+	 *
+	 * @param target
+	 * @param dependencies
 	 */
-	public SymbolTable(WyilFile target, List<WyilFile> deps) {
+	public SymbolTable(WyilFile target, List<Snapshot> dependencies) {
 		this.target = target;
+		this.dependencies = dependencies;
 		//
 		Decl.Module module = target.getModule();
 		// Register all internal symbols
 		for (Decl.Unit unit : module.getUnits()) {
-			symbolTable.put(unit.getName(), new LocalGroup(unit));
-		}
-		// Register all external symbols
-		for(int i=0;i!=deps.size();++i) {
-			Decl.Module dep = deps.get(i).getModule();
-			for (Decl.Unit unit : dep.getUnits()) {
-				symbolTable.put(unit.getName(), new ExternalGroup(unit));
-			}
+			symbolTable.put(QualifiedName.keyOf(unit.getName()), new LocalGroup(unit));
 		}
 		// Register any available (i.e. imported) external symbols
 		for (Decl.Unit unit : module.getExterns()) {
-			ExternalGroup group = (ExternalGroup) symbolTable.get(unit.getName());
+			ExternalGroup group = (ExternalGroup) lookup(QualifiedName.keyOf(unit.getName()));
 			group.register(unit);
 		}
 	}
@@ -104,10 +142,9 @@ public class SymbolTable {
 	 * @return
 	 */
 	public boolean contains(QualifiedName name) {
-		Name unit = name.getUnit();
 		// Get information associated with this unit
-		SymbolTable.Group group = symbolTable.get(unit);
-		return group != null && group.isValid(name.getName());
+		SymbolTable.Group group = lookup(name.getUnitKey());
+		return group != null && group.isValid(name.getNameKey());
 	}
 
 	/**
@@ -118,7 +155,7 @@ public class SymbolTable {
 	 */
 	public boolean contains(Name name) {
 		// Get information associated with this unit
-		SymbolTable.Group group = symbolTable.get(name);
+		SymbolTable.Group group = lookup(QualifiedName.keyOf(name));
 		return group != null;
 	}
 
@@ -130,8 +167,8 @@ public class SymbolTable {
 	 * @return
 	 */
 	public boolean isAvailable(QualifiedName name) {
-		SymbolTable.Group group = symbolTable.get(name.getUnit());
-		return group != null && group.isAvailable(name.getName());
+		SymbolTable.Group group = lookup(name.getUnitKey());
+		return group != null && group.isAvailable(name.getNameKey());
 	}
 
 	/**
@@ -141,7 +178,7 @@ public class SymbolTable {
 	 * @return
 	 */
 	public Group getGroup(Name name) {
-		return symbolTable.get(name);
+		return lookup(QualifiedName.keyOf(name));
 	}
 
 	/**
@@ -150,12 +187,12 @@ public class SymbolTable {
 	 * @param name
 	 * @return
 	 */
-	public List<Decl.Named> getRegisteredDeclarations(QualifiedName name) {
-		Group g = symbolTable.get(name.getUnit());
+	public List<Decl.Named<?>> getRegisteredDeclarations(QualifiedName name) {
+		Group g = lookup(name.getUnitKey());
 		if (g != null) {
-			return g.getRegisteredDeclarations(name.getName());
+			return g.getRegisteredDeclarations(name.getNameKey());
 		} else {
-			return Collections.EMPTY_LIST;
+			return Collections.emptyList();
 		}
 	}
 
@@ -165,12 +202,32 @@ public class SymbolTable {
 	 * @param name
 	 * @return
 	 */
-	public List<Decl.Named> getAvailableDeclarations(QualifiedName name) {
-		Group g = symbolTable.get(name.getUnit());
+	public List<Decl.Named<?>> getAvailableDeclarations(QualifiedName name) {
+		Group g = lookup(name.getUnitKey());
+		if (g != null) {
+			return g.getAvailableDeclarations(name.getNameKey());
+		} else {
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Get the available declarations associated with a given symbol which are of
+	 * given kinds (e.g. <code>CALLABLE</code>) and arity (e.g. the number of
+	 * parameters for a callable). This allows those declarations which cannot
+	 * possibly match a given use (e.g. a call site) to be discarded cheaply.
+	 *
+	 * @param name
+	 * @param kinds One or more kinds of declaration.
+	 * @param arity The required arity, or <code>ANY_ARITY</code>.
+	 * @return
+	 */
+	public List<Decl.Named<?>> getAvailableDeclarations(QualifiedName name, int kinds, int arity) {
+		Group g = lookup(name.getUnitKey());
 		if (g != null) {
-			return g.getAvailableDeclarations(name.getName());
+			return g.getAvailableDeclarations(name.getNameKey(), kinds, arity);
 		} else {
-			return Collections.EMPTY_LIST;
+			return Collections.emptyList();
 		}
 	}
 
@@ -182,8 +239,8 @@ public class SymbolTable {
 	 * @param available List of declaration stubs which have now been imported into
 	 *                  the target.
 	 */
-	public void addAvailable(QualifiedName name, List<Decl.Named> available) {
-		ExternalGroup group = (ExternalGroup) symbolTable.get(name.getUnit());
+	public void addAvailable(QualifiedName name, List<Decl.Named<?>> available) {
+		ExternalGroup group = (ExternalGroup) lookup(name.getUnitKey());
 		//
 		for (int i = 0; i != available.size(); ++i) {
 			group.addAvailable(available.get(i));
@@ -208,6 +265,376 @@ public class SymbolTable {
 		consolidations.clear();
 	}
 
+	/**
+	 * Get the group associated with a given unit. Units in the target take
+	 * precedence over any of the same name in a dependency. This is synchronized,
+	 * since names may be resolved against this symbol table concurrently.
+	 *
+	 * @param unit The canonical form of the unit's name.
+	 * @return
+	 */
+	private synchronized Group lookup(String unit) {
+		Group group = symbolTable.get(unit);
+		if (group == null) {
+			for (int i = 0; i != dependencies.size(); ++i) {
+				Snapshot.Unit u = dependencies.get(i).lookup(unit);
+				if (u != null) {
+					group = new ExternalGroup(u);
+					symbolTable.put(unit, group);
+					break;
+				}
+			}
+		}
+		return group;
+	}
+
+	/**
+	 * <p>
+	 * An immutable snapshot of the symbols provided by a set of dependencies (e.g.
+	 * the WyilFiles of a package). Since constructing this is expensive, a single
+	 * snapshot can be shared by all symbol tables resolving names against the same
+	 * dependencies, including those used concurrently. A snapshot only holds
+	 * information about the dependencies themselves, whilst information about
+	 * what has been imported into a given target is held by its symbol table.
+	 * </p>
+	 * <p>
+	 * Dependencies are loaded on demand, when a symbol they might provide is first
+	 * looked up. Thus, dependencies providing nothing used are never read. Whilst
+	 * this means a snapshot is populated lazily, the symbols it provides are fixed
+	 * at the point of construction.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Snapshot {
+		/**
+		 * The coarsest granularity of modification times expected (in
+		 * milliseconds).
+		 */
+		private static final long GRANULARITY = 2000;
+		/**
+		 * The dependencies and manifests this snapshot was constructed from, along
+		 * with their modification times and sizes at that point. Modification times
+		 * alone are not enough to tell whether an entry has changed, since their
+		 * granularity can be coarse (e.g. one second) and a dependency can be
+		 * rebuilt within it. Hence, entries modified within that granularity of this
+		 * snapshot being constructed also have their digests recorded. Otherwise,
+		 * any later modification changes their modification time, and their digest
+		 * is <code>null</code>.
+		 */
+		private final Path.Entry<?>[] entries;
+		private final long[] modified;
+		private final long[] sizes;
+		private final byte[][] digests;
+		/**
+		 * Units loaded so far, indexed by the canonical form of their name.
+		 */
+		private final HashMap<String, Unit> units = new HashMap<>();
+		/**
+		 * Dependencies which have not yet been loaded, indexed by the canonical form
+		 * of the unit name corresponding to their path.
+		 */
+		private final HashMap<String, List<Path.Entry<WyilFile>>> unloaded = new HashMap<>();
+		/**
+		 * Symbol manifests available for dependencies, indexed by path. When a
+		 * dependency has an up-to-date manifest, its units are constructed from that
+		 * and the dependency itself is only read when declarations from it are
+		 * actually required.
+		 */
+		private final HashMap<Path.ID, Path.Entry<SymbolManifest>> manifests = new HashMap<>();
+
+		public Snapshot(List<Path.Entry<WyilFile>> deps, List<Path.Entry<SymbolManifest>> manifests)
+				throws IOException {
+			this.entries = new Path.Entry<?>[deps.size() + manifests.size()];
+			this.modified = new long[entries.length];
+			this.sizes = new long[entries.length];
+			this.digests = new byte[entries.length][];
+			for (int i = 0; i != deps.size(); ++i) {
+				Path.Entry<WyilFile> dep = deps.get(i);
+				unloaded.computeIfAbsent(QualifiedName.keyOf(new Name(dep.id())), n -> new ArrayList<>()).add(dep);
+				entries[i] = dep;
+			}
+			for (int i = 0; i != manifests.size(); ++i) {
+				Path.Entry<SymbolManifest> manifest = manifests.get(i);
+				this.manifests.put(manifest.id(), manifest);
+				entries[deps.size() + i] = manifest;
+			}
+			long now = System.currentTimeMillis();
+			for (int i = 0; i != entries.length; ++i) {
+				modified[i] = entries[i].lastModified();
+				sizes[i] = sizeOf(entries[i]);
+				if (modified[i] <= 0 || modified[i] >= now - GRANULARITY) {
+					digests[i] = digest(entries[i]);
+				}
+			}
+		}
+
+		/**
+		 * Check whether this snapshot is still current for a given set of
+		 * dependencies and manifests. That is, whether it was constructed from
+		 * exactly these, and none have been modified since. An entry whose
+		 * modification time and size are unchanged may still have been modified if
+		 * it was modified shortly before this snapshot was constructed, hence its
+		 * contents are then compared by digest. Observe this reads only those
+		 * entries, and does not decode them.
+		 *
+		 * @param deps
+		 * @param manifests
+		 * @return
+		 * @throws IOException
+		 */
+		public boolean isCurrent(List<Path.Entry<WyilFile>> deps, List<Path.Entry<SymbolManifest>> manifests)
+				throws IOException {
+			if (entries.length != deps.size() + manifests.size()) {
+				return false;
+			}
+			for (int i = 0; i != entries.length; ++i) {
+				Path.Entry<?> entry = i < deps.size() ? deps.get(i) : manifests.get(i - deps.size());
+				if (!entry.id().equals(entries[i].id()) || entry.lastModified() != modified[i]
+						|| sizeOf(entry) != sizes[i]) {
+					return false;
+				}
+			}
+			for (int i = 0; i != entries.length; ++i) {
+				Path.Entry<?> entry = i < deps.size() ? deps.get(i) : manifests.get(i - deps.size());
+				if (digests[i] != null && !Arrays.equals(digest(entry), digests[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Determine the size of a given entry where this is known without reading it
+		 * (i.e. for files), or <code>-1</code> otherwise.
+		 *
+		 * @param entry
+		 * @return
+		 */
+		private static long sizeOf(Path.Entry<?> entry) {
+			if (entry instanceof DirectoryRoot.Entry) {
+				return ((DirectoryRoot.Entry<?>) entry).file().length();
+			} else {
+				return -1;
+			}
+		}
+
+		/**
+		 * Compute a digest of the raw contents of a given entry.
+		 *
+		 * @param entry
+		 * @return
+		 * @throws IOException
+		 */
+		private static byte[] digest(Path.Entry<?> entry) throws IOException {
+			try (InputStream input = entry.inputStream()) {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				byte[] buffer = new byte[8192];
+				for (int n = input.read(buffer); n >= 0; n = input.read(buffer)) {
+					digest.update(buffer, 0, n);
+				}
+				return digest.digest();
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Get the unit of a given name, loading any dependencies which may provide it
+		 * as necessary. Dependencies are expected to be laid out by package, such
+		 * that a unit <code>std::ascii</code> is provided by a dependency at path
+		 * <code>std</code> (or <code>std/ascii</code>, etc). Therefore, only
+		 * dependencies whose path is a prefix of the unit's name are loaded
+		 * initially. If this fails to locate the unit then, as a last resort, all
+		 * remaining dependencies are loaded.
+		 *
+		 * @param name The canonical form of the unit's name.
+		 * @return The unit, or <code>null</code> if no dependency provides it.
+		 */
+		public synchronized Unit lookup(String name) {
+			Unit unit = units.get(name);
+			if (unit == null && !unloaded.isEmpty()) {
+				for (int i = name.indexOf("::"); ; i = name.indexOf("::", i + 2)) {
+					String prefix = i < 0 ? name : name.substring(0, i);
+					List<Path.Entry<WyilFile>> deps = unloaded.remove(prefix);
+					if (deps != null) {
+						deps.forEach(this::load);
+					}
+					if (i < 0) {
+						break;
+					}
+				}
+				unit = units.get(name);
+				if (unit == null) {
+					// Dependency not laid out by package, so load everything.
+					for (List<Path.Entry<WyilFile>> deps : unloaded.values()) {
+						deps.forEach(this::load);
+					}
+					unloaded.clear();
+					unit = units.get(name);
+				}
+			}
+			return unit;
+		}
+
+		/**
+		 * Load a given dependency and register all units it provides. If the
+		 * dependency has an up-to-date manifest, then this is used instead and the
+		 * dependency itself is not read.
+		 *
+		 * @param dep
+		 */
+		private void load(Path.Entry<WyilFile> dep) {
+			try {
+				Path.Entry<SymbolManifest> manifest = manifests.get(dep.id());
+				if (manifest != null && manifest.lastModified() >= dep.lastModified()) {
+					Dependency dependency = new Dependency(dep);
+					for (SymbolManifest.Unit unit : manifest.read().getUnits()) {
+						Name name = unit.toName();
+						units.putIfAbsent(QualifiedName.keyOf(name), new Unit(name, unit, dependency));
+					}
+				} else {
+					for (Decl.Unit unit : dep.read().getModule().getUnits()) {
+						units.putIfAbsent(QualifiedName.keyOf(unit.getName()), new Unit(unit));
+					}
+				}
+			} catch (IOException e) {
+				// Something wierd happened
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * The public symbols provided by a given unit of a dependency.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static final class Unit {
+			private final Name name;
+			/**
+			 * The public declarations of this unit, indexed by the canonical form of
+			 * their name. When constructed from a manifest, the declarations of each
+			 * name are null until they are first required.
+			 */
+			private final HashMap<String, List<Decl.Named<?>>> declarations = new HashMap<>();
+			/**
+			 * The dependency from which the declarations of this unit are yet to be
+			 * read. This is null once they have been read (or if they were available
+			 * from the outset).
+			 */
+			private Dependency dependency;
+
+			private Unit(Decl.Unit unit) {
+				this.name = unit.getName();
+				addDeclarations(unit);
+			}
+
+			private Unit(Name name, SymbolManifest.Unit unit, Dependency dependency) {
+				this.name = name;
+				this.dependency = dependency;
+				for (SymbolManifest.Symbol s : unit.getSymbols()) {
+					// Add public members only
+					if (s.isPublic()) {
+						declarations.put(s.getName(), null);
+					}
+				}
+			}
+
+			public Name getName() {
+				return name;
+			}
+
+			/**
+			 * Check whether this unit provides a given symbol.
+			 *
+			 * @param name
+			 * @return
+			 */
+			public synchronized boolean contains(String name) {
+				return declarations.containsKey(name);
+			}
+
+			/**
+			 * Get the declarations of a given symbol, reading them from the dependency
+			 * if necessary.
+			 *
+			 * @param name
+			 * @return
+			 */
+			public synchronized List<Decl.Named<?>> getDeclarations(String name) {
+				if (dependency != null) {
+					declarations.clear();
+					addDeclarations(dependency.getUnit(this.name));
+					dependency = null;
+				}
+				List<Decl.Named<?>> r = declarations.get(name);
+				return r == null ? Collections.emptyList() : r;
+			}
+
+			private void addDeclarations(Decl.Unit unit) {
+				HashMap<String, ArrayList<Decl.Named<?>>> map = new HashMap<>();
+				for (Decl d : unit.getDeclarations()) {
+					if (d instanceof Decl.Named<?>) {
+						Decl.Named<?> n = (Decl.Named<?>) d;
+						// Add public members only
+						if (isPublic(n)) {
+							map.computeIfAbsent(QualifiedName.keyOf(n.getName()), k -> new ArrayList<>()).add(n);
+						}
+					}
+				}
+				for (Map.Entry<String, ArrayList<Decl.Named<?>>> e : map.entrySet()) {
+					declarations.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+				}
+			}
+
+			/**
+			 * Check whether named declaration is public or not.
+			 *
+			 * @param decl
+			 * @return
+			 */
+			private static boolean isPublic(Decl.Named<?> decl) {
+				return decl.getModifiers().match(Modifier.Public.class) != null;
+			}
+		}
+	}
+
+	/**
+	 * A dependency which is read on demand, after the units it provides have been
+	 * constructed from its manifest. This may be shared between units and, hence,
+	 * is read at most once.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Dependency {
+		private final Path.Entry<WyilFile> entry;
+		private WyilFile file;
+
+		public Dependency(Path.Entry<WyilFile> entry) {
+			this.entry = entry;
+		}
+
+		public synchronized Decl.Unit getUnit(Name name) {
+			try {
+				if (file == null) {
+					file = entry.read();
+				}
+				for (Decl.Unit unit : file.getModule().getUnits()) {
+					if (unit.getName().equals(name)) {
+						return unit;
+					}
+				}
+				throw new IllegalArgumentException("unit " + name + " missing from " + entry.id());
+			} catch (IOException e) {
+				// Something wierd happened
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	/**
 	 * Represents a group of symbols which are related through their enclosing
 	 * compilation unit.
@@ -222,7 +649,7 @@ public class SymbolTable {
 		 * @param name
 		 * @return
 		 */
-		public boolean isValid(Identifier name);
+		public boolean isValid(String name);
 
 		/**
 		 * Check whether a given symbol as a declaration available within the target.
@@ -232,7 +659,7 @@ public class SymbolTable {
 		 * @param name
 		 * @return
 		 */
-		public boolean isAvailable(Identifier name);
+		public boolean isAvailable(String name);
 
 		/**
 		 * Get the concrete declarations associated with a given symbol
@@ -240,7 +667,7 @@ public class SymbolTable {
 		 * @param name
 		 * @return
 		 */
-		public List<Decl.Named> getRegisteredDeclarations(Identifier name);
+		public List<Decl.Named<?>> getRegisteredDeclarations(String name);
 
 		/**
 		 * Get the available declarations associated with a given symbol
@@ -248,7 +675,18 @@ public class SymbolTable {
 		 * @param name
 		 * @return
 		 */
-		public List<Decl.Named> getAvailableDeclarations(Identifier name);
+		public List<Decl.Named<?>> getAvailableDeclarations(String name);
+
+		/**
+		 * Get the available declarations associated with a given symbol of given
+		 * kinds and arity.
+		 *
+		 * @param name
+		 * @param kinds
+		 * @param arity
+		 * @return
+		 */
+		public List<Decl.Named<?>> getAvailableDeclarations(String name, int kinds, int arity);
 	}
 
 	private static abstract class AbstractGroup<T extends Entry> implements Group {
@@ -256,10 +694,10 @@ public class SymbolTable {
 		/**
 		 * The list of known symbols associated with this group.
 		 */
-		protected final HashMap<Identifier, T> entries = new HashMap<>();
+		protected final HashMap<String, T> entries = new HashMap<>();
 
 		@Override
-		public boolean isAvailable(Identifier name) {
+		public boolean isAvailable(String name) {
 			if(entries.containsKey(name)) {
 				return entries.get(name).isAvailable();
 			} else {
@@ -268,25 +706,35 @@ public class SymbolTable {
 		}
 
 		@Override
-		public boolean isValid(Identifier name) {
+		public boolean isValid(String name) {
 			return entries.containsKey(name);
 		}
 
 		@Override
-		public List<Named> getRegisteredDeclarations(Identifier name) {
+		public List<Named<?>> getRegisteredDeclarations(String name) {
 			if(entries.containsKey(name)) {
 				return entries.get(name).getDeclarations();
 			} else {
-				return Collections.EMPTY_LIST;
+				return Collections.emptyList();
 			}
 		}
 
 		@Override
-		public List<Named> getAvailableDeclarations(Identifier name) {
+		public List<Named<?>> getAvailableDeclarations(String name) {
 			if (entries.containsKey(name)) {
 				return entries.get(name).getAvailable();
 			} else {
-				return Collections.EMPTY_LIST;
+				return Collections.emptyList();
+			}
+		}
+
+		@Override
+		public List<Named<?>> getAvailableDeclarations(String name, int kinds, int arity) {
+			T entry = entries.get(name);
+			if (entry != null) {
+				return entry.getAvailable(kinds, arity);
+			} else {
+				return Collections.emptyList();
 			}
 		}
 	}
@@ -307,9 +755,9 @@ public class SymbolTable {
 		 */
 		public LocalGroup(Decl.Unit unit) {
 			for(Decl d : unit.getDeclarations()) {
-				if(d instanceof Decl.Named) {
-					Decl.Named n = (Decl.Named) d;
-					get(n.getName()).addAvailable(n);
+				if(d instanceof Decl.Named<?>) {
+					Decl.Named<?> n = (Decl.Named<?>) d;
+					get(QualifiedName.keyOf(n.getName())).addAvailable(n);
 				}
 			}
 		}
@@ -317,7 +765,7 @@ public class SymbolTable {
 		// FIXME: we will need some methods for handling adding / removing declarations
 		// as a result of incremental updates to the target.
 
-		private LocalEntry get(Identifier name) {
+		private LocalEntry get(String name) {
 			SymbolTable.LocalEntry r = entries.get(name);
 			//
 			if (r == null) {
@@ -330,9 +778,9 @@ public class SymbolTable {
 
 	public class ExternalGroup extends AbstractGroup<ExternalEntry> {
 		/**
-		 * The external declaration that this group is associated with.
+		 * The external unit this group is associated with.
 		 */
-		private final Decl.Unit external;
+		private final Snapshot.Unit unit;
 		/**
 		 * The available declaration representing this group in the target. This may be
 		 * null if the unit has not yet been imported.
@@ -340,22 +788,22 @@ public class SymbolTable {
 		private Decl.Unit available;
 
 		/**
-		 * Construct a non-local group to represent a given unit in the target.
+		 * Construct a non-local group to represent a given unit of a dependency.
 		 *
 		 * @param unit
 		 */
-		public ExternalGroup(Decl.Unit unit) {
-			this.external = unit;
-			//
-			for(Decl d : unit.getDeclarations()) {
-				if(d instanceof Decl.Named) {
-					Decl.Named n = (Decl.Named) d;
-					// Add public members only
-					if(isPublic(n)) {
-						get(n.getName()).addExternal(n);
-					}
-				}
-			}
+		public ExternalGroup(Snapshot.Unit unit) {
+			this.unit = unit;
+		}
+
+		@Override
+		public boolean isValid(String name) {
+			return unit.contains(name);
+		}
+
+		@Override
+		public List<Named<?>> getRegisteredDeclarations(String name) {
+			return unit.getDeclarations(name);
 		}
 
 		/**
@@ -368,14 +816,14 @@ public class SymbolTable {
 			this.available = available;
 			// Register as available all internal symbols
 			for (Decl d : available.getDeclarations()) {
-				if (d instanceof Decl.Named) {
-					addAvailable((Decl.Named) d);
+				if (d instanceof Decl.Named<?>) {
+					addAvailable((Decl.Named<?>) d);
 				}
 			}
 		}
 
-		public void addAvailable(Decl.Named available) {
-			get(available.getName()).addAvailable(available);
+		public void addAvailable(Decl.Named<?> available) {
+			get(QualifiedName.keyOf(available.getName())).addAvailable(available);
 			if(this.available == null) {
 				consolidations.add(this);
 			}
@@ -387,37 +835,27 @@ public class SymbolTable {
 		 */
 		public Decl.Unit consolidate() {
 			Tuple<Decl> declarations = new Tuple<>(getAllAvailable());
-			available = new Decl.Unit(external.getName(), declarations);
+			available = new Decl.Unit(unit.getName(), declarations);
 			return available;
 		}
 
 		private List<Decl> getAllAvailable() {
 			ArrayList<Decl> available = new ArrayList<>();
-			for(Map.Entry<Identifier, ExternalEntry> e : entries.entrySet()) {
+			for(Map.Entry<String, ExternalEntry> e : entries.entrySet()) {
 				available.addAll(e.getValue().getAvailable());
 			}
 			return available;
 		}
 
-		private Entry get(Identifier name) {
+		private Entry get(String name) {
 			SymbolTable.ExternalEntry r = entries.get(name);
 			//
 			if (r == null) {
-				r = new SymbolTable.ExternalEntry();
+				r = new SymbolTable.ExternalEntry(unit, name);
 				entries.put(name, r);
 			}
 			return r;
 		}
-
-		/**
-		 * Check whether named declaration is public or not.
-		 *
-		 * @param decl
-		 * @return
-		 */
-		private boolean isPublic(Decl.Named decl) {
-			return decl.getModifiers().match(Modifier.Public.class) != null;
-		}
 	}
 
 
@@ -443,28 +881,31 @@ public class SymbolTable {
 		 *
 		 * @return
 		 */
-		public List<Decl.Named> getAvailable();
+		public List<Decl.Named<?>> getAvailable();
 
 		/**
-		 * Get the actual declarations for this symbol.
+		 * Get the available declarations for this symbol which are of given kinds and
+		 * arity.
 		 *
+		 * @param kinds
+		 * @param arity
 		 * @return
 		 */
-		public List<Decl.Named> getDeclarations();
+		public List<Decl.Named<?>> getAvailable(int kinds, int arity);
 
 		/**
-		 * Add an available declaration for this symbol.
+		 * Get the actual declarations for this symbol.
 		 *
-		 * @param decl
+		 * @return
 		 */
-		public void addAvailable(Decl.Named decl);
+		public List<Decl.Named<?>> getDeclarations();
 
 		/**
-		 * Add an external declaration for this symbol.
+		 * Add an available declaration for this symbol.
 		 *
 		 * @param decl
 		 */
-		public void addExternal(Decl.Named decl);
+		public void addAvailable(Decl.Named<?> decl);
 	}
 
 	/**
@@ -478,7 +919,12 @@ public class SymbolTable {
 		/**
 		 * Identifies the complete set of declarations associated with this symbol.
 		 */
-		private final ArrayList<Decl.Named> declarations;
+		private final ArrayList<Decl.Named<?>> declarations;
+		/**
+		 * Indexes the declarations of this symbol by kind and arity. This is
+		 * replaced whenever a declaration is added.
+		 */
+		private Overloads overloads = Overloads.EMPTY;
 
 		public LocalEntry() {
 			this.declarations = new ArrayList<>();
@@ -490,23 +936,24 @@ public class SymbolTable {
 		}
 
 		@Override
-		public List<Decl.Named> getAvailable() {
+		public List<Decl.Named<?>> getAvailable() {
 			return declarations;
 		}
 
 		@Override
-		public List<Decl.Named> getDeclarations() {
-			return declarations;
+		public List<Decl.Named<?>> getAvailable(int kinds, int arity) {
+			return overloads.select(kinds, arity);
 		}
 
 		@Override
-		public void addAvailable(Named decl) {
-			declarations.add(decl);
+		public List<Decl.Named<?>> getDeclarations() {
+			return declarations;
 		}
 
 		@Override
-		public void addExternal(Named decl) {
-			throw new UnsupportedOperationException();
+		public void addAvailable(Named<?> decl) {
+			declarations.add(decl);
+			overloads = new Overloads(declarations);
 		}
 	}
 
@@ -521,12 +968,24 @@ public class SymbolTable {
 		/**
 		 * Identifies available declarations for this symbol
 		 */
-		private final ArrayList<Decl.Named> availables = new ArrayList<>();
+		private final ArrayList<Decl.Named<?>> availables = new ArrayList<>();
+		/**
+		 * Indexes the available declarations of this symbol by kind and arity. This
+		 * is replaced whenever a declaration is made available.
+		 */
+		private Overloads overloads = Overloads.EMPTY;
 
 		/**
-		 * Identifies external declarations for this symbol
+		 * The external unit and name of this symbol. Its external declarations are
+		 * only obtained from the unit when required.
 		 */
-		private final ArrayList<Decl.Named> externals = new ArrayList<>();
+		private final Snapshot.Unit unit;
+		private final String name;
+
+		public ExternalEntry(Snapshot.Unit unit, String name) {
+			this.unit = unit;
+			this.name = name;
+		}
 
 		@Override
 		public boolean isAvailable() {
@@ -534,23 +993,121 @@ public class SymbolTable {
 		}
 
 		@Override
-		public List<Named> getAvailable() {
+		public List<Named<?>> getAvailable() {
 			return availables;
 		}
 
 		@Override
-		public List<Decl.Named> getDeclarations() {
-			return externals;
+		public List<Decl.Named<?>> getAvailable(int kinds, int arity) {
+			return overloads.select(kinds, arity);
 		}
 
 		@Override
-		public void addAvailable(Named decl) {
-			availables.add(decl);
+		public List<Decl.Named<?>> getDeclarations() {
+			return unit.getDeclarations(name);
 		}
 
 		@Override
-		public void addExternal(Named decl) {
-			externals.add(decl);
+		public void addAvailable(Named<?> decl) {
+			availables.add(decl);
+			overloads = new Overloads(availables);
+		}
+	}
+
+	/**
+	 * Indexes a list of overloaded declarations by kind and arity. The kind and
+	 * arity of each declaration are determined once, on construction, such that
+	 * selections need not examine the declarations themselves. This is immutable
+	 * and, hence, can be shared safely between threads (e.g. when resolving units
+	 * concurrently). When the list of declarations grows (e.g. as declarations are
+	 * imported) a new index is constructed. Selected declarations retain their
+	 * original order.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Overloads {
+		private static final Overloads EMPTY = new Overloads(Collections.emptyList());
+
+		private final List<Decl.Named<?>> declarations;
+		private final int[] kinds;
+		private final int[] arities;
+
+		public Overloads(List<Decl.Named<?>> declarations) {
+			int n = declarations.size();
+			this.declarations = Collections.unmodifiableList(new ArrayList<>(declarations));
+			this.kinds = new int[n];
+			this.arities = new int[n];
+			for (int i = 0; i != n; ++i) {
+				Decl.Named<?> d = declarations.get(i);
+				kinds[i] = kindOf(d);
+				arities[i] = arityOf(d);
+			}
+		}
+
+		public List<Decl.Named<?>> select(int kinds, int arity) {
+			int count = 0;
+			int last = -1;
+			for (int i = 0; i != this.kinds.length; ++i) {
+				if (matches(i, kinds, arity)) {
+					count = count + 1;
+					last = i;
+				}
+			}
+			if (count == 0) {
+				return Collections.emptyList();
+			} else if (count == this.kinds.length) {
+				return declarations;
+			} else if (count == 1) {
+				return Collections.singletonList(declarations.get(last));
+			} else {
+				ArrayList<Decl.Named<?>> matches = new ArrayList<>(count);
+				for (int i = 0; i <= last; ++i) {
+					if (matches(i, kinds, arity)) {
+						matches.add(declarations.get(i));
+					}
+				}
+				return Collections.unmodifiableList(matches);
+			}
+		}
+
+		private boolean matches(int index, int kinds, int arity) {
+			return (this.kinds[index] & kinds) != 0 && (arity == ANY_ARITY || arities[index] == arity);
+		}
+
+		private static int kindOf(Decl.Named<?> decl) {
+			switch (decl.getOpcode()) {
+			case WyilFile.DECL_function:
+				return FUNCTION;
+			case WyilFile.DECL_method:
+				return METHOD;
+			case WyilFile.DECL_property:
+				return PROPERTY;
+			case WyilFile.DECL_type:
+			case WyilFile.DECL_rectype:
+				return TYPE;
+			case WyilFile.DECL_staticvar:
+				return STATIC;
+			default:
+				return 0;
+			}
+		}
+
+		/**
+		 * Determine the arity of a declaration. For callables, this is the number of
+		 * parameters, whilst for types it is the number of template parameters.
+		 *
+		 * @param decl
+		 * @return
+		 */
+		private static int arityOf(Decl.Named<?> decl) {
+			if (decl instanceof Decl.Callable) {
+				return ((Decl.Callable) decl).getParameters().size();
+			} else if (decl instanceof Decl.Type) {
+				return decl.getTemplate().size();
+			} else {
+				return 0;
+			}
 		}
 	}
 }
@@ -149,6 +149,7 @@ public class VerificationConditionGenerator {
 		for (WyilFile.Decl.Unit unit : wyilFile.getModule().getExterns()) {
 			translate(unit);
 		}
+		meter.done();
 		return wyalFile;
 	}
 
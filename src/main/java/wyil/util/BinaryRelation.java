@@ -13,8 +13,10 @@
 // limitations under the License.
 package wyil.util;
 
-import java.util.HashSet;
+import java.util.Arrays;
 
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
 import wycc.util.Pair;
 
 /**
@@ -80,4 +82,173 @@ public interface BinaryRelation<T> {
 			}
 		}
 	}
+
+	/**
+	 * <p>
+	 * An implementation of BinaryRelation for syntactic items which avoids
+	 * allocating on every operation. Pairs of items allocated in the same heap are
+	 * identified by their indices, which are packed into a single
+	 * <code>long</code> and stored in an open addressing table. Other pairs (e.g.
+	 * involving items not yet allocated, such as those obtained by substituting
+	 * template arguments) are stored in a HashSet as before and, hence, are
+	 * related by structural equality. Pairs of items in the heap are also related
+	 * to structurally equal pairs stored this way. However, unlike the HashSet
+	 * implementation, two pairs of items in the heap are never related by virtue
+	 * of being structurally equal. This is sufficient where the relation is used to
+	 * detect cycles (e.g. through recursive types), since these must either go
+	 * through the same items in the heap or revisit structurally equal items
+	 * outside it.
+	 * </p>
+	 * <p>
+	 * A relation can be reset, such that it can be reused rather than allocating a
+	 * new one.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <T>
+	 */
+	public static class IndexedHashSet<T extends SyntacticItem> implements BinaryRelation<T> {
+		private static final long EMPTY = -1;
+		private static final long DELETED = -2;
+		/**
+		 * The heap whose items are stored in the table. This is determined by the
+		 * first pair of items stored.
+		 */
+		private SyntacticHeap heap;
+		private long[] table;
+		/**
+		 * The number of slots which are occupied, including those which have been
+		 * deleted.
+		 */
+		private int used;
+		/**
+		 * Pairs which cannot be stored in the table. This is constructed on demand.
+		 */
+		private HashSet<T> others;
+
+		public IndexedHashSet() {
+			this.table = new long[16];
+			Arrays.fill(table, EMPTY);
+		}
+
+		@Override
+		public boolean get(T lhs, T rhs) {
+			long key = key(lhs, rhs);
+			if (key < 0) {
+				return others != null && others.get(lhs, rhs);
+			} else if (table[find(table, key)] == key) {
+				return true;
+			} else {
+				// Fall back to structural equality with pairs outside the heap
+				return others != null && others.get(lhs, rhs);
+			}
+		}
+
+		@Override
+		public void set(T lhs, T rhs, boolean value) {
+			long key = key(lhs, rhs);
+			if (key < 0) {
+				if (others == null) {
+					others = new HashSet<>();
+				}
+				others.set(lhs, rhs, value);
+			} else if (value) {
+				int i = find(table, key);
+				if (table[i] != key) {
+					// NOTE: probing always ends at an empty slot
+					table[i] = key;
+					if (++used > (table.length >> 1)) {
+						resize();
+					}
+				}
+			} else {
+				int i = find(table, key);
+				if (table[i] == key) {
+					table[i] = DELETED;
+				}
+			}
+		}
+
+		/**
+		 * Remove all relationships, such that this relation can be reused.
+		 */
+		public void reset() {
+			if (used > 0) {
+				Arrays.fill(table, EMPTY);
+				used = 0;
+			}
+			heap = null;
+			others = null;
+		}
+
+		/**
+		 * Determine the key for a given pair of items, or -1 if they cannot be stored
+		 * in the table.
+		 *
+		 * @param lhs
+		 * @param rhs
+		 * @return
+		 */
+		private long key(T lhs, T rhs) {
+			SyntacticHeap h = lhs.getHeap();
+			if (h == null || rhs.getHeap() != h) {
+				return -1;
+			} else if (heap == null) {
+				heap = h;
+			} else if (heap != h) {
+				return -1;
+			}
+			return ((long) lhs.getIndex() << 32) | rhs.getIndex();
+		}
+
+		/**
+		 * Find the slot for a given key, which is either the slot containing it or
+		 * the empty slot where it should be placed. Deleted slots are skipped.
+		 *
+		 * @param table
+		 * @param key
+		 * @return
+		 */
+		private static int find(long[] table, long key) {
+			int mask = table.length - 1;
+			int i = hash(key) & mask;
+			while (table[i] != EMPTY && table[i] != key) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		/**
+		 * Rebuild the table, discarding any deleted slots. The table is enlarged if
+		 * this would not make enough room.
+		 */
+		private void resize() {
+			int live = 0;
+			for (int i = 0; i != table.length; ++i) {
+				if (table[i] >= 0) {
+					live++;
+				}
+			}
+			int length = table.length;
+			while (live >= (length >> 2)) {
+				length <<= 1;
+			}
+			long[] ntable = new long[length];
+			Arrays.fill(ntable, EMPTY);
+			for (int i = 0; i != table.length; ++i) {
+				long key = table[i];
+				if (key >= 0) {
+					ntable[find(ntable, key)] = key;
+				}
+			}
+			table = ntable;
+			used = live;
+		}
+	}
 }
@@ -34,9 +34,11 @@ import static wyil.lang.WyilFile.TYPE_void;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -161,14 +163,82 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 	 */
 	public final IncrementalSubtypingEnvironment.AbstractConstraintsSet BOTTOM_CONSTRAINT_SET = new AbstractConstraintsSet(BOTTOM);
 
+	/**
+	 * The default number of outcomes retained by a subtype cache.
+	 */
+	public static final int SUBTYPE_CACHE_SIZE = 10000;
+
 	protected final Map<String, String[]> withins;
 
+	/**
+	 * Remembers the outcomes of subtype queries. This is shared with every
+	 * environment derived from this one (e.g. through
+	 * <code>declareWithin()</code>) and, typically, with every environment used
+	 * during a given build. This is <code>null</code> when outcomes are not
+	 * remembered.
+	 */
+	protected final SubtypeCache results;
+
+	/**
+	 * A canonical representation of the withins relation, which is used when
+	 * caching subtype queries. This is computed on demand.
+	 */
+	private String withinsKey;
+
 	public IncrementalSubtypingEnvironment() {
-		this.withins = new HashMap<>();
+		this(new HashMap<>(), null);
 	}
 
 	public IncrementalSubtypingEnvironment(Map<String, String[]> withins) {
+		this(withins, null);
+	}
+
+	public IncrementalSubtypingEnvironment(Map<String, String[]> withins, SubtypeCache results) {
 		this.withins = new HashMap<>(withins);
+		this.results = results;
+	}
+
+	/**
+	 * Get the cache used to remember the outcomes of subtype queries, or
+	 * <code>null</code> if outcomes are not remembered.
+	 *
+	 * @return
+	 */
+	public SubtypeCache getSubtypeCache() {
+		return results;
+	}
+
+	/**
+	 * Expand a given nominal type into its concrete type. Since lattice operations
+	 * repeatedly expand the same nominals (e.g. when refining a variable whose type
+	 * is a union of nominals), expansions are remembered in the subtype cache.
+	 *
+	 * @param type
+	 * @return
+	 */
+	protected Type concreteTypeOf(Type.Nominal type) {
+		return results == null ? type.getConcreteType() : results.getConcreteType(type);
+	}
+
+	/**
+	 * Check whether two types are structurally equal. Since types which are not
+	 * equivalent have different canonical representatives, repeatedly comparing
+	 * them does not require traversing them. However, equivalent types must still
+	 * be compared structurally, since canonical representatives ignore the order
+	 * of union members whilst this is observable (e.g. in error messages).
+	 *
+	 * @param t1
+	 * @param t2
+	 * @return
+	 */
+	protected boolean isEquivalent(Type t1, Type t2) {
+		if (t1 == t2) {
+			return true;
+		} else if (results != null && !results.getTypes().isEquivalent(t1, t2)) {
+			return false;
+		} else {
+			return t1.equals(t2);
+		}
 	}
 
 	@Override
@@ -179,7 +249,73 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 
 	@Override
 	public Subtyping.Constraints isSubtype(Type t1, Type t2) {
-		return isSubtype(t1, t2, null);
+		if (results == null) {
+			return isUncachedSubtype(t1, t2);
+		}
+		SubtypeCache.Key key = results.key(getClass(), getWithinsKey(), t1, t2);
+		Boolean outcome = results.get(key);
+		if (outcome != null) {
+			return outcome ? TOP : BOTTOM;
+		}
+		Subtyping.Constraints constraints = isUncachedSubtype(t1, t2);
+		// NOTE: only outcomes which are independent of this environment are
+		// remembered, since other constraints refer to it.
+		if (constraints == TOP) {
+			results.put(key, Boolean.TRUE);
+		} else if (constraints == BOTTOM) {
+			results.put(key, Boolean.FALSE);
+		}
+		return constraints;
+	}
+
+	private Subtyping.Constraints isUncachedSubtype(Type t1, Type t2) {
+		BinaryRelation.IndexedHashSet<Type> relation = acquireRelation();
+		try {
+			return isSubtype(t1, t2, relation);
+		} finally {
+			releaseRelation(relation);
+		}
+	}
+
+	/**
+	 * Relations used to detect cycles during subtype queries (and subtraction),
+	 * which are reused between queries on the same thread. This is
+	 * <code>null</code> when none is available, such as when a query is already in
+	 * progress.
+	 */
+	private static final ThreadLocal<BinaryRelation.IndexedHashSet<Type>> RELATIONS = new ThreadLocal<>();
+
+	private static BinaryRelation.IndexedHashSet<Type> acquireRelation() {
+		BinaryRelation.IndexedHashSet<Type> relation = RELATIONS.get();
+		if (relation == null) {
+			return new BinaryRelation.IndexedHashSet<>();
+		} else {
+			RELATIONS.set(null);
+			return relation;
+		}
+	}
+
+	private static void releaseRelation(BinaryRelation.IndexedHashSet<Type> relation) {
+		relation.reset();
+		RELATIONS.set(relation);
+	}
+
+	/**
+	 * Get a canonical representation of the withins relation. This must be
+	 * identical for any two environments with the same relation.
+	 *
+	 * @return
+	 */
+	private String getWithinsKey() {
+		if (withinsKey == null) {
+			ArrayList<String> entries = new ArrayList<>();
+			for (Map.Entry<String, String[]> w : withins.entrySet()) {
+				entries.add(w.getKey() + "<" + Arrays.toString(w.getValue()));
+			}
+			Collections.sort(entries);
+			withinsKey = entries.toString();
+		}
+		return withinsKey;
 	}
 
 	@Override
@@ -205,7 +341,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 
 	@Override
 	public IncrementalSubtypingEnvironment declareWithin(String inner, String... outers) {
-		IncrementalSubtypingEnvironment nenv = new IncrementalSubtypingEnvironment(withins);
+		IncrementalSubtypingEnvironment nenv = new IncrementalSubtypingEnvironment(withins, results);
 		nenv.withins.put(inner, outers);
 		return nenv;
 	}
@@ -336,7 +472,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 			return TOP;
 		} else if (cache == null) {
 			// Lazily construct cache.
-			cache = new BinaryRelation.HashSet<>();
+			cache = new BinaryRelation.IndexedHashSet<>();
 		}
 		cache.set(t1, t2, true);
 		// Normalise opcodes to align based on class
@@ -1244,7 +1380,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		// Santise input for simplicity
 		if(n < m) {
 			return greatestLowerBound(t2,t1);
-		} else if(!subset(t2,t2)) {
+		} else if(!subset(t2,t1)) {
 			return Type.Void;
 		} else if (!t2.isOpen() && n != m) {
 			return Type.Void;
@@ -1344,9 +1480,9 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		// NOTE: this could be made more efficient. For example, by sorting bounds.
 		Type t = greatestLowerBound(t1, (Type) t2);
 		// FIXME: what an ugly solution :(
-		if (t.equals(t1)) {
+		if (isEquivalent(t, t1)) {
 			return t1;
-		} else if (t.equals(t2)) {
+		} else if (isEquivalent(t, t2)) {
 			return t2;
 		} else {
 			return t;
@@ -1365,9 +1501,9 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		} else if (isSatisfiableSubtype(t1, t2)) {
 			return t2;
 		} else if (d1_alias) {
-			return greatestLowerBound(t1.getConcreteType(), t2);
+			return expandGreatestLowerBound(t1, t2, concreteTypeOf(t1), t2);
 		} else if (d2_alias) {
-			return greatestLowerBound(t1, t2.getConcreteType());
+			return expandGreatestLowerBound(t1, t2, t1, concreteTypeOf(t2));
 		} else {
 			return Type.Void;
 		}
@@ -1414,7 +1550,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		if(isSatisfiableSubtype(t2, t1)) {
 			return t1;
 		} else if (alias) {
-			return greatestLowerBound(t1.getConcreteType(), t2);
+			return expandGreatestLowerBound(t1, t2, concreteTypeOf(t1), t2);
 		} else {
 			return Type.Void;
 		}
@@ -1429,7 +1565,39 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		if (isSatisfiableSubtype(t1, t2)) {
 			return t2;
 		} else if (alias) {
-			return greatestLowerBound(t1, t2.getConcreteType());
+			return expandGreatestLowerBound(t1, t2, t1, concreteTypeOf(t2));
+		} else {
+			return Type.Void;
+		}
+	}
+
+	/**
+	 * Determine the greatest lower bound of two types from that of their
+	 * expansions, where at least one is a nominal type expanded into its concrete
+	 * type. Since recursive types can be expanded indefinitely, a pair already
+	 * being expanded is not expanded again. Instead, <code>void</code> is returned
+	 * which is always a lower bound, though not necessarily the greatest. This
+	 * mirrors subtraction, and is exact when the recursion must terminate at a
+	 * non-recursive case for values to exist. For example, consider
+	 * <code>type List is null|{List next, int data}</code> and
+	 * <code>type Tree is null|{Tree next, int[] data}</code>. Then, the greatest
+	 * lower bound of their <code>next</code> fields requires that of
+	 * <code>List</code> and <code>Tree</code> themselves.
+	 *
+	 * @param t1 The first type
+	 * @param t2 The second type
+	 * @param e1 The expansion of the first type (or the first type)
+	 * @param e2 The expansion of the second type (or the second type)
+	 * @return
+	 */
+	private Type expandGreatestLowerBound(Type t1, Type t2, Type e1, Type e2) {
+		Expansions expansions = GLB_EXPANSIONS.get();
+		if (expansions.enter(t1, t2)) {
+			try {
+				return greatestLowerBound(e1, e2);
+			} finally {
+				expansions.exit(t1, t2);
+			}
 		} else {
 			return Type.Void;
 		}
@@ -1645,9 +1813,9 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		}
 		// NOTE: this is needed to adhere to the contract for lub
 		Type r = Type.Union.create(types);
-		if (r.equals(t1)) {
+		if (isEquivalent(r, t1)) {
 			return t1;
-		} else if (r.equals(t2)) {
+		} else if (isEquivalent(r, t2)) {
 			return t2;
 		} else {
 			//
@@ -1667,9 +1835,9 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		} else if (isSatisfiableSubtype(t2, t1)) {
 			return t2;
 		} else if (d1_alias) {
-			return leastUpperBound(t1.getConcreteType(), t2);
+			return expandLeastUpperBound(t1, t2, concreteTypeOf(t1), t2);
 		} else if (d2_alias) {
-			return leastUpperBound(t1, t2.getConcreteType());
+			return expandLeastUpperBound(t1, t2, t1, concreteTypeOf(t2));
 		} else {
 			return new Type.Union(t1, t2);
 		}
@@ -1683,7 +1851,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		if (isSatisfiableSubtype(t2, t1)) {
 			return t2;
 		}  else if (d1_alias) {
-			return leastUpperBound(t1.getConcreteType(), t2);
+			return expandLeastUpperBound(t1, t2, concreteTypeOf(t1), t2);
 		} else {
 			return new Type.Union(t1, t2);
 		}
@@ -1707,7 +1875,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		if (isSatisfiableSubtype(t1, t2)) {
 			return t2;
 		}  else if (d2_alias) {
-			return leastUpperBound(t1,t2.getConcreteType());
+			return expandLeastUpperBound(t1, t2, t1, concreteTypeOf(t2));
 		} else {
 			return new Type.Union(t1, t2);
 		}
@@ -1724,6 +1892,76 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		}
 	}
 
+	/**
+	 * Determine the least upper bound of two types from that of their expansions,
+	 * where at least one is a nominal type expanded into its concrete type. As for
+	 * the greatest lower bound, a pair already being expanded is not expanded
+	 * again. Instead, the union of both types is returned which is always an upper
+	 * bound, though not necessarily the least.
+	 *
+	 * @param t1 The first type
+	 * @param t2 The second type
+	 * @param e1 The expansion of the first type (or the first type)
+	 * @param e2 The expansion of the second type (or the second type)
+	 * @return
+	 */
+	private Type expandLeastUpperBound(Type t1, Type t2, Type e1, Type e2) {
+		Expansions expansions = LUB_EXPANSIONS.get();
+		if (expansions.enter(t1, t2)) {
+			try {
+				return leastUpperBound(e1, e2);
+			} finally {
+				expansions.exit(t1, t2);
+			}
+		} else {
+			return new Type.Union(t1, t2);
+		}
+	}
+
+	/**
+	 * Pairs of types currently being expanded when computing greatest lower bounds
+	 * and least upper bounds (respectively) on the current thread.
+	 */
+	private static final ThreadLocal<Expansions> GLB_EXPANSIONS = ThreadLocal.withInitial(Expansions::new);
+	private static final ThreadLocal<Expansions> LUB_EXPANSIONS = ThreadLocal.withInitial(Expansions::new);
+
+	/**
+	 * Records the pairs of types currently being expanded. This is reset once the
+	 * outermost expansion completes, such that nothing is retained between
+	 * operations.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Expansions {
+		private final BinaryRelation.IndexedHashSet<Type> pairs = new BinaryRelation.IndexedHashSet<>();
+		private int depth;
+
+		/**
+		 * Begin expanding a given pair, unless it is already being expanded.
+		 *
+		 * @param t1
+		 * @param t2
+		 * @return True if the pair should be expanded
+		 */
+		public boolean enter(Type t1, Type t2) {
+			if (pairs.get(t1, t2)) {
+				return false;
+			} else {
+				pairs.set(t1, t2, true);
+				depth++;
+				return true;
+			}
+		}
+
+		public void exit(Type t1, Type t2) {
+			pairs.set(t1, t2, false);
+			if (--depth == 0) {
+				pairs.reset();
+			}
+		}
+	}
+
 	// ===============================================================================
 	// Type Subtraction
 	// ===============================================================================
@@ -1737,7 +1975,12 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 	 */
 	@Override
 	public Type subtract(Type t1, Type t2) {
-		return subtract(t1, t2, new BinaryRelation.HashSet<>());
+		BinaryRelation.IndexedHashSet<Type> relation = acquireRelation();
+		try {
+			return subtract(t1, t2, relation);
+		} finally {
+			releaseRelation(relation);
+		}
 	}
 
 	private Type subtract(Type t1, Type t2, BinaryRelation<Type> cache) {
@@ -1747,14 +1990,14 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 			return Type.Void;
 		} else if (cache == null) {
 			// Lazily construct cache.
-			cache = new BinaryRelation.HashSet<>();
+			cache = new BinaryRelation.IndexedHashSet<>();
 		}
 		cache.set(t1, t2, true);
 		//
 		int t1_opcode = t1.getOpcode();
 		int t2_opcode = t2.getOpcode();
 		//
-		if (t1.equals(t2)) {
+		if (isEquivalent(t1, t2)) {
 			// Easy case
 			return Type.Void;
 		} else if (t1_opcode == t2_opcode) {
@@ -1837,7 +2080,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		// NOTE: the following invariant check is essentially something akin to
 		// determining whether or not this is a union.
 		if (d1.getInvariant().size() == 0) {
-			return subtract(t1.getConcreteType(), (Type) t2, cache);
+			return subtract(concreteTypeOf(t1), (Type) t2, cache);
 		} else {
 			return t1;
 		}
@@ -1848,7 +2091,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		// NOTE: the following invariant check is essentially something akin to
 		// determining whether or not this is a union.
 		if (d2.getInvariant().size() == 0) {
-			return subtract(t1, t2.getConcreteType(), cache);
+			return subtract(t1, concreteTypeOf(t2), cache);
 		} else {
 			return t1;
 		}
@@ -1859,7 +2102,7 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		// NOTE: the following invariant check is essentially something akin to
 		// determining whether or not this is a union.
 		if (d1.getInvariant().size() == 0) {
-			return subtract(t1.getConcreteType(), t2, cache);
+			return subtract(concreteTypeOf(t1), t2, cache);
 		} else {
 			return t1;
 		}
@@ -1881,6 +2124,174 @@ public class IncrementalSubtypingEnvironment implements Subtyping.Environment {
 		return Type.Union.create(ArrayUtils.removeAll(types, Type.Void));
 	}
 
+	// ===========================================================================
+	// Subtype Cache
+	// ===========================================================================
+
+	/**
+	 * A bounded cache of subtype outcomes, which allows environments to avoid
+	 * repeating the same (potentially expensive) subtype proofs. This also
+	 * remembers the expansion of nominal types into their concrete types, which
+	 * avoids repeatedly substituting template arguments into their declared
+	 * type. An outcome is determined by the two types involved, along with the
+	 * withins relation and the kind of environment used. Types are identified by
+	 * their canonical representatives, such that equivalent types share outcomes
+	 * and keys can be compared in constant time. When full, the least recently
+	 * used outcome is evicted. The number of hits and misses is recorded to help
+	 * assess the effectiveness of the cache. Since a cache may be shared between
+	 * environments used concurrently, all operations are synchronized. However,
+	 * expansions are computed without holding the lock.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class SubtypeCache {
+		private final LinkedHashMap<Key, Boolean> outcomes;
+		private final LinkedHashMap<Integer, Type> expansions;
+		private final TypeInterner types;
+		private long hits;
+		private long misses;
+
+		public SubtypeCache(int capacity) {
+			this.outcomes = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+					return size() > capacity;
+				}
+			};
+			this.expansions = new LinkedHashMap<Integer, Type>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, Type> eldest) {
+					return size() > capacity;
+				}
+			};
+			this.types = new TypeInterner();
+		}
+
+		/**
+		 * Get the interner used to determine the canonical representatives of types
+		 * in this cache.
+		 *
+		 * @return
+		 */
+		public TypeInterner getTypes() {
+			return types;
+		}
+
+		/**
+		 * Construct the key identifying a given subtype query.
+		 *
+		 * @param kind
+		 * @param withins
+		 * @param lhs
+		 * @param rhs
+		 * @return
+		 */
+		public Key key(Class<?> kind, String withins, Type lhs, Type rhs) {
+			return new Key(kind, withins, types.intern(lhs), types.intern(rhs));
+		}
+
+		public synchronized Boolean get(Key key) {
+			Boolean outcome = outcomes.get(key);
+			if (outcome != null) {
+				hits++;
+			} else {
+				misses++;
+			}
+			return outcome;
+		}
+
+		public synchronized void put(Key key, Boolean outcome) {
+			outcomes.put(key, outcome);
+		}
+
+		/**
+		 * Get the concrete type of a given nominal type. Nominal types are identified
+		 * by their canonical representatives, hence equivalent nominals share the same
+		 * expansion. NOTE: only a single step of expansion is remembered, rather than
+		 * a flattened normal form with nominals expanded to some depth. This is
+		 * because the lattice operations work on the original types, and the shape of
+		 * their results (which is visible in error messages) depends on this.
+		 *
+		 * @param type
+		 * @return
+		 */
+		public Type getConcreteType(Type.Nominal type) {
+			int key = types.indexOf(type);
+			Type concrete;
+			synchronized (this) {
+				concrete = expansions.get(key);
+			}
+			if (concrete == null) {
+				// NOTE: expanding may be expensive, hence it is done without holding the
+				// lock. Should an equivalent nominal be expanded concurrently, only the
+				// first expansion is remembered and returned.
+				Type expansion = type.getConcreteType();
+				synchronized (this) {
+					concrete = expansions.putIfAbsent(key, expansion);
+				}
+				if (concrete == null) {
+					concrete = expansion;
+				}
+			}
+			return concrete;
+		}
+
+		public synchronized int size() {
+			return outcomes.size();
+		}
+
+		public synchronized long getHits() {
+			return hits;
+		}
+
+		public synchronized long getMisses() {
+			return misses;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "{size=" + outcomes.size() + ", hits=" + hits + ", misses=" + misses + "}";
+		}
+
+		/**
+		 * Identifies a given subtype query. Since both types are canonical
+		 * representatives, they are compared and hashed by identity.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static final class Key {
+			private final Class<?> kind;
+			private final String withins;
+			private final Type lhs;
+			private final Type rhs;
+			private final int hash;
+
+			private Key(Class<?> kind, String withins, Type lhs, Type rhs) {
+				this.kind = kind;
+				this.withins = withins;
+				this.lhs = lhs;
+				this.rhs = rhs;
+				this.hash = (System.identityHashCode(lhs) * 31 + System.identityHashCode(rhs)) ^ withins.hashCode();
+			}
+
+			@Override
+			public boolean equals(Object o) {
+				if (o instanceof Key) {
+					Key k = (Key) o;
+					return hash == k.hash && kind == k.kind && lhs == k.lhs && rhs == k.rhs && withins.equals(k.withins);
+				}
+				return false;
+			}
+
+			@Override
+			public int hashCode() {
+				return hash;
+			}
+		}
+	}
+
 	// ================================================================================
 	// Constrains
 	// ================================================================================
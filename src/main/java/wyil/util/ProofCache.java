@@ -0,0 +1,277 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import wyal.lang.WyalFile;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
+import wybs.util.AbstractCompilationUnit.Name;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Records the verification conditions which have been proved by a previous
+ * build, such that they need not be proved again. Each verification condition
+ * is identified by a key which is a digest of its assertion along with every
+ * named declaration (e.g. type, function or macro) upon which it depends, and
+ * the configuration of the prover. Thus, changing the definition of a type
+ * invariant (for example) changes the key of every assertion using that type.
+ * </p>
+ * <p>
+ * Keys are <i>normalised</i> so that they depend only on the meaning of an
+ * assertion, rather than how it was written. Specifically, variables are
+ * identified by the order in which they are declared rather than by their name
+ * (i.e. keys are invariant under alpha-renaming). Likewise, keys don't depend on
+ * the position of an assertion within its file.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ProofCache {
+	/**
+	 * Identifies the format of keys. This should be changed whenever the
+	 * computation of keys changes in a way that may lead to collisions with keys
+	 * computed previously.
+	 */
+	private static final int VERSION = 2;
+
+	// =========================================================================
+	// Content Type
+	// =========================================================================
+
+	public static final Content.Type<ProofCache> ContentType = new Content.Type<ProofCache>() {
+
+		@Override
+		public ProofCache read(Path.Entry<ProofCache> e, InputStream input) throws IOException {
+			ProofCache cache = new ProofCache();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					cache.add(line);
+				}
+			}
+			return cache;
+		}
+
+		@Override
+		public void write(OutputStream output, ProofCache cache) throws IOException {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			// NOTE: sort keys to ensure output is deterministic
+			for (String key : new TreeSet<>(cache.keys)) {
+				writer.println(key);
+			}
+			writer.flush();
+		}
+
+		@Override
+		public String toString() {
+			return "Content-Type: wyproof";
+		}
+
+		@Override
+		public String getSuffix() {
+			return "wyproof";
+		}
+	};
+
+	// =========================================================================
+	// State
+	// =========================================================================
+
+	/**
+	 * The set of keys for proved verification conditions. This may be accessed
+	 * concurrently, for example when proving verification conditions in parallel.
+	 */
+	private final Set<String> keys = ConcurrentHashMap.newKeySet();
+
+	public ProofCache() {
+
+	}
+
+	/**
+	 * Check whether a verification condition with the given key has been proved.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(String key) {
+		return keys.contains(key);
+	}
+
+	/**
+	 * Record that a verification condition with the given key has been proved.
+	 *
+	 * @param key
+	 */
+	public void add(String key) {
+		keys.add(key);
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	// =========================================================================
+	// Keys
+	// =========================================================================
+
+	/**
+	 * Determine the key for a given assertion. This includes every named
+	 * declaration which the assertion (transitively) refers to. If such a
+	 * declaration cannot be found amongst those given, then <code>null</code> is
+	 * returned to signal that no sensible key exists.
+	 *
+	 * @param prover       The configuration of the prover.
+	 * @param assertion    The assertion in question.
+	 * @param declarations The named declarations available to the assertion,
+	 *                     organised by name.
+	 * @return
+	 */
+	public static String keyOf(String prover, WyalFile.Declaration.Assert assertion,
+			Map<Name, List<WyalFile.Declaration.Named>> declarations) {
+		List<WyalFile.Declaration.Named> dependencies = dependenciesOf(assertion, declarations);
+		return dependencies == null ? null : keyOf(prover, assertion, dependencies);
+	}
+
+	/**
+	 * Determine the key for a given assertion from the named declarations it
+	 * depends upon, as determined by <code>dependenciesOf()</code>.
+	 *
+	 * @param prover       The configuration of the prover.
+	 * @param assertion    The assertion in question.
+	 * @param dependencies The named declarations which the assertion
+	 *                     (transitively) refers to, in the order they are first
+	 *                     encountered.
+	 * @return
+	 */
+	public static String keyOf(String prover, WyalFile.Declaration.Assert assertion,
+			List<WyalFile.Declaration.Named> dependencies) {
+		NormalisedDigest digest = new NormalisedDigest();
+		digest.add(VERSION);
+		digest.add(prover);
+		digest.add(assertion.getBody());
+		for (WyalFile.Declaration.Named dependency : dependencies) {
+			digest.add(dependency);
+		}
+		return digest.toHexString();
+	}
+
+	/**
+	 * Determine every named declaration which a given assertion (transitively)
+	 * refers to. These are returned in the order they are first encountered to
+	 * ensure keys are deterministic. If such a declaration cannot be found amongst
+	 * those given, then <code>null</code> is returned.
+	 *
+	 * @param assertion    The assertion in question.
+	 * @param declarations The named declarations available to the assertion,
+	 *                     organised by name.
+	 * @return
+	 */
+	public static List<WyalFile.Declaration.Named> dependenciesOf(WyalFile.Declaration.Assert assertion,
+			Map<Name, List<WyalFile.Declaration.Named>> declarations) {
+		ArrayList<WyalFile.Declaration.Named> dependencies = new ArrayList<>();
+		IdentityHashMap<SyntacticItem, Boolean> visited = new IdentityHashMap<>();
+		ArrayDeque<SyntacticItem> worklist = new ArrayDeque<>();
+		worklist.add(assertion.getBody());
+		while (!worklist.isEmpty()) {
+			SyntacticItem item = worklist.removeFirst();
+			if (visited.put(item, Boolean.TRUE) != null) {
+				continue;
+			} else if (item.getOpcode() == AbstractCompilationUnit.ITEM_name) {
+				List<WyalFile.Declaration.Named> candidates = declarations.get(item);
+				if (candidates == null) {
+					// Unknown declaration
+					return null;
+				}
+				for (WyalFile.Declaration.Named candidate : candidates) {
+					if (!visited.containsKey(candidate)) {
+						dependencies.add(candidate);
+						worklist.add(candidate);
+					}
+				}
+			}
+			for (int i = 0; i != item.size(); ++i) {
+				SyntacticItem operand = item.get(i);
+				if (operand != null) {
+					worklist.add(operand);
+				}
+			}
+		}
+		return dependencies;
+	}
+
+	/**
+	 * Organise a given set of named declarations by name, in preparation for
+	 * determining keys.
+	 *
+	 * @param declarations
+	 * @return
+	 */
+	public static Map<Name, List<WyalFile.Declaration.Named>> index(List<WyalFile.Declaration.Named> declarations) {
+		HashMap<Name, List<WyalFile.Declaration.Named>> index = new HashMap<>();
+		for (WyalFile.Declaration.Named declaration : declarations) {
+			index.computeIfAbsent(declaration.getName(), n -> new ArrayList<>()).add(declaration);
+		}
+		return index;
+	}
+
+	/**
+	 * A syntactic digest where variables are identified by the order in which they
+	 * are declared, rather than by name.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class NormalisedDigest extends SyntacticDigest {
+		private final IdentityHashMap<SyntacticItem, Integer> variables = new IdentityHashMap<>();
+
+		@Override
+		public SyntacticDigest add(SyntacticItem item) {
+			if (item instanceof WyalFile.VariableDeclaration) {
+				WyalFile.VariableDeclaration decl = (WyalFile.VariableDeclaration) item;
+				Integer index = variables.get(decl);
+				if (index == null) {
+					index = variables.size();
+					variables.put(decl, index);
+				}
+				add(item.getOpcode());
+				add(index);
+				return add(decl.getType());
+			} else {
+				return super.add(item);
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.Modifier;
+
+/**
+ * <p>
+ * Summarises the symbols declared in a WyilFile, such that name resolution
+ * against a binary package can proceed without decoding the package itself.
+ * For each unit this records the name of every declaration along with its kind
+ * (e.g. <code>function</code>), its mangle (i.e. its type signature) and its
+ * modifiers. The WyilFile itself then only needs to be read when the
+ * declarations of a symbol are actually imported.
+ * </p>
+ * <p>
+ * A manifest is stored alongside the WyilFile it summarises (i.e. with the same
+ * path), and is written one line per unit or declaration. A manifest is only
+ * meaningful when it is at least as recent as its WyilFile.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SymbolManifest {
+
+	// =========================================================================
+	// Content Type
+	// =========================================================================
+
+	public static final Content.Type<SymbolManifest> ContentType = new Content.Type<SymbolManifest>() {
+
+		@Override
+		public SymbolManifest read(Path.Entry<SymbolManifest> e, InputStream input) throws IOException {
+			SymbolManifest manifest = new SymbolManifest();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+			Unit unit = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length == 2 && fields[0].equals("unit")) {
+					unit = new Unit(fields[1]);
+					manifest.units.add(unit);
+				} else if (fields.length == 4 && unit != null) {
+					List<String> modifiers = fields[3].isEmpty() ? Collections.emptyList()
+							: Arrays.asList(fields[3].split(","));
+					unit.symbols.add(new Symbol(fields[0], fields[1], fields[2], modifiers));
+				}
+			}
+			return manifest;
+		}
+
+		@Override
+		public void write(OutputStream output, SymbolManifest manifest) throws IOException {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			for (Unit unit : manifest.units) {
+				writer.println("unit\t" + unit.getName());
+				for (Symbol s : unit.symbols) {
+					writer.println(s.getKind() + "\t" + s.getName() + "\t" + s.getMangle() + "\t"
+							+ String.join(",", s.getModifiers()));
+				}
+			}
+			writer.flush();
+		}
+
+		@Override
+		public String toString() {
+			return "Content-Type: wysym";
+		}
+
+		@Override
+		public String getSuffix() {
+			return "wysym";
+		}
+	};
+
+	// =========================================================================
+	// State
+	// =========================================================================
+
+	private final ArrayList<Unit> units = new ArrayList<>();
+
+	public SymbolManifest() {
+
+	}
+
+	public List<Unit> getUnits() {
+		return units;
+	}
+
+	/**
+	 * Construct the manifest for a given WyilFile.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static SymbolManifest of(WyilFile file) {
+		SymbolManifest manifest = new SymbolManifest();
+		for (Decl.Unit u : file.getModule().getUnits()) {
+			Unit unit = new Unit(u.getName().toString());
+			for (Decl d : u.getDeclarations()) {
+				if (d instanceof Decl.Named) {
+					Decl.Named<?> n = (Decl.Named<?>) d;
+					ArrayList<String> modifiers = new ArrayList<>();
+					for (Modifier m : n.getModifiers()) {
+						modifiers.add(m.toString());
+					}
+					unit.symbols.add(new Symbol(kindOf(n), n.getName().get(), n.getType().toString(), modifiers));
+				}
+			}
+			manifest.units.add(unit);
+		}
+		return manifest;
+	}
+
+	private static String kindOf(Decl.Named<?> decl) {
+		if (decl instanceof Decl.Type) {
+			return "type";
+		} else if (decl instanceof Decl.StaticVariable) {
+			return "static";
+		} else if (decl instanceof Decl.Function) {
+			return "function";
+		} else if (decl instanceof Decl.Method) {
+			return "method";
+		} else if (decl instanceof Decl.Property) {
+			return "property";
+		} else {
+			return "unknown";
+		}
+	}
+
+	/**
+	 * Summarises the declarations of a given unit.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Unit {
+		private final String name;
+		private final ArrayList<Symbol> symbols = new ArrayList<>();
+
+		public Unit(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the name of this unit as it would appear in a WyilFile.
+		 *
+		 * @return
+		 */
+		public Name toName() {
+			String[] components = name.split("::");
+			Identifier[] ids = new Identifier[components.length];
+			for (int i = 0; i != ids.length; ++i) {
+				ids[i] = new Identifier(components[i]);
+			}
+			return new Name(ids);
+		}
+
+		public List<Symbol> getSymbols() {
+			return symbols;
+		}
+	}
+
+	/**
+	 * Summarises a single named declaration.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Symbol {
+		private final String kind;
+		private final String name;
+		private final String mangle;
+		private final List<String> modifiers;
+
+		public Symbol(String kind, String name, String mangle, List<String> modifiers) {
+			this.kind = kind;
+			this.name = name;
+			this.mangle = mangle;
+			this.modifiers = modifiers;
+		}
+
+		public String getKind() {
+			return kind;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getMangle() {
+			return mangle;
+		}
+
+		public List<String> getModifiers() {
+			return modifiers;
+		}
+
+		public boolean isPublic() {
+			return modifiers.contains("public");
+		}
+
+		public boolean isExport() {
+			return modifiers.contains("export");
+		}
+	}
+}
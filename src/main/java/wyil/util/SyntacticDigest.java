@@ -0,0 +1,189 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
+import wyil.lang.WyilFile.Decl;
+
+/**
+ * <p>
+ * Computes a stable digest of a syntactic structure. The digest is determined
+ * purely by the shape of the structure (i.e. the opcodes, data and operands of
+ * each item) and not by where items are located within their heap. Thus, two
+ * structurally identical trees allocated into different heaps (or at different
+ * positions within the same heap) produce the same digest. Items which are
+ * shared within the structure are encoded as back references so that the digest
+ * remains linear in the size of the structure.
+ * </p>
+ * <p>
+ * References (i.e. <code>ITEM_ref</code>) are not followed, since these
+ * typically point outside of the structure being digested. Instead, only the
+ * opcode of the referenced item contributes to the digest.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticDigest {
+	private final MessageDigest digest;
+	private final IdentityHashMap<SyntacticItem, Integer> visited = new IdentityHashMap<>();
+
+	public SyntacticDigest() {
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Include a given syntactic item (and everything reachable from it) in this
+	 * digest.
+	 *
+	 * @param item
+	 * @return
+	 */
+	public SyntacticDigest add(SyntacticItem item) {
+		if (item == null) {
+			writeInt(-1);
+			return this;
+		}
+		Integer index = visited.get(item);
+		if (index != null) {
+			// Back reference to a shared item
+			writeInt(-2);
+			writeInt(index);
+			return this;
+		}
+		visited.put(item, visited.size());
+		writeInt(item.getOpcode());
+		byte[] data = item.getData();
+		if (data == null) {
+			writeInt(-1);
+		} else {
+			writeInt(data.length);
+			digest.update(data);
+		}
+		writeInt(item.size());
+		if (item.getOpcode() == AbstractCompilationUnit.ITEM_ref) {
+			// Don't follow references
+			SyntacticItem target = item.get(0);
+			writeInt(target == null ? -1 : target.getOpcode());
+		} else {
+			for (int i = 0; i != item.size(); ++i) {
+				add(item.get(i));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Include a given integer in this digest.
+	 *
+	 * @param v
+	 * @return
+	 */
+	public SyntacticDigest add(int v) {
+		writeInt(v);
+		return this;
+	}
+
+	/**
+	 * Include a given string in this digest.
+	 *
+	 * @param s
+	 * @return
+	 */
+	public SyntacticDigest add(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeInt(bytes.length);
+		digest.update(bytes);
+		return this;
+	}
+
+	/**
+	 * Include a given sequence of characters in this digest. This is equivalent to
+	 * including the corresponding string.
+	 *
+	 * @param chars
+	 * @return
+	 */
+	public SyntacticDigest add(CharBuffer chars) {
+		ByteBuffer bytes = StandardCharsets.UTF_8.encode(chars.duplicate());
+		writeInt(bytes.remaining());
+		digest.update(bytes);
+		return this;
+	}
+
+	/**
+	 * Return the final digest as a hexadecimal string. After this is called, the
+	 * digest should not be used further.
+	 *
+	 * @return
+	 */
+	public String toHexString() {
+		byte[] bytes = digest.digest();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != bytes.length; ++i) {
+			sb.append(String.format("%02x", bytes[i] & 0xFF));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compute the digest of the <i>interface</i> for a given compilation unit. That
+	 * is, everything which other units could depend upon. In essence, this
+	 * includes everything in the unit except for the bodies of functions and
+	 * methods. Thus, changing only the body of a function or method does not alter
+	 * the interface of its enclosing unit.
+	 *
+	 * @param unit
+	 * @return
+	 */
+	public static String interfaceOf(Decl.Unit unit) {
+		SyntacticDigest d = new SyntacticDigest();
+		d.add(unit.getName());
+		for (Decl decl : unit.getDeclarations()) {
+			if (decl instanceof Decl.FunctionOrMethod) {
+				Decl.FunctionOrMethod fm = (Decl.FunctionOrMethod) decl;
+				d.writeInt(fm.getOpcode());
+				// Everything except the body
+				for (int i = 0; i != fm.size(); ++i) {
+					if (fm.get(i) != fm.getBody()) {
+						d.add(fm.get(i));
+					}
+				}
+			} else {
+				d.add(decl);
+			}
+		}
+		return d.toHexString();
+	}
+
+	private void writeInt(int v) {
+		digest.update((byte) (v >>> 24));
+		digest.update((byte) (v >>> 16));
+		digest.update((byte) (v >>> 8));
+		digest.update((byte) v);
+	}
+}
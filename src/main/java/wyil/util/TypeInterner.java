@@ -0,0 +1,347 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wyil.lang.WyilFile.Type;
+
+/**
+ * <p>
+ * Maps types onto canonical representatives, such that structurally equivalent
+ * types share the same representative. Types are heap items and, hence,
+ * structurally equivalent types are frequently distinct items (e.g. because
+ * they occur at different places in the source, or were constructed
+ * separately). Furthermore, comparing or hashing types requires traversing
+ * them. In contrast, two types are equivalent if and only if their
+ * representatives are identical, and representatives can be hashed using
+ * their identity. Thus, maps keyed on representatives offer constant time
+ * lookup.
+ * </p>
+ * <p>
+ * Equivalence coincides with structural equality, except that unions are
+ * normalised. That is, the order of their members is ignored and duplicate
+ * members are removed, hence <code>int|null</code>, <code>null|int</code> and
+ * <code>int|null|int</code> share the same representative. Observe that the
+ * representative itself is not normalised and, hence, has the member order of
+ * whichever equivalent union was encountered first. References to other items
+ * (e.g. the head of a recursive type) are compared by the identity of their
+ * referent, as for structural equality.
+ * </p>
+ * <p>
+ * The canonical form of each type is remembered by identity, hence interning
+ * the same item again takes constant time. This assumes types are not modified
+ * after being interned. In particular, nominal types should be interned only
+ * after name resolution has completed. Since this retains every item
+ * encountered, an interner should be scoped to a single build (e.g. through the
+ * subtype cache used for that build). Furthermore, both the number of items
+ * remembered by identity and the number of representatives are bounded. When
+ * the former is exceeded, the items are forgotten and simply canonicalised
+ * again when next encountered, retaining the same representative. When the
+ * latter is exceeded, the representatives are forgotten as well. Thereafter,
+ * equivalent types may be given a different representative to before, but
+ * indices are never reused. Hence, maps keyed on representatives (or their
+ * indices) may miss but never confuse two types which are not equivalent.
+ * </p>
+ * <p>
+ * An interner can be shared between threads. Items already remembered are
+ * looked up concurrently, whilst canonicalising new items is performed by one
+ * thread at a time.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TypeInterner {
+	/**
+	 * The default number of items (and representatives) remembered by an
+	 * interner.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * The maximum number of items remembered by identity, and the maximum number
+	 * of canonical entries.
+	 */
+	private final int capacity;
+	/**
+	 * Maps every item encountered onto its canonical entry.
+	 */
+	private final IdentityHashMap<SyntacticItem, Entry> entries = new IdentityHashMap<>();
+	/**
+	 * Maps the signature of every canonical entry onto that entry.
+	 */
+	private final HashMap<Signature, Entry> table = new HashMap<>();
+	/**
+	 * The index given to the next canonical entry. This is not reset when the
+	 * table is cleared, such that indices are never reused.
+	 */
+	private int next;
+	/**
+	 * Allows items already remembered to be looked up concurrently.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public TypeInterner() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public TypeInterner(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Determine the canonical representative of a given type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public Type intern(Type type) {
+		return (Type) canonicalise(type).item;
+	}
+
+	/**
+	 * Determine a unique index for the canonical representative of a given type.
+	 * Thus, two types are equivalent if and only if they have the same index.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public int indexOf(Type type) {
+		return canonicalise(type).index;
+	}
+
+	/**
+	 * Check whether two types are equivalent, meaning they have the same canonical
+	 * representative.
+	 *
+	 * @param t1
+	 * @param t2
+	 * @return
+	 */
+	public boolean isEquivalent(Type t1, Type t2) {
+		if (t1 == t2) {
+			return true;
+		}
+		Entry e1, e2;
+		lock.readLock().lock();
+		try {
+			e1 = entries.get(t1);
+			e2 = entries.get(t2);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (e1 == null || e2 == null) {
+			// NOTE: both are canonicalised whilst holding the lock, since otherwise the
+			// table could be cleared in between.
+			lock.writeLock().lock();
+			try {
+				evict();
+				e1 = insert(t1);
+				e2 = insert(t2);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		return e1 == e2;
+	}
+
+	/**
+	 * Get the number of distinct canonical representatives.
+	 *
+	 * @return
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return table.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Entry canonicalise(SyntacticItem item) {
+		Entry entry;
+		lock.readLock().lock();
+		try {
+			entry = entries.get(item);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (entry == null) {
+			lock.writeLock().lock();
+			try {
+				evict();
+				entry = insert(item);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Forget the items remembered when their number exceeds the capacity, and
+	 * likewise the canonical entries. Observe that items are remembered by the
+	 * canonical entry they map to and, hence, must be forgotten with it. This
+	 * requires the write lock to be held.
+	 */
+	private void evict() {
+		if (table.size() >= capacity) {
+			table.clear();
+			entries.clear();
+		} else if (entries.size() >= capacity) {
+			// NOTE: canonical entries are retained, hence forgotten items are later
+			// given the same representative.
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Determine the canonical entry for a given item, remembering it as necessary.
+	 * This requires the write lock to be held.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private Entry insert(SyntacticItem item) {
+		Entry entry = entries.get(item);
+		if (entry == null) {
+			Signature signature = signatureOf(item);
+			entry = table.get(signature);
+			if (entry == null) {
+				entry = new Entry(item, next++);
+				table.put(signature, entry);
+			}
+			entries.put(item, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Construct the signature of a given item, which identifies the item up to
+	 * equivalence. Observe that this canonicalises the operands of the item as
+	 * necessary. The members of a union are ordered by the index of their
+	 * canonical entry, with duplicates removed.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private Signature signatureOf(SyntacticItem item) {
+		Object[] operands;
+		if (item instanceof Ref) {
+			// NOTE: references are compared by the identity of their referent. This
+			// also prevents recursive types from being traversed indefinitely.
+			operands = new Object[] { ((Ref<?>) item).get() };
+		} else {
+			operands = new Object[item.size()];
+			for (int i = 0; i != operands.length; ++i) {
+				SyntacticItem operand = item.get(i);
+				operands[i] = operand == null ? null : insert(operand);
+			}
+			if (item instanceof Type.Union) {
+				operands = normalise(operands);
+			}
+		}
+		return new Signature(item.getOpcode(), item.getData(), operands);
+	}
+
+	/**
+	 * Sort the canonical entries of the members of a union by their index, and
+	 * remove any duplicates.
+	 *
+	 * @param members
+	 * @return
+	 */
+	private static Object[] normalise(Object[] members) {
+		Entry[] entries = Arrays.copyOf(members, members.length, Entry[].class);
+		Arrays.sort(entries, (e1, e2) -> Integer.compare(e1.index, e2.index));
+		int n = 0;
+		for (int i = 0; i != entries.length; ++i) {
+			if (n == 0 || entries[n - 1] != entries[i]) {
+				entries[n++] = entries[i];
+			}
+		}
+		return Arrays.copyOf(entries, n, Object[].class);
+	}
+
+	/**
+	 * A canonical representative of some equivalence class of items.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Entry {
+		private final SyntacticItem item;
+		private final int index;
+
+		public Entry(SyntacticItem item, int index) {
+			this.item = item;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Identifies an item up to equivalence. Since operands are either canonical
+	 * entries or referents, they are compared by identity.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Signature {
+		private final int opcode;
+		private final byte[] data;
+		private final Object[] operands;
+		private final int hash;
+
+		public Signature(int opcode, byte[] data, Object[] operands) {
+			this.opcode = opcode;
+			this.data = data;
+			this.operands = operands;
+			int hash = opcode * 31 + Arrays.hashCode(data);
+			for (int i = 0; i != operands.length; ++i) {
+				hash = (hash * 31) + System.identityHashCode(operands[i]);
+			}
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Signature) {
+				Signature s = (Signature) o;
+				if (hash != s.hash || opcode != s.opcode || operands.length != s.operands.length
+						|| !Arrays.equals(data, s.data)) {
+					return false;
+				}
+				for (int i = 0; i != operands.length; ++i) {
+					if (operands[i] != s.operands[i]) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
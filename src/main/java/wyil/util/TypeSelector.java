@@ -59,7 +59,7 @@ public abstract class TypeSelector {
 			return Type.Selector.TOP;
 		} else if (cache == null) {
 			// Lazily construct cache.
-			cache = new BinaryRelation.HashSet<>();
+			cache = new BinaryRelation.IndexedHashSet<>();
 		}
 
 		cache.set(t1, t2, true);
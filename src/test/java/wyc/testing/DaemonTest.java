@@ -0,0 +1,315 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.util.SequentialBuildProject;
+import wyc.cmd.Daemon;
+import wyc.util.TestUtils;
+import wycc.cfg.Configuration;
+import wycc.lang.Command;
+import wycc.lang.Package;
+import wycc.util.AbstractCommandEnvironment;
+import wycc.util.Logger;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+
+/**
+ * Tests for the compile server. Clients which do not authenticate with the
+ * token written by the server should be refused, whilst those which do should
+ * have their requests served. The dependencies of a project should only be
+ * resolved again when its configuration changes, and packages whose location
+ * is unchanged should be retained between builds.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class DaemonTest {
+	private static final String CONFIG = "[package]\nname=\"main\"\nauthors=[\"Test\"]\nversion=\"%s\"\n";
+
+	private File dir;
+	private String home;
+	private int port;
+	private Build.Project project;
+	private AtomicInteger resolutions;
+	private Thread server;
+
+	@Before
+	public void setup() throws Exception {
+		dir = Files.createTempDirectory("wyc").toFile();
+		File src = new File(dir, "src");
+		File pkg = new File(dir, "pkg");
+		src.mkdir();
+		pkg.mkdir();
+		writeConfig(src, "0.1.0");
+		// NOTE: the token file is written relative to the home directory
+		home = System.getProperty("user.home");
+		System.setProperty("user.home", dir.getAbsolutePath());
+		try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+			port = socket.getLocalPort();
+		}
+		resolutions = new AtomicInteger();
+		DirectoryRoot root = new DirectoryRoot(src, new TestUtils.Registry());
+		Environment environment = new Environment(root, () -> {
+			resolutions.incrementAndGet();
+			// Always a fresh root for the same location
+			return Collections.singletonList(new DirectoryRoot(pkg, new TestUtils.Registry()));
+		});
+		project = new SequentialBuildProject(environment, root);
+		environment.projects.add(project);
+		Daemon daemon = new Daemon(environment);
+		server = new Thread(() -> {
+			try {
+				daemon.execute(null, template(port));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		if (server.isAlive()) {
+			request(token(), "stop");
+			server.join();
+		}
+		System.setProperty("user.home", home);
+		delete(dir);
+	}
+
+	@Test
+	public void test_Unauthorised() throws Exception {
+		String token = token();
+		assertEquals(Collections.singletonList("unauthorised"), request("deadbeef", "stop"));
+		assertEquals(Collections.singletonList("unauthorised"), request("", "stop"));
+		// Server still running
+		assertEquals(Collections.singletonList("unknown request: ping"), request(token, "ping"));
+	}
+
+	@Test
+	public void test_Unknown() throws Exception {
+		assertEquals(Collections.singletonList("unknown request: make"), request(token(), "make"));
+		assertEquals(Collections.singletonList("unknown request: null"), request(token(), null));
+	}
+
+	@Test
+	public void test_Stop() throws Exception {
+		File tokenFile = Daemon.getTokenFile(port);
+		assertEquals(Collections.singletonList("stopped"), request(token(), "stop"));
+		server.join(10000);
+		assertFalse(server.isAlive());
+		assertFalse(tokenFile.exists());
+	}
+
+	@Test
+	public void test_Build() throws Exception {
+		String token = token();
+		assertEquals(Collections.singletonList("success"), request(token, "build"));
+		assertEquals(1, resolutions.get());
+		assertEquals(1, project.getPackages().size());
+		Build.Package pkg = project.getPackages().get(0);
+		// Configuration unchanged, hence not resolved again
+		assertEquals(Collections.singletonList("success"), request(token, "build"));
+		assertEquals(1, resolutions.get());
+		assertSame(pkg, project.getPackages().get(0));
+		// Configuration changed, hence resolved again
+		writeConfig(new File(dir, "src"), "0.2.0");
+		assertEquals(Collections.singletonList("success"), request(token, "build"));
+		assertEquals(2, resolutions.get());
+		// Location unchanged, hence package retained
+		assertEquals(1, project.getPackages().size());
+		assertSame(pkg, project.getPackages().get(0));
+	}
+
+	/**
+	 * Send a request to the server, and return the lines of its response.
+	 *
+	 * @param token
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> request(String token, String request) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			PrintStream output = new PrintStream(socket.getOutputStream(), false, "UTF-8");
+			output.println(token);
+			if (request != null) {
+				output.println(request);
+			}
+			output.flush();
+			socket.shutdownOutput();
+			BufferedReader input = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			ArrayList<String> lines = new ArrayList<>();
+			String line;
+			while ((line = input.readLine()) != null) {
+				lines.add(line);
+			}
+			return lines;
+		}
+	}
+
+	/**
+	 * Wait for the server to write its token, and then read it.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	private String token() throws Exception {
+		File file = Daemon.getTokenFile(port);
+		for (int i = 0; i != 1000; ++i) {
+			if (file.exists()) {
+				List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+				if (!lines.isEmpty()) {
+					return lines.get(0);
+				}
+			}
+			Thread.sleep(10);
+		}
+		throw new IllegalStateException("server failed to start");
+	}
+
+	private static void writeConfig(File dir, String version) throws IOException {
+		String text = String.format(CONFIG, version);
+		Files.write(new File(dir, "wy.toml").toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static Command.Template template(int port) {
+		Command.Options options = new Command.Options() {
+			@Override
+			public boolean has(String name) {
+				return name.equals("port");
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public <T> T get(String name, Class<T> kind) {
+				return (T) Integer.valueOf(port);
+			}
+		};
+		return new Command.Template() {
+			@Override
+			public Command.Descriptor getCommandDescriptor() {
+				return Daemon.DESCRIPTOR;
+			}
+
+			@Override
+			public Command.Options getOptions() {
+				return options;
+			}
+
+			@Override
+			public List<String> getArguments() {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public Command.Template getChild() {
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Provides the (fixed) locations of the dependencies of a project.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private interface Locations {
+		List<Path.Root> get() throws IOException;
+	}
+
+	/**
+	 * A minimal environment for a single project, whose dependencies are resolved
+	 * to a given set of locations.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Environment extends AbstractCommandEnvironment {
+		private final Path.Root root;
+		private final Locations locations;
+		private final List<Build.Project> projects = new ArrayList<>();
+
+		public Environment(Path.Root root, Locations locations) {
+			super(Configuration.EMPTY(Configuration.fromArray()), Logger.NULL, ForkJoinPool.commonPool());
+			this.root = root;
+			this.locations = locations;
+		}
+
+		@Override
+		public Path.Root getRoot() {
+			return root;
+		}
+
+		@Override
+		public List<Build.Project> getProjects() {
+			return projects;
+		}
+
+		@Override
+		public Build.Meter getMeter() {
+			return Build.NULL_METER;
+		}
+
+		@Override
+		public Package.Resolver getPackageResolver() {
+			return new Package.Resolver() {
+				@Override
+				public List<Path.Root> resolve(Configuration configuration) throws IOException {
+					return locations.get();
+				}
+
+				@Override
+				public Package.Repository getRepository() {
+					return null;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,353 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Attribute;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.SequentialBuildProject;
+import wyc.lang.WhileyFile;
+import wyc.task.CompileTask;
+import wyc.util.TestUtils;
+import wycc.util.Pair;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.interpreter.Interpreter;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+
+/**
+ * Tests incremental compilation. Each test builds a small project consisting of
+ * a main unit which depends upon a library unit, then edits one of the sources
+ * and builds the project again. The declarations flow typed by each build are
+ * recorded, which identifies those units which were actually compiled again.
+ * Likewise, sources which are not compiled again should not even be lexed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class IncrementalCompileTest {
+	private static final String LIB = "public function f() -> int:\n    return 1\n";
+	private static final String MAIN = "import lib\n\npublic export method test():\n    assert lib::f() == 1\n";
+
+	private File dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("wyc").toFile();
+	}
+
+	@After
+	public void teardown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void test_Unchanged() throws IOException {
+		write("lib", LIB);
+		write("main", MAIN);
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		assertEquals(set(), build("lib", "main"));
+		exec();
+	}
+
+	@Test
+	public void test_Unlexed() throws IOException {
+		write("lib", LIB);
+		write("main", MAIN);
+		build("lib", "main");
+		assertTrue(lexed("lib") && lexed("main"));
+		// Unchanged files are not lexed
+		build("lib", "main");
+		assertFalse(lexed("lib") || lexed("main"));
+		// Nor are those unaffected by a change to another
+		write("lib", "public function f() -> int:\n    return 2\n");
+		build("lib", "main");
+		assertTrue(lexed("lib"));
+		assertFalse(lexed("main"));
+	}
+
+	@Test
+	public void test_BodyChange() throws IOException {
+		write("lib", LIB);
+		write("main", MAIN);
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		exec();
+		write("lib", "public function f() -> int:\n    return 2\n");
+		// Main is not compiled again, but must still be relinked against the new body.
+		assertEquals(set("lib::f"), build("lib", "main"));
+		try {
+			exec();
+			fail("main not relinked");
+		} catch (Interpreter.RuntimeError e) {
+			// Expected, since assertion now fails
+		}
+	}
+
+	@Test
+	public void test_InterfaceChange() throws IOException {
+		write("lib", LIB);
+		write("main", MAIN);
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		write("lib", "public function f() -> bool:\n    return true\n");
+		// Main depends upon the interface of lib, hence must be compiled again
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		assertFalse(result.first());
+		assertTrue(result.second().contains("main.whiley"));
+		// Fixing main recovers
+		write("main", "import lib\n\npublic export method test():\n    assert lib::f()\n");
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		assertTrue(result.second(), result.first());
+		exec();
+	}
+
+	@Test
+	public void test_LayoutChange() throws IOException {
+		write("lib", LIB);
+		write("main", MAIN);
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		String main = "import lib\n// A comment\n\npublic   export method test() :\n    // Another comment\n    assert lib::f()  ==  1\n";
+		write("main", main);
+		// Main is not compiled again, since only its layout changed
+		assertEquals(set(), build("lib", "main"));
+		exec();
+		// Source locations must match those of a build from scratch
+		List<String> expected = spansOf(target(), "main");
+		teardown();
+		setup();
+		write("lib", LIB);
+		write("main", main);
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		assertEquals(expected, spansOf(target(), "main"));
+	}
+
+	@Test
+	public void test_Removal() throws IOException {
+		write("lib", LIB);
+		write("main", MAIN);
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		new File(dir, "lib.whiley").delete();
+		// Main depends upon lib, hence must be compiled again (and fail)
+		build("main");
+		assertFalse(result.first());
+		assertTrue(result.second().contains("main.whiley"));
+	}
+
+	@Test
+	public void test_Addition() throws IOException {
+		write("lib", LIB);
+		write("main", MAIN);
+		assertEquals(set("lib::f", "main::test"), build("lib", "main"));
+		write("other", "import lib\n\npublic function g() -> int:\n    return lib::f()\n");
+		assertEquals(set("other::g"), build("lib", "main", "other"));
+		assertTrue(result.second(), result.first());
+		exec();
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * The outcome of the most recent build, along with any errors it reported.
+	 */
+	private Pair<Boolean, String> result;
+	/**
+	 * The sources of the most recent build.
+	 */
+	private List<Path.Entry<WhileyFile>> sources;
+
+	private void write(String name, String contents) throws IOException {
+		Files.write(new File(dir, name + ".whiley").toPath(), contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void exec() throws IOException {
+		TestUtils.execWyil(dir, Trie.fromString("main"));
+	}
+
+	/**
+	 * Check whether a given source of the most recent build was lexed by it.
+	 *
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean lexed(String name) throws IOException {
+		for (Path.Entry<WhileyFile> source : sources) {
+			if (source.id().toString().equals(name)) {
+				// NOTE: the file read by the build is retained by its entry
+				return source.read().isLexed();
+			}
+		}
+		throw new IllegalArgumentException("unknown source: " + name);
+	}
+
+	private WyilFile target() throws IOException {
+		DirectoryRoot root = new DirectoryRoot(dir, new TestUtils.Registry());
+		return root.get(Trie.fromString("main"), WyilFile.ContentType).read();
+	}
+
+	/**
+	 * Build the main target from a given set of sources, reusing the target from
+	 * the previous build (if it exists). This returns the declarations which
+	 * were flow typed by the build.
+	 *
+	 * @param names
+	 * @return
+	 * @throws IOException
+	 */
+	private Set<String> build(String... names) throws IOException {
+		DirectoryRoot root = new DirectoryRoot(dir, new TestUtils.Registry());
+		Build.Environment environment = new TestUtils.Environment(root, false);
+		SequentialBuildProject project = new SequentialBuildProject(environment, root);
+		Path.ID id = Trie.fromString("main");
+		Path.Entry<WyilFile> target = root.get(id, WyilFile.ContentType);
+		if (target == null) {
+			target = root.create(id, WyilFile.ContentType);
+			WyilFile wf = new WyilFile(target);
+			wf.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+			target.write(wf);
+		}
+		List<Path.Entry<WhileyFile>> sources = new ArrayList<>();
+		for (String name : names) {
+			sources.add(root.get(Trie.fromString(name), WhileyFile.ContentType));
+		}
+		Path.Entry<WyilFile> binary = target;
+		this.sources = sources;
+		project.add(new Build.Rule() {
+			@Override
+			public void apply(Collection<Build.Task> tasks) throws IOException {
+				tasks.add(new CompileTask(project, root, binary, sources));
+			}
+		});
+		project.refresh();
+		Recorder recorder = new Recorder();
+		boolean status;
+		try {
+			status = project.build(ForkJoinPool.commonPool(), recorder).get();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		root.flush();
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		wycc.commands.Build.printSyntacticMarkers(new PrintStream(errors), (List) sources, (Path.Entry) target);
+		result = new Pair<>(status, errors.toString());
+		return recorder.declarations;
+	}
+
+	/**
+	 * Determine the source location of every item within a given unit, in a
+	 * deterministic order.
+	 *
+	 * @param target
+	 * @param unit
+	 * @return
+	 */
+	private static List<String> spansOf(WyilFile target, String unit) {
+		ArrayList<String> spans = new ArrayList<>();
+		IdentityHashMap<SyntacticItem, Boolean> visited = new IdentityHashMap<>();
+		ArrayDeque<SyntacticItem> worklist = new ArrayDeque<>();
+		for (Decl.Unit u : target.getModule().getUnits()) {
+			if (u.getName().toString().equals(unit)) {
+				worklist.push(u);
+			}
+		}
+		while (!worklist.isEmpty()) {
+			SyntacticItem item = worklist.pop();
+			if (visited.put(item, Boolean.TRUE) == null) {
+				Attribute.Span span = item.getParent(Attribute.Span.class);
+				if (span != null) {
+					spans.add(item.getClass().getSimpleName() + ":" + span.getStart().get() + "-" + span.getEnd().get());
+				}
+				for (int i = 0; !(item instanceof Ref) && i != item.size(); ++i) {
+					if (item.get(i) != null) {
+						worklist.push(item.get(i));
+					}
+				}
+			}
+		}
+		assertFalse(spans.isEmpty());
+		return spans;
+	}
+
+	private static Set<String> set(String... items) {
+		HashSet<String> set = new HashSet<>();
+		Collections.addAll(set, items);
+		return set;
+	}
+
+	/**
+	 * Records the names of all meters forked for declarations (i.e. whose name has
+	 * the form <code>unit::name</code>).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Recorder implements Build.Meter {
+		private final Set<String> declarations;
+
+		public Recorder() {
+			this(Collections.synchronizedSet(new HashSet<>()));
+		}
+
+		private Recorder(Set<String> declarations) {
+			this.declarations = declarations;
+		}
+
+		@Override
+		public Build.Meter fork(String name) {
+			if (name.contains("::")) {
+				declarations.add(name);
+			}
+			return new Recorder(declarations);
+		}
+
+		@Override
+		public void step(String tag) {
+		}
+
+		@Override
+		public void done() {
+		}
+	}
+}
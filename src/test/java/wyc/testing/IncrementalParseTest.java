@@ -0,0 +1,187 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Attribute;
+import wyc.io.WhileyFileLexer;
+import wyc.io.WhileyFileParser;
+import wyc.util.TestUtils;
+import wyil.lang.WyilFile;
+
+/**
+ * Check that incrementally lexing and parsing a source file after an edit
+ * produces the same result as lexing and parsing the edited file from scratch.
+ * Each valid and invalid test case is subjected to a sequence of random edits
+ * (e.g. deleting a few characters, inserting brackets or comment delimiters,
+ * or duplicating part of the file). After each edit, the tokens produced by
+ * <code>WhileyFileLexer.rescan()</code> must be identical to those obtained by
+ * scanning the edited text, and the unit produced by
+ * <code>WhileyFileParser.reparse()</code> must be equivalent to that produced
+ * by <code>read()</code>. That is, every item reachable from the unit must
+ * have the same opcode, data, operands and source locations, and the same
+ * markers must be reported against them.
+ *
+ * @author David J. Pearce
+ *
+ */
+@RunWith(Parameterized.class)
+public class IncrementalParseTest {
+	/**
+	 * The number of edits applied to each test case.
+	 */
+	private static final int EDITS = 10;
+	/**
+	 * Fragments inserted by edits, chosen to disturb token and declaration
+	 * boundaries.
+	 */
+	private static final String[] FRAGMENTS = { " ", "\n", "\n\n", "    ", "x", "1", "(", ")", "[", "]", "{", "}", ",",
+			":", ".", "+", "-", "==", "/*", "*/", "//", "\"", "'", "int ", "return ", "function ", "type T is int\n",
+			"function g() -> int:\n    return 0\n" };
+
+	private final File file;
+
+	public IncrementalParseTest(String name, File file) {
+		this.file = file;
+	}
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> data = new ArrayList<>();
+		for (String dir : new String[] { AllValidTest.WHILEY_SRC_DIR, AllInvalidTest.WHILEY_SRC_DIR }) {
+			for (Object[] test : TestUtils.findTestNames(dir)) {
+				String name = (String) test[0];
+				data.add(new Object[] { name, new File(dir, name + ".whiley") });
+			}
+		}
+		return data;
+	}
+
+	@Test
+	public void edit() throws IOException {
+		String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		Random random = new Random(file.getName().hashCode());
+		WhileyFileParser parser = ParserBenchmark.parser(text);
+		parser.read(Build.NULL_METER);
+		for (int i = 0; i != EDITS; ++i) {
+			int offset = random.nextInt(text.length() + 1);
+			int removed = Math.min(text.length() - offset, random.nextInt(4) == 0 ? random.nextInt(40) : random.nextInt(3));
+			String inserted;
+			if (random.nextInt(4) == 0) {
+				// Duplicate part of the file
+				int start = random.nextInt(text.length() + 1);
+				inserted = text.substring(start, Math.min(text.length(), start + random.nextInt(80)));
+			} else {
+				inserted = random.nextBoolean() ? "" : FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+			}
+			String edited = text.substring(0, offset) + inserted + text.substring(offset + removed);
+			String message = file.getName() + ": edit " + i + " at " + offset + " removing " + removed + " inserting \""
+					+ inserted + "\"";
+			WhileyFileLexer.TokenStream expected;
+			try {
+				expected = new WhileyFileLexer(edited).scan();
+			} catch (RuntimeException e) {
+				// Edits which cannot be scanned must fail incrementally as well
+				try {
+					WhileyFileLexer.rescan(parser.getSource().getTokens(), offset, removed, inserted);
+					fail(message + ": rescan should fail");
+				} catch (RuntimeException f) {
+					// Expected
+				}
+				continue;
+			}
+			WhileyFileLexer.TokenStream actual = WhileyFileLexer.rescan(parser.getSource().getTokens(), offset,
+					removed, inserted).getTokens();
+			assertEquals(message, expected.size(), actual.size());
+			for (int j = 0; j != expected.size(); ++j) {
+				assertEquals(message, expected.kind(j), actual.kind(j));
+				assertEquals(message, expected.start(j), actual.start(j));
+				assertEquals(message, expected.end(j), actual.end(j));
+				assertEquals(message, expected.text(j), actual.text(j));
+			}
+			WhileyFileParser fresh = ParserBenchmark.parser(edited);
+			boolean status = fresh.read(Build.NULL_METER);
+			assertEquals(message, status, parser.reparse(Build.NULL_METER, offset, removed, inserted));
+			assertEquals(message, summarise(fresh.getUnit()), summarise(parser.getUnit()));
+			text = edited;
+		}
+	}
+
+	/**
+	 * Summarise every item reachable from a given unit, along with its source
+	 * locations and any markers reported against it. Items are numbered in the
+	 * order they are first reached, since their positions within the heap can
+	 * differ.
+	 *
+	 * @param unit
+	 * @return
+	 */
+	private static List<String> summarise(WyilFile.Decl.Unit unit) {
+		IdentityHashMap<SyntacticItem, Integer> visited = new IdentityHashMap<>();
+		ArrayList<String> summary = new ArrayList<>();
+		summarise(unit, visited, summary);
+		BitSet reachable = new BitSet();
+		WyilFile.findReachable(unit, reachable);
+		for (SyntacticItem.Marker marker : ((WyilFile) unit.getHeap()).getModule().getAttributes()) {
+			SyntacticItem target = marker.getTarget();
+			if (reachable.get(target.getIndex())) {
+				WyilFile.Attr.SyntaxError error = (WyilFile.Attr.SyntaxError) marker;
+				summary.add("marker " + visited.get(target) + ":" + error.getErrorCode());
+			}
+		}
+		return summary;
+	}
+
+	private static int summarise(SyntacticItem item, IdentityHashMap<SyntacticItem, Integer> visited,
+			List<String> summary) {
+		Integer id = visited.get(item);
+		if (id != null) {
+			return id;
+		}
+		id = visited.size();
+		visited.put(item, id);
+		StringBuilder operands = new StringBuilder();
+		for (int i = 0; i != item.size(); ++i) {
+			SyntacticItem operand = item.get(i);
+			operands.append(" ").append(operand == null ? "null" : summarise(operand, visited, summary));
+		}
+		StringBuilder spans = new StringBuilder();
+		for (Attribute.Span span : item.getParents(Attribute.Span.class)) {
+			spans.append(" @").append(span.getStart().get()).append("-").append(span.getEnd().get());
+		}
+		byte[] data = item.getData();
+		summary.add(id + ": " + item.getOpcode() + (data == null ? "" : new String(data, StandardCharsets.UTF_8))
+				+ operands + spans);
+		return id;
+	}
+}
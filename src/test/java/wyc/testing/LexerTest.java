@@ -0,0 +1,640 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import wyc.io.WhileyFileLexer;
+import wyc.io.WhileyFileLexer.Token;
+import wyc.lang.WhileyFile;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+/**
+ * Check that the token stream produced by the lexer is identical to the list of
+ * tokens produced by the original lexer, which is retained here for reference.
+ * That is, every token must have the same kind, position and text. This is
+ * checked for every valid and invalid test case, along with a number of small
+ * inputs exercising the quirks of the original lexer (e.g. for
+ * <code>++</code>, <code>..</code> and malformed literals), and a file which
+ * must be decoded as UTF-8. Where the original lexer fails on an input, the
+ * lexer must also fail.
+ *
+ * @author David J. Pearce
+ *
+ */
+@RunWith(Parameterized.class)
+public class LexerTest {
+	/**
+	 * Small inputs which exercise the quirks of the original lexer.
+	 */
+	private static final String[] QUIRKS = {
+			// Increments and ranges
+			"x++y", "x+++y", "x ++", "++", "a..b", "a...b", "[0..]", "..", "...", "....", "1..2", "x.y",
+			// Numeric literals
+			"0x", "0b", "0b102", "0xZZ_1", "1_000", "12abc", "0x1.2", "007",
+			// Character literals
+			"'a'", "'\\n'", "'\\q'", "'ab'", "'a", "'", "'\\", "'\\n", "''", "'\\''",
+			// String literals
+			"\"abc\"", "\"a\\\"b\"", "\"unterminated", "\"a\\\\\"", "\"", "\"\\",
+			// Comments
+			"/* unterminated", "/*/", "/**/", "// no newline", "x/y", "x//y\nz",
+			// Whitespace
+			"\r\n", "\r", "x\r", "\t \n  x", "\f", "\u000B",
+			// Operators and unknown characters
+			"\u2200x \u2264 y \u222A z \u2203", "<==> <== <<= ==> => ->", "::: ||| &&&", "# @ $ \u00E9 \\" };
+
+	/**
+	 * An input containing characters encoded in several bytes when using UTF-8.
+	 */
+	private static final String UTF8 = "// \u00E9t\u00E9\nfunction f(int x) -> (int y)\nensures \u2200x \u2264 y:\n    return \"\u00E9\u2203\"\n";
+
+	private final File file;
+	private final String text;
+
+	public LexerTest(String name, File file, String text) {
+		this.file = file;
+		this.text = text;
+	}
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() throws IOException {
+		ArrayList<Object[]> data = new ArrayList<>();
+		for (String dir : new String[] { AllValidTest.WHILEY_SRC_DIR, AllInvalidTest.WHILEY_SRC_DIR }) {
+			for (Object[] test : TestUtils.findTestNames(dir)) {
+				String name = (String) test[0];
+				data.add(new Object[] { name, new File(dir, name + ".whiley"), null });
+			}
+		}
+		for (int i = 0; i != QUIRKS.length; ++i) {
+			data.add(new Object[] { "quirk_" + i, null, QUIRKS[i] });
+		}
+		// Non-ASCII characters must be decoded as UTF-8, regardless of the default
+		// charset.
+		File dir = Files.createTempDirectory("wyc").toFile();
+		File utf8 = new File(dir, "utf8.whiley");
+		Files.write(utf8.toPath(), UTF8.getBytes(StandardCharsets.UTF_8));
+		utf8.deleteOnExit();
+		dir.deleteOnExit();
+		data.add(new Object[] { "utf8", utf8, null });
+		return data;
+	}
+
+	@Test
+	public void scan() throws IOException {
+		String input = text;
+		if (file != null) {
+			// NOTE: source files are always decoded as UTF-8
+			input = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		}
+		List<Token> expected;
+		try {
+			expected = new ReferenceLexer(input).scan();
+		} catch (RuntimeException e) {
+			try {
+				scan(input);
+				fail("lexer should fail on input");
+			} catch (RuntimeException f) {
+				// Expected
+			}
+			return;
+		}
+		WhileyFileLexer.TokenStream actual = scan(input);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i != expected.size(); ++i) {
+			Token e = expected.get(i);
+			Token a = actual.get(i);
+			String message = "token " + i;
+			assertEquals(message, e.kind, actual.kind(i));
+			assertEquals(message, e.start, actual.start(i));
+			assertEquals(message, e.end(), actual.end(i));
+			assertEquals(message, e.text, actual.text(i));
+			assertEquals(message, e.kind, a.kind);
+			assertEquals(message, e.start, a.start);
+			assertEquals(message, e.text, a.text);
+		}
+	}
+
+	/**
+	 * Scan the given input using the lexer. Test files are read through the file
+	 * system in the same way as for the compiler.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	private WhileyFileLexer.TokenStream scan(String input) throws IOException {
+		if (file != null) {
+			DirectoryRoot root = new DirectoryRoot(file.getParentFile(), new TestUtils.Registry());
+			String name = file.getName().substring(0, file.getName().length() - ".whiley".length());
+			Path.Entry<WhileyFile> entry = root.get(Trie.fromString(name), WhileyFile.ContentType);
+			// NOTE: tokens are only produced when first requested
+			return entry.read().getTokens();
+		} else {
+			return new WhileyFileLexer(input).scan();
+		}
+	}
+
+	/**
+	 * The original lexer, which produced a list of tokens directly. This is
+	 * retained (without modification) only to check the lexer produces the same
+	 * tokens.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class ReferenceLexer {
+		private StringBuilder input;
+		private int pos;
+
+		public ReferenceLexer(String input) {
+			this.input = new StringBuilder(input);
+		}
+
+		/**
+		 * Scan all characters from the input stream and generate a corresponding
+		 * list of tokens, whilst discarding all whitespace and comments.
+		 *
+		 * @return
+		 */
+		public List<Token> scan() {
+			ArrayList<Token> tokens = new ArrayList<>();
+			pos = 0;
+
+			while (pos < input.length()) {
+				char c = input.charAt(pos);
+
+				if (isDigit(c)) {
+					tokens.add(scanNumericLiteral());
+				} else if (c == '"') {
+					tokens.add(scanStringLiteral());
+				} else if (c == '\'') {
+					tokens.add(scanCharacterLiteral());
+				} else if (isOperatorStart(c)) {
+					tokens.add(scanOperator());
+				} else if (isLetter(c) || c == '_') {
+					tokens.add(scanIdentifier());
+				} else if (Character.isWhitespace(c)) {
+					scanWhiteSpace(tokens);
+				} else {
+					tokens.add(new Token(Token.Kind.Unknown, "" + c, pos++));
+				}
+			}
+
+			return tokens;
+		}
+
+		/**
+		 * Scan a numeric constant. That is a sequence of digits which constitutes an
+		 * integer literal (e.g. 12 or 1_000), a binary literal (e.g. 0b1001_0011) or a
+		 * hex literal (e.g. 0xff).
+		 *
+		 * @return
+		 */
+		public Token scanNumericLiteral() {
+			int start = pos;
+			int next = pos + 1;
+			// Decide whether it's an integer, binary or hexadecimal literal
+			if (next < input.length() && input.charAt(pos) == '0' && input.charAt(next) == 'x') {
+				// Hexadecimal literal
+				return scanHexLiteral();
+			} else if (next < input.length() && input.charAt(pos) == '0' && input.charAt(next) == 'b') {
+				// Binary literal
+				return scanBinaryLiteral();
+			} else {
+				return scanIntegerLiteral();
+			}
+		}
+
+		public Token scanIntegerLiteral() {
+			int start = pos;
+			while (pos < input.length() && (input.charAt(pos) == '_' || isDigit(input.charAt(pos)))) {
+				pos = pos + 1;
+			}
+			// Extract literal characters
+			String literal = input.substring(start, pos);
+			// Done
+			return new Token(Token.Kind.IntegerLiteral, literal, start);
+		}
+
+		public Token scanHexLiteral() {
+			int start = pos;
+			pos = pos + 2; // skip "0x"
+			while (pos < input.length() && (input.charAt(pos) == '_' || isLetterOrDigit(input.charAt(pos)))) {
+				pos = pos + 1;
+			}
+			// Extract literal characters
+			String literal = input.substring(start, pos);
+			// Done
+			return new Token(Token.Kind.HexLiteral, literal, start);
+		}
+
+		public Token scanBinaryLiteral() {
+			int start = pos;
+			pos = pos + 2; // skip "0b"
+			while (pos < input.length() && (input.charAt(pos) == '_' || isDigit(input.charAt(pos)))) {
+				pos = pos + 1;
+			}
+			// Extract literal characters
+			String literal = input.substring(start, pos);
+			// Done
+			return new Token(Token.Kind.BinaryLiteral, literal, start);
+		}
+
+		/**
+		 * Scan a character literal, such as e.g. 'c'. Observe that care must be
+		 * taken to properly handle escape codes. For example, '\n' is a single
+		 * character constant which is made up from two characters in the input
+		 * string.
+		 *
+		 * @return
+		 */
+		public Token scanCharacterLiteral() {
+			boolean failed = false;
+			int start = pos;
+			pos++;
+			char c = input.charAt(pos++);
+			if (c == '\\') {
+				// escape code
+				switch (input.charAt(pos++)) {
+				case 'b':
+					c = '\b';
+					break;
+				case 't':
+					c = '\t';
+					break;
+				case 'n':
+					c = '\n';
+					break;
+				case 'f':
+					c = '\f';
+					break;
+				case 'r':
+					c = '\r';
+					break;
+				case '"':
+					c = '\"';
+					break;
+				case '\'':
+					c = '\'';
+					break;
+				case '\\':
+					c = '\\';
+					break;
+				default:
+					failed=true;
+				}
+			}
+			if (input.charAt(pos) != '\'') {
+				return new Token(Token.Kind.Unknown, "" + c, pos);
+			}
+			pos = pos + 1;
+			if(failed) {
+				return new Token(Token.Kind.Unknown, input.substring(start, pos), start);
+			} else {
+				return new Token(Token.Kind.CharLiteral, input.substring(start, pos),
+						start);
+			}
+		}
+
+		public Token scanStringLiteral() {
+			int start = pos;
+			boolean escaped = false;
+			pos++;
+			while (pos < input.length()) {
+				char c = input.charAt(pos);
+				if (c == '"' && !escaped) {
+					String v = input.substring(start, ++pos);
+					return new Token(Token.Kind.StringLiteral, v, start);
+				} else if(c == '\\' && !escaped) {
+					escaped = true;
+				} else {
+					escaped = false;
+				}
+				pos = pos + 1;
+			}
+			return new Token(Token.Kind.Unknown, input.substring(start, pos), pos - 1);
+		}
+
+
+		static final char[] opStarts = { ',', '(', ')', '[', ']', '{', '}', '+',
+				'-', '*', '/', '%', '^', '!', '?', '=', '<', '>', ':', ';', '&', '|',
+				'.', '~',
+				// Unicode operators
+				WhileyFileLexer.UC_FORALL,
+				WhileyFileLexer.UC_EXISTS,
+				WhileyFileLexer.UC_EMPTYSET,
+				WhileyFileLexer.UC_SUBSET,
+				WhileyFileLexer.UC_SUBSETEQ,
+				WhileyFileLexer.UC_SUPSET,
+				WhileyFileLexer.UC_SUPSETEQ,
+				WhileyFileLexer.UC_SETUNION,
+				WhileyFileLexer.UC_SETINTERSECTION,
+				WhileyFileLexer.UC_LESSEQUALS,
+				WhileyFileLexer.UC_GREATEREQUALS,
+				WhileyFileLexer.UC_ELEMENTOF
+		};
+
+		public boolean isOperatorStart(char c) {
+			for (char o : opStarts) {
+				if (c == o) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public Token scanOperator() {
+			char c = input.charAt(pos);
+
+			switch (c) {
+			case '.':
+				if ((pos + 1) < input.length() && input.charAt(pos + 1) == '.') {
+					pos = pos + 2;
+					if (pos < input.length() && input.charAt(pos) == '.') {
+						return new Token(Token.Kind.DotDotDot, "..", pos++);
+					} else {
+						return new Token(Token.Kind.DotDot, "..", pos);
+					}
+				} else {
+					return new Token(Token.Kind.Dot, ".", pos++);
+				}
+			case ',':
+				return new Token(Token.Kind.Comma, ",", pos++);
+			case ';':
+				return new Token(Token.Kind.SemiColon, ";", pos++);
+			case ':':
+				if (pos + 1 < input.length() && input.charAt(pos + 1) == ':') {
+					pos += 2;
+					return new Token(Token.Kind.ColonColon, "::", pos - 2);
+				} else {
+					return new Token(Token.Kind.Colon, ":", pos++);
+				}
+			case '|':
+				if (pos + 1 < input.length() && input.charAt(pos + 1) == '|') {
+					pos += 2;
+					return new Token(Token.Kind.LogicalOr, "||", pos - 2);
+				} else {
+					return new Token(Token.Kind.VerticalBar, "|", pos++);
+				}
+			case '(':
+				return new Token(Token.Kind.LeftBrace, "(", pos++);
+			case ')':
+				return new Token(Token.Kind.RightBrace, ")", pos++);
+			case '[':
+				return new Token(Token.Kind.LeftSquare, "[", pos++);
+			case ']':
+				return new Token(Token.Kind.RightSquare, "]", pos++);
+			case '{':
+				return new Token(Token.Kind.LeftCurly, "{", pos++);
+			case '}':
+				return new Token(Token.Kind.RightCurly, "}", pos++);
+			case '+':
+				if ((pos + 1) < input.length() && input.charAt(pos + 1) == '+') {
+					pos = pos + 2;
+					return new Token(Token.Kind.PlusPlus, "++", pos);
+				} else {
+					return new Token(Token.Kind.Plus, "+", pos++);
+				}
+			case '-':
+				if (pos + 1 < input.length() && input.charAt(pos + 1) == '>') {
+					pos += 2;
+					return new Token(Token.Kind.MinusGreater, "->", pos - 2);
+				} else {
+					return new Token(Token.Kind.Minus, "-", pos++);
+				}
+			case '*':
+				return new Token(Token.Kind.Star, "*", pos++);
+			case '&':
+				if (pos + 1 < input.length() && input.charAt(pos + 1) == '&') {
+					pos += 2;
+					return new Token(Token.Kind.LogicalAnd, "&&", pos - 2);
+				} else {
+					return new Token(Token.Kind.Ampersand, "&", pos++);
+				}
+			case '/':
+				if((pos+1) < input.length() && input.charAt(pos+1) == '/') {
+					return scanLineComment();
+				} else if((pos+1) < input.length() && input.charAt(pos+1) == '*') {
+					return scanBlockComment();
+				} else {
+					return new Token(Token.Kind.RightSlash, "/", pos++);
+				}
+			case '%':
+				return new Token(Token.Kind.Percent, "%", pos++);
+			case '^':
+				return new Token(Token.Kind.Caret, "^", pos++);
+			case '~':
+				return new Token(Token.Kind.Tilde, "~", pos++);
+			case '?':
+				return new Token(Token.Kind.QuestionMark, "?", pos++);
+			case '!':
+				if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
+					pos += 2;
+					return new Token(Token.Kind.NotEquals, "!=", pos - 2);
+				} else {
+					return new Token(Token.Kind.Shreak, "!", pos++);
+				}
+			case '=':
+				if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
+					pos += 2;
+					if (pos < input.length() && input.charAt(pos) == '>') {
+						pos++;
+						return new Token(Token.Kind.LogicalImplication, "==>", pos - 3);
+					} else {
+						return new Token(Token.Kind.EqualsEquals, "==", pos - 2);
+					}
+				} else if ((pos + 1) < input.length() && input.charAt(pos + 1) == '>') {
+					pos += 2;
+					return new Token(Token.Kind.EqualsGreater, "=>", pos - 2);
+				} else {
+					return new Token(Token.Kind.Equals, "=", pos++);
+				}
+			case '<':
+				if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
+					pos += 2;
+					if ((pos+1) < input.length() && input.charAt(pos) == '=' && input.charAt(pos+1) == '>') {
+						pos += 2;
+						return new Token(Token.Kind.LogicalIff, "<==>", pos - 4);
+					} else {
+						return new Token(Token.Kind.LessEquals, "<=", pos - 2);
+					}
+				} else if ((pos + 1) < input.length() && input.charAt(pos + 1) == '<') {
+					pos += 2;
+					return new Token(Token.Kind.LeftAngleLeftAngle, "<<", pos - 2);
+				} else{
+					return new Token(Token.Kind.LeftAngle, "<", pos++);
+				}
+			case '>':
+				if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
+					pos += 2;
+					return new Token(Token.Kind.GreaterEquals, ">=", pos - 2);
+				} else if ((pos + 1) < input.length() && input.charAt(pos + 1) == '>') {
+					pos += 2;
+					return new Token(Token.Kind.RightAngleRightAngle, ">>", pos - 2);
+				} else {
+					return new Token(Token.Kind.RightAngle, ">", pos++);
+				}
+			// =================================================================
+			//
+			// =================================================================
+			case WhileyFileLexer.UC_LESSEQUALS:
+				return new Token(Token.Kind.LessEquals, "" + c, pos++);
+			case WhileyFileLexer.UC_GREATEREQUALS:
+				return new Token(Token.Kind.GreaterEquals, "" + c, pos++);
+			case WhileyFileLexer.UC_SETUNION:
+				return new Token(Token.Kind.SetUnion, "" + c, pos++);
+			case WhileyFileLexer.UC_SETINTERSECTION:
+				return new Token(Token.Kind.SetIntersection, "" + c, pos++);
+			case WhileyFileLexer.UC_ELEMENTOF:
+				return new Token(Token.Kind.ElementOf, "" + c, pos++);
+			case WhileyFileLexer.UC_SUBSET:
+				return new Token(Token.Kind.Subset, "" + c, pos++);
+			case WhileyFileLexer.UC_SUBSETEQ:
+				return new Token(Token.Kind.SubsetEquals, "" + c, pos++);
+			case WhileyFileLexer.UC_SUPSET:
+				return new Token(Token.Kind.Superset, "" + c, pos++);
+			case WhileyFileLexer.UC_SUPSETEQ:
+				return new Token(Token.Kind.SupersetEquals, "" + c, pos++);
+			case WhileyFileLexer.UC_EMPTYSET:
+				return new Token(Token.Kind.EmptySet, "" + c, pos++);
+			case WhileyFileLexer.UC_LOGICALOR:
+				return new Token(Token.Kind.LogicalOr, "" + c, pos++);
+			case WhileyFileLexer.UC_LOGICALAND:
+				return new Token(Token.Kind.LogicalAnd, "" + c, pos++);
+			}
+			return new Token(Token.Kind.Unknown, "" + c, pos++);
+		}
+
+		public Token scanIdentifier() {
+			int start = pos;
+			while (pos < input.length()
+					&& (input.charAt(pos) == '_' || isLetterOrDigit(input
+							.charAt(pos)))) {
+				pos++;
+			}
+			String text = input.substring(start, pos);
+
+			// now, check for keywords
+			Token.Kind kind = WhileyFileLexer.keywords.get(text);
+			if (kind == null) {
+				// not a keyword, so just a regular identifier.
+				kind = Token.Kind.Identifier;
+			}
+			return new Token(kind, text, start);
+		}
+
+		public void scanWhiteSpace(List<Token> tokens) {
+			while (pos < input.length()
+					&& Character.isWhitespace(input.charAt(pos))) {
+				if (input.charAt(pos) == ' ' || input.charAt(pos) == '\t') {
+					tokens.add(scanIndent());
+				} else if (input.charAt(pos) == '\n') {
+					tokens.add(new Token(Token.Kind.NewLine, input.substring(pos,
+							pos + 1), pos));
+					pos = pos + 1;
+				} else if (input.charAt(pos) == '\r' && (pos + 1) < input.length()
+						&& input.charAt(pos + 1) == '\n') {
+					tokens.add(new Token(Token.Kind.NewLine, input.substring(pos,
+							pos + 2), pos));
+					pos = pos + 2;
+				} else {
+					tokens.add(new Token(Token.Kind.Unknown, "" + input.charAt(pos), pos++));
+				}
+			}
+		}
+
+		/**
+		 * Scan one or more spaces or tab characters, combining them to form an
+		 * "indent".
+		 *
+		 * @return
+		 */
+		public Token scanIndent() {
+			int start = pos;
+			while (pos < input.length()
+					&& (input.charAt(pos) == ' ' || input.charAt(pos) == '\t')) {
+				pos++;
+			}
+			return new Token(Token.Kind.Indent, input.substring(start, pos), start);
+		}
+
+		public Token scanLineComment() {
+			int start = pos;
+			while (pos < input.length() && input.charAt(pos) != '\n') {
+				pos++;
+			}
+			return new Token(Token.Kind.LineComment, input.substring(start, pos),
+					start);
+		}
+
+		public Token scanBlockComment() {
+			int start = pos;
+			while((pos+1) < input.length() && (input.charAt(pos) != '*' || input.charAt(pos+1) != '/')) {
+				pos++;
+			}
+			pos++;
+			pos++;
+			return new Token(Token.Kind.BlockComment,input.substring(start,pos),start);
+		}
+
+		/**
+		 * This is used in place of Character.isDigit(), since the latter also supports
+		 * unicode digits.
+		 *
+		 * @param c
+		 * @return
+		 */
+		private boolean isDigit(char c) {
+			return '0' <= c && c <= '9';
+		}
+
+		/**
+		 * This is used in place of Character.isLetter(), since the latter also supports
+		 * unicode letters.
+		 *
+		 * @param c
+		 * @return
+		 */
+		private boolean isLetter(char c) {
+			return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') ;
+		}
+
+		/**
+		 * This is used in place of Character.isLetterOrDigit(), since the latter also
+		 * supports unicode digits and letters.
+		 *
+		 * @param c
+		 * @return
+		 */
+		private boolean isLetterOrDigit(char c) {
+			return isLetter(c) || isDigit(c);
+		}
+	}
+}
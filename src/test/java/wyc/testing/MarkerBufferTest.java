@@ -0,0 +1,198 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticException;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Attribute;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.SequentialBuildProject;
+import wyc.lang.WhileyFile;
+import wyc.task.CompileTask;
+import wyc.util.ErrorMessages;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+
+/**
+ * Tests for buffering syntax errors reported by tasks running concurrently, and
+ * for flushing them in a deterministic order.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class MarkerBufferTest {
+
+	@Test
+	public void test_Buffered() {
+		WyilFile heap = heap();
+		Identifier item = heap.allocate(new Identifier("x"));
+		ErrorMessages.MarkerBuffer buffer = new ErrorMessages.MarkerBuffer();
+		int size = heap.size();
+		ErrorMessages.buffer(buffer, () -> {
+			ErrorMessages.syntaxError(item, WyilFile.RESOLUTION_ERROR);
+			return null;
+		});
+		// Nothing is allocated until the buffer is flushed
+		assertEquals(size, heap.size());
+		assertEquals(0, heap.getModule().getAttributes().size());
+		assertFalse(buffer.isEmpty());
+		buffer.flush();
+		assertTrue(buffer.isEmpty());
+		assertEquals(1, heap.getModule().getAttributes().size());
+		assertSame(item, heap.getModule().getAttributes().get(0).getTarget());
+	}
+
+	@Test
+	public void test_Nested() {
+		WyilFile heap = heap();
+		Identifier x = heap.allocate(new Identifier("x"));
+		Identifier y = heap.allocate(new Identifier("y"));
+		ErrorMessages.MarkerBuffer outer = new ErrorMessages.MarkerBuffer();
+		ErrorMessages.MarkerBuffer inner = new ErrorMessages.MarkerBuffer();
+		ErrorMessages.buffer(outer, () -> {
+			ErrorMessages.buffer(inner, () -> {
+				ErrorMessages.syntaxError(x, WyilFile.RESOLUTION_ERROR);
+				return null;
+			});
+			// Outer buffer is restored
+			ErrorMessages.syntaxError(y, WyilFile.RESOLUTION_ERROR);
+			return null;
+		});
+		assertEquals(1, inner.getMarkers().size());
+		assertSame(x, inner.getMarkers().get(0).getTarget());
+		assertEquals(1, outer.getMarkers().size());
+		assertSame(y, outer.getMarkers().get(0).getTarget());
+		// Errors are no longer buffered
+		ErrorMessages.syntaxError(x, WyilFile.RESOLUTION_ERROR);
+		assertEquals(1, heap.getModule().getAttributes().size());
+	}
+
+	@Test
+	public void test_FlushOrder() {
+		final int n = 200;
+		WyilFile heap = heap();
+		List<Identifier> items = new ArrayList<>();
+		for (int i = 0; i != n; ++i) {
+			items.add(heap.allocate(new Identifier("x" + i)));
+		}
+		// Run tasks concurrently in a random order, each reporting two errors into its
+		// own buffer.
+		List<Integer> order = IntStream.range(0, n).boxed().collect(Collectors.toList());
+		Collections.shuffle(order, new Random(0));
+		ErrorMessages.MarkerBuffer[] buffers = new ErrorMessages.MarkerBuffer[n];
+		order.parallelStream().forEach(i -> {
+			buffers[i] = new ErrorMessages.MarkerBuffer();
+			ErrorMessages.buffer(buffers[i], () -> {
+				ErrorMessages.syntaxError(items.get(i), WyilFile.RESOLUTION_ERROR);
+				ErrorMessages.syntaxError(items.get(i), WyilFile.AMBIGUOUS_COERCION);
+				return null;
+			});
+		});
+		assertEquals(0, heap.getModule().getAttributes().size());
+		for (ErrorMessages.MarkerBuffer buffer : buffers) {
+			buffer.flush();
+		}
+		// Markers appear in the order flushed, and then the order reported
+		Tuple<SyntacticItem.Marker> markers = heap.getModule().getAttributes();
+		assertEquals(2 * n, markers.size());
+		for (int i = 0; i != n; ++i) {
+			WyilFile.Attr.SyntaxError first = (WyilFile.Attr.SyntaxError) markers.get(2 * i);
+			WyilFile.Attr.SyntaxError second = (WyilFile.Attr.SyntaxError) markers.get(2 * i + 1);
+			assertSame(items.get(i), first.getTarget());
+			assertEquals(WyilFile.RESOLUTION_ERROR, first.getErrorCode());
+			assertSame(items.get(i), second.getTarget());
+			assertEquals(WyilFile.AMBIGUOUS_COERCION, second.getErrorCode());
+		}
+	}
+
+	/**
+	 * Compile invalid test cases which fail the compiler checks (e.g. definite
+	 * assignment), and check the markers are reported in the same order whether or
+	 * not the checks are run concurrently.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void test_CheckOrder() throws IOException {
+		List<String> batch = new ArrayList<>();
+		for (Object[] test : TestUtils.findTestNames(AllInvalidTest.WHILEY_SRC_DIR)) {
+			String name = (String) test[0];
+			if (name.startsWith("DefiniteAssign_") || name.startsWith("Final_") || name.startsWith("StaticVar_")
+					|| name.startsWith("Public_")) {
+				batch.add(name);
+			}
+		}
+		List<String> expected = compile(batch, false);
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, compile(batch, true));
+	}
+
+	private static List<String> compile(List<String> batch, boolean parallel) throws IOException {
+		DirectoryRoot root = new DirectoryRoot(new File(AllInvalidTest.WHILEY_SRC_DIR), new TestUtils.Registry());
+		SequentialBuildProject project = new SequentialBuildProject(new TestUtils.Environment(root, false), root);
+		// NOTE: the target is never flushed and, hence, never written to disk
+		Path.ID id = Trie.fromString("batch");
+		Path.Entry<WyilFile> entry = root.create(id, WyilFile.ContentType);
+		WyilFile target = new WyilFile(entry);
+		target.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		List<Path.Entry<WhileyFile>> entries = new ArrayList<>();
+		WhileyFile[] sources = new WhileyFile[batch.size()];
+		for (int i = 0; i != sources.length; ++i) {
+			entries.add(root.get(Trie.fromString(batch.get(i)), WhileyFile.ContentType));
+			sources[i] = entries.get(i).read();
+		}
+		try {
+			new CompileTask(project, root, entry, entries).setParallel(parallel).execute(Build.NULL_METER, target,
+					sources);
+		} catch (SyntacticException e) {
+			// Markers are still compared
+		}
+		List<String> markers = new ArrayList<>();
+		for (SyntacticItem.Marker marker : target.getModule().getAttributes()) {
+			WyilFile.Attr.SyntaxError error = (WyilFile.Attr.SyntaxError) marker;
+			Attribute.Span span = error.getTarget().getParent(Attribute.Span.class);
+			String location = span == null ? "?" : span.getStart().get() + "-" + span.getEnd().get();
+			Decl.Unit unit = error.getTarget().getAncestor(Decl.Unit.class);
+			markers.add((unit == null ? "?" : unit.getName()) + ":" + location + ":" + error.getErrorCode());
+		}
+		return markers;
+	}
+
+	private static WyilFile heap() {
+		WyilFile heap = new WyilFile((Path.Entry<WyilFile>) null);
+		heap.setRootItem(new Decl.Module(new Name(Trie.fromString("test")), new Tuple<>(), new Tuple<>(),
+				new Tuple<>()));
+		return heap;
+	}
+}
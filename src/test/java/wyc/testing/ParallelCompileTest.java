@@ -0,0 +1,123 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.SequentialBuildProject;
+import wyc.lang.WhileyFile;
+import wyc.task.CompileTask;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.util.SyntacticDigest;
+
+/**
+ * Check that compiling many source files concurrently produces the same
+ * WyilFile as compiling them sequentially. The valid test cases are split into
+ * batches, and each batch is compiled into a single WyilFile both ways. Every
+ * declaration (including the types determined by flow typing and the sharing
+ * of items within it) and every marker is then compared.
+ *
+ * @author David J. Pearce
+ *
+ */
+@RunWith(Parameterized.class)
+public class ParallelCompileTest {
+	/**
+	 * The number of source files compiled together.
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	private final List<String> batch;
+
+	public ParallelCompileTest(String name, List<String> batch) {
+		this.batch = batch;
+	}
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> batches = new ArrayList<>();
+		List<Object[]> names = new ArrayList<>(TestUtils.findTestNames(AllValidTest.WHILEY_SRC_DIR));
+		for (int i = 0; i < names.size(); i += BATCH_SIZE) {
+			ArrayList<String> batch = new ArrayList<>();
+			for (Object[] name : names.subList(i, Math.min(names.size(), i + BATCH_SIZE))) {
+				batch.add((String) name[0]);
+			}
+			batches.add(new Object[] { batch.get(0), batch });
+		}
+		return batches;
+	}
+
+	@Test
+	public void compile() throws IOException {
+		assertEquals(compile(false), compile(true));
+	}
+
+	/**
+	 * Compile the batch of source files into a single WyilFile, and summarise the
+	 * result.
+	 *
+	 * @param parallel
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> compile(boolean parallel) throws IOException {
+		DirectoryRoot root = new DirectoryRoot(new File(AllValidTest.WHILEY_SRC_DIR), new TestUtils.Registry());
+		SequentialBuildProject project = new SequentialBuildProject(new TestUtils.Environment(root, false), root);
+		// NOTE: the target is never flushed and, hence, never written to disk
+		Path.ID id = Trie.fromString("batch");
+		Path.Entry<WyilFile> entry = root.create(id, WyilFile.ContentType);
+		WyilFile target = new WyilFile(entry);
+		target.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		List<Path.Entry<WhileyFile>> entries = new ArrayList<>();
+		WhileyFile[] sources = new WhileyFile[batch.size()];
+		for (int i = 0; i != sources.length; ++i) {
+			entries.add(root.get(Trie.fromString(batch.get(i)), WhileyFile.ContentType));
+			sources[i] = entries.get(i).read();
+		}
+		CompileTask task = new CompileTask(project, root, entry, entries).setParallel(parallel);
+		ArrayList<String> summary = new ArrayList<>();
+		summary.add(Boolean.toString(task.execute(Build.NULL_METER, target, sources)));
+		for (Decl.Unit unit : target.getModule().getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				// NOTE: the position of items within the heap can differ, hence they are
+				// identified by their enclosing unit and digest.
+				summary.add(unit.getName() + ":" + new SyntacticDigest().add(decl).toHexString());
+			}
+		}
+		for (SyntacticItem.Marker marker : target.getModule().getAttributes()) {
+			summary.add(new SyntacticDigest().add(marker).toHexString());
+		}
+		return summary;
+	}
+}
@@ -0,0 +1,237 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Attribute;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wyc.io.WhileyFileLexer;
+import wyc.io.WhileyFileParser;
+import wyc.lang.WhileyFile;
+import wyc.util.ErrorMessages;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.util.SyntacticDigest;
+
+/**
+ * Check that parsing many source files concurrently produces the same
+ * WyilFile as parsing them sequentially. The test cases are split into
+ * batches, and each batch is parsed into a single WyilFile both ways. The
+ * resulting modules are then compared, including their markers and source
+ * locations. Likewise, lexing the batch concurrently should produce the same
+ * tokens as lexing it sequentially, and a source file should be lexed only
+ * once even when its tokens are requested by several threads at once.
+ *
+ * @author David J. Pearce
+ *
+ */
+@RunWith(Parameterized.class)
+public class ParallelParseTest {
+	/**
+	 * The number of source files parsed together.
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	private final String directory;
+	private final List<String> batch;
+
+	public ParallelParseTest(String directory, List<String> batch) {
+		this.directory = directory;
+		this.batch = batch;
+	}
+
+	@Parameters(name = "{0}:{1}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> batches = new ArrayList<>();
+		for (String directory : new String[] { AllValidTest.WHILEY_SRC_DIR, AllInvalidTest.WHILEY_SRC_DIR }) {
+			List<Object[]> names = new ArrayList<>(TestUtils.findTestNames(directory));
+			for (int i = 0; i < names.size(); i += BATCH_SIZE) {
+				ArrayList<String> batch = new ArrayList<>();
+				for (Object[] name : names.subList(i, Math.min(names.size(), i + BATCH_SIZE))) {
+					batch.add((String) name[0]);
+				}
+				batches.add(new Object[] { directory, batch });
+			}
+		}
+		return batches;
+	}
+
+	@Test
+	public void parse() throws IOException {
+		assertEquals(parse(false), parse(true));
+	}
+
+	@Test
+	public void lex() throws IOException {
+		List<WhileyFile> sources = read();
+		List<String> expected = sources.stream().map(source -> summarise(source.getTokens()))
+				.collect(Collectors.toList());
+		// Lex a fresh copy of each file concurrently, requesting its tokens from
+		// several threads at once.
+		List<WhileyFile> copies = read();
+		List<WhileyFileLexer.TokenStream> tokens = IntStream.range(0, copies.size() * 4).parallel()
+				.mapToObj(i -> copies.get(i % copies.size()).getTokens()).collect(Collectors.toList());
+		for (int i = 0; i != copies.size(); ++i) {
+			String test = batch.get(i);
+			assertEquals(test, expected.get(i), summarise(tokens.get(i)));
+			for (int j = i; j < tokens.size(); j += copies.size()) {
+				assertSame(test, tokens.get(i), tokens.get(j));
+			}
+		}
+	}
+
+	/**
+	 * Parse the batch of source files into a single WyilFile, and summarise the
+	 * result. When parsing concurrently, each source file is parsed into its own
+	 * scratch heap which is then merged into the WyilFile (as for the compiler).
+	 * Otherwise, each source file is parsed directly into the WyilFile.
+	 *
+	 * @param parallel
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> parse(boolean parallel) throws IOException {
+		Name name = new Name(Trie.fromString("batch"));
+		WyilFile target = new WyilFile((Path.Entry<WyilFile>) null);
+		target.setRootItem(new Decl.Module(name, new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		List<WhileyFile> sources = read();
+		ArrayList<String> summary = new ArrayList<>();
+		if (parallel) {
+			List<Scratch> scratches = sources.parallelStream().map(source -> new Scratch(name, source))
+					.collect(Collectors.toList());
+			for (Scratch scratch : scratches) {
+				target.merge(scratch.heap, scratch.start, scratch.markers.getMarkers());
+				summary.add(Boolean.toString(scratch.status));
+			}
+		} else {
+			for (WhileyFile source : sources) {
+				summary.add(Boolean.toString(new WhileyFileParser(target, source).read(Build.NULL_METER)));
+			}
+		}
+		summary.add(new SyntacticDigest().add(target.getModule()).toHexString());
+		summary.addAll(spansOf(target));
+		return summary;
+	}
+
+	/**
+	 * Read the batch of source files, without lexing them.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private List<WhileyFile> read() throws IOException {
+		DirectoryRoot root = new DirectoryRoot(new File(directory), new TestUtils.Registry());
+		List<WhileyFile> sources = new ArrayList<>();
+		for (String test : batch) {
+			WhileyFile source = root.get(Trie.fromString(test), WhileyFile.ContentType).read();
+			assertFalse(test, source.isLexed());
+			sources.add(source);
+		}
+		return sources;
+	}
+
+	/**
+	 * Summarise the kind, position and text of every token in a given stream.
+	 *
+	 * @param tokens
+	 * @return
+	 */
+	private static String summarise(WhileyFileLexer.TokenStream tokens) {
+		StringBuilder summary = new StringBuilder();
+		for (int i = 0; i != tokens.size(); ++i) {
+			summary.append(tokens.kind(i)).append(':').append(tokens.start(i)).append('-').append(tokens.end(i))
+					.append(':').append(tokens.text(i)).append('\n');
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * A source file parsed into its own heap, with any syntax errors buffered.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Scratch {
+		private final WyilFile heap = new WyilFile((Path.Entry<WyilFile>) null);
+		private final int start;
+		private final ErrorMessages.MarkerBuffer markers = new ErrorMessages.MarkerBuffer();
+		private final boolean status;
+
+		public Scratch(Name name, WhileyFile source) {
+			heap.setRootItem(new Decl.Module(name, new Tuple<>(), new Tuple<>(), new Tuple<>()));
+			start = heap.size();
+			status = ErrorMessages.buffer(markers, () -> new WhileyFileParser(heap, source).read(Build.NULL_METER));
+		}
+	}
+
+	/**
+	 * Determine the source location of every item in a given module, in a
+	 * deterministic order.
+	 *
+	 * @param target
+	 * @return
+	 */
+	private static List<String> spansOf(WyilFile target) {
+		IdentityHashMap<SyntacticItem, Attribute.Span> spans = new IdentityHashMap<>();
+		for (int i = 0; i != target.size(); ++i) {
+			SyntacticItem item = target.getSyntacticItem(i);
+			if (item instanceof Attribute.Span) {
+				spans.putIfAbsent(((Attribute.Span) item).getItem(), (Attribute.Span) item);
+			}
+		}
+		ArrayList<String> result = new ArrayList<>();
+		IdentityHashMap<SyntacticItem, Boolean> visited = new IdentityHashMap<>();
+		ArrayDeque<SyntacticItem> worklist = new ArrayDeque<>();
+		worklist.push(target.getModule());
+		while (!worklist.isEmpty()) {
+			SyntacticItem item = worklist.pop();
+			if (visited.put(item, Boolean.TRUE) == null) {
+				Attribute.Span span = spans.get(item);
+				if (span != null) {
+					result.add(item.getClass().getSimpleName() + ":" + span.getStart().get() + "-" + span.getEnd().get());
+				}
+				for (int i = 0; !(item instanceof Ref) && i != item.size(); ++i) {
+					if (item.get(i) != null) {
+						worklist.push(item.get(i));
+					}
+				}
+			}
+		}
+		return result;
+	}
+}
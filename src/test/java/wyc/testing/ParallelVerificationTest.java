@@ -0,0 +1,126 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.SequentialBuildProject;
+import wyc.lang.WhileyFile;
+import wyc.task.CompileTask;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.util.SyntacticDigest;
+
+/**
+ * Check that verifying assertions concurrently reports the same failures (in
+ * the same order) as verifying them sequentially. This should hold both when
+ * stopping at the first assertion which cannot be proved, and when reporting
+ * every such assertion.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ParallelVerificationTest {
+	/**
+	 * Several declarations with assertions which cannot be proved, interleaved
+	 * with those which can.
+	 */
+	private static final String SOURCE = "type nat is (int x) where x >= 0\n\n"
+			+ "function f(int x) -> (int y)\nensures y > 0:\n    return x\n\n"
+			+ "function g(nat x) -> (nat y):\n    return x + 1\n\n"
+			+ "function h(nat x) -> (nat y):\n    return x - 1\n\n"
+			+ "function i(int[] xs) -> (int y):\n    return xs[0]\n\n"
+			+ "function j(int x, int y) -> (int z)\nrequires y != 0:\n    return x / y\n\n"
+			+ "function k(int x) -> (int z):\n    return 1 / x\n";
+
+	private File dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("wyc").toFile();
+		Files.write(new File(dir, "main.whiley").toPath(), SOURCE.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@After
+	public void teardown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void test_FailFast() throws IOException {
+		List<String> expected = verify(false, true);
+		assertEquals(2, expected.size());
+		assertEquals(expected, verify(true, true));
+	}
+
+	@Test
+	public void test_AllFailures() throws IOException {
+		List<String> expected = verify(false, false);
+		assertEquals(5, expected.size());
+		assertEquals(expected, verify(true, false));
+		// The first failure is that reported when failing fast
+		assertEquals(verify(false, true).get(1), expected.get(1));
+	}
+
+	/**
+	 * Compile the source file with verification enabled, and summarise the
+	 * outcome followed by the markers reported (in order).
+	 *
+	 * @param parallel
+	 * @param failFast
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> verify(boolean parallel, boolean failFast) throws IOException {
+		DirectoryRoot root = new DirectoryRoot(dir, new TestUtils.Registry());
+		SequentialBuildProject project = new SequentialBuildProject(new TestUtils.Environment(root, false), root);
+		// NOTE: the target is never flushed and, hence, never written to disk
+		Path.ID id = Trie.fromString("main");
+		Path.Entry<WyilFile> entry = root.create(id, WyilFile.ContentType);
+		WyilFile target = new WyilFile(entry);
+		target.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		Path.Entry<WhileyFile> source = root.get(id, WhileyFile.ContentType);
+		CompileTask task = new CompileTask(project, root, entry, Collections.singletonList(source))
+				.setVerification(true).setParallel(parallel).setFailFast(failFast);
+		ArrayList<String> summary = new ArrayList<>();
+		summary.add(Boolean.toString(task.execute(Build.NULL_METER, target, source.read())));
+		for (SyntacticItem.Marker marker : target.getModule().getAttributes()) {
+			summary.add(marker.getMessage() + ":" + new SyntacticDigest().add(marker).toHexString());
+		}
+		return summary;
+	}
+}
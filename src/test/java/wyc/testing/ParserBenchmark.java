@@ -0,0 +1,229 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import wybs.lang.Build;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wyc.io.WhileyFileParser;
+import wyc.lang.WhileyFile;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+import wyfs.util.VirtualRoot;
+import wyil.lang.WyilFile;
+
+/**
+ * <p>
+ * Measures the time taken to parse source files containing deeply nested
+ * expressions. These are pathological for a backtracking parser, since each
+ * level of nesting can cause the levels within it to be parsed again. For
+ * example, when parsing <code>((((f(x)))))</code> the parser must decide at
+ * each bracket whether it starts a cast or not, which requires looking ahead
+ * across everything nested within.
+ * </p>
+ * <p>
+ * For each kind of nesting, the depth is repeatedly doubled and the parse time
+ * reported along with its ratio to the time for the previous depth. For linear
+ * parse time, this ratio should remain close to two. Since timings are noisy,
+ * the number of steps taken by the parser (i.e. productions attempted) is also
+ * reported, and the benchmark fails if this more than doubles (within some
+ * tolerance) when the depth is doubled. This is not run as part of the test
+ * suite (see <code>ParserTest</code> instead), but can be run directly (e.g.
+ * from an IDE) once the test classes are compiled.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ParserBenchmark {
+	private static final int MAX_DEPTH = 4096;
+	private static final int REPEATS = 5;
+	/**
+	 * The maximum ratio of steps taken between successive depths, above which
+	 * parsing is not considered linear.
+	 */
+	static final double MAX_RATIO = 2.5;
+	/**
+	 * The parser is recursive descent, hence deep nesting requires a larger stack
+	 * than is given by default.
+	 */
+	static final long STACK_SIZE = 1 << 28;
+
+	/**
+	 * The kinds of nesting benchmarked, each given by a name, the innermost term
+	 * and the prefix and suffix wrapped around it.
+	 */
+	static final String[][] FORMS = { { "invocation", "f(x)", "(", ")" }, { "array", "x", "[", "]" },
+			{ "cast", "x", "(int)(", ")" }, { "tuple", "x", "(x, ", ")" }, { "unary", "x", "-(", ")" } };
+
+	public static void main(String[] args) throws Throwable {
+		Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, () -> {
+			try {
+				for (String[] form : FORMS) {
+					benchmark(form[0], form[1], form[2], form[3]);
+				}
+			} catch (Throwable e) {
+				failure[0] = e;
+			}
+		}, "benchmark", STACK_SIZE);
+		thread.start();
+		thread.join();
+		// Fail loudly if any form was not parsed in linear time
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	/**
+	 * Benchmark a given kind of nesting, where a term is wrapped repeatedly in
+	 * the given prefix and suffix.
+	 *
+	 * @param name
+	 * @param term
+	 * @param prefix
+	 * @param suffix
+	 * @throws IOException
+	 */
+	private static void benchmark(String name, String term, String prefix, String suffix) throws IOException {
+		System.out.println(name + ":");
+		long previous = -1;
+		long previousSteps = -1;
+		for (int depth = 8; depth <= MAX_DEPTH; depth *= 2) {
+			String source = nest(depth, term, prefix, suffix);
+			// Take the best of several runs to reduce noise
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i != REPEATS; ++i) {
+				best = Math.min(best, parse(source));
+			}
+			long steps = steps(source, true);
+			String ratio = previous > 0 ? String.format("%.2f", (double) best / previous) : "-";
+			String stepRatio = previousSteps > 0 ? String.format("%.2f", (double) steps / previousSteps) : "-";
+			System.out.println(String.format("  depth %4d: %8dus (x%s), %8d steps (x%s)", depth, best / 1000, ratio,
+					steps, stepRatio));
+			if (previousSteps > 0 && steps > MAX_RATIO * previousSteps) {
+				throw new AssertionError(
+						name + " parsing is not linear: " + previousSteps + " steps at depth " + (depth / 2) + " but "
+								+ steps + " at depth " + depth);
+			}
+			previous = best;
+			previousSteps = steps;
+		}
+	}
+
+	/**
+	 * Construct a source file whose single function returns a term wrapped to a
+	 * given depth in the given prefix and suffix.
+	 *
+	 * @param depth
+	 * @param term
+	 * @param prefix
+	 * @param suffix
+	 * @return
+	 */
+	static String nest(int depth, String term, String prefix, String suffix) {
+		StringBuilder expr = new StringBuilder();
+		for (int i = 0; i != depth; ++i) {
+			expr.append(prefix);
+		}
+		expr.append(term);
+		for (int i = 0; i != depth; ++i) {
+			expr.append(suffix);
+		}
+		return "function f(int x) -> int:\n    return " + expr + "\n";
+	}
+
+	/**
+	 * Parse a given source file, returning the number of steps taken by the
+	 * parser.
+	 *
+	 * @param text
+	 * @param memoise
+	 * @return
+	 * @throws IOException
+	 */
+	static long steps(String text, boolean memoise) throws IOException {
+		Counter counter = new Counter();
+		if (!parser(text).setMemoise(memoise).read(counter)) {
+			throw new IllegalArgumentException("failed to parse: " + text);
+		}
+		return counter.count;
+	}
+
+	/**
+	 * Parse a given source file, returning the time taken in nanoseconds.
+	 *
+	 * @param text
+	 * @return
+	 * @throws IOException
+	 */
+	private static long parse(String text) throws IOException {
+		WhileyFileParser parser = parser(text);
+		long start = System.nanoTime();
+		// NOTE: include lexing, since this is now performed on demand
+		boolean ok = parser.read(Build.NULL_METER);
+		long time = System.nanoTime() - start;
+		if (!ok) {
+			throw new IllegalArgumentException("failed to parse: " + text);
+		}
+		return time;
+	}
+
+	/**
+	 * Construct a parser for a given source file, which populates a fresh
+	 * WyilFile.
+	 *
+	 * @param text
+	 * @return
+	 * @throws IOException
+	 */
+	static WhileyFileParser parser(String text) throws IOException {
+		Trie id = Trie.fromString("test");
+		VirtualRoot root = new VirtualRoot(new TestUtils.Registry());
+		Path.Entry<WhileyFile> entry = root.create(id, WhileyFile.ContentType);
+		try (OutputStream out = entry.outputStream()) {
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		WhileyFile source = new WhileyFile(entry);
+		WyilFile target = new WyilFile((Path.Entry<WyilFile>) null);
+		target.setRootItem(new WyilFile.Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		return new WhileyFileParser(target, source);
+	}
+
+	/**
+	 * A meter which simply counts the steps taken, including those of any forks.
+	 */
+	private static class Counter implements Build.Meter {
+		private long count;
+
+		@Override
+		public Build.Meter fork(String name) {
+			return this;
+		}
+
+		@Override
+		public void step(String tag) {
+			count++;
+		}
+
+		@Override
+		public void done() {
+		}
+	}
+}
@@ -0,0 +1,266 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Attribute;
+import wybs.util.AbstractCompilationUnit.Value;
+import wyc.io.WhileyFileLexer;
+import wyc.io.WhileyFileParser;
+import wyc.util.TestUtils;
+import wyil.lang.WyilFile;
+import wyil.util.SyntacticDigest;
+
+/**
+ * Tests for the memoisation of ambiguous productions in the parser. Memoising
+ * must not change the outcome of parsing, and must ensure deeply nested
+ * expressions are parsed in linear time (see also <code>ParserBenchmark</code>).
+ * Since the outcome of parsing an ambiguous production (e.g. whether
+ * <code>(T) x</code> is a cast or not) can depend upon the variables declared
+ * in scope, memoised outcomes are discarded whenever a variable is declared.
+ * This also checks the source locations recorded by the parser, where the
+ * positions referred to by spans are shared.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ParserTest {
+	/**
+	 * Source files where whether a bracketed expression is a cast depends upon
+	 * which variables are in scope.
+	 */
+	private static final String[] SNIPPETS = {
+			"type T is int\nfunction f(int x) -> int:\n    return (T) x\n",
+			"type T is int\nfunction f(int T) -> int:\n    return (T) + 1\n",
+			"type T is int\nfunction f(int x) -> int:\n    int y = (T) x\n    int T = y\n    return (T) + y\n",
+			"type T is int\nfunction f(int x) -> int:\n    int T = (T) x\n    return (T) - (T) + T\n",
+			"type T is int\nfunction f(int x) -> bool:\n    return all { T in 0..x | (T) >= 0 } && ((T) x) >= 0\n",
+			"type T is int\nfunction f(int x) -> int:\n    for T in 0..x:\n        x = (T) + x\n    return (T) x\n",
+			"type T is int\nfunction f(int x) -> int:\n    function(int)->(int) g = &(int T -> (T) + 1)\n    return g((T) x)\n",
+			"type T is int\nfunction f(int x) -> (int r):\n    return ((((f((T) x)))))\n",
+			"function f(int x) -> int:\n    return (int)((int)(x))\n",
+			"type T is {int f}\nfunction f(T r) -> int:\n    int[] T = [r.f]\n    return (T)[0] + ((T)[0])\n",
+			"type T is {int f}\nfunction f({int f} r) -> int:\n    return ((T) r).f\n",
+			"type T is int\nfunction f(int x) -> int:\n    return (T) (T) -x\n",
+			"type T is int\nfunction f(int x) -> int:\n    return (T) -x\n",
+			"type T is int\nfunction f(int T) -> int:\n    return (T) -T\n" };
+
+	@Test
+	public void test_MemoisedSnippets() throws IOException {
+		for (String snippet : SNIPPETS) {
+			String expected = parse(snippet, false);
+			assertTrue(snippet, expected.startsWith("true:"));
+			assertEquals(snippet, expected, parse(snippet, true));
+		}
+	}
+
+	@Test
+	public void test_MemoisedValid() throws IOException {
+		checkMemoised(AllValidTest.WHILEY_SRC_DIR);
+	}
+
+	@Test
+	public void test_MemoisedInvalid() throws IOException {
+		checkMemoised(AllInvalidTest.WHILEY_SRC_DIR);
+	}
+
+	/**
+	 * Check that every span begins at the start of a token and finishes at the
+	 * end of a token, and that each source position is represented by exactly one
+	 * item.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void test_SharedPositions() throws IOException {
+		for (String dir : new String[] { AllValidTest.WHILEY_SRC_DIR, AllInvalidTest.WHILEY_SRC_DIR }) {
+			for (Object[] test : TestUtils.findTestNames(dir)) {
+				String name = (String) test[0];
+				WhileyFileParser parser = ParserBenchmark.parser(read(dir, name));
+				parser.read(Build.NULL_METER);
+				WhileyFileLexer.TokenStream tokens = parser.getSource().getTokens();
+				BitSet starts = new BitSet();
+				BitSet ends = new BitSet();
+				for (int i = 0; i != tokens.size(); ++i) {
+					starts.set(tokens.start(i));
+					ends.set(tokens.end(i));
+				}
+				HashMap<Integer, Value.Int> positions = new HashMap<>();
+				WyilFile heap = (WyilFile) parser.getUnit().getHeap();
+				for (int i = 0; i != heap.size(); ++i) {
+					SyntacticItem item = heap.getSyntacticItem(i);
+					if (item instanceof Attribute.Span) {
+						Attribute.Span span = (Attribute.Span) item;
+						int start = span.getStart().get().intValue();
+						int end = span.getEnd().get().intValue();
+						assertTrue(name + ": span start " + start, starts.get(start));
+						assertTrue(name + ": span end " + end, ends.get(end));
+						assertSame(name, span.getStart(), positions.computeIfAbsent(start, k -> span.getStart()));
+						assertSame(name, span.getEnd(), positions.computeIfAbsent(end, k -> span.getEnd()));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check that the location of each syntax error is unchanged by sharing
+	 * positions. That is, for every invalid test case which fails to parse, the
+	 * line, column and length of the error must match the expected output.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void test_ParseErrorLocations() throws IOException {
+		String dir = AllInvalidTest.WHILEY_SRC_DIR;
+		int count = 0;
+		for (Object[] test : TestUtils.findTestNames(dir)) {
+			String name = (String) test[0];
+			String text = read(dir, name);
+			WhileyFileParser parser = ParserBenchmark.parser(text);
+			if (parser.read(Build.NULL_METER)) {
+				continue;
+			}
+			count = count + 1;
+			// Expected output gives the file and line, followed by the line itself and
+			// then the location of the error within it.
+			List<String> expected = Files.readAllLines(Paths.get(dir, name + ".sysout"), StandardCharsets.UTF_8);
+			WyilFile heap = (WyilFile) parser.getUnit().getHeap();
+			SyntacticItem.Marker marker = heap.getModule().getAttributes().get(0);
+			Attribute.Span span = marker.getTarget().getParent(Attribute.Span.class);
+			int start = span.getStart().get().intValue();
+			int end = span.getEnd().get().intValue();
+			int line = 1;
+			for (int i = 0; i < start; ++i) {
+				if (text.charAt(i) == '\n') {
+					line = line + 1;
+				}
+			}
+			int column = start - (text.lastIndexOf('\n', start - 1) + 1);
+			assertEquals(name, expected.get(0).split(":")[1], Integer.toString(line));
+			assertEquals(name, expected.get(2).indexOf('^'), column);
+			assertEquals(name, expected.get(2).trim().length(), end - start + 1);
+		}
+		assertTrue(count > 0);
+	}
+
+	/**
+	 * Check that parsing deeply nested expressions takes a number of steps
+	 * which grows linearly with the depth of nesting.
+	 *
+	 * @throws Throwable
+	 */
+	@Test
+	public void test_LinearSteps() throws Throwable {
+		run(() -> {
+			for (String[] form : ParserBenchmark.FORMS) {
+				long previous = ParserBenchmark.steps(ParserBenchmark.nest(256, form[1], form[2], form[3]), true);
+				long steps = ParserBenchmark.steps(ParserBenchmark.nest(512, form[1], form[2], form[3]), true);
+				assertTrue(form[0] + ": " + previous + " steps at depth 256 but " + steps + " at depth 512",
+						steps <= ParserBenchmark.MAX_RATIO * previous);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Check that without memoisation, parsing nested invocations does not take
+	 * linear time. Otherwise, <code>test_LinearSteps</code> would not test
+	 * memoisation at all.
+	 *
+	 * @throws Throwable
+	 */
+	@Test
+	public void test_UnmemoisedSteps() throws Throwable {
+		run(() -> {
+			String[] form = ParserBenchmark.FORMS[0];
+			long previous = ParserBenchmark.steps(ParserBenchmark.nest(8, form[1], form[2], form[3]), false);
+			long steps = ParserBenchmark.steps(ParserBenchmark.nest(16, form[1], form[2], form[3]), false);
+			assertTrue(previous + " steps at depth 8 and " + steps + " at depth 16",
+					steps > ParserBenchmark.MAX_RATIO * previous);
+			return null;
+		});
+	}
+
+	/**
+	 * Check that every test file in a given directory is parsed in the same way
+	 * with and without memoisation.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	private static void checkMemoised(String dir) throws IOException {
+		for (Object[] test : TestUtils.findTestNames(dir)) {
+			String name = (String) test[0];
+			String text = read(dir, name);
+			assertEquals(name, parse(text, false), parse(text, true));
+		}
+	}
+
+	private static String read(String dir, String name) throws IOException {
+		return new String(Files.readAllBytes(Paths.get(dir, name + ".whiley")), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parse a given source file, and summarise the outcome and the resulting
+	 * module.
+	 *
+	 * @param text
+	 * @param memoise
+	 * @return
+	 * @throws IOException
+	 */
+	private static String parse(String text, boolean memoise) throws IOException {
+		WhileyFileParser parser = ParserBenchmark.parser(text).setMemoise(memoise);
+		boolean status = parser.read(Build.NULL_METER);
+		return status + ":" + new SyntacticDigest().add(parser.getUnit()).toHexString();
+	}
+
+	/**
+	 * Run a given test in a thread with a stack large enough for deeply nested
+	 * expressions, and rethrow anything thrown.
+	 *
+	 * @param test
+	 * @throws Throwable
+	 */
+	private static void run(Callable<Void> test) throws Throwable {
+		Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, () -> {
+			try {
+				test.call();
+			} catch (Throwable e) {
+				failure[0] = e;
+			}
+		}, "parser", ParserBenchmark.STACK_SIZE);
+		thread.start();
+		thread.join();
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+}
@@ -0,0 +1,100 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyc.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wyc.util.ProfilingMeter;
+
+/**
+ * Tests for recording profiles concurrently, and for writing them and reading
+ * them back.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ProfilingMeterTest {
+
+	@Test
+	public void test_ConcurrentSteps() {
+		final int n = 100000;
+		ProfilingMeter meter = new ProfilingMeter("test", Build.NULL_METER);
+		IntStream.range(0, n).parallel().forEach(i -> {
+			meter.step(i % 2 == 0 ? "even" : "odd");
+			if (i % 100 == 0) {
+				meter.fork("child").done();
+			}
+		});
+		meter.done();
+		assertEquals(n / 2, (int) meter.getSteps().get("even"));
+		assertEquals(n / 2, (int) meter.getSteps().get("odd"));
+		assertEquals(n / 100, meter.getChildren().size());
+	}
+
+	@Test
+	public void test_RoundTrip() throws IOException {
+		ProfilingMeter meter = new ProfilingMeter("WhileyCompiler", Build.NULL_METER);
+		Build.Meter parser = meter.fork("WhileyFileParser");
+		parser.step("token");
+		parser.step("token");
+		parser.done();
+		for (String name : new String[] { "main::f", "main::g", "main::f", "odd \"name\"\\\t" }) {
+			Build.Meter m = meter.fork("FlowTypeCheck").fork(name);
+			m.step("statement");
+			m.done();
+		}
+		// A meter which is never completed
+		meter.fork("incomplete");
+		meter.done();
+		String text = write(meter);
+		ProfilingMeter copy = read(text);
+		assertEquals("WhileyCompiler", copy.getName());
+		assertEquals(text, write(copy));
+		assertTrue(text, text.contains("\"name\": \"main::f\", \"calls\": 2"));
+		assertEquals(2, (int) copy.getChildren().get(0).getSteps().get("token"));
+	}
+
+	@Test
+	public void test_Invalid() {
+		for (String text : new String[] { "", "{\"name\": \"x\"}", "{\"name\": \"x\", \"calls\": 1",
+				"[1, 2]", "{\"name\": \"x\", \"calls\": 1, \"wall\": 0, \"cpu\": 0, \"alloc\": 0, \"steps\": {}, "
+						+ "\"children\": []} junk" }) {
+			try {
+				read(text);
+				fail("invalid profile read: " + text);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	private static String write(ProfilingMeter meter) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ProfilingMeter.ContentType.write(output, meter);
+		return new String(output.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static ProfilingMeter read(String text) throws IOException {
+		return ProfilingMeter.ContentType.read(null, new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+	}
+}
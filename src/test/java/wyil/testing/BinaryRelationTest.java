@@ -0,0 +1,225 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.SequentialBuildProject;
+import wyc.lang.WhileyFile;
+import wyc.task.CompileTask;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.check.FlowTypeUtils;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.Type;
+import wyil.util.BinaryRelation;
+import wyil.util.Subtyping;
+
+/**
+ * Tests for the relation used to detect cycles during subtype queries. Pairs of
+ * items in the same heap are related by identity, whilst pairs involving items
+ * outside the heap are related by structural equality. Subtype queries
+ * involving recursive types (including those obtained by substituting template
+ * arguments) must terminate, and must agree with those obtained using a
+ * relation based purely on structural equality. Likewise, greatest lower bounds
+ * and least upper bounds of recursive types must terminate, and the former
+ * must be a lower bound.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BinaryRelationTest {
+	/**
+	 * Recursive types, some of which are structurally equivalent, along with a
+	 * function whose parameters use them.
+	 */
+	private static final String SOURCE = "type List is null | {int data, List next}\n\n"
+			+ "type IntList is null | {int data, IntList next}\n\n"
+			+ "type Link<T> is null | {T data, Link<T> next}\n\n"
+			+ "type Tree is null | {Tree left, int data, Tree right}\n\n"
+			+ "type Expr is int | {Expr lhs, Expr rhs} | Expr[]\n\n"
+			+ "type Even is null | {Odd next}\n\n"
+			+ "type Odd is {Even next}\n\n"
+			+ "function f(List l, IntList il, Link<int> li, Link<bool> lb, Tree t, Expr e, Even ev, Odd od, Link<IntList> ll, {int data, List next} r) -> (int x):\n"
+			+ "    return 0\n";
+
+	private File dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("wyil").toFile();
+	}
+
+	@After
+	public void teardown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void test_HeapPairs() {
+		Type.Record rec = (Type.Record) TestUtils.fromString("{int[] f, int[] g}");
+		Type f = rec.getFields().get(0).getType();
+		Type g = rec.getFields().get(1).getType();
+		BinaryRelation.IndexedHashSet<Type> relation = new BinaryRelation.IndexedHashSet<>();
+		relation.set(f, g, true);
+		assertTrue(relation.get(f, g));
+		assertFalse(relation.get(g, f));
+		// Distinct items in the heap are not related by structural equality
+		assertFalse(relation.get(g, g));
+		relation.set(f, g, false);
+		assertFalse(relation.get(f, g));
+	}
+
+	@Test
+	public void test_HeaplessPairs() {
+		BinaryRelation.IndexedHashSet<Type> relation = new BinaryRelation.IndexedHashSet<>();
+		relation.set(new Type.Array(Type.Int), Type.Bool, true);
+		assertTrue(relation.get(new Type.Array(Type.Int), Type.Bool));
+		assertFalse(relation.get(Type.Bool, new Type.Array(Type.Int)));
+		relation.set(new Type.Array(Type.Int), Type.Bool, false);
+		assertFalse(relation.get(new Type.Array(Type.Int), Type.Bool));
+	}
+
+	@Test
+	public void test_MixedPairs() {
+		Type.Record rec = (Type.Record) TestUtils.fromString("{int[] f, int[] g}");
+		Type f = rec.getFields().get(0).getType();
+		Type g = rec.getFields().get(1).getType();
+		BinaryRelation.IndexedHashSet<Type> relation = new BinaryRelation.IndexedHashSet<>();
+		relation.set(f, new Type.Array(Type.Int), true);
+		assertTrue(relation.get(f, new Type.Array(Type.Int)));
+		// Pairs in the heap fall back to structural equality with pairs outside it
+		relation.set(new Type.Array(Type.Int), new Type.Array(Type.Int), true);
+		assertTrue(relation.get(f, g));
+		assertTrue(relation.get(g, f));
+		relation.reset();
+		assertFalse(relation.get(f, g));
+		assertFalse(relation.get(f, new Type.Array(Type.Int)));
+	}
+
+	@Test
+	public void test_RecursiveSubtypes() throws IOException {
+		List<Type> types = parameterTypes(compile(SOURCE), "f");
+		Environment environment = new Environment();
+		for (Type t1 : types) {
+			for (Type t2 : types) {
+				boolean expected = environment.isSubtype(t1, t2, new BinaryRelation.HashSet<>()).isSatisfiable();
+				boolean actual = environment.isSubtype(t1, t2, new BinaryRelation.IndexedHashSet<>()).isSatisfiable();
+				assertEquals(t1 + " :> " + t2, expected, actual);
+				// Also check the relation reused between queries
+				assertEquals(t1 + " :> " + t2, expected, environment.isSatisfiableSubtype(t1, t2));
+			}
+		}
+		// Sanity check some outcomes
+		Type l = types.get(0), il = types.get(1), li = types.get(2), lb = types.get(3);
+		Type ev = types.get(6), od = types.get(7), r = types.get(9);
+		assertTrue(environment.isSatisfiableSubtype(l, il));
+		assertTrue(environment.isSatisfiableSubtype(il, l));
+		assertTrue(environment.isSatisfiableSubtype(li, l));
+		assertTrue(environment.isSatisfiableSubtype(l, li));
+		assertFalse(environment.isSatisfiableSubtype(lb, l));
+		assertTrue(environment.isSatisfiableSubtype(l, r));
+		assertFalse(environment.isSatisfiableSubtype(r, l));
+		assertFalse(environment.isSatisfiableSubtype(ev, od));
+		assertFalse(environment.isSatisfiableSubtype(od, ev));
+	}
+
+	@Test
+	public void test_RecursiveBounds() throws IOException {
+		List<Type> types = parameterTypes(compile(SOURCE), "f");
+		FlowTypeUtils.Environment environment = new FlowTypeUtils.Environment();
+		for (Type t1 : types) {
+			for (Type t2 : types) {
+				Type glb = environment.greatestLowerBound(t1, t2);
+				String msg = t1 + ", " + t2 + " glb " + glb;
+				assertTrue(msg, environment.isSatisfiableSubtype(t1, glb));
+				assertTrue(msg, environment.isSatisfiableSubtype(t2, glb));
+				// NOTE: least upper bounds are often unions with overlapping members (e.g.
+				// both include null), which the subtype operator treats as ambiguous. Hence,
+				// only termination is checked here.
+				assertNotNull(environment.leastUpperBound(t1, t2));
+			}
+		}
+		// Sanity check some outcomes
+		Type l = types.get(0), il = types.get(1), t = types.get(4);
+		assertEquals(Type.Null, environment.greatestLowerBound(l, t));
+		assertEquals(Type.Null, environment.greatestLowerBound(t, l));
+		assertSame(l, environment.leastUpperBound(l, il));
+	}
+
+	/**
+	 * Exposes the subtype operator using a given relation to detect cycles.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Environment extends FlowTypeUtils.Environment {
+		@Override
+		public Subtyping.Constraints isSubtype(Type t1, Type t2, BinaryRelation<Type> cache) {
+			return super.isSubtype(t1, t2, cache);
+		}
+	}
+
+	private WyilFile compile(String text) throws IOException {
+		Files.write(new File(dir, "main.whiley").toPath(), text.getBytes(StandardCharsets.UTF_8));
+		DirectoryRoot root = new DirectoryRoot(dir, new TestUtils.Registry());
+		SequentialBuildProject project = new SequentialBuildProject(new TestUtils.Environment(root, false), root);
+		// NOTE: the target is never flushed and, hence, never written to disk
+		Path.ID id = Trie.fromString("main");
+		Path.Entry<WyilFile> entry = root.create(id, WyilFile.ContentType);
+		WyilFile target = new WyilFile(entry);
+		target.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		Path.Entry<WhileyFile> source = root.get(id, WhileyFile.ContentType);
+		boolean status = new CompileTask(project, root, entry, Collections.singletonList(source))
+				.execute(Build.NULL_METER, target, source.read());
+		assertTrue(target.getModule().getAttributes().toString(), status);
+		return target;
+	}
+
+	private static List<Type> parameterTypes(WyilFile target, String name) {
+		for (Decl.Unit unit : target.getModule().getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				if (decl instanceof Decl.Function && ((Decl.Function) decl).getName().toString().equals(name)) {
+					ArrayList<Type> types = new ArrayList<>();
+					for (Decl.Variable parameter : ((Decl.Function) decl).getParameters()) {
+						types.add(parameter.getType());
+					}
+					return types;
+				}
+			}
+		}
+		throw new IllegalArgumentException("missing function: " + name);
+	}
+}
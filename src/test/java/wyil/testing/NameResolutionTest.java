@@ -0,0 +1,263 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.SequentialBuildProject;
+import wyc.lang.WhileyFile;
+import wyc.task.CompileTask;
+import wyc.util.TestUtils;
+import wycc.cfg.Configuration;
+import wycc.util.Pair;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.util.SyntacticDigest;
+
+/**
+ * Tests for resolving names against an external package. Importing a
+ * declaration from the package can require further declarations to be
+ * imported (e.g. the types in its signature), which are resolved in later
+ * rounds. Every such round shares the same importer, hence each external
+ * declaration should be imported exactly once regardless of how many times,
+ * and in how many rounds, it is referred to. Likewise, resolving several units
+ * which import the same declarations concurrently must produce the same
+ * resolutions as resolving them sequentially.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class NameResolutionTest {
+	/**
+	 * The external package, where <code>nat</code> is referred to directly and
+	 * indirectly through the signatures of <code>mk</code> and <code>first</code>.
+	 */
+	private static final String LIBRARY = "public type nat is (int x) where x >= 0\n\n"
+			+ "public type pair is {nat first, nat second}\n\n"
+			+ "public function mk(nat x) -> (pair r):\n    return {first: x, second: x}\n\n"
+			+ "public function first(pair p) -> (nat r):\n    return p.first\n";
+
+	private static final String SOURCE = "import lib\n\n"
+			+ "function f(lib::nat x) -> (lib::nat r):\n    return lib::first(lib::mk(x))\n\n"
+			+ "function g(lib::pair p, lib::pair q) -> (int r):\n    return lib::first(p) + lib::first(q)\n\n"
+			+ "function h(lib::nat x) -> (lib::pair r):\n    return lib::mk(lib::first(lib::mk(x)))\n";
+
+	private File lib;
+	private File src;
+
+	@Before
+	public void setup() throws IOException {
+		lib = Files.createTempDirectory("wyil").toFile();
+		src = Files.createTempDirectory("wyil").toFile();
+	}
+
+	@After
+	public void teardown() {
+		for (File dir : new File[] { lib, src }) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void test_ImportOnce() throws IOException {
+		write(src, "main", SOURCE);
+		Counter counter = new Counter();
+		WyilFile target = compile(counter, false, "main");
+		// Every external declaration is imported exactly once
+		List<String> imported = new ArrayList<>();
+		for (Decl.Unit unit : target.getModule().getExterns()) {
+			for (Decl decl : unit.getDeclarations()) {
+				imported.add(unit.getName() + "::" + ((Decl.Named<?>) decl).getName());
+			}
+		}
+		Collections.sort(imported);
+		assertEquals(Arrays.asList("lib::first", "lib::mk", "lib::nat", "lib::pair"), imported);
+		// Later references share the declarations already imported
+		assertTrue(counter.get("import (shared)") > 0);
+		// Every reference from the source resolves to the imported declaration
+		BitSet reachable = new BitSet();
+		for (Decl.Unit unit : target.getModule().getUnits()) {
+			WyilFile.findReachable(unit, reachable);
+		}
+		int links = 0;
+		for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+			SyntacticItem item = target.getSyntacticItem(i);
+			if (item instanceof Decl.Link) {
+				Decl.Link<?> link = (Decl.Link<?>) item;
+				assertTrue(link.getName().toString(), link.isResolved());
+				Decl.Named<?> decl = link.getTarget();
+				Decl.Unit unit = decl.getAncestor(Decl.Unit.class);
+				boolean external = false;
+				for (Decl.Unit extern : target.getModule().getExterns()) {
+					external |= (extern == unit);
+				}
+				assertTrue(link.getName().toString(), external);
+				links = links + 1;
+			}
+		}
+		assertTrue(links > 0);
+	}
+
+	@Test
+	public void test_Concurrent() throws IOException {
+		// Several units importing the same (and overlapping) declarations
+		write(src, "main", SOURCE);
+		write(src, "other", "import lib\n\nfunction f(lib::pair p) -> (lib::nat r):\n    return lib::first(p)\n");
+		write(src, "another", "import lib\nimport other\n\nfunction g(lib::nat x) -> (lib::nat r):\n    return other::f(lib::mk(x))\n");
+		write(src, "last", "import nat from lib\n\nfunction h(nat x) -> (nat r):\n    return x\n");
+		String[] names = { "main", "other", "another", "last" };
+		Counter sequential = new Counter();
+		List<String> expected = summarise(compile(sequential, false, names));
+		for (int i = 0; i != 4; ++i) {
+			Counter concurrent = new Counter();
+			assertEquals(expected, summarise(compile(concurrent, true, names)));
+			assertEquals(sequential.get("import"), concurrent.get("import"));
+			assertEquals(sequential.get("import (shared)"), concurrent.get("import (shared)"));
+		}
+	}
+
+	/**
+	 * Compile the given source units into a single target (without writing it to
+	 * disk), resolving names against the external package.
+	 *
+	 * @param meter
+	 * @param parallel
+	 * @param names
+	 * @return
+	 * @throws IOException
+	 */
+	private WyilFile compile(Build.Meter meter, boolean parallel, String... names) throws IOException {
+		write(lib, "lib", LIBRARY);
+		Pair<Boolean, String> result = TestUtils.compile(lib, false, false, "lib");
+		assertTrue(result.second(), result.first());
+		//
+		DirectoryRoot root = new DirectoryRoot(src, new TestUtils.Registry());
+		DirectoryRoot dependency = new DirectoryRoot(lib, new TestUtils.Registry());
+		SequentialBuildProject project = new SequentialBuildProject(new TestUtils.Environment(root, false), root) {
+			{
+				packages.add(new Build.Package() {
+					@Override
+					public Configuration getConfiguration() {
+						return null;
+					}
+
+					@Override
+					public Path.Root getRoot() {
+						return dependency;
+					}
+				});
+			}
+		};
+		// NOTE: the target is never flushed and, hence, never written to disk
+		Path.ID id = Trie.fromString("target");
+		Path.Entry<WyilFile> entry = root.create(id, WyilFile.ContentType);
+		WyilFile target = new WyilFile(entry);
+		target.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		List<Path.Entry<WhileyFile>> entries = new ArrayList<>();
+		WhileyFile[] sources = new WhileyFile[names.length];
+		for (int i = 0; i != names.length; ++i) {
+			entries.add(root.get(Trie.fromString(names[i]), WhileyFile.ContentType));
+			sources[i] = entries.get(i).read();
+		}
+		boolean status = new CompileTask(project, root, entry, entries).setParallel(parallel).execute(meter, target,
+				sources);
+		assertTrue(target.getModule().getAttributes().toString(), status);
+		return target;
+	}
+
+	/**
+	 * Summarise the resolution of a given target. That is, the declaration each
+	 * link resolves to (in the order they are reached), along with a digest of the
+	 * whole module (including the layout of imported declarations).
+	 *
+	 * @param target
+	 * @return
+	 */
+	private static List<String> summarise(WyilFile target) {
+		ArrayList<String> summary = new ArrayList<>();
+		BitSet reachable = new BitSet();
+		for (Decl.Unit unit : target.getModule().getUnits()) {
+			WyilFile.findReachable(unit, reachable);
+		}
+		for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+			SyntacticItem item = target.getSyntacticItem(i);
+			if (item instanceof Decl.Link) {
+				Decl.Link<?> link = (Decl.Link<?>) item;
+				assertTrue(link.getName().toString(), link.isResolved());
+				summary.add(i + ":" + link.getName() + "->" + link.getTarget().getQualifiedName() + "@"
+						+ link.getTarget().getIndex());
+			}
+		}
+		summary.add(new SyntacticDigest().add(target.getModule()).toHexString());
+		return summary;
+	}
+
+	private static void write(File dir, String name, String contents) throws IOException {
+		Files.write(new File(dir, name + ".whiley").toPath(), contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Counts the steps taken for each tag, including those of any forks.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Counter implements Build.Meter {
+		private final Map<String, Integer> counts = new HashMap<>();
+
+		public synchronized int get(String tag) {
+			return counts.getOrDefault(tag, 0);
+		}
+
+		@Override
+		public Build.Meter fork(String name) {
+			return this;
+		}
+
+		@Override
+		public synchronized void step(String tag) {
+			counts.merge(tag, 1, Integer::sum);
+		}
+
+		@Override
+		public void done() {
+		}
+	}
+}
@@ -0,0 +1,224 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.SequentialBuildProject;
+import wyc.lang.WhileyFile;
+import wyc.task.CompileTask;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.check.VerificationCheck;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+
+/**
+ * Tests for reusing the proofs of verification conditions from a previous
+ * build. Each test builds a small project with verification enabled, then
+ * edits the source (or the configuration of the prover) and builds it again.
+ * The number of assertions proved by each build, and the number reused from
+ * the previous build, identifies whether the cache was hit or missed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ProofCacheTest {
+	private static final String NAT = "type nat is (int x) where x >= 0\n\n"
+			+ "function f(nat x) -> (nat y):\n    return x + 1\n";
+
+	private static final String POS = "property pos(int x) where x >= 0\n\n"
+			+ "function f(int x) -> (int y)\nrequires pos(x)\nensures pos(y):\n    return x + 1\n";
+
+	private File dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("wyil").toFile();
+	}
+
+	@After
+	public void teardown() {
+		delete(dir);
+	}
+
+	@Test
+	public void test_Unchanged() throws IOException {
+		write(NAT);
+		Counter first = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		assertTrue(first.get("proof") > 0);
+		assertEquals(0, first.get("cached"));
+		Counter second = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		assertEquals(0, second.get("proof"));
+		assertEquals(first.get("proof"), second.get("cached"));
+		// Stored in the target root, along with the state of the previous build
+		assertTrue(new File(dir, "bin/main.wyproof").exists());
+		assertFalse(new File(dir, "main.wyproof").exists());
+		assertTrue(new File(dir, "bin/main.wystate").exists());
+		assertFalse(new File(dir, "main.wystate").exists());
+	}
+
+	@Test
+	public void test_Renamed() throws IOException {
+		write(NAT);
+		Counter first = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		write("type nat is (int n) where n >= 0\n\nfunction f(nat a) -> (nat b):\n    return a + 1\n");
+		Counter second = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		assertEquals(0, second.get("proof"));
+		assertEquals(first.get("proof"), second.get("cached"));
+	}
+
+	@Test
+	public void test_InvariantChanged() throws IOException {
+		write(NAT);
+		build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		write(NAT.replace("x >= 0", "x >= 1"));
+		Counter second = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		assertTrue(second.get("proof") > 0);
+		assertEquals(0, second.get("cached"));
+	}
+
+	@Test
+	public void test_BodyChanged() throws IOException {
+		write(POS);
+		Counter first = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		assertTrue(first.get("proof") > 0);
+		write(POS.replace("x >= 0", "x > -1"));
+		Counter second = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		assertTrue(second.get("proof") > 0);
+		assertEquals(0, second.get("cached"));
+	}
+
+	@Test
+	public void test_ProverChanged() throws IOException {
+		write(NAT);
+		Counter first = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		Counter second = build(VerificationCheck.DEFAULT_PROOF_LIMIT / 2);
+		assertEquals(first.get("proof"), second.get("proof"));
+		assertEquals(0, second.get("cached"));
+		// Changing back does not find the original proofs, since only proofs from the
+		// previous build are retained.
+		Counter third = build(VerificationCheck.DEFAULT_PROOF_LIMIT);
+		assertEquals(first.get("proof"), third.get("proof"));
+		assertEquals(0, third.get("cached"));
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private void write(String contents) throws IOException {
+		Files.write(new File(dir, "main.whiley").toPath(), contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Build the main target (in the <code>bin</code> directory) with verification
+	 * enabled, reusing the target from the previous build (if it exists). This
+	 * returns the number of each step taken by the build.
+	 *
+	 * @param proofLimit
+	 * @return
+	 * @throws IOException
+	 */
+	private Counter build(int proofLimit) throws IOException {
+		DirectoryRoot root = new DirectoryRoot(dir, new TestUtils.Registry());
+		Path.Root bin = root.createRelativeRoot(Trie.fromString("bin"));
+		SequentialBuildProject project = new SequentialBuildProject(new TestUtils.Environment(root, false), root);
+		Path.ID id = Trie.fromString("main");
+		Path.Entry<WyilFile> target = bin.get(id, WyilFile.ContentType);
+		if (target == null) {
+			target = bin.create(id, WyilFile.ContentType);
+			WyilFile wf = new WyilFile(target);
+			wf.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+			target.write(wf);
+		}
+		List<Path.Entry<WhileyFile>> sources = Collections.singletonList(root.get(id, WhileyFile.ContentType));
+		Path.Entry<WyilFile> binary = target;
+		project.add(new Build.Rule() {
+			@Override
+			public void apply(Collection<Build.Task> tasks) throws IOException {
+				tasks.add(new CompileTask(project, root, bin, binary, sources).setVerification(true)
+						.setProofLimit(proofLimit));
+			}
+		});
+		project.refresh();
+		Counter counter = new Counter();
+		try {
+			assertTrue(project.build(ForkJoinPool.commonPool(), counter).get());
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		root.flush();
+		return counter;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Counts the number of each step taken, regardless of which meter it was
+	 * taken by.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Counter implements Build.Meter {
+		private final Map<String, Integer> steps = new ConcurrentHashMap<>();
+
+		@Override
+		public Build.Meter fork(String name) {
+			return this;
+		}
+
+		@Override
+		public void step(String tag) {
+			steps.merge(tag, 1, Integer::sum);
+		}
+
+		@Override
+		public void done() {
+		}
+
+		public int get(String tag) {
+			return steps.getOrDefault(tag, 0);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.SequentialBuildProject;
+import wyc.lang.WhileyFile;
+import wyc.task.CompileTask;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.QualifiedName;
+
+/**
+ * Tests for qualified names. Equal qualified names should share the same
+ * canonical forms, such that they can be compared by reference. The qualified
+ * name of a declaration should be determined without traversing the heap,
+ * but should still reflect the unit (and position) it is currently enclosed by.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class QualifiedNameTest {
+	private File dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("wyil").toFile();
+	}
+
+	@After
+	public void teardown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void test_Canonical() {
+		QualifiedName n1 = name("std::io", "println");
+		QualifiedName n2 = name("std::io", "println");
+		assertNotSame(n1, n2);
+		assertEquals(n1, n2);
+		assertEquals(n1.hashCode(), n2.hashCode());
+		// Equal names share one instance of their canonical forms
+		assertSame(n1.getUnitKey(), n2.getUnitKey());
+		assertSame(n1.getNameKey(), n2.getNameKey());
+		assertSame(name("main", "println").getNameKey(), n1.getNameKey());
+		assertNotEquals(n1, name("std::io", "print"));
+		assertNotEquals(n1, name("std::ascii", "println"));
+		assertNotEquals(n1, name("std", "io::println"));
+	}
+
+	@Test
+	public void test_Declarations() throws IOException {
+		WyilFile target = compile("function f() -> int:\n    return 1\n\nfunction g() -> int:\n    return f()\n");
+		Decl.Unit unit = target.getModule().getUnits().get(0);
+		Decl.Named<?> f = (Decl.Named<?>) unit.getDeclarations().get(0);
+		Decl.Named<?> g = (Decl.Named<?>) unit.getDeclarations().get(1);
+		assertEquals(name("main", "f"), f.getQualifiedName());
+		assertEquals(name("main", "g"), g.getQualifiedName());
+		// Cached between calls
+		assertSame(f.getQualifiedName(), f.getQualifiedName());
+		assertSame(name("main", "f").getUnitKey(), f.getQualifiedName().getUnitKey());
+		// Moving declarations within their unit is detected
+		unit.getDeclarations().setOperand(0, g);
+		unit.getDeclarations().setOperand(1, f);
+		assertEquals(name("main", "f"), f.getQualifiedName());
+		assertEquals(name("main", "g"), g.getQualifiedName());
+		// Renaming their unit updates their qualified names
+		unit.setOperand(0, target.allocate(new Name(new Identifier("other"))));
+		assertEquals(name("other", "f"), f.getQualifiedName());
+		assertEquals(name("other", "g"), g.getQualifiedName());
+	}
+
+	private static QualifiedName name(String unit, String name) {
+		String[] components = unit.split("::");
+		Identifier[] path = new Identifier[components.length];
+		for (int i = 0; i != path.length; ++i) {
+			path[i] = new Identifier(components[i]);
+		}
+		return new QualifiedName(path, new Identifier(name));
+	}
+
+	private WyilFile compile(String text) throws IOException {
+		Files.write(new File(dir, "main.whiley").toPath(), text.getBytes(StandardCharsets.UTF_8));
+		DirectoryRoot root = new DirectoryRoot(dir, new TestUtils.Registry());
+		SequentialBuildProject project = new SequentialBuildProject(new TestUtils.Environment(root, false), root);
+		// NOTE: the target is never flushed and, hence, never written to disk
+		Path.ID id = Trie.fromString("main");
+		Path.Entry<WyilFile> entry = root.create(id, WyilFile.ContentType);
+		WyilFile target = new WyilFile(entry);
+		target.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		Path.Entry<WhileyFile> source = root.get(id, WhileyFile.ContentType);
+		boolean status = new CompileTask(project, root, entry, Collections.singletonList(source))
+				.execute(Build.NULL_METER, target, source.read());
+		assertTrue(target.getModule().getAttributes().toString(), status);
+		return target;
+	}
+}
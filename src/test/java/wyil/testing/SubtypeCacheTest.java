@@ -0,0 +1,202 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wyc.util.TestUtils;
+import wyil.check.FlowTypeUtils;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.Type;
+import wyil.util.IncrementalSubtypingEnvironment;
+import wyil.util.IncrementalSubtypingEnvironment.SubtypeCache;
+
+/**
+ * Tests for the cache of subtype outcomes shared between environments. The
+ * first occurrence of a query should be recorded as a miss, and subsequent
+ * occurrences (including those involving equivalent types) as hits. Every
+ * environment derived from one with a cache should share that cache, whilst
+ * an environment constructed without one should not remember anything. The
+ * expansions of nominal types should likewise be remembered (and shared
+ * between equivalent nominals), but computed without holding the cache's
+ * lock.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SubtypeCacheTest {
+
+	@Test
+	public void test_HitsAndMisses() {
+		SubtypeCache cache = new SubtypeCache(IncrementalSubtypingEnvironment.SUBTYPE_CACHE_SIZE);
+		FlowTypeUtils.Environment env = new FlowTypeUtils.Environment(cache);
+		assertTrue(env.isSatisfiableSubtype(type("int|null"), type("int")));
+		assertCounts(cache, 0, 1, 1);
+		assertTrue(env.isSatisfiableSubtype(type("int|null"), type("int")));
+		assertCounts(cache, 1, 1, 1);
+		// Negative outcomes are remembered as well
+		assertFalse(env.isSatisfiableSubtype(type("int"), type("int|null")));
+		assertCounts(cache, 1, 2, 2);
+		assertFalse(env.isSatisfiableSubtype(type("int"), type("int|null")));
+		assertCounts(cache, 2, 2, 2);
+	}
+
+	@Test
+	public void test_SharedWithDerived() {
+		SubtypeCache cache = new SubtypeCache(IncrementalSubtypingEnvironment.SUBTYPE_CACHE_SIZE);
+		FlowTypeUtils.Environment env = new FlowTypeUtils.Environment(cache);
+		FlowTypeUtils.Environment inner = env.declareWithin("a", "b");
+		assertSame(cache, inner.getSubtypeCache());
+		assertTrue(env.isSatisfiableSubtype(type("int[]"), type("int[]")));
+		assertCounts(cache, 0, 1, 1);
+		// Different withins relation, hence a different query
+		assertTrue(inner.isSatisfiableSubtype(type("int[]"), type("int[]")));
+		assertCounts(cache, 0, 2, 2);
+		// Same withins relation, hence the same query
+		assertTrue(env.declareWithin("a", "b").isSatisfiableSubtype(type("int[]"), type("int[]")));
+		assertCounts(cache, 1, 2, 2);
+		// Joining environments retains their cache
+		FlowTypeUtils.Environment join = FlowTypeUtils.union(inner, env);
+		assertSame(cache, join.getSubtypeCache());
+	}
+
+	@Test
+	public void test_Eviction() {
+		SubtypeCache cache = new SubtypeCache(2);
+		FlowTypeUtils.Environment env = new FlowTypeUtils.Environment(cache);
+		env.isSatisfiableSubtype(type("int"), type("int"));
+		env.isSatisfiableSubtype(type("bool"), type("bool"));
+		env.isSatisfiableSubtype(type("null"), type("null"));
+		assertCounts(cache, 0, 3, 2);
+		// Least recently used outcome was evicted
+		env.isSatisfiableSubtype(type("int"), type("int"));
+		assertCounts(cache, 0, 4, 2);
+		env.isSatisfiableSubtype(type("int"), type("int"));
+		assertCounts(cache, 1, 4, 2);
+	}
+
+	@Test
+	public void test_Uncached() {
+		FlowTypeUtils.Environment env = new FlowTypeUtils.Environment();
+		assertNull(env.getSubtypeCache());
+		assertNull(env.declareWithin("a", "b").getSubtypeCache());
+		assertNull(FlowTypeUtils.BOTTOM.getSubtypeCache());
+		assertTrue(env.isSatisfiableSubtype(type("int|null"), type("null")));
+		assertFalse(env.isSatisfiableSubtype(type("null"), type("int|null")));
+	}
+
+	@Test
+	public void test_Expansions() {
+		SubtypeCache cache = new SubtypeCache(IncrementalSubtypingEnvironment.SUBTYPE_CACHE_SIZE);
+		AtomicInteger expansions = new AtomicInteger();
+		Type.Nominal t1 = nominal("T", () -> {
+			assertFalse(Thread.holdsLock(cache));
+			expansions.incrementAndGet();
+			return new Type.Array(Type.Int);
+		});
+		Type.Nominal t2 = nominal("T", () -> {
+			expansions.incrementAndGet();
+			return new Type.Array(Type.Int);
+		});
+		Type.Nominal s = nominal("S", () -> {
+			expansions.incrementAndGet();
+			return Type.Bool;
+		});
+		Type concrete = cache.getConcreteType(t1);
+		assertEquals(new Type.Array(Type.Int), concrete);
+		assertEquals(1, expansions.get());
+		// Remembered, and shared with equivalent nominals
+		assertSame(concrete, cache.getConcreteType(t1));
+		assertSame(concrete, cache.getConcreteType(t2));
+		assertEquals(1, expansions.get());
+		assertEquals(Type.Bool, cache.getConcreteType(s));
+		assertEquals(2, expansions.get());
+	}
+
+	@Test
+	public void test_ExpansionUnlocked() throws Exception {
+		SubtypeCache cache = new SubtypeCache(IncrementalSubtypingEnvironment.SUBTYPE_CACHE_SIZE);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Type.Nominal slow = nominal("Slow", () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return Type.Int;
+		});
+		Type.Nominal fast = nominal("Fast", () -> Type.Bool);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Type> first = executor.submit(() -> cache.getConcreteType(slow));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			// Whilst one nominal is being expanded, others can be looked up and expanded
+			Future<Type> second = executor.submit(() -> cache.getConcreteType(fast));
+			assertEquals(Type.Bool, second.get(10, TimeUnit.SECONDS));
+			assertFalse(first.isDone());
+			release.countDown();
+			assertEquals(Type.Int, first.get(10, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Construct an (unresolved) nominal type with a given name, whose expansion is
+	 * provided by a given function.
+	 *
+	 * @param name
+	 * @param expansion
+	 * @return
+	 */
+	private static Type.Nominal nominal(String name, Supplier<Type> expansion) {
+		SyntacticItem[] operands = new SyntacticItem[] { new Name(new Identifier(name)) };
+		@SuppressWarnings("unchecked")
+		Decl.Link<Decl.Type> link = (Decl.Link<Decl.Type>) Decl.Link.DESCRIPTOR_0.construct(WyilFile.DECL_link,
+				operands, new byte[0]);
+		return new Type.Nominal(link, new WyilFile.Tuple<>()) {
+			@Override
+			public Type getConcreteType() {
+				return expansion.get();
+			}
+		};
+	}
+
+	private static void assertCounts(SubtypeCache cache, long hits, long misses, int size) {
+		assertEquals("hits", hits, cache.getHits());
+		assertEquals("misses", misses, cache.getMisses());
+		assertEquals("size", size, cache.size());
+	}
+
+	private static Type type(String text) {
+		return TestUtils.fromString(text);
+	}
+}
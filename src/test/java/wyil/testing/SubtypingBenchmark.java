@@ -0,0 +1,345 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wyc.util.TestUtils;
+import wyfs.lang.Path;
+import wyil.check.FlowTypeUtils;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.Type;
+import wyil.util.IncrementalSubtypingEnvironment;
+import wyil.util.IncrementalSubtypingEnvironment.SubtypeCache;
+
+/**
+ * <p>
+ * Measures the throughput and allocation of the main operations provided by
+ * the subtyping environment, namely <code>isSubtype()</code>,
+ * <code>subtract()</code>, <code>greatestLowerBound()</code> and
+ * <code>leastUpperBound()</code>. These are measured over several corpora of
+ * type pairs. The first are extracted from the subtype tests (i.e.
+ * <code>RecordSubtypeTest</code>, <code>RecursiveSubtypeTests</code> and
+ * <code>ArraySubtypeTest</code>), and the remainder are synthetic corpora of
+ * deep unions, wide unions of records and recursive record types.
+ * </p>
+ * <p>
+ * For each operation and corpus, the operation is applied to every pair in the
+ * corpus several times. The best throughput (in operations per millisecond) is
+ * reported, along with the number of bytes allocated per operation (where
+ * available). A fresh environment is used for each pass over a corpus, hence
+ * outcomes cached by the environment are reused only within a pass. The result
+ * of every operation is consumed, such that it cannot be optimised away. Pairs
+ * for which an operation does not terminate are reported and cause the
+ * benchmark to fail once all corpora have been measured. This is not run as
+ * part of the test suite, but can be run directly (e.g. from an IDE) once the
+ * test classes are compiled. It should be run from the root of the project,
+ * since the subtype tests are read from their source files.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SubtypingBenchmark {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final String TESTS_DIR = "src/test/java/wyil/testing/";
+	private static final Pattern CHECK = Pattern.compile("check(?:Is|Not)Subtype\\(\"([^\"]*)\",\\s*\"([^\"]*)\"\\)");
+	private static final int WARMUPS = 5;
+	private static final int REPEATS = 10;
+	private static final int DEPTH = 32;
+	private static final int WIDTH = 32;
+	/**
+	 * Consumes the result of every operation measured.
+	 */
+	private static volatile int sink;
+
+	/**
+	 * Run every benchmark. NOTE: JMH is not available as a dependency of this
+	 * project, hence warmup, repetition and dead code elimination are handled
+	 * here instead.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		List<String> failures = new ArrayList<>();
+		Map<String, List<Type[]>> corpora = new LinkedHashMap<>();
+		corpora.put("records", extract("RecordSubtypeTest"));
+		corpora.put("recursive", extract("RecursiveSubtypeTests"));
+		corpora.put("arrays", extract("ArraySubtypeTest"));
+		corpora.put("deep unions", deepUnions(DEPTH));
+		corpora.put("wide unions", wideUnions(WIDTH));
+		corpora.put("recursive records", recursiveRecords());
+		//
+		for (Map.Entry<String, List<Type[]>> e : corpora.entrySet()) {
+			System.out.println(e.getKey() + " (" + e.getValue().size() + " pairs):");
+			benchmark("isSubtype", e.getValue(), (env, p) -> env.isSubtype(p[0], p[1]), failures);
+			benchmark("subtract", e.getValue(), (env, p) -> env.subtract(p[0], p[1]), failures);
+			benchmark("greatestLowerBound", e.getValue(), (env, p) -> env.greatestLowerBound(p[0], p[1]), failures);
+			benchmark("leastUpperBound", e.getValue(), (env, p) -> env.leastUpperBound(p[0], p[1]), failures);
+		}
+		// Fail loudly if any operation did not terminate
+		if (!failures.isEmpty()) {
+			throw new AssertionError(failures.size() + " pair(s) did not terminate:\n  " + String.join("\n  ", failures));
+		}
+	}
+
+	/**
+	 * Benchmark a given operation over a given corpus of type pairs. Pairs for
+	 * which the operation fails (e.g. because they contain unresolved nominal
+	 * types) are omitted, and the number omitted for each reason is reported.
+	 * Pairs for which the operation does not terminate are also omitted, but are
+	 * recorded as failures.
+	 *
+	 * @param name
+	 * @param corpus
+	 * @param operation
+	 * @param failures
+	 */
+	private static void benchmark(String name, List<Type[]> corpus,
+			BiFunction<FlowTypeUtils.Environment, Type[], Object> operation, List<String> failures) {
+		ArrayList<Type[]> pairs = new ArrayList<>();
+		Map<String, Integer> dropped = new LinkedHashMap<>();
+		FlowTypeUtils.Environment environment = environment();
+		for (Type[] pair : corpus) {
+			try {
+				operation.apply(environment, pair);
+				pairs.add(pair);
+			} catch (RuntimeException e) {
+				dropped.merge(e.toString(), 1, Integer::sum);
+			} catch (StackOverflowError e) {
+				dropped.merge("does not terminate", 1, Integer::sum);
+				failures.add(name + "(" + pair[0] + ", " + pair[1] + ")");
+			}
+		}
+		if (pairs.isEmpty()) {
+			System.out.println(String.format("  %-20s: no supported pairs", name));
+			report(dropped);
+			return;
+		}
+		for (int i = 0; i != WARMUPS; ++i) {
+			run(pairs, operation);
+		}
+		// Take the best of several runs to reduce noise
+		long best = Long.MAX_VALUE;
+		long alloc = Long.MAX_VALUE;
+		for (int i = 0; i != REPEATS; ++i) {
+			long startAlloc = allocatedBytes();
+			long time = run(pairs, operation);
+			long endAlloc = allocatedBytes();
+			best = Math.min(best, time);
+			if (startAlloc >= 0 && endAlloc >= 0) {
+				alloc = Math.min(alloc, endAlloc - startAlloc);
+			}
+		}
+		double throughput = (pairs.size() * 1e6) / best;
+		String bytes = alloc == Long.MAX_VALUE ? "-" : Long.toString(alloc / pairs.size());
+		System.out.println(String.format("  %-20s: %10.1f ops/ms, %8s bytes/op (%d pairs)", name, throughput, bytes,
+				pairs.size()));
+		report(dropped);
+	}
+
+	/**
+	 * Report the number of pairs omitted for each reason.
+	 *
+	 * @param dropped
+	 */
+	private static void report(Map<String, Integer> dropped) {
+		for (Map.Entry<String, Integer> e : dropped.entrySet()) {
+			System.out.println(String.format("    dropped %d pair(s): %s", e.getValue(), e.getKey()));
+		}
+	}
+
+	/**
+	 * Apply a given operation to every pair in a corpus, returning the time taken
+	 * in nanoseconds.
+	 *
+	 * @param pairs
+	 * @param operation
+	 * @return
+	 */
+	private static long run(List<Type[]> pairs, BiFunction<FlowTypeUtils.Environment, Type[], Object> operation) {
+		FlowTypeUtils.Environment environment = environment();
+		int hash = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i != pairs.size(); ++i) {
+			hash = (hash * 31) + System.identityHashCode(operation.apply(environment, pairs.get(i)));
+		}
+		long time = System.nanoTime() - start;
+		sink ^= hash;
+		return time;
+	}
+
+	/**
+	 * Construct a fresh environment with its own subtype cache, as used during a
+	 * build.
+	 *
+	 * @return
+	 */
+	private static FlowTypeUtils.Environment environment() {
+		return new FlowTypeUtils.Environment(new SubtypeCache(IncrementalSubtypingEnvironment.SUBTYPE_CACHE_SIZE));
+	}
+
+	/**
+	 * Extract the pairs of types checked by a given subtype test from its source
+	 * file. Types which cannot be parsed are omitted.
+	 *
+	 * @param test
+	 * @return
+	 * @throws IOException
+	 */
+	private static List<Type[]> extract(String test) throws IOException {
+		String source = new String(Files.readAllBytes(Paths.get(TESTS_DIR + test + ".java")), StandardCharsets.UTF_8);
+		HashMap<String, Type> types = new HashMap<>();
+		ArrayList<Type[]> pairs = new ArrayList<>();
+		Matcher m = CHECK.matcher(source);
+		while (m.find()) {
+			Type lhs = parse(m.group(1), types);
+			Type rhs = parse(m.group(2), types);
+			if (lhs != null && rhs != null) {
+				pairs.add(new Type[] { lhs, rhs });
+			}
+		}
+		return pairs;
+	}
+
+	private static Type parse(String text, Map<String, Type> types) {
+		if (!types.containsKey(text)) {
+			Type type;
+			try {
+				type = TestUtils.fromString(text);
+			} catch (RuntimeException e) {
+				type = null;
+			}
+			types.put(text, type);
+		}
+		return types.get(text);
+	}
+
+	/**
+	 * Construct pairs of deeply nested unions, such as
+	 * <code>int|(null|(bool|...))</code>, for each depth up to a given maximum.
+	 * Each is paired with itself, with its innermost union and with an unrelated
+	 * type.
+	 *
+	 * @param depth
+	 * @return
+	 */
+	private static List<Type[]> deepUnions(int depth) {
+		Type[] leaves = { Type.Int, Type.Null, Type.Bool, Type.Byte };
+		ArrayList<Type[]> pairs = new ArrayList<>();
+		Type inner = new Type.Union(Type.Int, Type.Null);
+		Type type = inner;
+		for (int i = 0; i != depth; ++i) {
+			type = new Type.Union(leaves[i % leaves.length], new Type.Array(Type.Int), type);
+			pairs.add(new Type[] { type, type });
+			pairs.add(new Type[] { inner, type });
+			pairs.add(new Type[] { type, inner });
+			pairs.add(new Type[] { type, new Type.Array(Type.Bool) });
+		}
+		return pairs;
+	}
+
+	/**
+	 * Construct pairs of wide unions of records, such as
+	 * <code>{int f0}|{int f1}|...</code>, for each width up to a given maximum.
+	 * Each is paired with itself, with one of its records and with a union of
+	 * records with the same fields but different types.
+	 *
+	 * @param width
+	 * @return
+	 */
+	private static List<Type[]> wideUnions(int width) {
+		ArrayList<Type[]> pairs = new ArrayList<>();
+		for (int n = 1; n <= width; ++n) {
+			Type[] records = new Type[n];
+			Type[] others = new Type[n];
+			for (int i = 0; i != n; ++i) {
+				Identifier field = new Identifier("f" + i);
+				records[i] = new Type.Record(false, field, Type.Int);
+				others[i] = new Type.Record(false, field, new Type.Union(Type.Int, Type.Null));
+			}
+			Type union = new Type.Union(records);
+			Type other = new Type.Union(others);
+			pairs.add(new Type[] { union, union });
+			pairs.add(new Type[] { union, records[n / 2] });
+			pairs.add(new Type[] { records[n / 2], union });
+			pairs.add(new Type[] { union, other });
+			pairs.add(new Type[] { other, union });
+		}
+		return pairs;
+	}
+
+	/**
+	 * Construct pairs of recursive record types, such as
+	 * <code>type List is null|{List next, int data}</code>. Since recursive types
+	 * are nominal, this requires constructing their declarations and resolving
+	 * the links to them.
+	 *
+	 * @return
+	 */
+	private static List<Type[]> recursiveRecords() {
+		WyilFile heap = new WyilFile((Path.Entry<WyilFile>) null);
+		Type list = recursiveRecord(heap, "List", Type.Int);
+		Type nullable = recursiveRecord(heap, "NullableList", new Type.Union(Type.Int, Type.Null));
+		Type tree = recursiveRecord(heap, "Tree", new Type.Array(Type.Int));
+		Type[] types = { list, nullable, tree, Type.Null,
+				new Type.Record(false, new Identifier("data"), Type.Int) };
+		ArrayList<Type[]> pairs = new ArrayList<>();
+		for (Type t1 : types) {
+			for (Type t2 : types) {
+				pairs.add(new Type[] { t1, t2 });
+			}
+		}
+		return pairs;
+	}
+
+	private static Type recursiveRecord(WyilFile heap, String name, Type data) {
+		Decl.Link<Decl.Type> link = heap.allocate(new Decl.Link<>(new Name(new Identifier(name))));
+		Type.Nominal self = new Type.Nominal(link, new Tuple<>());
+		Type.Record node = new Type.Record(false, new Tuple<>(new Type.Field(new Identifier("next"), self),
+				new Type.Field(new Identifier("data"), data)));
+		Decl.Variable var = new Decl.Variable(new Tuple<>(), new Identifier("this"), new Type.Union(Type.Null, node));
+		Decl.Type decl = heap.allocate(new Decl.Type(new Tuple<>(), new Identifier(name), new Tuple<>(), var, new Tuple<>()));
+		link.resolve(decl);
+		return self;
+	}
+
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
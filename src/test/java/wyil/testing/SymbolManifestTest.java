@@ -0,0 +1,143 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wyc.util.TestUtils;
+import wycc.util.Pair;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyil.lang.WyilFile;
+import wyil.util.SymbolManifest;
+
+/**
+ * Tests for writing symbol manifests and reading them back.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SymbolManifestTest {
+	private static final String SOURCE = "public type nat is (int x) where x >= 0\n\n"
+			+ "final int LIMIT = 10\n\n"
+			+ "property positive(int x) where x > 0\n\n"
+			+ "public function f(nat x, int[] ys) -> (int r):\n    return x\n\n"
+			+ "export method g():\n    skip\n";
+
+	private File dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("wyil").toFile();
+	}
+
+	@After
+	public void teardown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void test_Symbols() throws IOException {
+		SymbolManifest manifest = SymbolManifest.of(compile());
+		assertEquals(1, manifest.getUnits().size());
+		SymbolManifest.Unit unit = manifest.getUnits().get(0);
+		assertEquals("test", unit.getName());
+		assertEquals(Arrays.asList("type nat public", "static LIMIT final", "property positive ",
+				"function f public", "method g export"), summarise(unit));
+		assertTrue(unit.getSymbols().get(0).isPublic());
+		assertFalse(unit.getSymbols().get(1).isPublic());
+		assertTrue(unit.getSymbols().get(4).isExport());
+	}
+
+	@Test
+	public void test_RoundTrip() throws IOException {
+		SymbolManifest manifest = SymbolManifest.of(compile());
+		SymbolManifest copy = readBack(manifest);
+		assertEquals(manifest.getUnits().size(), copy.getUnits().size());
+		for (int i = 0; i != manifest.getUnits().size(); ++i) {
+			SymbolManifest.Unit expected = manifest.getUnits().get(i);
+			SymbolManifest.Unit actual = copy.getUnits().get(i);
+			assertEquals(expected.getName(), actual.getName());
+			assertEquals(expected.toName(), actual.toName());
+			assertEquals(expected.getSymbols().size(), actual.getSymbols().size());
+			for (int j = 0; j != expected.getSymbols().size(); ++j) {
+				SymbolManifest.Symbol s = expected.getSymbols().get(j);
+				SymbolManifest.Symbol t = actual.getSymbols().get(j);
+				assertEquals(s.getKind(), t.getKind());
+				assertEquals(s.getName(), t.getName());
+				assertEquals(s.getMangle(), t.getMangle());
+				assertEquals(s.getModifiers(), t.getModifiers());
+			}
+		}
+	}
+
+	@Test
+	public void test_MultipleUnits() throws IOException {
+		SymbolManifest manifest = new SymbolManifest();
+		SymbolManifest.Unit empty = new SymbolManifest.Unit("std::empty");
+		SymbolManifest.Unit unit = new SymbolManifest.Unit("std::ascii");
+		unit.getSymbols().add(new SymbolManifest.Symbol("type", "char", "int", Arrays.asList("public", "native")));
+		unit.getSymbols().add(new SymbolManifest.Symbol("function", "f", "function(int)->(int)",
+				Collections.emptyList()));
+		manifest.getUnits().add(empty);
+		manifest.getUnits().add(unit);
+		SymbolManifest copy = readBack(manifest);
+		assertEquals(2, copy.getUnits().size());
+		assertEquals("std::empty", copy.getUnits().get(0).getName());
+		assertTrue(copy.getUnits().get(0).getSymbols().isEmpty());
+		assertEquals(Arrays.asList("type char public,native", "function f "), summarise(copy.getUnits().get(1)));
+		assertEquals("function(int)->(int)", copy.getUnits().get(1).getSymbols().get(1).getMangle());
+		assertEquals(2, copy.getUnits().get(1).toName().size());
+	}
+
+	private WyilFile compile() throws IOException {
+		Files.write(new File(dir, "test.whiley").toPath(), SOURCE.getBytes(StandardCharsets.UTF_8));
+		Pair<Boolean, String> result = TestUtils.compile(dir, false, false, "test");
+		assertTrue(result.second(), result.first());
+		DirectoryRoot root = new DirectoryRoot(dir, new TestUtils.Registry());
+		return root.get(Trie.fromString("test"), WyilFile.ContentType).read();
+	}
+
+	private static SymbolManifest readBack(SymbolManifest manifest) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		SymbolManifest.ContentType.write(output, manifest);
+		return SymbolManifest.ContentType.read(null, new ByteArrayInputStream(output.toByteArray()));
+	}
+
+	private static List<String> summarise(SymbolManifest.Unit unit) {
+		List<String> symbols = new ArrayList<>();
+		for (SymbolManifest.Symbol s : unit.getSymbols()) {
+			symbols.add(s.getKind() + " " + s.getName() + " " + String.join(",", s.getModifiers()));
+		}
+		return symbols;
+	}
+}
@@ -0,0 +1,300 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import wybs.lang.Build;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wyc.io.WhileyFileParser;
+import wyc.lang.WhileyFile;
+import wyc.util.TestUtils;
+import wycc.util.Pair;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyfs.util.VirtualRoot;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.QualifiedName;
+import wyil.transform.SymbolTable;
+import wyil.util.SymbolManifest;
+
+/**
+ * Tests for the snapshots of dependencies used by symbol tables. Dependencies
+ * should only be read when a symbol they might provide is looked up and,
+ * where a manifest is available, only when the declarations of a symbol are
+ * actually required. These are checked by corrupting those dependencies which
+ * should not be read. Snapshots must also notice when a dependency has been
+ * modified, even if its modification time has not changed, but should only
+ * read it when it was modified shortly before the snapshot was taken. Finally, selecting
+ * overloaded declarations by kind and arity must agree with simply scanning
+ * them all.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SymbolTableTest {
+	/**
+	 * A unit where the same name is declared with many different kinds and
+	 * arities.
+	 */
+	private static final String OVERLOADS = "function f() -> int:\n    return 0\n\n"
+			+ "function f(int x) -> int:\n    return x\n\n"
+			+ "function f(int x, int y) -> int:\n    return x\n\n"
+			+ "function f(bool x) -> int:\n    return 0\n\n"
+			+ "method f(int x, int y, int z):\n    skip\n\n"
+			+ "property f(int x, int y, bool z) where x == y\n\n"
+			+ "property f(int x) where x >= 0\n\n"
+			+ "type f is int\n\n"
+			+ "type f<T> is T\n\n"
+			+ "final int f = 0\n\n"
+			+ "function g() -> int:\n    return 0\n";
+
+	private File dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("wyil").toFile();
+		compile("a", "public function f(int x) -> (int r):\n    return x\n");
+		compile("b", "public function g(int x) -> (int r):\n    return x\n");
+	}
+
+	@After
+	public void teardown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void test_LazyLoading() throws IOException {
+		corrupt("b.wyil");
+		SymbolTable.Snapshot snapshot = snapshot();
+		SymbolTable.Snapshot.Unit a = snapshot.lookup("a");
+		assertNotNull(a);
+		assertTrue(a.contains("f"));
+		assertEquals(1, a.getDeclarations("f").size());
+		// Only now is the corrupted dependency read
+		try {
+			snapshot.lookup("b");
+			fail("dependency should have been read");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void test_LazyManifest() throws IOException {
+		File manifest = new File(dir, "a.wysym");
+		try (OutputStream output = Files.newOutputStream(manifest.toPath())) {
+			SymbolManifest.ContentType.write(output, SymbolManifest.of(read("a")));
+		}
+		long modified = new File(dir, "a.wyil").lastModified();
+		corrupt("a.wyil");
+		// Ensure manifest is still up-to-date
+		new File(dir, "a.wyil").setLastModified(modified);
+		manifest.setLastModified(modified);
+		SymbolTable.Snapshot snapshot = snapshot();
+		SymbolTable.Snapshot.Unit a = snapshot.lookup("a");
+		assertNotNull(a);
+		assertTrue(a.contains("f"));
+		assertFalse(a.contains("g"));
+		// Only now is the corrupted dependency read
+		try {
+			a.getDeclarations("f");
+			fail("dependency should have been read");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void test_Current() throws IOException {
+		SymbolTable.Snapshot snapshot = snapshot();
+		assertTrue(snapshot.isCurrent(dependencies(), manifests()));
+		// Modify dependency without changing its modification time
+		File b = new File(dir, "b.wyil");
+		long modified = b.lastModified();
+		corrupt("b.wyil");
+		b.setLastModified(modified);
+		assertEquals(modified, b.lastModified());
+		assertFalse(snapshot.isCurrent(dependencies(), manifests()));
+	}
+
+	@Test
+	public void test_CurrentSameSize() throws IOException {
+		// Modified shortly before the snapshot, hence its contents are compared
+		SymbolTable.Snapshot snapshot = snapshot();
+		File b = new File(dir, "b.wyil");
+		long modified = b.lastModified();
+		flip("b.wyil");
+		b.setLastModified(modified);
+		assertFalse(snapshot.isCurrent(dependencies(), manifests()));
+	}
+
+	@Test
+	public void test_CurrentUnread() throws IOException {
+		// Modified long before the snapshot, hence contents are not compared (and
+		// any later modification changes the modification time or size).
+		File b = new File(dir, "b.wyil");
+		long modified = b.lastModified() - 60000;
+		new File(dir, "a.wyil").setLastModified(modified);
+		b.setLastModified(modified);
+		SymbolTable.Snapshot snapshot = snapshot();
+		flip("b.wyil");
+		b.setLastModified(modified);
+		assertTrue(snapshot.isCurrent(dependencies(), manifests()));
+		// Whereas a change in size is noticed
+		corrupt("b.wyil");
+		b.setLastModified(modified);
+		assertFalse(snapshot.isCurrent(dependencies(), manifests()));
+	}
+
+	@Test
+	public void test_Overloads() throws IOException {
+		WyilFile target = parse(OVERLOADS);
+		SymbolTable table = new SymbolTable(target, Collections.emptyList());
+		Decl.Unit unit = target.getModule().getUnits().get(0);
+		for (String name : new String[] { "f", "g", "h" }) {
+			QualifiedName qualified = new QualifiedName(unit.getName(), new Identifier(name));
+			List<Decl.Named<?>> all = table.getAvailableDeclarations(qualified);
+			for (int kinds = 0; kinds != 32; ++kinds) {
+				for (int arity = SymbolTable.ANY_ARITY; arity <= 4; ++arity) {
+					List<Decl.Named<?>> expected = new ArrayList<>();
+					for (Decl.Named<?> d : all) {
+						if ((kindOf(d) & kinds) != 0 && (arity == SymbolTable.ANY_ARITY || arityOf(d) == arity)) {
+							expected.add(d);
+						}
+					}
+					List<Decl.Named<?>> actual = table.getAvailableDeclarations(qualified, kinds, arity);
+					String message = name + " " + kinds + " " + arity;
+					assertEquals(message, expected.size(), actual.size());
+					for (int i = 0; i != expected.size(); ++i) {
+						assertSame(message, expected.get(i), actual.get(i));
+					}
+				}
+			}
+		}
+		assertEquals(10, table.getAvailableDeclarations(new QualifiedName(unit.getName(), new Identifier("f"))).size());
+	}
+
+	/**
+	 * Determine the kind of a declaration, as understood by the symbol table.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private static int kindOf(Decl.Named<?> decl) {
+		if (decl instanceof Decl.Function) {
+			return SymbolTable.FUNCTION;
+		} else if (decl instanceof Decl.Method) {
+			return SymbolTable.METHOD;
+		} else if (decl instanceof Decl.Property) {
+			return SymbolTable.PROPERTY;
+		} else if (decl instanceof Decl.Type) {
+			return SymbolTable.TYPE;
+		} else if (decl instanceof Decl.StaticVariable) {
+			return SymbolTable.STATIC;
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Determine the arity of a declaration, as understood by the symbol table.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private static int arityOf(Decl.Named<?> decl) {
+		if (decl instanceof Decl.Callable) {
+			return ((Decl.Callable) decl).getParameters().size();
+		} else if (decl instanceof Decl.Type) {
+			return decl.getTemplate().size();
+		} else {
+			return 0;
+		}
+	}
+
+	private static WyilFile parse(String text) throws IOException {
+		Trie id = Trie.fromString("test");
+		VirtualRoot root = new VirtualRoot(new TestUtils.Registry());
+		Path.Entry<WhileyFile> entry = root.create(id, WhileyFile.ContentType);
+		try (OutputStream out = entry.outputStream()) {
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		WyilFile target = new WyilFile((Path.Entry<WyilFile>) null);
+		target.setRootItem(new Decl.Module(new Name(id), new Tuple<>(), new Tuple<>(), new Tuple<>()));
+		assertTrue(new WhileyFileParser(target, new WhileyFile(entry)).read(Build.NULL_METER));
+		return target;
+	}
+
+	private SymbolTable.Snapshot snapshot() throws IOException {
+		return new SymbolTable.Snapshot(dependencies(), manifests());
+	}
+
+	private List<Path.Entry<WyilFile>> dependencies() throws IOException {
+		return new DirectoryRoot(dir, new TestUtils.Registry()).get(Content.filter("**/*", WyilFile.ContentType));
+	}
+
+	private List<Path.Entry<SymbolManifest>> manifests() throws IOException {
+		return new DirectoryRoot(dir, new TestUtils.Registry()).get(Content.filter("**/*", SymbolManifest.ContentType));
+	}
+
+	private WyilFile read(String name) throws IOException {
+		DirectoryRoot root = new DirectoryRoot(dir, new TestUtils.Registry());
+		return root.get(Trie.fromString(name), WyilFile.ContentType).read();
+	}
+
+	private void compile(String name, String source) throws IOException {
+		Files.write(new File(dir, name + ".whiley").toPath(), source.getBytes(StandardCharsets.UTF_8));
+		Pair<Boolean, String> result = TestUtils.compile(dir, false, false, name);
+		assertTrue(result.second(), result.first());
+	}
+
+	/**
+	 * Modify a given file without changing its size.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	private void flip(String file) throws IOException {
+		java.nio.file.Path path = new File(dir, file).toPath();
+		byte[] bytes = Files.readAllBytes(path);
+		bytes[bytes.length - 1] ^= 1;
+		Files.write(path, bytes);
+	}
+
+	private void corrupt(String file) throws IOException {
+		Files.write(new File(dir, file).toPath(), "corrupt".getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,273 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyil.testing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wyc.util.TestUtils;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.Type;
+import wyil.util.TypeInterner;
+
+/**
+ * Tests for the canonical representatives of types. Two types should be
+ * equivalent if and only if they are structurally equal after normalising
+ * unions, including where they refer to other items (which are compared by the
+ * identity of their referent). This should continue to hold when the items (or
+ * representatives) remembered by an interner are forgotten, and when an
+ * interner is shared between threads.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TypeInternerTest {
+	private static final String[] TYPES = { "int", "bool", "null", "int[]", "int[][]", "bool[]", "int|null",
+			"null|int", "int|null|bool", "bool|int|null", "{int f}", "{int g}", "{int f, bool g}", "{bool g, int f}", "{int f, ...}",
+			"{int[] f}|null", "&int", "&(int[])", "function(int)->(int)", "function(int)->(bool)",
+			"method(int)->(int)", "(int,bool)", "List", "Link<int>", "Link<bool>" };
+
+	@Test
+	public void test_Equivalence() {
+		checkEquivalence(new TypeInterner(), corpus());
+	}
+
+	@Test
+	public void test_Unions() {
+		TypeInterner interner = new TypeInterner();
+		Type t1 = TestUtils.fromString("int|null");
+		Type t2 = TestUtils.fromString("null|int");
+		// NOTE: duplicate members are rejected by the parser
+		Type t3 = new Type.Union(Type.Int, Type.Null, Type.Int);
+		assertTrue(interner.isEquivalent(t1, t2));
+		assertTrue(interner.isEquivalent(t2, t3));
+		assertFalse(interner.isEquivalent(t1, TestUtils.fromString("int|null|bool")));
+		assertFalse(interner.isEquivalent(t1, TestUtils.fromString("(int|null)[]")));
+		assertTrue(interner.isEquivalent(TestUtils.fromString("{int|null f}"), TestUtils.fromString("{null|int f}")));
+		// The representative is the first union encountered
+		assertSame(t1, interner.intern(t2));
+		assertSame(t1, interner.intern(t3));
+	}
+
+	@Test
+	public void test_References() {
+		Type x = TestUtils.fromString("int");
+		Type y = TestUtils.fromString("int");
+		List<Type> types = new ArrayList<>();
+		// Refer to the same item
+		types.add(nominal("T", x));
+		types.add(nominal("T", x));
+		// Refer to a structurally equal but distinct item
+		types.add(nominal("T", y));
+		// Unresolved
+		types.add(nominal("T", null));
+		types.add(new Type.Array(nominal("T", x)));
+		types.add(new Type.Array(nominal("T", y)));
+		TypeInterner interner = new TypeInterner();
+		checkEquivalence(interner, types);
+		assertTrue(interner.isEquivalent(types.get(0), types.get(1)));
+		assertFalse(interner.isEquivalent(types.get(0), types.get(2)));
+		assertFalse(interner.isEquivalent(types.get(4), types.get(5)));
+	}
+
+	@Test
+	public void test_Bounded() {
+		List<Type> types = corpus();
+		// Sufficient for every representative, but not every item
+		int representatives = representatives();
+		TypeInterner interner = new TypeInterner(representatives + 1);
+		int[] indices = new int[types.size()];
+		for (int i = 0; i != indices.length; ++i) {
+			indices[i] = interner.indexOf(types.get(i));
+		}
+		checkEquivalence(interner, types);
+		// Forgotten items are given the same representative
+		for (int i = 0; i != indices.length; ++i) {
+			assertEquals(types.get(i).toString(), indices[i], interner.indexOf(types.get(i)));
+		}
+		checkEquivalence(interner, corpus());
+		assertEquals(representatives, interner.size());
+	}
+
+	@Test
+	public void test_Evicted() {
+		TypeInterner interner = new TypeInterner(8);
+		checkEquivalence(interner, corpus());
+		checkEquivalence(interner, corpus());
+		// Indices are never reused for types which are not equivalent
+		Map<Integer, Type> indices = new HashMap<>();
+		for (int i = 0; i != 4; ++i) {
+			for (Type type : corpus()) {
+				Type other = indices.putIfAbsent(interner.indexOf(type), type);
+				if (other != null) {
+					assertTrue(type + " == " + other, isNormallyEqual(type, other));
+				}
+			}
+		}
+		assertTrue(interner.size() < 32);
+	}
+
+	@Test
+	public void test_Concurrent() throws Exception {
+		// Sufficient for every representative, but not every item
+		TypeInterner interner = new TypeInterner(representatives() + 1);
+		TypeInterner bounded = new TypeInterner(8);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Type[]>> futures = new ArrayList<>();
+			List<Future<?>> checks = new ArrayList<>();
+			for (int i = 0; i != 8; ++i) {
+				// Representatives are forgotten concurrently, hence only equivalence is stable
+				checks.add(executor.submit(() -> {
+					for (Type t1 : corpus()) {
+						for (Type t2 : corpus()) {
+							assertEquals(t1 + " == " + t2, isNormallyEqual(t1, t2), bounded.isEquivalent(t1, t2));
+						}
+					}
+				}));
+			}
+			for (int i = 0; i != 8; ++i) {
+				futures.add(executor.submit(() -> {
+					List<Type> types = corpus();
+					Type[] representatives = new Type[types.size()];
+					for (int j = 0; j != representatives.length; ++j) {
+						representatives[j] = interner.intern(types.get(j));
+					}
+					return representatives;
+				}));
+			}
+			Type[] expected = futures.get(0).get();
+			for (Future<Type[]> future : futures) {
+				Type[] actual = future.get();
+				for (int i = 0; i != expected.length; ++i) {
+					assertSame(expected[i].toString(), expected[i], actual[i]);
+				}
+			}
+			for (Future<?> check : checks) {
+				check.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Check that two types are equivalent if and only if they are equal after
+	 * normalising unions, for every pair of types in a given list.
+	 *
+	 * @param interner
+	 * @param types
+	 */
+	private static void checkEquivalence(TypeInterner interner, List<Type> types) {
+		for (Type t1 : types) {
+			for (Type t2 : types) {
+				boolean expected = isNormallyEqual(t1, t2);
+				String msg = t1 + " == " + t2;
+				assertEquals(msg, expected, interner.isEquivalent(t1, t2));
+				assertEquals(msg, expected, interner.intern(t1) == interner.intern(t2));
+				assertEquals(msg, expected, interner.indexOf(t1) == interner.indexOf(t2));
+			}
+		}
+	}
+
+	/**
+	 * Check whether two types are equal, ignoring the order of union members and
+	 * any duplicates. This suffices for the corpus, which does not contain unions
+	 * nested within other types.
+	 *
+	 * @param t1
+	 * @param t2
+	 * @return
+	 */
+	private static boolean isNormallyEqual(Type t1, Type t2) {
+		if (t1 instanceof Type.Union && t2 instanceof Type.Union) {
+			return contains((Type.Union) t1, (Type.Union) t2) && contains((Type.Union) t2, (Type.Union) t1);
+		} else {
+			return t1.equals(t2);
+		}
+	}
+
+	private static boolean contains(Type.Union t1, Type.Union t2) {
+		for (int i = 0; i != t2.size(); ++i) {
+			boolean found = false;
+			for (int j = 0; j != t1.size(); ++j) {
+				found |= t1.get(j).equals(t2.get(i));
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine the number of distinct representatives of the types in the corpus.
+	 *
+	 * @return
+	 */
+	private static int representatives() {
+		TypeInterner interner = new TypeInterner();
+		for (Type type : corpus()) {
+			interner.intern(type);
+		}
+		return interner.size();
+	}
+
+	/**
+	 * Parse every type in the corpus twice, such that each structurally equal
+	 * type is represented by (at least) two distinct items.
+	 *
+	 * @return
+	 */
+	private static List<Type> corpus() {
+		List<Type> types = new ArrayList<>();
+		for (String text : TYPES) {
+			types.add(TestUtils.fromString(text));
+			types.add(TestUtils.fromString(text));
+		}
+		return types;
+	}
+
+	/**
+	 * Construct a nominal type whose link refers to a given item, or is unresolved
+	 * if none is given.
+	 *
+	 * @param name
+	 * @param referent
+	 * @return
+	 */
+	private static Type.Nominal nominal(String name, SyntacticItem referent) {
+		Name n = new Name(new Identifier(name));
+		SyntacticItem[] operands = referent == null ? new SyntacticItem[] { n }
+				: new SyntacticItem[] { n, new Ref<>(referent) };
+		@SuppressWarnings("unchecked")
+		Decl.Link<Decl.Type> link = (Decl.Link<Decl.Type>) Decl.Link.DESCRIPTOR_0.construct(WyilFile.DECL_link,
+				operands, new byte[0]);
+		return new Type.Nominal(link, new WyilFile.Tuple<>());
+	}
+}